@@ -0,0 +1,63 @@
+package com.foilen.smalltools.codec;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A format to serialize objects to bytes and deserialize them back. The implementations are thread-safe.
+ *
+ * <ul>
+ * <li>{@link JsonCodec}: textual JSON. Easy to read and the default.</li>
+ * <li>{@link SmileCodec}: binary JSON (Smile). Smaller and faster to encode and decode.</li>
+ * </ul>
+ */
+public interface Codec {
+
+    /**
+     * Deserialize the bytes.
+     *
+     * @param bytes the encoded object
+     * @param clazz the type of the final object
+     * @param <T>   the type of the final object
+     * @return the object
+     */
+    <T> T decode(byte[] bytes, Class<T> clazz);
+
+    /**
+     * Deserialize from the stream. The stream will not be closed.
+     *
+     * @param stream the stream
+     * @param clazz  the type of the final object
+     * @param <T>    the type of the final object
+     * @return the object
+     */
+    <T> T decode(InputStream stream, Class<T> clazz);
+
+    /**
+     * Deserialize a list from the stream. The stream will not be closed.
+     *
+     * @param stream the stream
+     * @param clazz  the type of the items
+     * @param <T>    the type of the items
+     * @return the list of objects
+     */
+    <T> List<T> decodeAsList(InputStream stream, Class<T> clazz);
+
+    /**
+     * Serialize the object.
+     *
+     * @param object the object to serialize
+     * @return the bytes
+     */
+    byte[] encode(Object object);
+
+    /**
+     * Serialize the object to the stream. The stream will not be closed.
+     *
+     * @param stream the stream
+     * @param object the object to serialize
+     */
+    void encode(OutputStream stream, Object object);
+
+}
@@ -0,0 +1,83 @@
+package com.foilen.smalltools.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.foilen.smalltools.exception.SmallToolsException;
+import com.foilen.smalltools.tools.JsonTools;
+
+/**
+ * A codec that uses textual JSON in UTF-8 with {@link JsonTools}.
+ */
+public class JsonCodec implements Codec {
+
+    /**
+     * Compact JSON.
+     */
+    public static final JsonCodec COMPACT = new JsonCodec(false);
+
+    /**
+     * Pretty JSON (indented on multiple lines).
+     */
+    public static final JsonCodec PRETTY = new JsonCodec(true);
+
+    private final boolean pretty;
+
+    /**
+     * Create the codec.
+     *
+     * @param pretty true to indent the JSON on multiple lines
+     */
+    public JsonCodec(boolean pretty) {
+        this.pretty = pretty;
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        return JsonTools.readFromBytes(bytes, clazz);
+    }
+
+    @Override
+    public <T> T decode(InputStream stream, Class<T> clazz) {
+        return JsonTools.readFromStream(stream, clazz);
+    }
+
+    @Override
+    public <T> List<T> decodeAsList(InputStream stream, Class<T> clazz) {
+        return JsonTools.readFromStreamAsList(stream, clazz);
+    }
+
+    @Override
+    public byte[] encode(Object object) {
+        if (pretty) {
+            return JsonTools.prettyPrint(object).getBytes(StandardCharsets.UTF_8);
+        }
+        return JsonTools.compactPrintAsBytes(object);
+    }
+
+    @Override
+    public void encode(OutputStream stream, Object object) {
+        if (pretty) {
+            JsonTools.writeToStream(stream, object);
+            return;
+        }
+        try {
+            stream.write(JsonTools.compactPrintAsBytes(object));
+        } catch (IOException e) {
+            throw new SmallToolsException("Problem serializing in JSON", e);
+        }
+    }
+
+    /**
+     * Tell if the JSON is indented on multiple lines.
+     *
+     * @return true if pretty
+     */
+    public boolean isPretty() {
+        return pretty;
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.foilen.smalltools.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.type.CollectionType;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.foilen.smalltools.exception.SmallToolsException;
+
+/**
+ * A codec that uses Smile, a binary JSON format. It supports the same types and annotations as {@link JsonCodec}, but is smaller and faster to encode and decode. It is not readable by a human.
+ */
+public class SmileCodec implements Codec {
+
+    /**
+     * The shared codec.
+     */
+    public static final SmileCodec SMILE = new SmileCodec();
+
+    private final SmileMapper smileMapper = new SmileMapper();
+
+    /**
+     * Create the codec. Prefer using the shared {@link #SMILE} one since each codec caches its serializers.
+     */
+    public SmileCodec() {
+        smileMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+        smileMapper.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        smileMapper.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        smileMapper.registerModule(new JavaTimeModule());
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        try {
+            return smileMapper.readValue(bytes, clazz);
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem deserializing from Smile", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(InputStream stream, Class<T> clazz) {
+        try {
+            return smileMapper.readValue(stream, clazz);
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem deserializing from Smile", e);
+        }
+    }
+
+    @Override
+    public <T> List<T> decodeAsList(InputStream stream, Class<T> clazz) {
+        try {
+            CollectionType listType = smileMapper.getTypeFactory().constructCollectionType(List.class, clazz);
+            return smileMapper.readValue(stream, listType);
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem deserializing from Smile", e);
+        }
+    }
+
+    @Override
+    public byte[] encode(Object object) {
+        try {
+            return smileMapper.writeValueAsBytes(object);
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem serializing in Smile", e);
+        }
+    }
+
+    @Override
+    public void encode(OutputStream stream, Object object) {
+        try {
+            smileMapper.writeValue(stream, object);
+        } catch (IOException e) {
+            throw new SmallToolsException("Problem serializing in Smile", e);
+        }
+    }
+
+}
@@ -0,0 +1,564 @@
+package com.foilen.smalltools.db;
+
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.codec.SmileCodec;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.tools.JsonTools;
+import com.foilen.smalltools.tools.StringTools;
+import com.foilen.smalltools.trigger.SmoothTrigger;
+import jakarta.annotation.PostConstruct;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Like {@link AbstractListSingleJsonFileDao}, but the entities have a unique key that is indexed. That makes {@link #findOne(Object)}, {@link #delete(Object)} and {@link #update(Object, Object)}
+ * constant time instead of scanning all the entities. It is using the same json file format, so it can load a file saved by the list DAO (the last entity with a key wins).
+ * </p>
+ *
+ * <p>
+ * Differences with {@link AbstractListSingleJsonFileDao}:
+ * </p>
+ * <ul>
+ * <li>Since the keys are unique, adding an entity with the key of another one replaces it.</li>
+ * <li>Secondary indexes can be declared with {@link #getSecondaryIndexes()} and queried with {@link #findAllByIndex(String, Object)}.</li>
+ * <li>It is using a read-write lock, so the reads never block each other. Only the modifications are exclusive.</li>
+ * <li>The streams are created from a copy taken when the method is called.</li>
+ * <li>Like the list DAO, {@link #isCloneOnRead()} can return false to get the entities without any copy.</li>
+ * </ul>
+ *
+ * <p>
+ * Usage:
+ * </p>
+ *
+ * <pre>
+ * public static class TestKeyedDao extends AbstractKeyedListSingleJsonFileDao&lt;TestDbEntity, String&gt; {
+ *
+ *     private File dbFile;
+ *     private File stagingFile;
+ *
+ *     public TestKeyedDao(File dbFile) {
+ *         this.dbFile = dbFile;
+ *         this.stagingFile = new File(dbFile.getAbsolutePath() + "_tmp");
+ *     }
+ *
+ *     &#64;Override
+ *     protected File getFinalFile() {
+ *         return dbFile;
+ *     }
+ *
+ *     &#64;Override
+ *     protected File getStagingFile() {
+ *         return stagingFile;
+ *     }
+ *
+ *     &#64;Override
+ *     protected Class&lt;TestDbEntity&gt; getType() {
+ *         return TestDbEntity.class;
+ *     }
+ *
+ *     &#64;Override
+ *     protected String getKey(TestDbEntity entity) {
+ *         return entity.getId();
+ *     }
+ *
+ *     &#64;Override
+ *     protected Map&lt;String, Function&lt;TestDbEntity, ?&gt;&gt; getSecondaryIndexes() {
+ *         return Map.of("number", TestDbEntity::getNumber);
+ *     }
+ * }
+ *
+ * TestKeyedDao dao = new TestKeyedDao(dbFile);
+ * dao.init(); // Called automatically if DAO is exposed as a Spring Bean
+ *
+ * dao.add(new TestDbEntity("id1", 1));
+ * Optional&lt;TestDbEntity&gt; optional = dao.findOne("id1");
+ * List&lt;TestDbEntity&gt; withNumber1 = dao.findAllByIndex("number", 1);
+ * </pre>
+ *
+ * @param <T> the type of the entities
+ * @param <K> the type of the key
+ */
+public abstract class AbstractKeyedListSingleJsonFileDao<T, K> extends AbstractBasics {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private String previousMd5sum;
+    private long generation;
+    private long savedGeneration;
+    private Map<K, T> cachedEntityByKey;
+    private Map<String, Function<T, ?>> secondaryIndexes;
+    private Map<String, Map<Object, Set<K>>> keysByValueByIndexName;
+
+    /**
+     * What to do when needing to save to the file.
+     */
+    protected Runnable saveToFile = () -> {
+
+        synchronized (this) {
+
+            // The entities are replaced, never modified, so a copy of the references is enough to write them without the lock
+            List<T> entities;
+            long savingGeneration;
+            lock.readLock().lock();
+            try {
+                if (cachedEntityByKey == null) {
+                    logger.debug("Content wasn't loaded yet. Skipping saving");
+                    return;
+                }
+                if (generation == savedGeneration) {
+                    logger.debug("Nothing was modified. Skipping saving");
+                    return;
+                }
+                entities = new ArrayList<>(cachedEntityByKey.values());
+                savingGeneration = generation;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // Save
+            logger.debug("Saving to {}", getFinalFile().getAbsolutePath());
+            try {
+                String cachedMd5sum = JsonFileDaoTools.writeIfChanged(getStagingFile(), getFinalFile(), getCodec(), entities, previousMd5sum);
+                if (StringTools.safeEquals(previousMd5sum, cachedMd5sum)) {
+                    logger.debug("Content didn't change. Discarded the staging file");
+                }
+                previousMd5sum = cachedMd5sum;
+                savedGeneration = savingGeneration;
+            } catch (Exception e) {
+                logger.error("Could not write the staging file {}", getStagingFile().getAbsolutePath(), e);
+            }
+
+        }
+
+    };
+
+    private final SmoothTrigger saveSmoothTrigger;
+    private final Runnable saveRequester;
+
+    /**
+     * Create with its own save trigger. The shutdown hook that saves is registered by {@link #init()}.
+     */
+    public AbstractKeyedListSingleJsonFileDao() {
+        saveSmoothTrigger = new SmoothTrigger(2000, 10000, false, saveToFile).start();
+        saveRequester = saveSmoothTrigger::request;
+    }
+
+    /**
+     * Create without its own save trigger and shutdown hook. Used by {@link AbstractShardedKeyedJsonFileDao} that saves all its shards with a single trigger and shutdown hook.
+     *
+     * @param saveRequester what to call to request a save after a modification
+     */
+    AbstractKeyedListSingleJsonFileDao(Runnable saveRequester) {
+        this.saveSmoothTrigger = null;
+        this.saveRequester = saveRequester;
+    }
+
+    /**
+     * Add multiple entities. The ones with the same key as another are replacing it.
+     *
+     * @param entities the entities
+     */
+    public void add(Iterable<T> entities) {
+        lock.writeLock().lock();
+        try {
+            entities.forEach(it -> put(JsonTools.clone(it)));
+            ++generation;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        saveRequester.run();
+    }
+
+    /**
+     * Add an entity. If there is already one with the same key, it is replaced.
+     *
+     * @param entity the entity
+     */
+    public void add(T entity) {
+        T clone = JsonTools.clone(entity);
+        lock.writeLock().lock();
+        try {
+            put(clone);
+            ++generation;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        saveRequester.run();
+    }
+
+    /**
+     * Gives the amount of persisted entities.
+     *
+     * @return the count
+     */
+    public int count() {
+        lock.readLock().lock();
+        try {
+            return cachedEntityByKey.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete the entity with the specified key.
+     *
+     * @param key the key
+     * @return true if it was deleted
+     */
+    public boolean delete(K key) {
+        boolean deleted;
+        lock.writeLock().lock();
+        try {
+            deleted = remove(key) != null;
+            if (deleted) {
+                ++generation;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (deleted) {
+            saveRequester.run();
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete some entities.
+     *
+     * @param predicate a function that returns true when the entity must be deleted.
+     * @return the deleted count
+     */
+    public int delete(Predicate<? super T> predicate) {
+        int count = 0;
+
+        lock.writeLock().lock();
+        try {
+            Iterator<T> it = cachedEntityByKey.values().iterator();
+            while (it.hasNext()) {
+                T next = it.next();
+                if (predicate.test(next)) {
+                    ++count;
+                    it.remove();
+                    removeFromSecondaryIndexes(getKey(next), next);
+                }
+            }
+            if (count > 0) {
+                ++generation;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (count > 0) {
+            saveRequester.run();
+        }
+
+        return count;
+    }
+
+    /**
+     * Find all entities. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @return the list
+     */
+    public List<T> findAllAsList() {
+        return findAllAsList(it -> true);
+    }
+
+    /**
+     * Find all entities that satisfies the predicate. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param predicate the predicate
+     * @return the list
+     */
+    public List<T> findAllAsList(Predicate<? super T> predicate) {
+        List<T> matching = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            cachedEntityByKey.values().forEach(it -> {
+                if (predicate.test(it)) {
+                    matching.add(it);
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (isCloneOnRead()) {
+            matching.replaceAll(JsonTools::clone);
+        }
+        return matching;
+    }
+
+    /**
+     * Find all entities. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @return the stream
+     */
+    public Stream<T> findAllAsStream() {
+        return findAllAsList().stream();
+    }
+
+    /**
+     * Find all entities that satisfies the predicate. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param predicate the predicate
+     * @return the stream
+     */
+    public Stream<T> findAllAsStream(Predicate<? super T> predicate) {
+        return findAllAsList(predicate).stream();
+    }
+
+    /**
+     * Find all the entities that have the value in a secondary index. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param indexName the name of the index as returned by {@link #getSecondaryIndexes()}
+     * @param value     the value to find
+     * @return the list in the order they were added
+     */
+    public List<T> findAllByIndex(String indexName, Object value) {
+        List<T> matching = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            var keysByValue = keysByValueByIndexName.get(indexName);
+            if (keysByValue == null) {
+                throw new IllegalArgumentException("There is no secondary index named " + indexName);
+            }
+            var keys = keysByValue.get(value);
+            if (keys != null) {
+                keys.forEach(key -> matching.add(cachedEntityByKey.get(key)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (isCloneOnRead()) {
+            matching.replaceAll(JsonTools::clone);
+        }
+        return matching;
+    }
+
+    /**
+     * Find the entity with the specified key. The returned entity is a clone (modifying it won't change its value in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param key the key
+     * @return the entity
+     */
+    public Optional<T> findOne(K key) {
+        T entity;
+        lock.readLock().lock();
+        try {
+            entity = cachedEntityByKey.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Optional.ofNullable(entity).map(this::cloneOnRead);
+    }
+
+    /**
+     * Find one entity that satisfies the predicate. The returned entity is a clone (modifying it won't change its value in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param predicate the predicate
+     * @return the entity
+     */
+    public Optional<T> findOne(Predicate<? super T> predicate) {
+        T entity = null;
+        lock.readLock().lock();
+        try {
+            for (T it : cachedEntityByKey.values()) {
+                if (predicate.test(it)) {
+                    entity = it;
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Optional.ofNullable(entity).map(this::cloneOnRead);
+    }
+
+    private T cloneOnRead(T entity) {
+        if (isCloneOnRead()) {
+            return JsonTools.clone(entity);
+        }
+        return entity;
+    }
+
+    /**
+     * Save to the file now.
+     */
+    public void flush() {
+        saveToFile.run();
+    }
+
+    /**
+     * Tell the format of the file. The default is pretty JSON to be easy to read, but {@link SmileCodec#SMILE} is smaller and faster. Changing it requires to convert the existing file.
+     *
+     * @return the codec
+     */
+    protected Codec getCodec() {
+        return JsonCodec.PRETTY;
+    }
+
+    /**
+     * Tell which file will contain the data.
+     *
+     * @return the file
+     */
+    protected abstract File getFinalFile();
+
+    /**
+     * Get the key of the entity.
+     *
+     * @param entity the entity
+     * @return the key
+     */
+    protected abstract K getKey(T entity);
+
+    /**
+     * Tell which secondary indexes to maintain. The entities with a null value are not in the index.
+     *
+     * @return the function to get the indexed value by index name
+     */
+    protected Map<String, Function<T, ?>> getSecondaryIndexes() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Tell which file will be used as a staging file and be renamed to {@link #getFinalFile()} once well written.
+     *
+     * @return the file
+     */
+    protected abstract File getStagingFile();
+
+    /**
+     * Tell the type of the entity to load and save.
+     *
+     * @return the type
+     */
+    protected abstract Class<T> getType();
+
+    /**
+     * Tell if the reads must return clones of the entities. When false, they return the instances that are in the DB without any serialization. These instances are replaced, never modified, by the
+     * modification methods, so they stay valid, but the caller must never modify them.
+     *
+     * @return true by default
+     */
+    protected boolean isCloneOnRead() {
+        return true;
+    }
+
+    /**
+     * Call once before using if you are not using Spring.
+     */
+    @PostConstruct
+    public void init() {
+        if (load() && saveSmoothTrigger != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> flush()));
+        }
+    }
+
+    /**
+     * Load if not already.
+     *
+     * @return true if loaded; false if already loaded
+     */
+    private boolean load() {
+        lock.writeLock().lock();
+        try {
+            if (cachedEntityByKey != null) {
+                return false;
+            }
+
+            secondaryIndexes = getSecondaryIndexes();
+            keysByValueByIndexName = new HashMap<>();
+            secondaryIndexes.keySet().forEach(indexName -> keysByValueByIndexName.put(indexName, new HashMap<>()));
+
+            cachedEntityByKey = new LinkedHashMap<>();
+            if (getFinalFile().exists()) {
+                logger.debug("Loading from file");
+                var entitiesAndMd5sum = JsonFileDaoTools.readWithMd5sum(getFinalFile(), in -> getCodec().decodeAsList(in, getType()));
+                entitiesAndMd5sum.getA().forEach(this::put);
+                previousMd5sum = entitiesAndMd5sum.getB();
+            } else {
+                logger.debug("New state");
+                ++generation; // Not saved yet
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void put(T entity) {
+        K key = getKey(entity);
+        remove(key);
+        cachedEntityByKey.put(key, entity);
+        secondaryIndexes.forEach((indexName, valueFunction) -> {
+            Object value = valueFunction.apply(entity);
+            if (value != null) {
+                keysByValueByIndexName.get(indexName).computeIfAbsent(value, k -> new LinkedHashSet<>()).add(key);
+            }
+        });
+    }
+
+    private T remove(K key) {
+        T previous = cachedEntityByKey.remove(key);
+        if (previous != null) {
+            removeFromSecondaryIndexes(key, previous);
+        }
+        return previous;
+    }
+
+    private void removeFromSecondaryIndexes(K key, T entity) {
+        secondaryIndexes.forEach((indexName, valueFunction) -> {
+            Object value = valueFunction.apply(entity);
+            if (value != null) {
+                var keysByValue = keysByValueByIndexName.get(indexName);
+                var keys = keysByValue.get(value);
+                if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        keysByValue.remove(value);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove the entity with the specified key and add the entity.
+     *
+     * @param key    the key
+     * @param entity the entity to add
+     */
+    public void update(K key, T entity) {
+        T clone = JsonTools.clone(entity);
+        lock.writeLock().lock();
+        try {
+            remove(key);
+            put(clone);
+            ++generation;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        saveRequester.run();
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.foilen.smalltools.db;
 
-import com.foilen.smalltools.hash.HashMd5sum;
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.codec.SmileCodec;
 import com.foilen.smalltools.tools.AbstractBasics;
 import com.foilen.smalltools.tools.FileTools;
 import com.foilen.smalltools.tools.JsonTools;
@@ -9,9 +11,12 @@ import com.foilen.smalltools.trigger.SmoothTrigger;
 import jakarta.annotation.PostConstruct;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
@@ -27,11 +32,22 @@ import java.util.stream.Stream;
  * </p>
  *
  * <p>
+ * For big lists, you can enable the journal mode by overriding {@link #getJournalFile()}. Each modification is then appended right away to the journal as a compact line and the full file is only
+ * rewritten when the journal is bigger than {@link #getJournalCompactionThresholdInBytes()}. The journal starts with the md5sum of the full file it applies to and {@link #init()} replays it over
+ * that file.
+ * </p>
+ *
+ * <p>
  * Everytime you retrieve an entity, it will be a clone from the underlying entity. That means you can safely modify a saved or retrieved entity without worrying that it will be modifying the same
  * entity in the database or be modified by any other thread that retrieved it. You need to call {@link #update(Object, Object)} to persist any changes.
  * </p>
  *
  * <p>
+ * If the entities are only read, you can override {@link #isCloneOnRead()} to return false. The reads then return the same instances that are in the DB without any copy, so they must never be
+ * modified.
+ * </p>
+ *
+ * <p>
  * This DAO is not meant for heavy performance, but for low usage and low amount of entities.
  * </p>
  *
@@ -126,31 +142,36 @@ import java.util.stream.Stream;
  */
 public abstract class AbstractListSingleJsonFileDao<T, K> extends AbstractBasics {
 
+    private static final String JOURNAL_HEADER = "S ";
+    private static final String JOURNAL_ADD = "A ";
+    private static final String JOURNAL_DELETE = "D ";
+
     private String previousMd5sum;
     private List<T> cachedEntities;
+    private volatile List<T> snapshot;
+    private long generation;
+    private long savedGeneration;
+
+    private OutputStream journalOut;
+    private long journalSize;
+    private boolean journalFailed;
 
     /**
      * What to do when needing to save to the file.
      */
     protected Runnable saveToFile = () -> {
 
-        String cachedMd5sum = HashMd5sum.hashString(JsonTools.prettyPrint(cachedEntities));
-
-        // Check if content is different
-        if (StringTools.safeEquals(previousMd5sum, cachedMd5sum)) {
-            logger.debug("Content didn't change. Skipping saving");
+        if (getJournalFile() == null) {
+            saveFullFile();
             return;
         }
 
-        // Save
-        logger.debug("Saving to {}", getFinalFile().getAbsolutePath());
-        OutputStream out = FileTools.createStagingFile(getStagingFile(), getFinalFile());
-        JsonTools.writeToStream(out, cachedEntities);
-        try {
-            out.close();
-            previousMd5sum = cachedMd5sum;
-        } catch (IOException e) {
-            logger.error("Could not close the staging file {}", getStagingFile().getAbsolutePath(), e);
+        synchronized (this) {
+            if (journalOut != null && !journalFailed && journalSize <= getJournalCompactionThresholdInBytes()) {
+                logger.debug("The journal is still small. Skipping compaction");
+                return;
+            }
+            compactJournal();
         }
 
     };
@@ -163,7 +184,14 @@ public abstract class AbstractListSingleJsonFileDao<T, K> extends AbstractBasics
      * @param entities the entities
      */
     public synchronized void add(Iterable<T> entities) {
-        entities.forEach(it -> add(it));
+        entities.forEach(it -> {
+            T clone = JsonTools.clone(it);
+            cachedEntities.add(clone);
+            appendToJournal(JOURNAL_ADD, JsonTools.compactPrintAsBytes(clone));
+        });
+        snapshot = null;
+        ++generation;
+        saveSmoothTrigger.request();
     }
 
     /**
@@ -172,7 +200,11 @@ public abstract class AbstractListSingleJsonFileDao<T, K> extends AbstractBasics
      * @param entity the entity
      */
     public synchronized void add(T entity) {
-        cachedEntities.add(JsonTools.clone(entity));
+        T clone = JsonTools.clone(entity);
+        cachedEntities.add(clone);
+        appendToJournal(JOURNAL_ADD, JsonTools.compactPrintAsBytes(clone));
+        snapshot = null;
+        ++generation;
         saveSmoothTrigger.request();
     }
 
@@ -203,17 +235,25 @@ public abstract class AbstractListSingleJsonFileDao<T, K> extends AbstractBasics
      */
     public synchronized int delete(Predicate<? super T> predicate) {
         int count = 0;
+        StringBuilder deletedIndexes = new StringBuilder();
 
         Iterator<T> it = cachedEntities.iterator();
-        while (it.hasNext()) {
+        for (int index = 0; it.hasNext(); ++index) {
             T next = it.next();
             if (predicate.test(next)) {
                 ++count;
                 it.remove();
+                if (deletedIndexes.length() > 0) {
+                    deletedIndexes.append(',');
+                }
+                deletedIndexes.append(index);
             }
         }
 
         if (count > 0) {
+            appendToJournal(JOURNAL_DELETE, deletedIndexes.toString().getBytes(StandardCharsets.UTF_8));
+            snapshot = null;
+            ++generation;
             saveSmoothTrigger.request();
         }
 
@@ -221,70 +261,173 @@ public abstract class AbstractListSingleJsonFileDao<T, K> extends AbstractBasics
     }
 
     /**
-     * Find all entities. All returned entities are clones (modifying them won't change their values in this db).
+     * Find all entities. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
      *
      * @return the list
      */
     public List<T> findAllAsList() {
+        if (!isCloneOnRead()) {
+            return getSnapshot();
+        }
         return findAllAsStream().collect(Collectors.toList());
     }
 
     /**
-     * Find all entities that satisfies the predicate. All returned entities are clones (modifying them won't change their values in this db).
+     * Find all entities that satisfies the predicate. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
      *
      * @param predicate the predicate
      * @return the list
      */
-    public synchronized List<T> findAllAsList(Predicate<? super T> predicate) {
+    public List<T> findAllAsList(Predicate<? super T> predicate) {
         return findAllAsStream(predicate).collect(Collectors.toList());
     }
 
     /**
-     * Find all entities. All returned entities are clones (modifying them won't change their values in this db).
+     * Find all entities. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
      *
      * @return the stream
      */
-    public synchronized Stream<T> findAllAsStream() {
-        return cachedEntities.stream().map(it -> JsonTools.clone(it));
+    public Stream<T> findAllAsStream() {
+        return getSnapshot().stream().map(this::cloneOnRead);
     }
 
     /**
-     * Find all entities that satisfies the predicate. All returned entities are clones (modifying them won't change their values in this db).
+     * Find all entities that satisfies the predicate. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
      *
      * @param predicate the predicate
      * @return the stream
      */
-    public synchronized Stream<T> findAllAsStream(Predicate<? super T> predicate) {
-        return cachedEntities.stream().filter(predicate).map(it -> JsonTools.clone(it));
+    public Stream<T> findAllAsStream(Predicate<? super T> predicate) {
+        return getSnapshot().stream().filter(predicate).map(this::cloneOnRead);
     }
 
     /**
-     * Find one entity that is of the specified key. The returned entity is a clone (modifying it won't change its value in this db).
+     * Find one entity that is of the specified key. The returned entity is a clone (modifying it won't change its value in this db) unless {@link #isCloneOnRead()} is false.
      *
      * @param key the key
      * @return the entity
      */
-    public synchronized Optional<T> findOne(K key) {
+    public Optional<T> findOne(K key) {
         return findOne(entity -> isEntity(key, entity));
     }
 
     /**
-     * Find one entity that satisfies the predicate. The returned entity is a clone (modifying it won't change its value in this db).
+     * Find one entity that satisfies the predicate. The returned entity is a clone (modifying it won't change its value in this db) unless {@link #isCloneOnRead()} is false.
      *
      * @param predicate the predicate
      * @return the entity
      */
-    public synchronized Optional<T> findOne(Predicate<? super T> predicate) {
-        return cachedEntities.stream().filter(predicate).map(it -> JsonTools.clone(it)).findAny();
+    public Optional<T> findOne(Predicate<? super T> predicate) {
+        return getSnapshot().stream().filter(predicate).findAny().map(this::cloneOnRead);
+    }
+
+    private T cloneOnRead(T entity) {
+        if (isCloneOnRead()) {
+            return JsonTools.clone(entity);
+        }
+        return entity;
+    }
+
+    private void appendToJournal(String operation, byte[] value) {
+        if (journalOut == null || journalFailed) {
+            return;
+        }
+        try {
+            byte[] operationBytes = operation.getBytes(StandardCharsets.UTF_8);
+            byte[] line = new byte[operationBytes.length + value.length + 1];
+            System.arraycopy(operationBytes, 0, line, 0, operationBytes.length);
+            System.arraycopy(value, 0, line, operationBytes.length, value.length);
+            line[line.length - 1] = '\n';
+            journalOut.write(line);
+            journalOut.flush();
+            journalSize += line.length;
+        } catch (IOException e) {
+            logger.error("Could not append to the journal {}. Will save the full file", getJournalFile().getAbsolutePath(), e);
+            journalFailed = true;
+        }
     }
 
     /**
-     * Save to the file now.
+     * Save the full file and start a new empty journal for it. If the full file cannot be saved, the current journal is kept.
+     */
+    private synchronized void compactJournal() {
+
+        if (!saveFullFile()) {
+            return;
+        }
+
+        File journalFile = getJournalFile();
+        logger.debug("Starting a new journal {}", journalFile.getAbsolutePath());
+        try {
+            if (journalOut != null) {
+                journalOut.close();
+                journalOut = null;
+            }
+            journalOut = new FileOutputStream(journalFile);
+            byte[] header = (JOURNAL_HEADER + previousMd5sum + "\n").getBytes(StandardCharsets.UTF_8);
+            journalOut.write(header);
+            journalOut.flush();
+            journalSize = header.length;
+            journalFailed = false;
+        } catch (IOException e) {
+            logger.error("Could not start the journal {}. Will save the full file", journalFile.getAbsolutePath(), e);
+            journalFailed = true;
+        }
+
+    }
+
+    /**
+     * Save to the file now. In journal mode, the modifications are already saved in the journal, so it only compacts it if it is too big.
      */
     public synchronized void flush() {
         saveToFile.run();
     }
 
+    /**
+     * Save the full file if it was modified since the last save.
+     *
+     * @return true if the file is up to date
+     */
+    private boolean saveFullFile() {
+
+        List<T> entities;
+        long savingGeneration;
+        synchronized (this) {
+            if (generation == savedGeneration) {
+                logger.debug("Nothing was modified. Skipping saving");
+                return true;
+            }
+            entities = getSnapshot();
+            savingGeneration = generation;
+        }
+
+        logger.debug("Saving to {}", getFinalFile().getAbsolutePath());
+        try {
+            String cachedMd5sum = JsonFileDaoTools.writeIfChanged(getStagingFile(), getFinalFile(), getCodec(), entities, previousMd5sum);
+            if (StringTools.safeEquals(previousMd5sum, cachedMd5sum)) {
+                logger.debug("Content didn't change. Discarded the staging file");
+            }
+            synchronized (this) {
+                previousMd5sum = cachedMd5sum;
+                savedGeneration = savingGeneration;
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("Could not write the staging file {}", getStagingFile().getAbsolutePath(), e);
+            return false;
+        }
+
+    }
+
+    /**
+     * Tell the format of the file. The default is pretty JSON to be easy to read, but {@link SmileCodec#SMILE} is smaller and faster. Changing it requires to convert the existing file. The journal always uses compact JSON lines.
+     *
+     * @return the codec
+     */
+    protected Codec getCodec() {
+        return JsonCodec.PRETTY;
+    }
+
     /**
      * Tell which file will contain the data.
      *
@@ -292,6 +435,24 @@ public abstract class AbstractListSingleJsonFileDao<T, K> extends AbstractBasics
      */
     protected abstract File getFinalFile();
 
+    /**
+     * Tell the size of the journal after which the full file is saved and the journal restarted.
+     *
+     * @return the size in bytes
+     */
+    protected long getJournalCompactionThresholdInBytes() {
+        return 10 * 1024 * 1024;
+    }
+
+    /**
+     * Tell which file will contain the journal of the modifications done since the last save of {@link #getFinalFile()}.
+     *
+     * @return the file or null (default) to not use a journal and always save the full file
+     */
+    protected File getJournalFile() {
+        return null;
+    }
+
     /**
      * Tell which file will be used as a staging file and be renamed to {@link #getFinalFile()} once well written.
      *
@@ -306,6 +467,25 @@ public abstract class AbstractListSingleJsonFileDao<T, K> extends AbstractBasics
      */
     protected abstract Class<T> getType();
 
+    /**
+     * Get the copy of the entities that is shared by the reads until the next modification.
+     *
+     * @return the unmodifiable list
+     */
+    private List<T> getSnapshot() {
+        List<T> current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = Collections.unmodifiableList(new ArrayList<>(cachedEntities));
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
     /**
      * Call once before using if you are not using Spring.
      */
@@ -316,6 +496,16 @@ public abstract class AbstractListSingleJsonFileDao<T, K> extends AbstractBasics
         }
     }
 
+    /**
+     * Tell if the reads must return clones of the entities. When false, they return the instances that are in the DB (and an unmodifiable list for {@link #findAllAsList()}) without any
+     * serialization. These instances are replaced, never modified, by the modification methods, so they stay valid, but the caller must never modify them.
+     *
+     * @return true by default
+     */
+    protected boolean isCloneOnRead() {
+        return true;
+    }
+
     /**
      * Tell if an entity's key is the one specified.
      *
@@ -336,12 +526,75 @@ public abstract class AbstractListSingleJsonFileDao<T, K> extends AbstractBasics
         }
         if (getFinalFile().exists()) {
             logger.debug("Loading from file");
-            String json = FileTools.getFileAsString(getFinalFile());
-            cachedEntities = JsonTools.readFromStringAsList(json, getType());
-            previousMd5sum = HashMd5sum.hashString(json);
+            var entitiesAndMd5sum = JsonFileDaoTools.readWithMd5sum(getFinalFile(), in -> getCodec().decodeAsList(in, getType()));
+            cachedEntities = entitiesAndMd5sum.getA();
+            previousMd5sum = entitiesAndMd5sum.getB();
         } else {
             logger.debug("New state");
             cachedEntities = new ArrayList<>();
+            ++generation; // Not saved yet
+        }
+
+        File journalFile = getJournalFile();
+        if (journalFile != null) {
+            if (journalFile.exists() && replayJournal(journalFile)) {
+                try {
+                    journalOut = new FileOutputStream(journalFile, true);
+                    journalSize = journalFile.length();
+                } catch (IOException e) {
+                    logger.error("Could not open the journal {}. Will save the full file", journalFile.getAbsolutePath(), e);
+                    journalFailed = true;
+                }
+            } else {
+                compactJournal();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Apply the modifications in the journal if it is for the loaded file.
+     *
+     * @param journalFile the journal
+     * @return true if it was completely replayed and can be continued; false if it must be restarted
+     */
+    private boolean replayJournal(File journalFile) {
+
+        String journal = FileTools.getFileAsString(journalFile);
+        String[] lines = journal.split("\n", -1);
+        if (!StringTools.safeEquals(lines[0], JOURNAL_HEADER + previousMd5sum)) {
+            logger.info("The journal {} is not for the current file. Ignoring it", journalFile.getAbsolutePath());
+            return false;
+        }
+
+        // The last line is empty if the last operation was completely written
+        int replayed = 0;
+        try {
+            for (int i = 1; i < lines.length - 1; ++i) {
+                String line = lines[i];
+                if (line.startsWith(JOURNAL_ADD)) {
+                    cachedEntities.add(JsonTools.readFromString(line.substring(JOURNAL_ADD.length()), getType()));
+                } else if (line.startsWith(JOURNAL_DELETE)) {
+                    String[] indexes = line.substring(JOURNAL_DELETE.length()).split(",");
+                    for (int j = indexes.length - 1; j >= 0; --j) {
+                        cachedEntities.remove(Integer.parseInt(indexes[j]));
+                    }
+                } else {
+                    throw new IllegalStateException("Unknown operation: " + line);
+                }
+                ++replayed;
+                ++generation;
+            }
+        } catch (Exception e) {
+            logger.error("Could not replay the journal {} after {} operations", journalFile.getAbsolutePath(), replayed, e);
+            return false;
+        }
+
+        logger.debug("Replayed {} operations from the journal", replayed);
+        if (!lines[lines.length - 1].isEmpty()) {
+            logger.warn("The last operation in the journal {} was not completely written. Ignoring it", journalFile.getAbsolutePath());
+            return false;
         }
         return true;
     }
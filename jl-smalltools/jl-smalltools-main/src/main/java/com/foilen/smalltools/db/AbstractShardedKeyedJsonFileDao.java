@@ -0,0 +1,413 @@
+package com.foilen.smalltools.db;
+
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.codec.SmileCodec;
+import com.foilen.smalltools.exception.SmallToolsException;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.tools.ExecutorsTools;
+import com.foilen.smalltools.trigger.SmoothTrigger;
+import jakarta.annotation.PostConstruct;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Like {@link AbstractKeyedListSingleJsonFileDao}, but the entities are partitioned by the hash of their key in multiple json files. Each shard is an {@link AbstractKeyedListSingleJsonFileDao}, so:
+ * </p>
+ * <ul>
+ * <li>The shards are loaded in parallel by {@link #init()}.</li>
+ * <li>Each shard has its own lock. The modifications of entities in different shards are not waiting on each other.</li>
+ * <li>Only the modified shards are saved, so a modification only rewrites the file of its shard. All the shards are saved by a single trigger and a single shutdown hook.</li>
+ * </ul>
+ *
+ * <p>
+ * The shard of a key is computed with its {@link Object#hashCode()}, so it must be stable between executions (e.g. a String, a Long or an entity with its own hashCode). The amount of shards must
+ * not change once entities were saved, since they would be searched in the wrong shard.
+ * </p>
+ *
+ * <p>
+ * The lists returned by the methods that are going through all the entities are ordered by shard and then in the order they were added in that shard.
+ * </p>
+ *
+ * <p>
+ * Usage:
+ * </p>
+ *
+ * <pre>
+ * public static class TestShardedDao extends AbstractShardedKeyedJsonFileDao&lt;TestDbEntity, String&gt; {
+ *
+ *     private File dbDirectory;
+ *
+ *     public TestShardedDao(File dbDirectory) {
+ *         this.dbDirectory = dbDirectory;
+ *     }
+ *
+ *     &#64;Override
+ *     protected File getFinalFile(int shard) {
+ *         return new File(dbDirectory, "shard-" + shard + ".json");
+ *     }
+ *
+ *     &#64;Override
+ *     protected File getStagingFile(int shard) {
+ *         return new File(dbDirectory, "shard-" + shard + ".json_tmp");
+ *     }
+ *
+ *     &#64;Override
+ *     protected int getShardCount() {
+ *         return 8;
+ *     }
+ *
+ *     &#64;Override
+ *     protected Class&lt;TestDbEntity&gt; getType() {
+ *         return TestDbEntity.class;
+ *     }
+ *
+ *     &#64;Override
+ *     protected String getKey(TestDbEntity entity) {
+ *         return entity.getId();
+ *     }
+ * }
+ *
+ * TestShardedDao dao = new TestShardedDao(dbDirectory);
+ * dao.init(); // Called automatically if DAO is exposed as a Spring Bean
+ *
+ * dao.add(new TestDbEntity("id1", 1));
+ * Optional&lt;TestDbEntity&gt; optional = dao.findOne("id1");
+ * </pre>
+ *
+ * @param <T> the type of the entities
+ * @param <K> the type of the key
+ */
+public abstract class AbstractShardedKeyedJsonFileDao<T, K> extends AbstractBasics {
+
+    private class Shard extends AbstractKeyedListSingleJsonFileDao<T, K> {
+
+        private final int shard;
+
+        public Shard(int shard) {
+            super(AbstractShardedKeyedJsonFileDao.this.saveSmoothTrigger::request);
+            this.shard = shard;
+        }
+
+        @Override
+        protected Codec getCodec() {
+            return AbstractShardedKeyedJsonFileDao.this.getCodec();
+        }
+
+        @Override
+        protected File getFinalFile() {
+            return AbstractShardedKeyedJsonFileDao.this.getFinalFile(shard);
+        }
+
+        @Override
+        protected K getKey(T entity) {
+            return AbstractShardedKeyedJsonFileDao.this.getKey(entity);
+        }
+
+        @Override
+        protected Map<String, Function<T, ?>> getSecondaryIndexes() {
+            return AbstractShardedKeyedJsonFileDao.this.getSecondaryIndexes();
+        }
+
+        @Override
+        protected File getStagingFile() {
+            return AbstractShardedKeyedJsonFileDao.this.getStagingFile(shard);
+        }
+
+        @Override
+        protected Class<T> getType() {
+            return AbstractShardedKeyedJsonFileDao.this.getType();
+        }
+
+        @Override
+        protected boolean isCloneOnRead() {
+            return AbstractShardedKeyedJsonFileDao.this.isCloneOnRead();
+        }
+
+    }
+
+    private final SmoothTrigger saveSmoothTrigger = new SmoothTrigger(2000, 10000, false, this::flush).start();
+
+    private volatile List<Shard> shards;
+
+    /**
+     * Add multiple entities. The ones with the same key as another are replacing it.
+     *
+     * @param entities the entities
+     */
+    public void add(Iterable<T> entities) {
+        List<List<T>> entitiesByShard = new ArrayList<>();
+        shards.forEach(it -> entitiesByShard.add(new ArrayList<>()));
+        entities.forEach(it -> entitiesByShard.get(getShardIndex(getKey(it))).add(it));
+        for (int i = 0; i < shards.size(); ++i) {
+            if (!entitiesByShard.get(i).isEmpty()) {
+                shards.get(i).add(entitiesByShard.get(i));
+            }
+        }
+    }
+
+    /**
+     * Add an entity. If there is already one with the same key, it is replaced.
+     *
+     * @param entity the entity
+     */
+    public void add(T entity) {
+        getShard(getKey(entity)).add(entity);
+    }
+
+    /**
+     * Gives the amount of persisted entities.
+     *
+     * @return the count
+     */
+    public int count() {
+        return shards.stream().mapToInt(Shard::count).sum();
+    }
+
+    /**
+     * Delete the entity with the specified key.
+     *
+     * @param key the key
+     * @return true if it was deleted
+     */
+    public boolean delete(K key) {
+        return getShard(key).delete(key);
+    }
+
+    /**
+     * Delete some entities.
+     *
+     * @param predicate a function that returns true when the entity must be deleted.
+     * @return the deleted count
+     */
+    public int delete(Predicate<? super T> predicate) {
+        return shards.stream().mapToInt(it -> it.delete(predicate)).sum();
+    }
+
+    /**
+     * Find all entities. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @return the list
+     */
+    public List<T> findAllAsList() {
+        return findAllAsList(it -> true);
+    }
+
+    /**
+     * Find all entities that satisfies the predicate. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param predicate the predicate
+     * @return the list
+     */
+    public List<T> findAllAsList(Predicate<? super T> predicate) {
+        List<T> matching = new ArrayList<>();
+        shards.forEach(it -> matching.addAll(it.findAllAsList(predicate)));
+        return matching;
+    }
+
+    /**
+     * Find all entities. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @return the stream
+     */
+    public Stream<T> findAllAsStream() {
+        return findAllAsList().stream();
+    }
+
+    /**
+     * Find all entities that satisfies the predicate. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param predicate the predicate
+     * @return the stream
+     */
+    public Stream<T> findAllAsStream(Predicate<? super T> predicate) {
+        return findAllAsList(predicate).stream();
+    }
+
+    /**
+     * Find all the entities that have the value in a secondary index. All returned entities are clones (modifying them won't change their values in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param indexName the name of the index as returned by {@link #getSecondaryIndexes()}
+     * @param value     the value to find
+     * @return the list
+     */
+    public List<T> findAllByIndex(String indexName, Object value) {
+        List<T> matching = new ArrayList<>();
+        shards.forEach(it -> matching.addAll(it.findAllByIndex(indexName, value)));
+        return matching;
+    }
+
+    /**
+     * Find the entity with the specified key. The returned entity is a clone (modifying it won't change its value in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param key the key
+     * @return the entity
+     */
+    public Optional<T> findOne(K key) {
+        return getShard(key).findOne(key);
+    }
+
+    /**
+     * Find one entity that satisfies the predicate. The returned entity is a clone (modifying it won't change its value in this db) unless {@link #isCloneOnRead()} is false.
+     *
+     * @param predicate the predicate
+     * @return the entity
+     */
+    public Optional<T> findOne(Predicate<? super T> predicate) {
+        for (Shard shard : shards) {
+            Optional<T> entity = shard.findOne(predicate);
+            if (entity.isPresent()) {
+                return entity;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Save the modified shards to their file now.
+     */
+    public void flush() {
+        shards.forEach(Shard::flush);
+    }
+
+    /**
+     * Tell the format of the files. The default is pretty JSON to be easy to read, but {@link SmileCodec#SMILE} is smaller and faster. Changing it requires to convert the existing files.
+     *
+     * @return the codec
+     */
+    protected Codec getCodec() {
+        return JsonCodec.PRETTY;
+    }
+
+    /**
+     * Tell which file will contain the data of a shard.
+     *
+     * @param shard the index of the shard (from 0 to {@link #getShardCount()} - 1)
+     * @return the file
+     */
+    protected abstract File getFinalFile(int shard);
+
+    /**
+     * Get the key of the entity.
+     *
+     * @param entity the entity
+     * @return the key
+     */
+    protected abstract K getKey(T entity);
+
+    /**
+     * Tell which secondary indexes to maintain. The entities with a null value are not in the index.
+     *
+     * @return the function to get the indexed value by index name
+     */
+    protected Map<String, Function<T, ?>> getSecondaryIndexes() {
+        return Collections.emptyMap();
+    }
+
+    private Shard getShard(K key) {
+        return shards.get(getShardIndex(key));
+    }
+
+    /**
+     * Tell how many shards (and files) to use. It must not change once entities were saved.
+     *
+     * @return the amount of shards
+     */
+    protected abstract int getShardCount();
+
+    private int getShardIndex(K key) {
+        return Math.floorMod(key.hashCode(), shards.size());
+    }
+
+    /**
+     * Tell which file will be used as a staging file of a shard and be renamed to {@link #getFinalFile(int)} once well written.
+     *
+     * @param shard the index of the shard (from 0 to {@link #getShardCount()} - 1)
+     * @return the file
+     */
+    protected abstract File getStagingFile(int shard);
+
+    /**
+     * Tell the type of the entity to load and save.
+     *
+     * @return the type
+     */
+    protected abstract Class<T> getType();
+
+    /**
+     * Call once before using if you are not using Spring. It loads all the shards in parallel.
+     */
+    @PostConstruct
+    public synchronized void init() {
+        if (shards != null) {
+            return;
+        }
+
+        int shardCount = getShardCount();
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1");
+        }
+
+        List<Shard> loadingShards = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < shardCount; ++i) {
+            Shard shard = new Shard(i);
+            loadingShards.add(shard);
+            futures.add(ExecutorsTools.getCachedDaemonThreadPool().submit(shard::init));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmallToolsException("Interrupted while loading the shards", e);
+        } catch (ExecutionException e) {
+            throw new SmallToolsException("Could not load the shards", e.getCause());
+        }
+
+        logger.debug("Loaded {} shards", shardCount);
+        shards = Collections.unmodifiableList(loadingShards);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush()));
+    }
+
+    /**
+     * Tell if the reads must return clones of the entities. When false, they return the instances that are in the DB without any serialization. These instances are replaced, never modified, by the
+     * modification methods, so they stay valid, but the caller must never modify them.
+     *
+     * @return true by default
+     */
+    protected boolean isCloneOnRead() {
+        return true;
+    }
+
+    /**
+     * Remove the entity with the specified key and add the entity.
+     *
+     * @param key    the key
+     * @param entity the entity to add
+     */
+    public void update(K key, T entity) {
+        Shard previousShard = getShard(key);
+        Shard shard = getShard(getKey(entity));
+        if (previousShard == shard) {
+            shard.update(key, entity);
+        } else {
+            previousShard.delete(key);
+            shard.add(entity);
+        }
+    }
+
+}
@@ -1,14 +1,14 @@
 package com.foilen.smalltools.db;
 
-import com.foilen.smalltools.hash.HashMd5sum;
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.codec.SmileCodec;
 import com.foilen.smalltools.reflection.ReflectionTools;
-import com.foilen.smalltools.streamwrapper.RenamingOnCloseOutputStreamWrapper;
 import com.foilen.smalltools.tools.*;
 import com.foilen.smalltools.trigger.SmoothTrigger;
 import jakarta.annotation.PostConstruct;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
@@ -24,6 +24,10 @@ import java.util.function.Consumer;
  * </p>
  *
  * <p>
+ * If the entity is only read, you can override {@link #isCloneOnRead()} to return false to get the cached entity without any copy. It must then never be modified.
+ * </p>
+ *
+ * <p>
  * This DAO is not meant for heavy performance.
  * </p>
  *
@@ -117,7 +121,9 @@ import java.util.function.Consumer;
 public abstract class AbstractSingleJsonFileDao<T> extends AbstractBasics {
 
     private String previousMd5sum;
-    private T cached;
+    private volatile T cached;
+    private volatile long generation;
+    private long savedGeneration;
 
     private ReentrantLock transactionLock = new ReentrantLock();
 
@@ -126,31 +132,33 @@ public abstract class AbstractSingleJsonFileDao<T> extends AbstractBasics {
      */
     protected Runnable saveToFile = () -> {
 
-        String cachedMd5sum = HashMd5sum.hashString(JsonTools.prettyPrint(cached));
+        // Get the generation before the content to never skip a newer modification
+        long savingGeneration = generation;
+        T current = cached;
 
-        // Check if content is different
-        if (StringTools.safeEquals(previousMd5sum, cachedMd5sum)) {
-            logger.debug("Content didn't change. Skipping saving");
+        // Don't save if the content is null
+        if (current == null) {
+            logger.debug("Content wasn't loaded yet. Skipping saving");
             return;
         }
 
-        // Don't save if the content is null
-        if (cached == null) {
-            logger.debug("Content wasn't loaded yet. Skipping saving");
+        // Don't save if it was not modified
+        if (savingGeneration == savedGeneration) {
+            logger.debug("Nothing was modified. Skipping saving");
             return;
         }
 
         // Save
         logger.debug("Saving to {}", getFinalFile().getAbsolutePath());
-        RenamingOnCloseOutputStreamWrapper out = FileTools.createStagingFile(getStagingFile(), getFinalFile(), true);
         try {
-            JsonTools.writeToStream(out, cached);
-            out.flush();
-            out.setDeleteOnClose(false);
-            out.close();
+            String cachedMd5sum = JsonFileDaoTools.writeIfChanged(getStagingFile(), getFinalFile(), getCodec(), current, previousMd5sum);
+            if (StringTools.safeEquals(previousMd5sum, cachedMd5sum)) {
+                logger.debug("Content didn't change. Discarded the staging file");
+            }
             previousMd5sum = cachedMd5sum;
-        } catch (IOException e) {
-            logger.error("Could not close the staging file {}", getStagingFile().getAbsolutePath(), e);
+            savedGeneration = savingGeneration;
+        } catch (Exception e) {
+            logger.error("Could not write the staging file {}", getStagingFile().getAbsolutePath(), e);
         }
 
     };
@@ -164,6 +172,15 @@ public abstract class AbstractSingleJsonFileDao<T> extends AbstractBasics {
         saveToFile.run();
     }
 
+    /**
+     * Tell the format of the file. The default is pretty JSON to be easy to read, but {@link SmileCodec#SMILE} is smaller and faster. Changing it requires to convert the existing file.
+     *
+     * @return the codec
+     */
+    protected Codec getCodec() {
+        return JsonCodec.PRETTY;
+    }
+
     /**
      * Tell which file will contain the data.
      *
@@ -185,6 +202,16 @@ public abstract class AbstractSingleJsonFileDao<T> extends AbstractBasics {
      */
     protected abstract Class<T> getType();
 
+    /**
+     * Tell if {@link #load()} must return a clone of the entity. When false, it returns the cached entity without any serialization. That instance is replaced, never modified, by
+     * {@link #save(Object)}, so it stays valid, but the caller must never modify it.
+     *
+     * @return true by default
+     */
+    protected boolean isCloneOnRead() {
+        return true;
+    }
+
     /**
      * Call once before using if you are not using Spring.
      */
@@ -194,31 +221,44 @@ public abstract class AbstractSingleJsonFileDao<T> extends AbstractBasics {
     }
 
     /**
-     * Get the last saved entity.
+     * Get the last saved entity. It is a clone unless {@link #isCloneOnRead()} is false.
      *
      * @return the entity
      */
     public T load() {
+        if (!isCloneOnRead()) {
+            T current = cached;
+            if (current != null) {
+                return current;
+            }
+            return loadCached();
+        }
+        return JsonTools.clone(loadCached());
+    }
+
+    private T loadCached() {
         transactionLock.lock();
         try {
             if (cached != null) {
                 logger.debug("Return cached");
-                return JsonTools.clone(cached);
+                return cached;
             }
             if (getFinalFile().exists()) {
                 logger.debug("Loading from file");
-                String json = FileTools.getFileAsString(getFinalFile());
-                cached = JsonTools.readFromString(json, getType());
+                var entityAndMd5sum = JsonFileDaoTools.readWithMd5sum(getFinalFile(), in -> getCodec().decode(in, getType()));
+                cached = entityAndMd5sum.getA();
                 if (cached == null) {
                     logger.debug("Loaded null");
                     cached = ReflectionTools.instantiate(getType());
+                    ++generation; // Not saved yet
                 }
-                previousMd5sum = HashMd5sum.hashString(json);
-                return JsonTools.clone(cached);
+                previousMd5sum = entityAndMd5sum.getB();
+                return cached;
             } else {
                 logger.debug("New state");
                 cached = ReflectionTools.instantiate(getType());
-                return ReflectionTools.instantiate(getType());
+                ++generation; // Not saved yet
+                return cached;
             }
         } finally {
             transactionLock.unlock();
@@ -235,7 +275,7 @@ public abstract class AbstractSingleJsonFileDao<T> extends AbstractBasics {
         AssertTools.assertFalse(transactionLock.isHeldByCurrentThread(), "Nested transactions are not supported");
         transactionLock.lock();
         try {
-            T entity = load();
+            T entity = JsonTools.clone(loadCached());
             execution.accept(entity);
             save(entity);
         } finally {
@@ -253,6 +293,7 @@ public abstract class AbstractSingleJsonFileDao<T> extends AbstractBasics {
         transactionLock.lock();
         try {
             cached = JsonTools.clone(entity);
+            ++generation;
             saveSmoothTrigger.request();
         } finally {
             transactionLock.unlock();
@@ -0,0 +1,81 @@
+package com.foilen.smalltools.db;
+
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.exception.SmallToolsException;
+import com.foilen.smalltools.hash.HashMd5sum;
+import com.foilen.smalltools.streamwrapper.RenamingOnCloseOutputStreamWrapper;
+import com.foilen.smalltools.tools.EncodingTools;
+import com.foilen.smalltools.tools.FileTools;
+import com.foilen.smalltools.tools.StringTools;
+import com.foilen.smalltools.tuple.Tuple2;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.function.Function;
+
+/**
+ * To stream the files of the DAOs while computing their md5sum, without having their whole content in memory.
+ */
+final class JsonFileDaoTools {
+
+    /**
+     * Read the file while computing its md5sum.
+     *
+     * @param file   the file
+     * @param reader the reader of the stream (e.g. {@link Codec#decodeAsList(InputStream, Class)})
+     * @param <T>    the type of the content
+     * @return the content and the md5sum of the file
+     */
+    static <T> Tuple2<T, String> readWithMd5sum(File file, Function<InputStream, T> reader) {
+        MessageDigest messageDigest = HashMd5sum.createMessageDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), messageDigest)) {
+            T content = reader.apply(in);
+
+            // Hash what is after the json
+            in.transferTo(OutputStream.nullOutputStream());
+
+            return new Tuple2<>(content, EncodingTools.toHex(messageDigest.digest()));
+        } catch (IOException e) {
+            throw new SmallToolsException("Problem reading the file " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Write the content with the codec in the staging file while computing its md5sum. If it is the same as the previous md5sum, the staging file is discarded. Otherwise, it is renamed to the final
+     * file.
+     *
+     * @param stagingFile    the staging file
+     * @param finalFile      the final file
+     * @param codec          the codec to serialize the content
+     * @param content        the content to write
+     * @param previousMd5sum the md5sum of the final file
+     * @return the md5sum of the content
+     * @throws IOException if the file could not be written
+     */
+    static String writeIfChanged(File stagingFile, File finalFile, Codec codec, Object content, String previousMd5sum) throws IOException {
+        MessageDigest messageDigest = HashMd5sum.createMessageDigest();
+        RenamingOnCloseOutputStreamWrapper out = FileTools.createStagingFile(stagingFile, finalFile, true);
+        try {
+            OutputStream digestOut = new DigestOutputStream(new BufferedOutputStream(out), messageDigest);
+            codec.encode(digestOut, content);
+            digestOut.flush();
+
+            String md5sum = EncodingTools.toHex(messageDigest.digest());
+            out.setDeleteOnClose(StringTools.safeEquals(previousMd5sum, md5sum));
+            return md5sum;
+        } finally {
+            out.close();
+        }
+    }
+
+    private JsonFileDaoTools() {
+    }
+
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 
 import com.foilen.smalltools.exception.SmallToolsException;
 
@@ -15,6 +16,16 @@ public final class HashMd5sum {
 
     private static final String ALGORITHM = "MD5";
 
+    /**
+     * Create a digest to compute the hash incrementally.
+     *
+     * @return the digest
+     * @see HashUtils#createMessageDigest(String)
+     */
+    public static MessageDigest createMessageDigest() {
+        return HashUtils.createMessageDigest(ALGORITHM);
+    }
+
     /**
      * Take bytes and get its hash.
      *
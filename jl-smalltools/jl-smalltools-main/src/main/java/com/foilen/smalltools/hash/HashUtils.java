@@ -14,6 +14,20 @@ public final class HashUtils {
 
     private static final int BUFFER_SIZE = 1024;
 
+    /**
+     * Create a digest to compute a hash incrementally (e.g. with a {@link java.security.DigestInputStream} or a {@link java.security.DigestOutputStream}).
+     *
+     * @param algorithm the algorithm to use
+     * @return the digest. Get the hash in hex with {@link EncodingTools#toHex(byte[])} on {@link MessageDigest#digest()}
+     */
+    public static MessageDigest createMessageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new SmallToolsException(e);
+        }
+    }
+
     /**
      * Take an {@link InputStream} and get its hash.
      *
@@ -24,12 +38,7 @@ public final class HashUtils {
     public static String hashInputStream(String algorithm, InputStream in) {
 
         // Prepare the consumer
-        MessageDigest messageDigest;
-        try {
-            messageDigest = MessageDigest.getInstance(algorithm);
-        } catch (NoSuchAlgorithmException e) {
-            throw new SmallToolsException(e);
-        }
+        MessageDigest messageDigest = createMessageDigest(algorithm);
 
         // Read the stream
         try {
@@ -0,0 +1,190 @@
+package com.foilen.smalltools.tools;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.RawValue;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * <p>
+ * Copies an object by serializing it in a {@link TokenBuffer} and deserializing it back, without encoding and parsing any text.
+ * </p>
+ *
+ * <p>
+ * The tokens are given back like a JSON text parser would give them, so the copy is the same as going through a JSON String:
+ * </p>
+ * <ul>
+ * <li>The integers are the smallest of Integer, Long and BigInteger that can contain them.</li>
+ * <li>The decimals are Double, unless a BigDecimal is requested.</li>
+ * <li>The binary values are base64 strings.</li>
+ * <li>The raw values are parsed.</li>
+ * </ul>
+ */
+final class JsonDeepCopier {
+
+    private static class TextLikeTokenBuffer extends TokenBuffer {
+
+        public TextLikeTokenBuffer(ObjectMapper objectMapper) {
+            super(objectMapper, false);
+        }
+
+        @Override
+        public void writeBinary(Base64Variant b64variant, byte[] data, int offset, int len) throws IOException {
+            writeString(b64variant.encode(Arrays.copyOfRange(data, offset, offset + len)));
+        }
+
+        @Override
+        public void writeObject(Object value) throws IOException {
+            if (value instanceof byte[]) {
+                writeBinary((byte[]) value);
+            } else if (value instanceof RawValue && ((RawValue) value).rawValue() instanceof String) {
+                writeRawValue((String) ((RawValue) value).rawValue());
+            } else {
+                super.writeObject(value);
+            }
+        }
+
+        @Override
+        public void writeRawValue(char[] text, int offset, int len) throws IOException {
+            writeRawValue(new String(text, offset, len));
+        }
+
+        @Override
+        public void writeRawValue(String text) throws IOException {
+            try (JsonParser parser = getCodec().getFactory().createParser(text)) {
+                parser.nextToken();
+                copyCurrentStructure(parser);
+            }
+        }
+
+        @Override
+        public void writeRawValue(String text, int offset, int len) throws IOException {
+            writeRawValue(text.substring(offset, offset + len));
+        }
+
+    }
+
+    private static class TextLikeParser extends JsonParserDelegate {
+
+        public TextLikeParser(JsonParser parser) {
+            super(parser);
+        }
+
+        @Override
+        public BigDecimal getDecimalValue() throws IOException {
+            if (currentToken() == JsonToken.VALUE_NUMBER_FLOAT) {
+                return new BigDecimal(getText());
+            }
+            return super.getDecimalValue();
+        }
+
+        @Override
+        public double getDoubleValue() throws IOException {
+            if (currentToken() == JsonToken.VALUE_NUMBER_FLOAT) {
+                return Double.parseDouble(getText());
+            }
+            return super.getDoubleValue();
+        }
+
+        @Override
+        public float getFloatValue() throws IOException {
+            if (currentToken() == JsonToken.VALUE_NUMBER_FLOAT) {
+                return Float.parseFloat(getText());
+            }
+            return super.getFloatValue();
+        }
+
+        @Override
+        public NumberType getNumberType() throws IOException {
+            if (!isNumber()) {
+                return super.getNumberType();
+            }
+            Number number = getNumberValue();
+            if (number instanceof Integer) {
+                return NumberType.INT;
+            }
+            if (number instanceof Long) {
+                return NumberType.LONG;
+            }
+            if (number instanceof BigInteger) {
+                return NumberType.BIG_INTEGER;
+            }
+            return NumberType.DOUBLE;
+        }
+
+        @Override
+        public Number getNumberValue() throws IOException {
+            if (currentToken() == JsonToken.VALUE_NUMBER_FLOAT) {
+                return getDoubleValue();
+            }
+            Number number = super.getNumberValue();
+            if (currentToken() != JsonToken.VALUE_NUMBER_INT) {
+                return number;
+            }
+            if (number instanceof BigInteger) {
+                BigInteger bigInteger = (BigInteger) number;
+                if (bigInteger.bitLength() >= 64) {
+                    return bigInteger;
+                }
+                number = bigInteger.longValue();
+            }
+            long value = number.longValue();
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return (int) value;
+            }
+            return value;
+        }
+
+        @Override
+        public Object getNumberValueDeferred() throws IOException {
+            return getNumberValue();
+        }
+
+        @Override
+        public Number getNumberValueExact() throws IOException {
+            if (currentToken() == JsonToken.VALUE_NUMBER_FLOAT) {
+                return getDecimalValue();
+            }
+            return getNumberValue();
+        }
+
+        private boolean isNumber() {
+            JsonToken token = currentToken();
+            return token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT;
+        }
+
+    }
+
+    /**
+     * Copy the object.
+     *
+     * @param writeMapper the mapper to serialize the object
+     * @param readMapper  the mapper to deserialize the copy
+     * @param object      the object to copy
+     * @param type        the type of the copy
+     * @param <T>         the type of the copy
+     * @return the copy
+     * @throws IOException if the object cannot be serialized or deserialized
+     */
+    public static <T> T copy(ObjectMapper writeMapper, ObjectMapper readMapper, Object object, JavaType type) throws IOException {
+        try (TokenBuffer tokenBuffer = new TextLikeTokenBuffer(writeMapper)) {
+            writeMapper.writeValue(tokenBuffer, object);
+            try (JsonParser parser = new TextLikeParser(tokenBuffer.asParser(readMapper))) {
+                return readMapper.readValue(parser, type);
+            }
+        }
+    }
+
+    private JsonDeepCopier() {
+    }
+
+}
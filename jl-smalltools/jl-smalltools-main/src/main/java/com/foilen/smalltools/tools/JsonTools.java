@@ -1,21 +1,37 @@
 package com.foilen.smalltools.tools;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.type.CollectionType;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.foilen.smalltools.exception.SmallToolsException;
 import com.foilen.smalltools.reflection.ReflectionTools;
@@ -25,12 +41,37 @@ import com.foilen.smalltools.reflection.ReflectionTools;
  */
 public final class JsonTools {
 
+    private static class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+        public ReusableByteArrayOutputStream() {
+            super(1024);
+        }
+
+        public ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+    }
+
+    /**
+     * A thread buffer that grew more than that is not kept.
+     */
+    private static final int THREAD_BUFFER_MAX_KEPT_SIZE = 64 * 1024;
+
     private static final ObjectMapper COMPACT_OBJECT_MAPPER = new ObjectMapper();
     private static final ObjectMapper COMPACT_SKIPNULL_OBJECT_MAPPER = new ObjectMapper();
     private static final ObjectMapper PRETTY_OBJECT_MAPPER = new ObjectMapper();
     private static final ObjectMapper PRETTY_SKIPNULL_OBJECT_MAPPER = new ObjectMapper();
     private static final ObjectMapper NON_FAIL_OBJECT_MAPPER = new ObjectMapper();
 
+    private static final ObjectWriter COMPACT_OBJECT_WRITER;
+    private static final ObjectWriter COMPACT_SKIPNULL_OBJECT_WRITER;
+
+    private static final Map<Class<?>, ObjectReader> READER_BY_TYPE = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, ObjectWriter> COMPACT_WRITER_BY_TYPE = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<ReusableByteArrayOutputStream> THREAD_BUFFER = new ThreadLocal<>();
+
     static {
         PRETTY_OBJECT_MAPPER.enable(SerializationFeature.INDENT_OUTPUT);
         PRETTY_OBJECT_MAPPER.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
@@ -59,10 +100,13 @@ public final class JsonTools {
         NON_FAIL_OBJECT_MAPPER.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
         NON_FAIL_OBJECT_MAPPER.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
         NON_FAIL_OBJECT_MAPPER.registerModule(new JavaTimeModule());
+
+        COMPACT_OBJECT_WRITER = COMPACT_OBJECT_MAPPER.writer();
+        COMPACT_SKIPNULL_OBJECT_WRITER = COMPACT_SKIPNULL_OBJECT_MAPPER.writer();
     }
 
     /**
-     * Serialize to JSON and deserialize back as a new object of the specified class.
+     * Serialize to JSON and deserialize back as a new object of the specified class. The JSON tokens are copied directly without going through a String, but the result is the same.
      *
      * @param object the object to clone
      * @param clazz  the type of the final object
@@ -73,12 +117,15 @@ public final class JsonTools {
         if (object == null) {
             return null;
         }
-        String json = compactPrint(object);
-        return readFromString(json, clazz);
+        try {
+            return JsonDeepCopier.copy(COMPACT_OBJECT_MAPPER, PRETTY_OBJECT_MAPPER, object, PRETTY_OBJECT_MAPPER.constructType(clazz));
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem cloning with JSON", e);
+        }
     }
 
     /**
-     * Serialize to JSON and deserialize back as a new object.
+     * Serialize to JSON and deserialize back as a new object. The JSON tokens are copied directly without going through a String, but the result is the same.
      *
      * @param <T>    the class of the object
      * @param object the object to clone
@@ -89,9 +136,7 @@ public final class JsonTools {
         if (object == null) {
             return null;
         }
-        Class<? extends Object> type = object.getClass();
-        String json = compactPrint(object);
-        return (T) readFromString(json, type);
+        return (T) clone(object, object.getClass());
     }
 
     /**
@@ -119,12 +164,22 @@ public final class JsonTools {
      */
     public static String compactPrint(Object object) {
         try {
-            return COMPACT_OBJECT_MAPPER.writeValueAsString(object);
+            return COMPACT_OBJECT_WRITER.writeValueAsString(object);
         } catch (JsonProcessingException e) {
             throw new SmallToolsException("Problem serializing in JSON", e);
         }
     }
 
+    /**
+     * Return a compact print JSON in UTF-8 bytes. It is serialized in a buffer reused by the thread, without creating a String.
+     *
+     * @param object the object to serialize
+     * @return the JSON bytes
+     */
+    public static byte[] compactPrintAsBytes(Object object) {
+        return writeToBytes(COMPACT_OBJECT_WRITER, object);
+    }
+
     /**
      * Return a compact print JSON String and ignore all null values.
      *
@@ -133,12 +188,32 @@ public final class JsonTools {
      */
     public static String compactPrintWithoutNulls(Object object) {
         try {
-            return COMPACT_SKIPNULL_OBJECT_MAPPER.writeValueAsString(object);
+            return COMPACT_SKIPNULL_OBJECT_WRITER.writeValueAsString(object);
         } catch (JsonProcessingException e) {
             throw new SmallToolsException("Problem serializing in JSON", e);
         }
     }
 
+    /**
+     * Return a compact print JSON in UTF-8 bytes and ignore all null values. It is serialized in a buffer reused by the thread, without creating a String.
+     *
+     * @param object the object to serialize
+     * @return the JSON bytes
+     */
+    public static byte[] compactPrintWithoutNullsAsBytes(Object object) {
+        return writeToBytes(COMPACT_SKIPNULL_OBJECT_WRITER, object);
+    }
+
+    /**
+     * Get the writer that prints compact JSON for a type. It is created once per type and has its serializer already resolved.
+     *
+     * @param clazz the type of the objects to serialize. The properties of a sub-type that are not in that type are not serialized.
+     * @return the writer
+     */
+    public static ObjectWriter compactWriterFor(Class<?> clazz) {
+        return COMPACT_WRITER_BY_TYPE.computeIfAbsent(clazz, COMPACT_OBJECT_WRITER::forType);
+    }
+
     @SuppressWarnings("unchecked")
     private static void convertAllMapsToSortedMap(SortedMap<String, Object> sortedMap) {
 
@@ -162,6 +237,46 @@ public final class JsonTools {
 
     }
 
+    /**
+     * Create a writer that writes the objects one by one as the items of a compact JSON array. Closing the writer ends the array, but does not close the stream.
+     *
+     * @param stream the stream
+     * @return the writer
+     */
+    public static SequenceWriter createArrayWriter(OutputStream stream) {
+        try {
+            return COMPACT_OBJECT_WRITER.writeValues(stream).init(true);
+        } catch (IOException e) {
+            throw new SmallToolsException("Problem serializing in JSON", e);
+        }
+    }
+
+    private static <T> MappingIterator<T> createIterator(JsonParser parser, Class<T> clazz, boolean array) throws IOException {
+        if (array) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new SmallToolsException("The JSON is not an array");
+            }
+            if (parser.nextToken() == JsonToken.END_ARRAY) {
+                return MappingIterator.emptyIterator();
+            }
+        }
+        return readerFor(clazz).readValues(parser);
+    }
+
+    /**
+     * Create a writer that writes the objects one by one as JSON lines (one compact JSON per line). Closing the writer does not close the stream.
+     *
+     * @param stream the stream
+     * @return the writer
+     */
+    public static SequenceWriter createJsonLinesWriter(OutputStream stream) {
+        try {
+            return COMPACT_OBJECT_WRITER.withRootValueSeparator("\n").writeValues(stream);
+        } catch (IOException e) {
+            throw new SmallToolsException("Problem serializing in JSON", e);
+        }
+    }
+
     /**
      * Return a pretty print JSON String.
      *
@@ -190,6 +305,43 @@ public final class JsonTools {
         }
     }
 
+    /**
+     * Read the JSON in UTF-8 from the remaining bytes of the buffer. Its position is moved after them.
+     *
+     * @param buffer the buffer
+     * @param clazz  the type of the final object
+     * @param <T>    the type of the final object
+     * @return the object
+     */
+    public static <T> T readFromByteBuffer(ByteBuffer buffer, Class<T> clazz) {
+        try {
+            if (buffer.hasArray()) {
+                T object = readerFor(clazz).readValue(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+                return object;
+            }
+            return readerFor(clazz).readValue(new ByteBufferBackedInputStream(buffer));
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem deserializing from JSON", e);
+        }
+    }
+
+    /**
+     * Read the JSON in UTF-8 bytes.
+     *
+     * @param bytes the json content
+     * @param clazz the type of the final object
+     * @param <T>   the type of the final object
+     * @return the object
+     */
+    public static <T> T readFromBytes(byte[] bytes, Class<T> clazz) {
+        try {
+            return readerFor(clazz).readValue(bytes);
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem deserializing from JSON", e);
+        }
+    }
+
     /**
      * Read the JSON file.
      *
@@ -239,6 +391,18 @@ public final class JsonTools {
         readFromFile(new File(fileName), target);
     }
 
+    /**
+     * Read the JSON lines file (one JSON per line) one object at a time. The stream must be closed to close the file.
+     *
+     * @param file  the file
+     * @param clazz the type of the objects
+     * @param <T>   the type of the objects
+     * @return the stream of objects
+     */
+    public static <T> Stream<T> readFromFileAsJsonLines(File file, Class<T> clazz) {
+        return readFromFileAsStream(file, clazz, false);
+    }
+
     /**
      * Read the JSON file.
      *
@@ -268,6 +432,30 @@ public final class JsonTools {
         return readFromFileAsList(new File(fileName), clazz);
     }
 
+    /**
+     * Read the JSON array file one item at a time, so only the current item is in memory. The stream must be closed to close the file.
+     *
+     * @param file  the file
+     * @param clazz the type of the items
+     * @param <T>   the type of the items
+     * @return the stream of items
+     */
+    public static <T> Stream<T> readFromFileAsStream(File file, Class<T> clazz) {
+        return readFromFileAsStream(file, clazz, true);
+    }
+
+    private static <T> Stream<T> readFromFileAsStream(File file, Class<T> clazz, boolean array) {
+        JsonParser parser = null;
+        try {
+            parser = PRETTY_OBJECT_MAPPER.getFactory().createParser(file);
+            JsonParser toClose = parser;
+            return toStream(createIterator(parser, clazz, array)).onClose(() -> CloseableTools.close(toClose));
+        } catch (Exception e) {
+            CloseableTools.close(parser);
+            throw new SmallToolsException("Problem deserializing from JSON", e);
+        }
+    }
+
     /**
      * Read the JSON file ignoring some failures.
      *
@@ -364,6 +552,72 @@ public final class JsonTools {
         }
     }
 
+    /**
+     * Read the JSON from the stream. The stream will not be closed.
+     *
+     * @param stream the stream
+     * @param clazz  the type of the final object
+     * @param <T>    the type of the final object
+     * @return the object
+     */
+    public static <T> T readFromStream(InputStream stream, Class<T> clazz) {
+        try (JsonParser parser = PRETTY_OBJECT_MAPPER.getFactory().createParser(stream).disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)) {
+            return PRETTY_OBJECT_MAPPER.readValue(parser, clazz);
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem deserializing from JSON", e);
+        }
+    }
+
+    /**
+     * Read the JSON list from the stream. The stream will not be closed.
+     *
+     * @param stream the stream
+     * @param clazz  the type of the items
+     * @param <T>    the type of the items
+     * @return the list of objects
+     */
+    public static <T> List<T> readFromStreamAsList(InputStream stream, Class<T> clazz) {
+        try (JsonParser parser = PRETTY_OBJECT_MAPPER.getFactory().createParser(stream).disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)) {
+            CollectionType listType = PRETTY_OBJECT_MAPPER.getTypeFactory().constructCollectionType(List.class, clazz);
+            return PRETTY_OBJECT_MAPPER.readValue(parser, listType);
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem deserializing from JSON", e);
+        }
+    }
+
+    /**
+     * Read the JSON array from the stream one item at a time, so only the current item is in memory. The stream will not be closed.
+     *
+     * @param stream the stream
+     * @param clazz  the type of the items
+     * @param <T>    the type of the items
+     * @return the iterator of items
+     */
+    public static <T> Iterator<T> readFromStreamAsIterator(InputStream stream, Class<T> clazz) {
+        return readFromStreamAsIterator(stream, clazz, true);
+    }
+
+    private static <T> Iterator<T> readFromStreamAsIterator(InputStream stream, Class<T> clazz, boolean array) {
+        try {
+            JsonParser parser = PRETTY_OBJECT_MAPPER.getFactory().createParser(stream).disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            return createIterator(parser, clazz, array);
+        } catch (Exception e) {
+            throw new SmallToolsException("Problem deserializing from JSON", e);
+        }
+    }
+
+    /**
+     * Read the JSON lines (one JSON per line) from the stream one object at a time. The stream will not be closed.
+     *
+     * @param stream the stream
+     * @param clazz  the type of the objects
+     * @param <T>    the type of the objects
+     * @return the iterator of objects
+     */
+    public static <T> Iterator<T> readFromStreamAsJsonLines(InputStream stream, Class<T> clazz) {
+        return readFromStreamAsIterator(stream, clazz, false);
+    }
+
     /**
      * Read the JSON String.
      *
@@ -374,7 +628,7 @@ public final class JsonTools {
      */
     public static <T> T readFromString(String text, Class<T> clazz) {
         try {
-            return PRETTY_OBJECT_MAPPER.readValue(text, clazz);
+            return readerFor(clazz).readValue(text);
         } catch (Exception e) {
             throw new SmallToolsException("Problem deserializing from JSON", e);
         }
@@ -397,6 +651,68 @@ public final class JsonTools {
         }
     }
 
+    /**
+     * Get the reader of a type. It is created once per type and has its deserializer already resolved.
+     *
+     * @param clazz the type of the final object
+     * @return the reader
+     */
+    public static ObjectReader readerFor(Class<?> clazz) {
+        return READER_BY_TYPE.computeIfAbsent(clazz, PRETTY_OBJECT_MAPPER::readerFor);
+    }
+
+    private static void releaseThreadBuffer(ReusableByteArrayOutputStream out) {
+        if (out.size() <= THREAD_BUFFER_MAX_KEPT_SIZE) {
+            out.reset();
+            THREAD_BUFFER.set(out);
+        }
+    }
+
+    private static ReusableByteArrayOutputStream takeThreadBuffer() {
+        ReusableByteArrayOutputStream out = THREAD_BUFFER.get();
+        if (out == null) {
+            // None yet or already in use by this thread (e.g. a serializer using JsonTools)
+            return new ReusableByteArrayOutputStream();
+        }
+        THREAD_BUFFER.set(null);
+        return out;
+    }
+
+    private static <T> Stream<T> toStream(Iterator<T> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Write the compact JSON in UTF-8 in the buffer. It is serialized in a buffer reused by the thread and then copied.
+     *
+     * @param buffer the buffer
+     * @param object the object to serialize
+     * @throws java.nio.BufferOverflowException if there is not enough space remaining in the buffer
+     */
+    public static void writeToByteBuffer(ByteBuffer buffer, Object object) {
+        ReusableByteArrayOutputStream out = takeThreadBuffer();
+        try {
+            COMPACT_OBJECT_WRITER.writeValue(out, object);
+            buffer.put(out.asByteBuffer());
+        } catch (IOException e) {
+            throw new SmallToolsException("Problem serializing in JSON", e);
+        } finally {
+            releaseThreadBuffer(out);
+        }
+    }
+
+    private static byte[] writeToBytes(ObjectWriter writer, Object object) {
+        ReusableByteArrayOutputStream out = takeThreadBuffer();
+        try {
+            writer.writeValue(out, object);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new SmallToolsException("Problem serializing in JSON", e);
+        } finally {
+            releaseThreadBuffer(out);
+        }
+    }
+
     /**
      * Write the JSON to the file.
      *
@@ -1,9 +1,13 @@
 package com.foilen.smalltools.upgrader.trackers;
 
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.exception.SmallToolsException;
 import com.foilen.smalltools.tools.FileTools;
-import com.foilen.smalltools.tools.JsonTools;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -13,6 +17,7 @@ import java.util.Set;
 public class JsonFileUpgraderTracker implements UpgraderTracker {
 
     private final String fileName;
+    private final Codec codec;
 
     private Set<String> successfulTasks = new HashSet<>();
 
@@ -22,7 +27,18 @@ public class JsonFileUpgraderTracker implements UpgraderTracker {
      * @param fileName the file name
      */
     public JsonFileUpgraderTracker(String fileName) {
+        this(fileName, JsonCodec.PRETTY);
+    }
+
+    /**
+     * The file name and the format to use.
+     *
+     * @param fileName the file name
+     * @param codec    the format of the file
+     */
+    public JsonFileUpgraderTracker(String fileName, Codec codec) {
         this.fileName = fileName;
+        this.codec = codec;
     }
 
     @Override
@@ -40,7 +56,7 @@ public class JsonFileUpgraderTracker implements UpgraderTracker {
     private void save() {
         String tmpFile = fileName + ".tmp";
         try (var staging = FileTools.createStagingFile(tmpFile, fileName, true)) {
-            JsonTools.writeToStream(staging, successfulTasks);
+            codec.encode(staging, successfulTasks);
             staging.setDeleteOnClose(false);
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -53,7 +69,11 @@ public class JsonFileUpgraderTracker implements UpgraderTracker {
         if (!FileTools.exists(fileName)) {
             save();
         }
-        successfulTasks = JsonTools.readFromFile(fileName, Set.class);
+        try (InputStream in = new FileInputStream(fileName)) {
+            successfulTasks = codec.decode(in, Set.class);
+        } catch (IOException e) {
+            throw new SmallToolsException("Problem reading the file " + fileName, e);
+        }
     }
 
     @Override
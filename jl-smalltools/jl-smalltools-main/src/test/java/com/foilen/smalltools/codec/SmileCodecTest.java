@@ -0,0 +1,54 @@
+package com.foilen.smalltools.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foilen.smalltools.db.TestDbEntity;
+import com.foilen.smalltools.tools.JsonTools;
+
+public class SmileCodecTest {
+
+    private static class TrackingInputStream extends ByteArrayInputStream {
+
+        private boolean closed;
+
+        public TrackingInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    @Test
+    public void testEncodeDecode_bytes() {
+        TestDbEntity entity = new TestDbEntity("id1", 10);
+
+        byte[] bytes = SmileCodec.SMILE.encode(entity);
+        Assert.assertTrue(bytes.length < JsonCodec.COMPACT.encode(entity).length);
+
+        SmileCodec.SMILE.decode(bytes, TestDbEntity.class).assertValue("id1", 10);
+    }
+
+    @Test
+    public void testEncodeDecode_streamsNotClosed() {
+        List<TestDbEntity> entities = Arrays.asList(new TestDbEntity("id1", 1), new TestDbEntity("id2", 2));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SmileCodec.SMILE.encode(out, entities);
+
+        TrackingInputStream in = new TrackingInputStream(out.toByteArray());
+        List<TestDbEntity> actual = SmileCodec.SMILE.decodeAsList(in, TestDbEntity.class);
+        Assert.assertFalse(in.closed);
+        Assert.assertEquals(JsonTools.compactPrint(entities), JsonTools.compactPrint(actual));
+    }
+
+}
@@ -0,0 +1,164 @@
+package com.foilen.smalltools.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+
+public class AbstractKeyedListSingleJsonFileDaoTest extends AbstractBasics {
+
+    public static class TestKeyedDao extends AbstractKeyedListSingleJsonFileDao<TestDbEntity, String> {
+
+        private File dbFile;
+        private File stagingFile;
+
+        public TestKeyedDao(File dbFile) {
+            this.dbFile = dbFile;
+            this.stagingFile = new File(dbFile.getAbsolutePath() + "_tmp");
+        }
+
+        @Override
+        protected File getFinalFile() {
+            return dbFile;
+        }
+
+        @Override
+        protected String getKey(TestDbEntity entity) {
+            return entity.getId();
+        }
+
+        @Override
+        protected Map<String, Function<TestDbEntity, ?>> getSecondaryIndexes() {
+            return Map.of("number", TestDbEntity::getNumber);
+        }
+
+        @Override
+        protected File getStagingFile() {
+            return stagingFile;
+        }
+
+        @Override
+        protected Class<TestDbEntity> getType() {
+            return TestDbEntity.class;
+        }
+
+    }
+
+    private List<String> toIds(List<TestDbEntity> entities) {
+        return entities.stream().map(it -> it.getId()).collect(Collectors.toList());
+    }
+
+    @Test
+    public void test() throws Exception {
+
+        File dbFile = File.createTempFile("junit", ".json");
+        Assert.assertTrue(dbFile.delete());
+
+        TestKeyedDao firstDao = new TestKeyedDao(dbFile);
+        firstDao.init();
+
+        // Add some
+        for (int i = 1; i <= 5; ++i) {
+            firstDao.add(new TestDbEntity("id" + i, i % 3));
+        }
+        Assert.assertEquals(5, firstDao.count());
+
+        // Retrieve one
+        Optional<TestDbEntity> optional = firstDao.findOne("id2");
+        Assert.assertTrue(optional.isPresent());
+        TestDbEntity entity = optional.get();
+        entity.assertValue("id2", 2);
+        Assert.assertFalse(firstDao.findOne("id7").isPresent());
+
+        // Changing the entity does not affect the DB
+        entity.setNumber(55);
+        firstDao.findOne("id2").get().assertValue("id2", 2);
+
+        // Secondary index
+        Assert.assertEquals(Arrays.asList("id2", "id5"), toIds(firstDao.findAllByIndex("number", 2)));
+        Assert.assertEquals(Arrays.asList(), toIds(firstDao.findAllByIndex("number", 55)));
+
+        // Update
+        firstDao.update("id2", entity);
+        Assert.assertEquals(5, firstDao.count());
+        firstDao.findOne("id2").get().assertValue("id2", 55);
+        Assert.assertEquals(Arrays.asList("id5"), toIds(firstDao.findAllByIndex("number", 2)));
+        Assert.assertEquals(Arrays.asList("id2"), toIds(firstDao.findAllByIndex("number", 55)));
+
+        // Adding the same key replaces it
+        firstDao.add(new TestDbEntity("id5", 10));
+        Assert.assertEquals(5, firstDao.count());
+        Assert.assertEquals(Arrays.asList(), toIds(firstDao.findAllByIndex("number", 2)));
+
+        // Delete
+        Assert.assertTrue(firstDao.delete("id1"));
+        Assert.assertFalse(firstDao.delete("id1"));
+        Assert.assertEquals(1, firstDao.delete(it -> it.getNumber() == 0));
+        Assert.assertEquals(3, firstDao.count());
+        Assert.assertEquals(Arrays.asList(), toIds(firstDao.findAllByIndex("number", 0)));
+
+        // Add more with list
+        List<TestDbEntity> entities = new ArrayList<>();
+        for (int i = 6; i <= 8; ++i) {
+            entities.add(new TestDbEntity("id" + i, i));
+        }
+        firstDao.add(entities);
+
+        // List all and some
+        Assert.assertEquals(Arrays.asList("id4", "id2", "id5", "id6", "id7", "id8"), toIds(firstDao.findAllAsList()));
+        Assert.assertEquals(Arrays.asList("id2", "id5", "id7", "id8"), toIds(firstDao.findAllAsList(it -> it.getNumber() >= 7)));
+        Assert.assertEquals("id6", firstDao.findOne(it -> it.getNumber() == 6).get().getId());
+
+        // Flush and get from new dao
+        firstDao.flush();
+        TestKeyedDao secondDao = new TestKeyedDao(dbFile);
+        secondDao.init();
+        Assert.assertEquals(Arrays.asList("id4", "id2", "id5", "id6", "id7", "id8"), toIds(secondDao.findAllAsList()));
+        Assert.assertEquals(Arrays.asList("id7"), toIds(secondDao.findAllByIndex("number", 7)));
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFindAllByIndex_unknown() throws Exception {
+
+        File dbFile = File.createTempFile("junit", ".json");
+        Assert.assertTrue(dbFile.delete());
+
+        TestKeyedDao dao = new TestKeyedDao(dbFile);
+        dao.init();
+        dao.findAllByIndex("unknown", 1);
+
+    }
+
+    @Test
+    public void testLoadFileFromListDao() throws Exception {
+
+        File dbFile = File.createTempFile("junit", ".json");
+        Assert.assertTrue(dbFile.delete());
+
+        // The list dao accepts duplicate keys
+        AbstractListSingleJsonFileDaoTest.TestListSingleDao listDao = new AbstractListSingleJsonFileDaoTest.TestListSingleDao(dbFile);
+        listDao.init();
+        listDao.add(new TestDbEntity("id1", 1));
+        listDao.add(new TestDbEntity("id2", 2));
+        listDao.add(new TestDbEntity("id1", 3));
+        listDao.flush();
+
+        // The last one wins
+        TestKeyedDao keyedDao = new TestKeyedDao(dbFile);
+        keyedDao.init();
+        Assert.assertEquals(2, keyedDao.count());
+        keyedDao.findOne("id1").get().assertValue("id1", 3);
+
+    }
+
+}
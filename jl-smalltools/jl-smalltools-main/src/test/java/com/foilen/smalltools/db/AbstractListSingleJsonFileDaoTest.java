@@ -11,6 +11,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.tools.FileTools;
 import com.foilen.smalltools.tools.StringTools;
 import com.foilen.smalltools.tools.ThreadTools;
 
@@ -48,6 +49,42 @@ public class AbstractListSingleJsonFileDaoTest extends AbstractBasics {
 
     }
 
+    public static class TestListSingleJournalDao extends TestListSingleDao {
+
+        private File journalFile;
+        private long journalCompactionThresholdInBytes;
+
+        public TestListSingleJournalDao(File dbFile, long journalCompactionThresholdInBytes) {
+            super(dbFile);
+            this.journalFile = new File(dbFile.getAbsolutePath() + "_journal");
+            this.journalCompactionThresholdInBytes = journalCompactionThresholdInBytes;
+        }
+
+        @Override
+        protected long getJournalCompactionThresholdInBytes() {
+            return journalCompactionThresholdInBytes;
+        }
+
+        @Override
+        protected File getJournalFile() {
+            return journalFile;
+        }
+
+    }
+
+    public static class TestListSingleNoCloneDao extends TestListSingleDao {
+
+        public TestListSingleNoCloneDao(File dbFile) {
+            super(dbFile);
+        }
+
+        @Override
+        protected boolean isCloneOnRead() {
+            return false;
+        }
+
+    }
+
     @Test
     public void test() throws Exception {
 
@@ -147,4 +184,114 @@ public class AbstractListSingleJsonFileDaoTest extends AbstractBasics {
 
     }
 
+    @Test
+    public void testFlush_notModified() throws Exception {
+
+        File dbFile = File.createTempFile("junit", ".json");
+        Assert.assertTrue(dbFile.delete());
+
+        TestListSingleDao dao = new TestListSingleDao(dbFile);
+        dao.init();
+        dao.add(new TestDbEntity("id1", 1));
+        dao.flush();
+        Assert.assertTrue(dbFile.exists());
+
+        // Not saved again if not modified
+        Assert.assertTrue(dbFile.delete());
+        dao.flush();
+        Assert.assertFalse(dbFile.exists());
+        dao.findAllAsList();
+        dao.delete("id2");
+        dao.flush();
+        Assert.assertFalse(dbFile.exists());
+
+        // Saved when modified
+        dao.delete("id1");
+        dao.flush();
+        Assert.assertEquals("[ ]", FileTools.getFileAsString(dbFile));
+
+    }
+
+    @Test
+    public void testNoCloneOnRead() throws Exception {
+
+        File dbFile = File.createTempFile("junit", ".json");
+        Assert.assertTrue(dbFile.delete());
+
+        TestListSingleNoCloneDao dao = new TestListSingleNoCloneDao(dbFile);
+        dao.init();
+        dao.add(new TestDbEntity("id1", 1));
+        dao.add(new TestDbEntity("id2", 2));
+
+        // Same instances and same list until modified
+        List<TestDbEntity> all = dao.findAllAsList();
+        Assert.assertSame(all, dao.findAllAsList());
+        Assert.assertSame(all.get(1), dao.findOne("id2").get());
+        Assert.assertSame(all.get(0), dao.findAllAsStream(it -> it.getNumber() == 1).findFirst().get());
+        try {
+            all.add(new TestDbEntity("id3", 3));
+            Assert.fail("Must be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+        }
+
+        // The snapshot does not change once taken
+        dao.update("id2", new TestDbEntity("id2", 22));
+        Assert.assertEquals(2, all.get(1).getNumber());
+        Assert.assertNotSame(all, dao.findAllAsList());
+        dao.findOne("id2").get().assertValue("id2", 22);
+
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+
+        File dbFile = File.createTempFile("junit", ".json");
+        Assert.assertTrue(dbFile.delete());
+        File journalFile = new File(dbFile.getAbsolutePath() + "_journal");
+
+        TestListSingleJournalDao firstDao = new TestListSingleJournalDao(dbFile, 100000);
+        firstDao.init();
+        Assert.assertTrue(dbFile.exists());
+        Assert.assertTrue(journalFile.exists());
+        String initialDbContent = FileTools.getFileAsString(dbFile);
+
+        // The modifications go in the journal
+        for (int i = 1; i <= 5; ++i) {
+            firstDao.add(new TestDbEntity("id" + i, i));
+        }
+        firstDao.update("id2", new TestDbEntity("id2", 22));
+        firstDao.delete(it -> it.getNumber() == 1 || it.getNumber() == 4);
+        firstDao.add(Arrays.asList(new TestDbEntity("id6", 6), new TestDbEntity("id7", 7)));
+        firstDao.flush();
+        Assert.assertEquals(initialDbContent, FileTools.getFileAsString(dbFile));
+        Assert.assertEquals(11, FileTools.getFileAsString(journalFile).split("\n").length);
+
+        // Replayed when loading
+        List<String> expectedIds = Arrays.asList("id3", "id5", "id2", "id6", "id7");
+        TestListSingleJournalDao secondDao = new TestListSingleJournalDao(dbFile, 100000);
+        secondDao.init();
+        Assert.assertEquals(expectedIds, secondDao.findAllAsList().stream().map(it -> it.getId()).collect(Collectors.toList()));
+        secondDao.findOne("id2").get().assertValue("id2", 22);
+
+        // A partially written operation is ignored and the journal is compacted
+        FileTools.writeFile(FileTools.getFileAsString(journalFile) + "A {\"id\":\"id8", journalFile.getAbsolutePath());
+        TestListSingleJournalDao thirdDao = new TestListSingleJournalDao(dbFile, 100000);
+        thirdDao.init();
+        Assert.assertEquals(expectedIds, thirdDao.findAllAsList().stream().map(it -> it.getId()).collect(Collectors.toList()));
+        Assert.assertNotEquals(initialDbContent, FileTools.getFileAsString(dbFile));
+        Assert.assertEquals(1, FileTools.getFileAsString(journalFile).split("\n").length);
+
+        // Compacted when too big
+        TestListSingleJournalDao smallJournalDao = new TestListSingleJournalDao(dbFile, 10);
+        smallJournalDao.init();
+        smallJournalDao.add(new TestDbEntity("id8", 8));
+        Assert.assertEquals(2, FileTools.getFileAsString(journalFile).split("\n").length);
+        smallJournalDao.flush();
+        Assert.assertEquals(1, FileTools.getFileAsString(journalFile).split("\n").length);
+        TestListSingleDao withoutJournalDao = new TestListSingleDao(dbFile);
+        withoutJournalDao.init();
+        Assert.assertEquals(6, withoutJournalDao.count());
+
+    }
+
 }
@@ -0,0 +1,144 @@
+package com.foilen.smalltools.db;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+
+public class AbstractShardedKeyedJsonFileDaoTest extends AbstractBasics {
+
+    public static class TestShardedDao extends AbstractShardedKeyedJsonFileDao<TestDbEntity, String> {
+
+        private File dbDirectory;
+
+        public TestShardedDao(File dbDirectory) {
+            this.dbDirectory = dbDirectory;
+        }
+
+        @Override
+        protected File getFinalFile(int shard) {
+            return new File(dbDirectory, "shard-" + shard + ".json");
+        }
+
+        @Override
+        protected String getKey(TestDbEntity entity) {
+            return entity.getId();
+        }
+
+        @Override
+        protected Map<String, Function<TestDbEntity, ?>> getSecondaryIndexes() {
+            return Map.of("number", TestDbEntity::getNumber);
+        }
+
+        @Override
+        protected int getShardCount() {
+            return 4;
+        }
+
+        @Override
+        protected File getStagingFile(int shard) {
+            return new File(dbDirectory, "shard-" + shard + ".json_tmp");
+        }
+
+        @Override
+        protected Class<TestDbEntity> getType() {
+            return TestDbEntity.class;
+        }
+
+    }
+
+    private List<String> toSortedIds(List<TestDbEntity> entities) {
+        return entities.stream().map(it -> it.getId()).sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    public void test() throws Exception {
+
+        File dbDirectory = Files.createTempDirectory("junit").toFile();
+
+        TestShardedDao firstDao = new TestShardedDao(dbDirectory);
+        firstDao.init();
+
+        // Add some
+        List<TestDbEntity> entities = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            entities.add(new TestDbEntity("id" + (char) ('a' + i), i % 3));
+        }
+        firstDao.add(entities);
+        firstDao.add(new TestDbEntity("idz", 7));
+        Assert.assertEquals(21, firstDao.count());
+
+        // Retrieve
+        firstDao.findOne("idc").get().assertValue("idc", 2);
+        Assert.assertFalse(firstDao.findOne("idy").isPresent());
+        Assert.assertEquals("idz", firstDao.findOne(it -> it.getNumber() == 7).get().getId());
+        Assert.assertEquals(Arrays.asList("idb", "ide", "idh", "idk", "idn", "idq", "idt"), toSortedIds(firstDao.findAllByIndex("number", 1)));
+        Assert.assertEquals(21, firstDao.findAllAsList().size());
+
+        // Update with a key in another shard
+        firstDao.update("idz", new TestDbEntity("idy", 8));
+        Assert.assertFalse(firstDao.findOne("idz").isPresent());
+        firstDao.findOne("idy").get().assertValue("idy", 8);
+        Assert.assertEquals(21, firstDao.count());
+
+        // Delete
+        Assert.assertTrue(firstDao.delete("idy"));
+        Assert.assertFalse(firstDao.delete("idy"));
+        Assert.assertEquals(7, firstDao.delete(it -> it.getNumber() == 0));
+        Assert.assertEquals(13, firstDao.count());
+
+        // All the shards are used
+        firstDao.flush();
+        for (int i = 0; i < 4; ++i) {
+            Assert.assertTrue(new File(dbDirectory, "shard-" + i + ".json").exists());
+        }
+
+        // Only the modified shard is saved
+        for (int i = 0; i < 4; ++i) {
+            Assert.assertTrue(new File(dbDirectory, "shard-" + i + ".json").delete());
+        }
+        firstDao.update("idb", new TestDbEntity("idb", 10));
+        firstDao.flush();
+        Assert.assertEquals(1, dbDirectory.listFiles().length);
+
+        // Get from new dao
+        firstDao.delete("idc");
+        firstDao.flush();
+        TestShardedDao secondDao = new TestShardedDao(dbDirectory);
+        secondDao.init();
+        Assert.assertEquals(Arrays.asList("idb"), toSortedIds(secondDao.findAllByIndex("number", 10)));
+        Assert.assertFalse(secondDao.findOne("idc").isPresent());
+
+    }
+
+    @Test
+    public void test_savedByTheTrigger() throws Exception {
+
+        File dbDirectory = Files.createTempDirectory("junit").toFile();
+
+        TestShardedDao dao = new TestShardedDao(dbDirectory);
+        dao.init();
+        dao.flush();
+        for (File file : dbDirectory.listFiles()) {
+            Assert.assertTrue(file.delete());
+        }
+
+        // Only the modified shard is saved without flushing
+        dao.add(new TestDbEntity("ida", 1));
+        for (int i = 0; i < 150 && dbDirectory.listFiles().length == 0; ++i) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(1, dbDirectory.listFiles().length);
+
+    }
+
+}
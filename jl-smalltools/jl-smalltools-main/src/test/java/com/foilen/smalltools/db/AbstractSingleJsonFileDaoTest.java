@@ -9,6 +9,8 @@ import java.util.concurrent.Future;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.SmileCodec;
 import com.foilen.smalltools.tools.ExecutorsTools;
 import com.foilen.smalltools.tools.FileTools;
 import com.foilen.smalltools.tools.ThreadTools;
@@ -42,6 +44,32 @@ public class AbstractSingleJsonFileDaoTest {
 
     }
 
+    public static class TestSingleSmileDao extends TestSingleDao {
+
+        public TestSingleSmileDao(File dbFile) {
+            super(dbFile);
+        }
+
+        @Override
+        protected Codec getCodec() {
+            return SmileCodec.SMILE;
+        }
+
+    }
+
+    public static class TestSingleNoCloneDao extends TestSingleDao {
+
+        public TestSingleNoCloneDao(File dbFile) {
+            super(dbFile);
+        }
+
+        @Override
+        protected boolean isCloneOnRead() {
+            return false;
+        }
+
+    }
+
     @Test(timeout = 30000)
     public void test() throws Exception {
         File dbFile = File.createTempFile("junit", ".json");
@@ -165,6 +193,25 @@ public class AbstractSingleJsonFileDaoTest {
 
     }
 
+    @Test
+    public void test_smile() throws Exception {
+
+        File dbFile = File.createTempFile("junit", ".smile");
+        Assert.assertTrue(dbFile.delete());
+
+        TestSingleSmileDao firstDao = new TestSingleSmileDao(dbFile);
+        firstDao.save(new TestDbEntity("id1", 2));
+        firstDao.flush();
+
+        // Not JSON
+        Assert.assertNotEquals('{', FileTools.getFileAsString(dbFile).charAt(0));
+
+        // Get from new dao
+        TestSingleSmileDao secondDao = new TestSingleSmileDao(dbFile);
+        secondDao.load().assertValue("id1", 2);
+
+    }
+
     @Test(timeout = 30000)
     public void test_transaction() throws Exception {
 
@@ -237,4 +284,59 @@ public class AbstractSingleJsonFileDaoTest {
 
     }
 
+    @Test(timeout = 30000)
+    public void test_flush_notModified() throws Exception {
+
+        File dbFile = File.createTempFile("junit", ".json");
+        Assert.assertTrue(dbFile.delete());
+
+        TestSingleDao dao = new TestSingleDao(dbFile);
+        dao.init();
+        dao.save(new TestDbEntity("anId", 1));
+        dao.flush();
+        Assert.assertTrue(dbFile.exists());
+
+        // Not saved again if not modified
+        Assert.assertTrue(dbFile.delete());
+        dao.flush();
+        Assert.assertFalse(dbFile.exists());
+        dao.load();
+        dao.flush();
+        Assert.assertFalse(dbFile.exists());
+
+        // Saved when modified
+        dao.loadInTransaction(it -> it.setNumber(2));
+        dao.flush();
+        Assert.assertTrue(dbFile.exists());
+        new TestSingleDao(dbFile).load().assertValue("anId", 2);
+
+    }
+
+    @Test(timeout = 30000)
+    public void test_noCloneOnRead() throws Exception {
+
+        File dbFile = File.createTempFile("junit", ".json");
+        Assert.assertTrue(dbFile.delete());
+
+        TestSingleNoCloneDao dao = new TestSingleNoCloneDao(dbFile);
+        dao.init();
+
+        // Same instance until saved
+        TestDbEntity entity = dao.load();
+        Assert.assertSame(entity, dao.load());
+
+        TestDbEntity toSave = new TestDbEntity("anId", 1);
+        dao.save(toSave);
+        TestDbEntity saved = dao.load();
+        saved.assertValue("anId", 1);
+        Assert.assertNotSame(toSave, saved);
+        Assert.assertSame(saved, dao.load());
+
+        // The transactions are still working on a clone
+        dao.loadInTransaction(it -> it.setNumber(2));
+        saved.assertValue("anId", 1);
+        dao.load().assertValue("anId", 2);
+
+    }
+
 }
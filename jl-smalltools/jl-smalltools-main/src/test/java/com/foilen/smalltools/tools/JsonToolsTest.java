@@ -1,19 +1,35 @@
 package com.foilen.smalltools.tools;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.fasterxml.jackson.annotation.JsonSetter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.SequenceWriter;
 import com.foilen.smalltools.test.asserts.AssertTools;
 
 public class JsonToolsTest {
@@ -94,6 +110,75 @@ public class JsonToolsTest {
 
     }
 
+    public static class TypeVarious {
+        private long aLong = 5;
+        private float aFloat = 1.1f;
+        private BigDecimal aBigDecimal = new BigDecimal("1.10");
+        private byte[] bytes = { 1, 2, 3 };
+        private Instant instant = Instant.ofEpochSecond(10, 5);
+        private Object any = new TreeMap<>(Map.of("long", 3L, "bigInteger", BigInteger.TEN, "bytes", new byte[] { 4, 5 }));
+        private String raw = "{\"a\":[1,2.5]}";
+
+        public BigDecimal getaBigDecimal() {
+            return aBigDecimal;
+        }
+
+        public float getaFloat() {
+            return aFloat;
+        }
+
+        public long getaLong() {
+            return aLong;
+        }
+
+        public Object getAny() {
+            return any;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public Instant getInstant() {
+            return instant;
+        }
+
+        @JsonRawValue
+        public String getRaw() {
+            return raw;
+        }
+
+        public void setaBigDecimal(BigDecimal aBigDecimal) {
+            this.aBigDecimal = aBigDecimal;
+        }
+
+        public void setaFloat(float aFloat) {
+            this.aFloat = aFloat;
+        }
+
+        public void setaLong(long aLong) {
+            this.aLong = aLong;
+        }
+
+        public void setAny(Object any) {
+            this.any = any;
+        }
+
+        public void setBytes(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public void setInstant(Instant instant) {
+            this.instant = instant;
+        }
+
+        @JsonSetter
+        public void setRaw(JsonNode raw) {
+            this.raw = raw.toString();
+        }
+
+    }
+
     private File tmpFile;
 
     @Before
@@ -115,6 +200,28 @@ public class JsonToolsTest {
         Assert.assertEquals(5, clone.getB());
     }
 
+    @Test
+    public void testClone_sameAsString() {
+
+        TypeVarious original = new TypeVarious();
+
+        // Same type
+        TypeVarious clone = JsonTools.clone(original);
+        Assert.assertNotSame(original.getBytes(), clone.getBytes());
+        Assert.assertEquals(JsonTools.compactPrint(JsonTools.readFromString(JsonTools.compactPrint(original), TypeVarious.class)), JsonTools.compactPrint(clone));
+        Assert.assertEquals(original.getInstant(), clone.getInstant());
+        Assert.assertEquals(original.getaBigDecimal(), clone.getaBigDecimal());
+
+        // Other type with the same value types
+        Object expected = JsonTools.readFromString(JsonTools.compactPrint(original), Object.class);
+        Object actual = JsonTools.clone(original, Object.class);
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(Arrays.asList(Integer.class, Double.class, Double.class, String.class, Double.class, LinkedHashMap.class, LinkedHashMap.class), //
+                ((Map<?, ?>) actual).values().stream().map(Object::getClass).collect(Collectors.toList()));
+        Assert.assertEquals(JsonTools.cloneAsSortedMap(JsonTools.readFromString(JsonTools.compactPrint(original), Object.class)), JsonTools.cloneAsSortedMap(original));
+
+    }
+
     @Test
     public void testClone_null() {
         Type clone = JsonTools.clone(null);
@@ -175,6 +282,23 @@ public class JsonToolsTest {
         Assert.assertEquals(expected, actual);
     }
 
+    @Test
+    public void testCompactPrintAsBytes() {
+        Type type = new Type();
+        type.setA("h\u00e9llo");
+        type.setB(10);
+
+        byte[] actual = JsonTools.compactPrintAsBytes(type);
+        Assert.assertEquals(JsonTools.compactPrint(type), new String(actual, StandardCharsets.UTF_8));
+        type.setA(null);
+        Assert.assertEquals("{\"b\":10}", new String(JsonTools.compactPrintWithoutNullsAsBytes(type), StandardCharsets.UTF_8));
+
+        // Read
+        Type read = JsonTools.readFromBytes(actual, Type.class);
+        Assert.assertEquals("h\u00e9llo", read.getA());
+        Assert.assertEquals(10, read.getB());
+    }
+
     @Test
     public void testCompactPrint_withNull() {
         String expected = ResourceTools.getResourceAsString("JsonToolsTest-compactPrint_withNull-expected.json", this.getClass());
@@ -195,6 +319,73 @@ public class JsonToolsTest {
         Assert.assertEquals(expected, actual);
     }
 
+    @Test
+    public void testCreateArrayWriter() throws Exception {
+
+        // Write
+        try (OutputStream stream = new FileOutputStream(tmpFile); SequenceWriter writer = JsonTools.createArrayWriter(stream)) {
+            for (int i = 1; i <= 3; ++i) {
+                Type type = new Type();
+                type.setA("item" + i);
+                type.setB(i);
+                writer.write(type);
+            }
+        }
+        Assert.assertEquals("[{\"a\":\"item1\",\"b\":1},{\"a\":\"item2\",\"b\":2},{\"a\":\"item3\",\"b\":3}]", FileTools.getFileAsString(tmpFile));
+
+        // Read as stream
+        try (Stream<Type> stream = JsonTools.readFromFileAsStream(tmpFile, Type.class)) {
+            Assert.assertEquals(Arrays.asList("item1", "item2", "item3"), stream.map(Type::getA).collect(Collectors.toList()));
+        }
+
+        // Read as iterator
+        FileTools.writeFile(FileTools.getFileAsString(tmpFile) + "\nafter", tmpFile);
+        try (InputStream stream = new FileInputStream(tmpFile)) {
+            Iterator<Type> it = JsonTools.readFromStreamAsIterator(stream, Type.class);
+            Assert.assertEquals(1, it.next().getB());
+            Assert.assertEquals(2, it.next().getB());
+            Assert.assertEquals(3, it.next().getB());
+            Assert.assertFalse(it.hasNext());
+        }
+
+        // Empty
+        FileTools.writeFile(" [ ] ", tmpFile);
+        try (Stream<Type> stream = JsonTools.readFromFileAsStream(tmpFile, Type.class)) {
+            Assert.assertEquals(0, stream.count());
+        }
+
+    }
+
+    @Test
+    public void testCreateJsonLinesWriter() throws Exception {
+
+        // Write
+        try (OutputStream stream = new FileOutputStream(tmpFile); SequenceWriter writer = JsonTools.createJsonLinesWriter(stream)) {
+            for (int i = 1; i <= 3; ++i) {
+                Type type = new Type();
+                type.setA("item" + i);
+                type.setB(i);
+                writer.write(type);
+            }
+        }
+        Assert.assertEquals("{\"a\":\"item1\",\"b\":1}\n{\"a\":\"item2\",\"b\":2}\n{\"a\":\"item3\",\"b\":3}", FileTools.getFileAsString(tmpFile));
+
+        // Read as stream
+        try (Stream<Type> stream = JsonTools.readFromFileAsJsonLines(tmpFile, Type.class)) {
+            Assert.assertEquals(Arrays.asList("item1", "item2", "item3"), stream.map(Type::getA).collect(Collectors.toList()));
+        }
+
+        // Read as iterator
+        try (InputStream stream = new FileInputStream(tmpFile)) {
+            Iterator<Type> it = JsonTools.readFromStreamAsJsonLines(stream, Type.class);
+            Assert.assertEquals(1, it.next().getB());
+            Assert.assertEquals(2, it.next().getB());
+            Assert.assertEquals(3, it.next().getB());
+            Assert.assertFalse(it.hasNext());
+        }
+
+    }
+
     @Test
     public void testPrettyPrint_filled() {
         String expected = ResourceTools.getResourceAsString("JsonToolsTest-prettyPrint_filled-expected.json", this.getClass());
@@ -226,6 +417,27 @@ public class JsonToolsTest {
         Assert.assertEquals(expected, actual);
     }
 
+    @Test
+    public void testReadFromByteBuffer() {
+        Type type = new Type();
+        type.setA("hello");
+        type.setB(10);
+
+        for (ByteBuffer buffer : Arrays.asList(ByteBuffer.allocate(100), ByteBuffer.allocateDirect(100))) {
+            buffer.put((byte) 'x');
+            JsonTools.writeToByteBuffer(buffer, type);
+            buffer.flip();
+            buffer.get();
+
+            Type read = JsonTools.readFromByteBuffer(buffer, Type.class);
+            Assert.assertEquals("hello", read.getA());
+            Assert.assertEquals(10, read.getB());
+            Assert.assertFalse(buffer.hasRemaining());
+        }
+
+        Assert.assertSame(JsonTools.readerFor(Type.class), JsonTools.readerFor(Type.class));
+    }
+
     @Test
     public void testReadFromFileFileClassOfT() {
         String content = ResourceTools.getResourceAsString("JsonToolsTest-prettyPrint_filled-expected.json", this.getClass());
@@ -301,6 +513,27 @@ public class JsonToolsTest {
         Assert.assertEquals(34, actual.get(1).getB());
     }
 
+    @Test
+    public void testReadFromStreamAsList() throws Exception {
+        String json = ResourceTools.getResourceAsString("JsonToolsTest-testReadFromResourceAsList.json", this.getClass());
+        FileTools.writeFile(json + "\nafter", tmpFile);
+
+        try (InputStream stream = new FileInputStream(tmpFile)) {
+            List<Type> actual = JsonTools.readFromStreamAsList(stream, Type.class);
+
+            Assert.assertEquals(2, actual.size());
+
+            Assert.assertEquals("aa", actual.get(0).getA());
+            Assert.assertEquals(12, actual.get(0).getB());
+
+            Assert.assertEquals("bb", actual.get(1).getA());
+            Assert.assertEquals(34, actual.get(1).getB());
+
+            // The stream is still open
+            stream.read();
+        }
+    }
+
     @Test
     public void testWriteToStream() throws Exception {
 
@@ -0,0 +1,103 @@
+package com.foilen.smalltools.mongodb.reactive;
+
+import com.foilen.smalltools.mongodb.MongoDbBulkWriteTools;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The same as {@link MongoDbBulkWriteTools}, but for the reactive streams driver. The waits between the attempts are not using any thread.
+ */
+public class MongoDbReactiveBulkWriteTools {
+
+    private final static Logger logger = LoggerFactory.getLogger(MongoDbReactiveBulkWriteTools.class);
+
+    /**
+     * Execute an unordered bulk of upserts and retry the whole batch on transient errors. See {@link MongoDbBulkWriteTools#bulkUpsertUnorderedWithRetry(com.mongodb.client.MongoCollection, List)}.
+     *
+     * @param mongoCollection the collection
+     * @param models          the upserts to execute
+     * @return the future with the indexes of the models that inserted a new document in any of the attempts
+     */
+    public static CompletableFuture<Set<Integer>> bulkUpsertUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models) {
+        return bulkUpsertUnorderedWithRetry(mongoCollection, models, MongoDbBulkWriteTools.DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Execute an unordered bulk of upserts and retry the whole batch on transient errors. See {@link MongoDbBulkWriteTools#bulkUpsertUnorderedWithRetry(com.mongodb.client.MongoCollection, List, int)}.
+     *
+     * @param mongoCollection the collection
+     * @param models          the upserts to execute
+     * @param maxAttempts     the maximum amount of attempts
+     * @return the future with the indexes of the models that inserted a new document in any of the attempts
+     */
+    public static CompletableFuture<Set<Integer>> bulkUpsertUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models, int maxAttempts) {
+        Set<Integer> upsertedIndexes = Collections.synchronizedSet(new TreeSet<>());
+        return bulkWriteUnorderedWithRetry(mongoCollection, models, maxAttempts, 1, true, result -> result.getUpserts().forEach(upsert -> upsertedIndexes.add(upsert.getIndex())))
+                .thenApply(ignored -> upsertedIndexes);
+    }
+
+    /**
+     * Execute an unordered bulk write and retry the whole batch on transient errors (network, timeout, retryable labels). The models must be idempotent.
+     *
+     * @param mongoCollection the collection
+     * @param models          the models to execute
+     * @return the future with the result of the last attempt
+     */
+    public static CompletableFuture<BulkWriteResult> bulkWriteUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models) {
+        return bulkWriteUnorderedWithRetry(mongoCollection, models, MongoDbBulkWriteTools.DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Execute an unordered bulk write and retry the whole batch on transient errors (network, timeout, retryable labels). The models must be idempotent.
+     *
+     * @param mongoCollection the collection
+     * @param models          the models to execute
+     * @param maxAttempts     the maximum amount of attempts
+     * @return the future with the result of the last attempt
+     */
+    public static CompletableFuture<BulkWriteResult> bulkWriteUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models, int maxAttempts) {
+        return bulkWriteUnorderedWithRetry(mongoCollection, models, maxAttempts, 1, false, result -> {
+        });
+    }
+
+    private static CompletableFuture<BulkWriteResult> bulkWriteUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models, int maxAttempts, int attempt,
+                                                                                  boolean duplicateKeyIsDone, Consumer<BulkWriteResult> attemptResultConsumer) {
+        return ReactiveStreamsTools.first(mongoCollection.bulkWrite(models, new BulkWriteOptions().ordered(false)))
+                .handle((result, e) -> {
+                    if (e == null) {
+                        attemptResultConsumer.accept(result);
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    var cause = ReactiveStreamsTools.unwrap(e);
+                    if (cause instanceof MongoBulkWriteException bulkWriteException) {
+                        attemptResultConsumer.accept(bulkWriteException.getWriteResult());
+                        if (duplicateKeyIsDone && MongoDbBulkWriteTools.isDuplicateKeyOnly(bulkWriteException)) {
+                            return CompletableFuture.completedFuture(bulkWriteException.getWriteResult());
+                        }
+                    }
+                    if (attempt >= maxAttempts || !(cause instanceof MongoException) || !MongoDbBulkWriteTools.isTransient((MongoException) cause)) {
+                        return CompletableFuture.<BulkWriteResult>failedFuture(cause);
+                    }
+                    logger.warn("Transient error while bulk writing {} items in {}. Attempt {}/{}", models.size(), mongoCollection.getNamespace(), attempt, maxAttempts, cause);
+                    return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(100L * attempt, TimeUnit.MILLISECONDS))
+                            .thenCompose(ignored -> bulkWriteUnorderedWithRetry(mongoCollection, models, maxAttempts, attempt + 1, duplicateKeyIsDone, attemptResultConsumer));
+                })
+                .thenCompose(future -> future);
+    }
+
+}
@@ -0,0 +1,343 @@
+package com.foilen.smalltools.mongodb.reactive;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Uses MongoDB Change Streams to wait for any changes instead of polling, like {@link com.foilen.smalltools.mongodb.MongoDbChangeStreamWaitAnyChange}, but the waiters are futures instead of
+ * threads. Any amount of waiters can be outstanding without using any thread.
+ * <p>
+ * To not miss a change, get the waiter with {@link #nextChange()} (or {@link #nextChange(String)}) BEFORE checking the state in the database. If the state is not the expected one, wait on the
+ * future. Otherwise, call {@link #doneWithoutWaiting(CompletableFuture)}.
+ * <p>
+ * Each change completes a single waiter (the oldest) to not have all the waiters retrying at the same time. The global waiters are completed on any change and the waiters of an id, on the changes
+ * of that id.
+ * <p>
+ * If no future is waiting, the change stream will stop after a specific time.
+ */
+public class MongoDbReactiveChangeStreamWaitAnyChange extends AbstractBasics {
+
+    private static final long RESTART_AFTER_ERROR_IN_MS = 1000;
+    private static final long WAKE_UP_ALL_AFTER_START_IN_MS = 1000;
+
+    private final Supplier<CompletableFuture<Void>> collectionCreate;
+
+    private final MongoCollection<Document> mongoCollection;
+    private final long stopAfterNoWaiterInMs;
+    private final List<String> changeTypes;
+
+    private final Queue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<Object, Queue<CompletableFuture<Void>>> waitersById = new ConcurrentHashMap<>();
+
+    private volatile long stopAfter;
+    private ChangeSubscriber currentSubscriber;
+
+    public MongoDbReactiveChangeStreamWaitAnyChange(Supplier<CompletableFuture<Void>> collectionCreate, MongoCollection<Document> mongoCollection, long stopAfterNoWaiterInMs,
+                                                    String firstChangeType, String... changeTypes) {
+        this.collectionCreate = collectionCreate;
+        this.mongoCollection = mongoCollection;
+        this.stopAfterNoWaiterInMs = stopAfterNoWaiterInMs;
+        this.changeTypes = new ArrayList<>();
+        this.changeTypes.add(firstChangeType);
+        this.changeTypes.addAll(Arrays.asList(changeTypes));
+    }
+
+    /**
+     * Get a waiter that will be completed on the next change.
+     *
+     * @return the waiter. Use {@link CompletableFuture#completeOnTimeout(Object, long, TimeUnit)} to stop waiting after some time
+     */
+    public CompletableFuture<Void> nextChange() {
+        return register(waiters);
+    }
+
+    /**
+     * Get a waiter that will be completed on the next change of that id.
+     *
+     * @param id the id
+     * @return the waiter. Use {@link CompletableFuture#completeOnTimeout(Object, long, TimeUnit)} to stop waiting after some time
+     */
+    public CompletableFuture<Void> nextChange(String id) {
+        var waiter = new CompletableFuture<Void>();
+        waitersById.compute(id, (k, queue) -> {
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<>();
+            }
+            queue.add(waiter);
+            return queue;
+        });
+        waiter.whenComplete((result, e) -> {
+            var queue = waitersById.get(id);
+            if (queue != null) {
+                queue.remove(waiter);
+            }
+            stopAfter = System.currentTimeMillis() + stopAfterNoWaiterInMs;
+        });
+        stopAfter = System.currentTimeMillis() + stopAfterNoWaiterInMs;
+        startIfNeeded();
+        return waiter;
+    }
+
+    /**
+     * Wait for the next change or until the time is elapsed.
+     *
+     * @param timeInMs the maximum time to wait
+     * @return the future completed on the next change or when the time is elapsed
+     */
+    public CompletableFuture<Void> waitForChange(long timeInMs) {
+        return nextChange().completeOnTimeout(null, timeInMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for the next change of that id or until the time is elapsed.
+     *
+     * @param id       the id
+     * @param timeInMs the maximum time to wait
+     * @return the future completed on the next change or when the time is elapsed
+     */
+    public CompletableFuture<Void> waitForChange(String id, long timeInMs) {
+        return nextChange(id).completeOnTimeout(null, timeInMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tell that the waiter is not needed anymore since the state was already the expected one. If the waiter was already completed by a change, that change is given to the next waiter.
+     *
+     * @param waiter the waiter from {@link #nextChange()} or {@link #nextChange(String)}
+     */
+    public void doneWithoutWaiting(CompletableFuture<Void> waiter) {
+        if (!waiter.cancel(false)) {
+            wakeUpOne();
+        }
+    }
+
+    /**
+     * Tell that the waiter is not needed anymore since the state was already the expected one. If the waiter was already completed by a change, that change is given to the next waiter.
+     *
+     * @param id     the id
+     * @param waiter the waiter from {@link #nextChange(String)}
+     */
+    public void doneWithoutWaiting(String id, CompletableFuture<Void> waiter) {
+        if (!waiter.cancel(false)) {
+            wakeUpOne(id);
+        }
+    }
+
+    /**
+     * Complete the oldest global waiter. Useful when the change is done locally to not have to wait for the change stream to receive it.
+     */
+    public void wakeUpOne() {
+        completeOne(waiters);
+    }
+
+    /**
+     * Complete the oldest waiter of that id. Useful when the change is done locally to not have to wait for the change stream to receive it.
+     *
+     * @param id the id
+     */
+    public void wakeUpOne(String id) {
+        var queue = waitersById.get(id);
+        if (queue != null) {
+            completeOne(queue);
+        }
+    }
+
+    /**
+     * Complete all the waiters.
+     */
+    public void wakeUpAll() {
+        completeAll(waiters);
+        waitersById.values().forEach(this::completeAll);
+    }
+
+    private CompletableFuture<Void> register(Queue<CompletableFuture<Void>> queue) {
+        var waiter = new CompletableFuture<Void>();
+        queue.add(waiter);
+        waiter.whenComplete((result, e) -> {
+            queue.remove(waiter);
+            stopAfter = System.currentTimeMillis() + stopAfterNoWaiterInMs;
+        });
+        stopAfter = System.currentTimeMillis() + stopAfterNoWaiterInMs;
+        startIfNeeded();
+        return waiter;
+    }
+
+    private void completeOne(Queue<CompletableFuture<Void>> queue) {
+        CompletableFuture<Void> waiter;
+        while ((waiter = queue.poll()) != null) {
+            if (waiter.complete(null)) {
+                return;
+            }
+        }
+    }
+
+    private void completeAll(Queue<CompletableFuture<Void>> queue) {
+        CompletableFuture<Void> waiter;
+        while ((waiter = queue.poll()) != null) {
+            waiter.complete(null);
+        }
+    }
+
+    private boolean hasWaiters() {
+        return !waiters.isEmpty() || waitersById.values().stream().anyMatch(queue -> !queue.isEmpty());
+    }
+
+    private synchronized void startIfNeeded() {
+        if (currentSubscriber != null) {
+            return;
+        }
+
+        logger.info("Starting change stream");
+        var watchedChangeTypes = new ArrayList<>(changeTypes);
+        watchedChangeTypes.add("drop");
+        currentSubscriber = new ChangeSubscriber();
+        mongoCollection.watch(List.of(
+                        Aggregates.match(new Document("operationType", new Document("$in", watchedChangeTypes))),
+                        Aggregates.project(new Document("fullDocument", 0))
+                ))
+                .fullDocument(FullDocument.DEFAULT)
+                .subscribe(currentSubscriber);
+    }
+
+    private synchronized boolean stopped(ChangeSubscriber subscriber) {
+        if (currentSubscriber != subscriber) {
+            return false;
+        }
+        currentSubscriber = null;
+        return true;
+    }
+
+    private synchronized boolean stopIfNoWaiters(ChangeSubscriber subscriber) {
+        // A new waiter is added before calling startIfNeeded(), so it is either seen here or it will start a new change stream
+        if (hasWaiters()) {
+            return false;
+        }
+        return stopped(subscriber);
+    }
+
+    private synchronized boolean isCurrent(ChangeSubscriber subscriber) {
+        return currentSubscriber == subscriber;
+    }
+
+    private class ChangeSubscriber implements Subscriber<ChangeStreamDocument<Document>> {
+
+        private Subscription subscription;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+
+            // Completing all the waiters since it is the first pass and changes could have been missed while stopped
+            wakeUpAll();
+
+            // The cursor is opened on the server after the subscription, so complete the waiters again once it is surely opened
+            CompletableFuture.delayedExecutor(WAKE_UP_ALL_AFTER_START_IN_MS, TimeUnit.MILLISECONDS).execute(() -> {
+                if (isCurrent(this)) {
+                    wakeUpAll();
+                }
+            });
+
+            checkLaterIfStop();
+        }
+
+        @Override
+        public void onNext(ChangeStreamDocument<Document> change) {
+
+            // Detect collection drop
+            if ("drop".equals(change.getOperationTypeString())) {
+                logger.error("Collection {} was dropped. Calling the callback to recreate it", mongoCollection.getNamespace());
+                subscription.cancel();
+                stopped(this);
+                collectionCreate.get().whenComplete((result, e) -> {
+                    if (e != null) {
+                        logger.error("Problem recreating the collection {}", mongoCollection.getNamespace(), e);
+                    }
+                    // Restart the change stream
+                    logger.info("Restarting change stream after recreation of collection {}", mongoCollection.getNamespace());
+                    startIfNeeded();
+                });
+                return;
+            }
+
+            // By id
+            Object id = change.getDocumentKey().get("_id");
+            if (id instanceof BsonString) {
+                id = ((BsonString) id).getValue();
+            }
+            logger.debug("Change {} for {} - {}", change.getOperationTypeString(), mongoCollection.getNamespace(), id);
+            var queue = waitersById.get(id);
+            if (queue != null) {
+                completeOne(queue);
+            }
+
+            // Global
+            completeOne(waiters);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            logger.error("Problem with change stream", throwable);
+            if (stopped(this)) {
+                CompletableFuture.delayedExecutor(RESTART_AFTER_ERROR_IN_MS, TimeUnit.MILLISECONDS).execute(() -> {
+                    if (hasWaiters()) {
+                        startIfNeeded();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            logger.info("Change stream stopped");
+            stopped(this);
+        }
+
+        private void checkLaterIfStop() {
+            long delay = stopAfter - System.currentTimeMillis();
+            if (delay <= 0) {
+                delay = 100;
+            }
+
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+                if (!isCurrent(this)) {
+                    return;
+                }
+
+                if (System.currentTimeMillis() > stopAfter) {
+                    // Remove all the queues without waiters
+                    waitersById.keySet().forEach(id -> waitersById.computeIfPresent(id, (k, queue) -> queue.isEmpty() ? null : queue));
+
+                    if (stopIfNoWaiters(this)) {
+                        logger.info("Stopping change stream");
+                        subscription.cancel();
+                        return;
+                    }
+                    logger.info("Some futures are waiting. Will wait more");
+                    stopAfter = System.currentTimeMillis() + stopAfterNoWaiterInMs;
+                }
+
+                checkLaterIfStop();
+            });
+        }
+
+    }
+
+}
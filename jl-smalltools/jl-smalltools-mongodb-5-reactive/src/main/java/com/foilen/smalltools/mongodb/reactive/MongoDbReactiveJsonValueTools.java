@@ -0,0 +1,79 @@
+package com.foilen.smalltools.mongodb.reactive;
+
+import com.foilen.smalltools.mongodb.distributed.MongoDbDistributedConstants;
+import com.foilen.smalltools.mongodb.distributed.MongoDbJsonValueTools;
+import com.foilen.smalltools.tuple.Tuple2;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * The same as {@link MongoDbJsonValueTools#manageCollection(com.mongodb.client.MongoClient, com.mongodb.client.MongoCollection, Map, boolean)}, but for the reactive streams driver.
+ */
+public class MongoDbReactiveJsonValueTools {
+
+    private final static Logger logger = LoggerFactory.getLogger(MongoDbReactiveJsonValueTools.class);
+
+    private static CompletableFuture<Void> addMissingHashes(MongoCollection<Document> mongoCollection) {
+        return ReactiveStreamsTools.toList(mongoCollection.find(MongoDbJsonValueTools.filterMissingHash())
+                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
+                        .limit(MongoDbJsonValueTools.BACKFILL_BATCH_SIZE))
+                .thenCompose(documents -> {
+                    if (documents.isEmpty()) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    logger.info("Adding the missing hash to {} documents in {}", documents.size(), mongoCollection.getNamespace());
+                    return MongoDbReactiveBulkWriteTools.bulkWriteUnorderedWithRetry(mongoCollection, documents.stream().map(MongoDbJsonValueTools::toAddHash).collect(Collectors.toList()))
+                            .thenCompose(result -> documents.size() < MongoDbJsonValueTools.BACKFILL_BATCH_SIZE ? CompletableFuture.completedFuture(null) : addMissingHashes(mongoCollection));
+                });
+    }
+
+    /**
+     * Create the collection and its indexes with the index on the hash if it is enabled and update the existing documents. When enabling the index, the documents saved before get their hash. The
+     * SHA-1 saved by the previous versions is removed.
+     *
+     * @param mongoClient                    the mongo client
+     * @param mongoCollection                the collection
+     * @param indexKeysAndOptionsByIndexName the other indexes
+     * @param valueHashIndex                 true to use the index
+     * @return the future completed when the collection, the indexes and the documents are ready
+     */
+    public static CompletableFuture<Void> manageCollection(MongoClient mongoClient, MongoCollection<Document> mongoCollection, Map<String, Tuple2<Document, IndexOptions>> indexKeysAndOptionsByIndexName,
+                                                           boolean valueHashIndex) {
+
+        Map<String, Tuple2<Document, IndexOptions>> indexes = new HashMap<>(indexKeysAndOptionsByIndexName);
+        MongoDbJsonValueTools.addIndex(indexes, valueHashIndex);
+
+        return MongoDbReactiveManageCollectionTools.addCollectionIfMissing(mongoClient, mongoCollection.getNamespace())
+                .thenCompose(ignored -> ReactiveStreamsTools.toList(mongoCollection.listIndexes()))
+                .thenCompose(currentIndexes -> {
+
+                    // Check for the legacy index before it is removed
+                    boolean legacyIndex = currentIndexes.stream().anyMatch(index -> MongoDbJsonValueTools.LEGACY_INDEX_NAME.equals(index.getString("name")));
+
+                    var future = MongoDbReactiveManageCollectionTools.manageIndexes(mongoCollection, indexes);
+
+                    // Remove the SHA-1 of the previous versions
+                    if (legacyIndex) {
+                        future = future.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.updateMany(MongoDbJsonValueTools.filterLegacyHash(), MongoDbJsonValueTools.unsetLegacyHash())))
+                                .thenAccept(result -> logger.info("Removed the legacy hash of {} documents in {}", result.getModifiedCount(), mongoCollection.getNamespace()));
+                    }
+
+                    // Add the missing hashes
+                    if (valueHashIndex) {
+                        future = future.thenCompose(ignored -> addMissingHashes(mongoCollection));
+                    }
+
+                    return future;
+                });
+    }
+
+}
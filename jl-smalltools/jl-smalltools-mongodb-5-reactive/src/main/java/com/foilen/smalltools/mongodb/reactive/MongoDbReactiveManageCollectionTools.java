@@ -0,0 +1,92 @@
+package com.foilen.smalltools.mongodb.reactive;
+
+import com.foilen.smalltools.tuple.Tuple2;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * The same as {@link com.foilen.smalltools.mongodb.MongoDbManageCollectionTools}, but for the reactive streams driver.
+ */
+public class MongoDbReactiveManageCollectionTools {
+
+    private final static Logger logger = LoggerFactory.getLogger(MongoDbReactiveManageCollectionTools.class);
+
+    /**
+     * Create the collection if it does not exist.
+     *
+     * @param mongoClient the mongo client
+     * @param namespace   the namespace
+     * @return the future completed when the collection exists
+     */
+    public static CompletableFuture<Void> addCollectionIfMissing(MongoClient mongoClient, MongoNamespace namespace) {
+        var mongoDatabase = mongoClient.getDatabase(namespace.getDatabaseName());
+
+        return ReactiveStreamsTools.toList(mongoDatabase.listCollectionNames().filter(new Document("name", namespace.getCollectionName())))
+                .thenCompose(collectionNames -> {
+                    if (collectionNames.contains(namespace.getCollectionName())) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    logger.info("Creating collection {}", namespace.getCollectionName());
+                    return ReactiveStreamsTools.completion(mongoDatabase.createCollection(namespace.getCollectionName()));
+                });
+    }
+
+    /**
+     * Create the indexes if they do not exist and delete any extra. It does not update any indexes with same name, but different options.
+     *
+     * @param mongoCollection                the collection
+     * @param indexKeysAndOptionsByIndexName the index name and the keys and options
+     * @return the future completed when all the indexes are managed
+     */
+    public static CompletableFuture<Void> manageIndexes(MongoCollection<Document> mongoCollection, Map<String, Tuple2<Document, IndexOptions>> indexKeysAndOptionsByIndexName) {
+
+        // Get the current indexes
+        return ReactiveStreamsTools.toList(mongoCollection.listIndexes()).thenCompose(indexes -> {
+            Set<String> currentIndexNames = indexes.stream()
+                    .map(index -> index.getString("name"))
+                    .filter(indexName -> !indexName.equals("_id_"))
+                    .collect(Collectors.toSet());
+
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+
+            // Delete any extra
+            for (String indexName : currentIndexNames) {
+                if (!indexKeysAndOptionsByIndexName.containsKey(indexName)) {
+                    logger.info("Dropping extra index {}", indexName);
+                    futures.add(ReactiveStreamsTools.completion(mongoCollection.dropIndex(indexName)));
+                }
+            }
+
+            // Create the indexes if they do not exist
+            for (Map.Entry<String, Tuple2<Document, IndexOptions>> entry : indexKeysAndOptionsByIndexName.entrySet()) {
+                String indexName = entry.getKey();
+                Tuple2<Document, IndexOptions> keysAndOptions = entry.getValue();
+
+                // If the index does not exist, create it
+                if (!currentIndexNames.contains(indexName)) {
+                    Document keys = keysAndOptions.getA();
+                    IndexOptions options = keysAndOptions.getB();
+                    options.name(indexName);
+                    logger.info("Creating index {} with keys {} and options {}", indexName, keys, options);
+                    futures.add(ReactiveStreamsTools.completion(mongoCollection.createIndex(keys, options)));
+                }
+            }
+
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        });
+
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.foilen.smalltools.mongodb.reactive;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * To use the {@link Publisher} of the reactive streams driver as {@link CompletableFuture}.
+ */
+public final class ReactiveStreamsTools {
+
+    /**
+     * Get the first item and cancel the subscription.
+     *
+     * @param publisher the publisher
+     * @param <T>       the type of the items
+     * @return the future with the first item or null if there is none
+     */
+    public static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+        var future = new CompletableFuture<T>();
+        publisher.subscribe(new Subscriber<T>() {
+
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(T item) {
+                if (future.complete(item)) {
+                    subscription.cancel();
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Wait for the publisher to complete. The items are ignored.
+     *
+     * @param publisher the publisher
+     * @return the future completed when the publisher is completed
+     */
+    public static CompletableFuture<Void> completion(Publisher<?> publisher) {
+        return forEach(publisher, item -> {
+        });
+    }
+
+    /**
+     * Call the consumer for each item.
+     *
+     * @param publisher the publisher
+     * @param consumer  the consumer. It is called by the driver's threads, so it must not block
+     * @param <T>       the type of the items
+     * @return the future completed when all the items were consumed. If the consumer throws an exception, the subscription is cancelled and the future is completed with it
+     */
+    public static <T> CompletableFuture<Void> forEach(Publisher<T> publisher, Consumer<? super T> consumer) {
+        var future = new CompletableFuture<Void>();
+        publisher.subscribe(new Subscriber<T>() {
+
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(T item) {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    consumer.accept(item);
+                } catch (Throwable e) {
+                    subscription.cancel();
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Get all the items in a list.
+     *
+     * @param publisher the publisher
+     * @param <T>       the type of the items
+     * @return the future with all the items
+     */
+    public static <T> CompletableFuture<List<T>> toList(Publisher<T> publisher) {
+        List<T> items = new ArrayList<>();
+        return forEach(publisher, items::add).thenApply(ignored -> items);
+    }
+
+    /**
+     * Get the real exception when it is wrapped by a {@link CompletableFuture}.
+     *
+     * @param throwable the exception received in a callback of a {@link CompletableFuture}
+     * @return the cause if it is a {@link CompletionException} or an {@link ExecutionException}
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException) && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+
+    /**
+     * Check if the exception is a duplicate key error.
+     *
+     * @param throwable the exception (can be wrapped by a {@link CompletableFuture})
+     * @return true if it is a write or a bulk write that failed only because of duplicate keys
+     */
+    public static boolean isDuplicateKey(Throwable throwable) {
+        throwable = unwrap(throwable);
+        if (throwable instanceof MongoWriteException) {
+            return ((MongoWriteException) throwable).getError().getCode() == 11000;
+        }
+        if (throwable instanceof MongoBulkWriteException) {
+            var writeErrors = ((MongoBulkWriteException) throwable).getWriteErrors();
+            return !writeErrors.isEmpty() && writeErrors.stream().allMatch(writeError -> writeError.getCode() == 11000);
+        }
+        return false;
+    }
+
+    private ReactiveStreamsTools() {
+    }
+
+}
@@ -0,0 +1,512 @@
+package com.foilen.smalltools.mongodb.reactive.distributed;
+
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.mongodb.distributed.AbstractMongoDbBatchedIterator;
+import com.foilen.smalltools.mongodb.distributed.MongoDbDistributedConstants;
+import com.foilen.smalltools.mongodb.distributed.MongoDbJsonValueTools;
+import com.foilen.smalltools.mongodb.reactive.MongoDbReactiveChangeStreamWaitAnyChange;
+import com.foilen.smalltools.mongodb.reactive.MongoDbReactiveJsonValueTools;
+import com.foilen.smalltools.mongodb.reactive.ReactiveStreamsTools;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.tuple.Tuple2;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A distributed deque/queue using MongoDB where all the operations return a {@link CompletableFuture} instead of blocking. The documents are the same as {@link
+ * com.foilen.smalltools.mongodb.distributed.MongoDbDeque}, so both can be used on the same collection.
+ * <p>
+ * The timed polls are waiting on a change stream with futures, so any amount of polls can be outstanding without using any thread.
+ * <p>
+ * The futures are completed by the driver's threads, so the callbacks must not block.
+ *
+ * @param <E> the type of elements in this queue
+ */
+public class MongoDbAsyncDeque<E> extends AbstractBasics {
+
+    private final Class<E> entityType;
+    private final MongoCollection<Document> mongoCollection;
+    private final long stopChangeStreamAfterNoWaiterInMs;
+    private final boolean valueHashIndex;
+
+    private final Supplier<CompletableFuture<Void>> collectionCreate;
+    private final CompletableFuture<Void> initialized;
+
+    private MongoDbReactiveChangeStreamWaitAnyChange mongoDbReactiveChangeStreamWaitAnyChange;
+    private int cursorBatchSize = AbstractMongoDbBatchedIterator.DEFAULT_BATCH_SIZE;
+    private int insertBatchSize = 1000;
+    private Codec codec = JsonCodec.COMPACT;
+
+    public MongoDbAsyncDeque(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection) {
+        this(entityType, mongoClient, mongoCollection, 10 * 60000);
+    }
+
+    public MongoDbAsyncDeque(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, long stopChangeStreamAfterNoWaiterInMs) {
+        this(entityType, mongoClient, mongoCollection, stopChangeStreamAfterNoWaiterInMs, false);
+    }
+
+    /**
+     * Create a new instance of the deque.
+     *
+     * @param entityType                        the type of elements in this deque
+     * @param mongoClient                       the mongo client
+     * @param mongoCollection                   the mongo collection
+     * @param stopChangeStreamAfterNoWaiterInMs the time after which the change stream is stopped when there is no waiter
+     * @param valueHashIndex                    true to save a hash of the values with an index to speed up the lookups by value (see {@link MongoDbJsonValueTools}). The existing documents get their hash when it is enabled
+     */
+    public MongoDbAsyncDeque(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, long stopChangeStreamAfterNoWaiterInMs, boolean valueHashIndex) {
+        this.entityType = entityType;
+        this.mongoCollection = mongoCollection;
+        this.stopChangeStreamAfterNoWaiterInMs = stopChangeStreamAfterNoWaiterInMs;
+        this.valueHashIndex = valueHashIndex;
+
+        Map<String, Tuple2<Document, IndexOptions>> indexes = new HashMap<>();
+        indexes.put("operationType_1", new Tuple2<>(
+                new Document().append("operationType", 1),
+                new IndexOptions()
+        ));
+        collectionCreate = () -> MongoDbReactiveJsonValueTools.manageCollection(mongoClient, mongoCollection, indexes, valueHashIndex);
+        initialized = collectionCreate.get();
+    }
+
+    /**
+     * Get the future completed when the collection and its indexes are created. All the operations are waiting for it.
+     *
+     * @return the future
+     */
+    public CompletableFuture<Void> getInitialized() {
+        return initialized;
+    }
+
+    private Document toDocument(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, e);
+        return MongoDbJsonValueTools.appendJsonValue(new Document(), jsonValue, valueHashIndex);
+    }
+
+    private E toElement(Document document) {
+        if (document == null) {
+            return null;
+        }
+        return MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+    }
+
+    /**
+     * Insert the documents with consecutive orders starting at the current minimum - amount or maximum + 1. If another instance took one of these orders, the remaining documents are retried.
+     */
+    private CompletableFuture<Void> insertAtEnd(boolean first, List<Document> documents) {
+        if (documents.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return ReactiveStreamsTools.first(mongoCollection.find()
+                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
+                        .sort(first ? Sorts.ascending(MongoDbDistributedConstants.FIELD_ID) : Sorts.descending(MongoDbDistributedConstants.FIELD_ID))
+                        .first())
+                .thenCompose(endEntry -> {
+                    long order;
+                    if (endEntry == null) {
+                        order = 0;
+                    } else if (first) {
+                        order = endEntry.getLong(MongoDbDistributedConstants.FIELD_ID) - documents.size();
+                    } else {
+                        order = endEntry.getLong(MongoDbDistributedConstants.FIELD_ID) + 1;
+                    }
+                    for (var document : documents) {
+                        document.append(MongoDbDistributedConstants.FIELD_ID, order++);
+                    }
+
+                    var insert = documents.size() == 1 ?
+                            ReactiveStreamsTools.completion(mongoCollection.insertOne(documents.get(0))) :
+                            ReactiveStreamsTools.completion(mongoCollection.insertMany(documents));
+                    return insert.handle((result, e) -> {
+                        if (e == null) {
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        if (!ReactiveStreamsTools.isDuplicateKey(e)) {
+                            return CompletableFuture.<Void>failedFuture(ReactiveStreamsTools.unwrap(e));
+                        }
+
+                        // The ordered insert stopped at the first duplicate
+                        int insertedCount = 0;
+                        var cause = ReactiveStreamsTools.unwrap(e);
+                        if (cause instanceof MongoBulkWriteException) {
+                            insertedCount = ((MongoBulkWriteException) cause).getWriteErrors().get(0).getIndex();
+                        }
+                        logger.debug("Order already used. Retrying {} documents", documents.size() - insertedCount);
+                        return insertAtEnd(first, documents.subList(insertedCount, documents.size()));
+                    }).thenCompose(future -> future);
+                });
+    }
+
+    /**
+     * Insert at the beginning.
+     *
+     * @param e the element
+     * @return the future completed when inserted
+     */
+    public CompletableFuture<Void> offerFirst(E e) {
+        var document = toDocument(e);
+        return initialized.thenCompose(ignored -> insertAtEnd(true, List.of(document)));
+    }
+
+    /**
+     * Insert at the end.
+     *
+     * @param e the element
+     * @return the future completed when inserted
+     */
+    public CompletableFuture<Void> offerLast(E e) {
+        var document = toDocument(e);
+        return initialized.thenCompose(ignored -> insertAtEnd(false, List.of(document)));
+    }
+
+    /**
+     * Insert all the elements at the end, in order. They are inserted by batches.
+     *
+     * @param c the elements
+     * @return the future completed when all are inserted
+     */
+    public CompletableFuture<Void> addAll(Collection<? extends E> c) {
+        List<Document> documents = new ArrayList<>(c.size());
+        c.forEach(e -> documents.add(toDocument(e)));
+
+        CompletableFuture<Void> future = initialized;
+        for (int i = 0; i < documents.size(); i += insertBatchSize) {
+            var batch = documents.subList(i, Math.min(i + insertBatchSize, documents.size()));
+            future = future.thenCompose(ignored -> insertAtEnd(false, batch));
+        }
+        return future;
+    }
+
+    private CompletableFuture<E> pollEnd(boolean first) {
+        return ReactiveStreamsTools.first(mongoCollection.findOneAndDelete(
+                new Document(),
+                new FindOneAndDeleteOptions().sort(first ? Sorts.ascending(MongoDbDistributedConstants.FIELD_ID) : Sorts.descending(MongoDbDistributedConstants.FIELD_ID))
+        )).thenApply(this::toElement);
+    }
+
+    private CompletableFuture<E> pollEnd(boolean first, long waitUntil) {
+
+        // Get the waiter before checking to not miss an insert
+        var changeStreamWaitAnyChange = getChangeStreamWaitAnyChange();
+        var waiter = changeStreamWaitAnyChange.nextChange();
+
+        return pollEnd(first)
+                .whenComplete((value, e) -> {
+                    if (e != null) {
+                        waiter.cancel(false);
+                    }
+                })
+                .thenCompose(value -> {
+                    if (value != null) {
+                        changeStreamWaitAnyChange.doneWithoutWaiting(waiter);
+                        return CompletableFuture.completedFuture(value);
+                    }
+
+                    long waitTimeInMs = waitUntil - System.currentTimeMillis();
+                    if (waitTimeInMs <= 0) {
+                        waiter.cancel(false);
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return waiter.completeOnTimeout(null, waitTimeInMs, TimeUnit.MILLISECONDS)
+                            .thenCompose(ignored -> pollEnd(first, waitUntil));
+                });
+    }
+
+    private synchronized MongoDbReactiveChangeStreamWaitAnyChange getChangeStreamWaitAnyChange() {
+        if (mongoDbReactiveChangeStreamWaitAnyChange == null) {
+            mongoDbReactiveChangeStreamWaitAnyChange = new MongoDbReactiveChangeStreamWaitAnyChange(collectionCreate, mongoCollection, stopChangeStreamAfterNoWaiterInMs, "insert");
+        }
+        return mongoDbReactiveChangeStreamWaitAnyChange;
+    }
+
+    private long toWaitUntil(long timeout, TimeUnit unit) {
+        long waitUntil = System.currentTimeMillis() + unit.toMillis(timeout);
+        if (waitUntil < 0) {
+            waitUntil = Long.MAX_VALUE;
+        }
+        return waitUntil;
+    }
+
+    /**
+     * Retrieve and remove the first element.
+     *
+     * @return the future with the element or null if empty
+     */
+    public CompletableFuture<E> pollFirst() {
+        return initialized.thenCompose(ignored -> pollEnd(true));
+    }
+
+    /**
+     * Retrieve and remove the first element. If empty, wait for an element to be added for the max wait time.
+     *
+     * @param timeout the max time to wait
+     * @param unit    the unit of the timeout
+     * @return the future with the element or null if still empty after the timeout
+     */
+    public CompletableFuture<E> pollFirst(long timeout, TimeUnit unit) {
+        long waitUntil = toWaitUntil(timeout, unit);
+        return initialized.thenCompose(ignored -> pollEnd(true, waitUntil));
+    }
+
+    /**
+     * Retrieve and remove the last element.
+     *
+     * @return the future with the element or null if empty
+     */
+    public CompletableFuture<E> pollLast() {
+        return initialized.thenCompose(ignored -> pollEnd(false));
+    }
+
+    /**
+     * Retrieve and remove the last element. If empty, wait for an element to be added for the max wait time.
+     *
+     * @param timeout the max time to wait
+     * @param unit    the unit of the timeout
+     * @return the future with the element or null if still empty after the timeout
+     */
+    public CompletableFuture<E> pollLast(long timeout, TimeUnit unit) {
+        long waitUntil = toWaitUntil(timeout, unit);
+        return initialized.thenCompose(ignored -> pollEnd(false, waitUntil));
+    }
+
+    private CompletableFuture<E> peekEnd(boolean first) {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.find()
+                .sort(first ? Sorts.ascending(MongoDbDistributedConstants.FIELD_ID) : Sorts.descending(MongoDbDistributedConstants.FIELD_ID))
+                .first()
+        )).thenApply(this::toElement);
+    }
+
+    /**
+     * Retrieve, but do not remove the first element.
+     *
+     * @return the future with the element or null if empty
+     */
+    public CompletableFuture<E> peekFirst() {
+        return peekEnd(true);
+    }
+
+    /**
+     * Retrieve, but do not remove the last element.
+     *
+     * @return the future with the element or null if empty
+     */
+    public CompletableFuture<E> peekLast() {
+        return peekEnd(false);
+    }
+
+    /**
+     * Check if the element is in the queue.
+     *
+     * @param o the element
+     * @return the future with true if present
+     */
+    public CompletableFuture<Boolean> contains(Object o) {
+        if (o == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, o);
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.find(MongoDbJsonValueTools.filterEq(jsonValue, valueHashIndex))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first()
+        )).thenApply(document -> document != null);
+    }
+
+    private CompletableFuture<Boolean> removeOccurrence(Object o, boolean first) {
+        if (o == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, o);
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.findOneAndDelete(
+                MongoDbJsonValueTools.filterEq(jsonValue, valueHashIndex),
+                new FindOneAndDeleteOptions().sort(first ? Sorts.ascending(MongoDbDistributedConstants.FIELD_ID) : Sorts.descending(MongoDbDistributedConstants.FIELD_ID))
+        ))).thenApply(document -> document != null);
+    }
+
+    /**
+     * Remove the first occurrence of the element.
+     *
+     * @param o the element
+     * @return the future with true if it was removed
+     */
+    public CompletableFuture<Boolean> removeFirstOccurrence(Object o) {
+        return removeOccurrence(o, true);
+    }
+
+    /**
+     * Remove the last occurrence of the element.
+     *
+     * @param o the element
+     * @return the future with true if it was removed
+     */
+    public CompletableFuture<Boolean> removeLastOccurrence(Object o) {
+        return removeOccurrence(o, false);
+    }
+
+    /**
+     * Call the consumer for each element from the first to the last. The elements are retrieved by batches with a single cursor.
+     *
+     * @param consumer the consumer. It is called by the driver's threads, so it must not block
+     * @return the future completed when all the elements were consumed
+     */
+    public CompletableFuture<Void> forEach(Consumer<? super E> consumer) {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.forEach(mongoCollection.find()
+                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1).append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
+                        .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
+                        .batchSize(cursorBatchSize),
+                document -> consumer.accept(toElement(document))
+        ));
+    }
+
+    /**
+     * Get all the elements from the first to the last.
+     *
+     * @return the future with the elements
+     */
+    public CompletableFuture<List<E>> toList() {
+        List<E> elements = new ArrayList<>();
+        return forEach(elements::add).thenApply(ignored -> elements);
+    }
+
+    /**
+     * Remove all the elements.
+     *
+     * @return the future completed when removed
+     */
+    public CompletableFuture<Void> clear() {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.completion(mongoCollection.deleteMany(Filters.empty())));
+    }
+
+    /**
+     * Get the amount of elements.
+     *
+     * @return the future with the size
+     */
+    public CompletableFuture<Integer> size() {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.estimatedDocumentCount()))
+                .thenApply(count -> (int) Math.min(count, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Check if there are no elements.
+     *
+     * @return the future with true if empty
+     */
+    public CompletableFuture<Boolean> isEmpty() {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.find()
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first()
+        )).thenApply(document -> document == null);
+    }
+
+    // ---== Methods reusing the others at the top  ==---
+
+    public CompletableFuture<Void> offer(E e) {
+        return offerLast(e);
+    }
+
+    public CompletableFuture<Void> push(E e) {
+        return offerFirst(e);
+    }
+
+    public CompletableFuture<E> poll() {
+        return pollFirst();
+    }
+
+    public CompletableFuture<E> poll(long timeout, TimeUnit unit) {
+        return pollFirst(timeout, unit);
+    }
+
+    /**
+     * Retrieve and remove the first element. If empty, wait for an element to be added.
+     *
+     * @return the future with the element
+     */
+    public CompletableFuture<E> takeFirst() {
+        return pollFirst(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieve and remove the last element. If empty, wait for an element to be added.
+     *
+     * @return the future with the element
+     */
+    public CompletableFuture<E> takeLast() {
+        return pollLast(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<E> take() {
+        return takeFirst();
+    }
+
+    public CompletableFuture<E> peek() {
+        return peekFirst();
+    }
+
+    public CompletableFuture<Boolean> remove(Object o) {
+        return removeFirstOccurrence(o);
+    }
+
+    /**
+     * Set the amount of documents retrieved per batch when iterating.
+     *
+     * @param cursorBatchSize the batch size
+     * @return this
+     */
+    public MongoDbAsyncDeque<E> setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize <= 0) {
+            throw new IllegalArgumentException("cursorBatchSize must be at least 1");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the maximum amount of documents inserted per request by {@link #addAll(Collection)}.
+     *
+     * @param insertBatchSize the batch size
+     * @return this
+     */
+    public MongoDbAsyncDeque<E> setInsertBatchSize(int insertBatchSize) {
+        if (insertBatchSize <= 0) {
+            throw new IllegalArgumentException("insertBatchSize must be at least 1");
+        }
+        this.insertBatchSize = insertBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the codec of the values. The default is {@link JsonCodec#COMPACT} that saves the json as a string. The other codecs save a binary that is usually smaller and faster to decode.
+     * The values saved as json strings are still readable after changing the codec, but the lookups by value only find the values saved with the same codec.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbAsyncDeque<E> setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+}
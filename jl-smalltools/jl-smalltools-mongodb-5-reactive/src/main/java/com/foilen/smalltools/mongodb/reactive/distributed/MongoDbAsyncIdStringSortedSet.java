@@ -0,0 +1,221 @@
+package com.foilen.smalltools.mongodb.reactive.distributed;
+
+import com.foilen.smalltools.mongodb.distributed.AbstractMongoDbBatchedIterator;
+import com.foilen.smalltools.mongodb.distributed.MongoDbDistributedConstants;
+import com.foilen.smalltools.mongodb.distributed.MongoDbIdStringSortedSet;
+import com.foilen.smalltools.mongodb.reactive.MongoDbReactiveBulkWriteTools;
+import com.foilen.smalltools.mongodb.reactive.ReactiveStreamsTools;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A distributed sorted set of strings using MongoDB where all the operations return a {@link CompletableFuture} instead of blocking. The documents are the same as
+ * {@link MongoDbIdStringSortedSet}, so both can be used on the same collection.
+ * <p>
+ * The futures are completed by the driver's threads, so the callbacks must not block.
+ */
+public class MongoDbAsyncIdStringSortedSet extends AbstractBasics {
+
+    private final MongoCollection<Document> mongoCollection;
+
+    private int cursorBatchSize = AbstractMongoDbBatchedIterator.DEFAULT_BATCH_SIZE;
+    private int bulkWriteBatchSize = MongoDbIdStringSortedSet.DEFAULT_BULK_WRITE_BATCH_SIZE;
+
+    public MongoDbAsyncIdStringSortedSet(MongoCollection<Document> mongoCollection) {
+        this.mongoCollection = mongoCollection;
+    }
+
+    /**
+     * Add the value.
+     *
+     * @param value the value
+     * @return the future with true if it was not already present
+     */
+    public CompletableFuture<Boolean> add(String value) {
+        return ReactiveStreamsTools.first(mongoCollection.updateOne(
+                        Filters.eq(MongoDbDistributedConstants.FIELD_ID, value),
+                        new Document("$setOnInsert", new Document(MongoDbDistributedConstants.FIELD_ID, value)),
+                        new UpdateOptions().upsert(true)
+                ))
+                .thenApply(result -> result.getMatchedCount() == 0)
+                .exceptionallyCompose(e -> {
+                    // Two concurrent upserts of the same new value. The other one added it
+                    if (ReactiveStreamsTools.isDuplicateKey(e)) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    return CompletableFuture.failedFuture(ReactiveStreamsTools.unwrap(e));
+                });
+    }
+
+    /**
+     * Add all the values. They are upserted by unordered bulk writes.
+     *
+     * @param values the values
+     * @return the future with true if at least one was not already present
+     */
+    public CompletableFuture<Boolean> addAll(Collection<String> values) {
+
+        // Get as unique
+        List<String> uniqueIds = new ArrayList<>(new LinkedHashSet<>(values));
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < uniqueIds.size(); i += bulkWriteBatchSize) {
+            var models = uniqueIds.subList(i, Math.min(i + bulkWriteBatchSize, uniqueIds.size())).stream()
+                    .map(v -> new UpdateOneModel<Document>(
+                            Filters.eq(MongoDbDistributedConstants.FIELD_ID, v),
+                            new Document("$setOnInsert", new Document(MongoDbDistributedConstants.FIELD_ID, v)),
+                            new UpdateOptions().upsert(true)
+                    ))
+                    .toList();
+            futures.add(MongoDbReactiveBulkWriteTools.bulkUpsertUnorderedWithRetry(mongoCollection, models)
+                    .thenApply(Set::size));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> futures.stream().mapToInt(CompletableFuture::join).sum() > 0);
+    }
+
+    /**
+     * Check if the value is present.
+     *
+     * @param value the value
+     * @return the future with true if present
+     */
+    public CompletableFuture<Boolean> contains(String value) {
+        return ReactiveStreamsTools.first(mongoCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, value))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first()
+        ).thenApply(document -> document != null);
+    }
+
+    /**
+     * Remove the value.
+     *
+     * @param value the value
+     * @return the future with true if it was present
+     */
+    public CompletableFuture<Boolean> remove(String value) {
+        return ReactiveStreamsTools.first(mongoCollection.deleteOne(Filters.eq(MongoDbDistributedConstants.FIELD_ID, value)))
+                .thenApply(result -> result.getDeletedCount() > 0);
+    }
+
+    private CompletableFuture<String> end(boolean first) {
+        return ReactiveStreamsTools.first(mongoCollection.find()
+                .sort(new Document(MongoDbDistributedConstants.FIELD_ID, first ? 1 : -1))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first()
+        ).thenApply(document -> document == null ? null : document.getString(MongoDbDistributedConstants.FIELD_ID));
+    }
+
+    /**
+     * Get the smallest value.
+     *
+     * @return the future with the value or null if empty
+     */
+    public CompletableFuture<String> first() {
+        return end(true);
+    }
+
+    /**
+     * Get the biggest value.
+     *
+     * @return the future with the value or null if empty
+     */
+    public CompletableFuture<String> last() {
+        return end(false);
+    }
+
+    /**
+     * Call the consumer for each value in order. The values are retrieved by batches with a single cursor.
+     *
+     * @param consumer the consumer. It is called by the driver's threads, so it must not block
+     * @return the future completed when all the values were consumed
+     */
+    public CompletableFuture<Void> forEach(Consumer<String> consumer) {
+        return ReactiveStreamsTools.forEach(mongoCollection.find()
+                        .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                        .sort(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                        .batchSize(cursorBatchSize),
+                document -> consumer.accept(document.getString(MongoDbDistributedConstants.FIELD_ID))
+        );
+    }
+
+    /**
+     * Get all the values in order.
+     *
+     * @return the future with the values
+     */
+    public CompletableFuture<List<String>> toList() {
+        List<String> values = new ArrayList<>();
+        return forEach(values::add).thenApply(ignored -> values);
+    }
+
+    /**
+     * Remove all the values.
+     *
+     * @return the future completed when removed
+     */
+    public CompletableFuture<Void> clear() {
+        return ReactiveStreamsTools.completion(mongoCollection.deleteMany(Filters.empty()));
+    }
+
+    /**
+     * Get the amount of values.
+     *
+     * @return the future with the size
+     */
+    public CompletableFuture<Integer> size() {
+        return ReactiveStreamsTools.first(mongoCollection.estimatedDocumentCount())
+                .thenApply(count -> (int) Math.min(count, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Check if there are no values.
+     *
+     * @return the future with true if empty
+     */
+    public CompletableFuture<Boolean> isEmpty() {
+        return first().thenApply(value -> value == null);
+    }
+
+    /**
+     * Set the amount of documents retrieved per batch when iterating.
+     *
+     * @param cursorBatchSize the batch size
+     * @return this
+     */
+    public MongoDbAsyncIdStringSortedSet setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize <= 0) {
+            throw new IllegalArgumentException("cursorBatchSize must be at least 1");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the maximum amount of documents sent per bulk write by {@link #addAll(Collection)}.
+     *
+     * @param bulkWriteBatchSize the batch size
+     * @return this
+     */
+    public MongoDbAsyncIdStringSortedSet setBulkWriteBatchSize(int bulkWriteBatchSize) {
+        if (bulkWriteBatchSize <= 0) {
+            throw new IllegalArgumentException("bulkWriteBatchSize must be at least 1");
+        }
+        this.bulkWriteBatchSize = bulkWriteBatchSize;
+        return this;
+    }
+
+}
@@ -0,0 +1,498 @@
+package com.foilen.smalltools.mongodb.reactive.distributed;
+
+import com.foilen.smalltools.mongodb.distributed.MongoDbDistributedConstants;
+import com.foilen.smalltools.mongodb.distributed.MongoDbReentrantLock;
+import com.foilen.smalltools.mongodb.distributed.MongoDbReentrantLockMetrics;
+import com.foilen.smalltools.mongodb.distributed.internal.HoldingLockDetails;
+import com.foilen.smalltools.mongodb.distributed.internal.MongoDbReentrantLockMetricsRecorder;
+import com.foilen.smalltools.mongodb.reactive.MongoDbReactiveChangeStreamWaitAnyChange;
+import com.foilen.smalltools.mongodb.reactive.MongoDbReactiveManageCollectionTools;
+import com.foilen.smalltools.mongodb.reactive.ReactiveStreamsTools;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.tools.StringTools;
+import com.foilen.smalltools.tuple.Tuple2;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * A distributed Locking mechanism that is using MongoDB where all the operations return a {@link CompletableFuture} instead of blocking. The documents are the same as
+ * {@link MongoDbReentrantLock}, so both can be used on the same collection to lock the same names.
+ * <p>
+ * Since the futures are not bound to a thread, the reentrancy is by holder id (e.g. the id of a request or a task) instead of by thread. Only the holder that got the lock can unlock it.
+ * <p>
+ * The waits are on a change stream with futures and the heartbeats are scheduled, so any amount of waits can be outstanding without using any thread. When the lock is released, a single local
+ * waiter is retrying. There is no ordering between the instances.
+ * <p>
+ * The futures are completed by the driver's threads, so the callbacks must not block.
+ */
+public class MongoDbAsyncReentrantLock extends AbstractBasics {
+
+    private static final Document FENCING_TOKEN_SEQUENCE_ID = new Document().append(MongoDbDistributedConstants.FIELD_SEQUENCE, MongoDbDistributedConstants.FIELD_FENCING_TOKEN);
+
+    private final String ownerId = UUID.randomUUID().toString();
+
+    private final MongoCollection<Document> mongoCollection;
+    private final long stopChangeStreamAfterNoWaiterInMs;
+    private final long heartbeatIntervalInMs;
+    private final long expireLockAfterNoHeartbeatInMs;
+    private final long dropLockAfterHeldForTooLongInMs;
+
+    private final Supplier<CompletableFuture<Void>> collectionCreate;
+    private final CompletableFuture<Void> initialized;
+
+    private final ConcurrentMap<String, HoldingLockDetails> holdingByLockName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MongoDbReentrantLockMetricsRecorder> metricsByLockName = new ConcurrentHashMap<>();
+    private MongoDbReactiveChangeStreamWaitAnyChange mongoDbReactiveChangeStreamWaitAnyChange;
+
+    private boolean heartbeatScheduled;
+
+    /**
+     * Create a lock using the default values. See {@link MongoDbReentrantLock#MongoDbReentrantLock(com.mongodb.client.MongoClient, com.mongodb.client.MongoCollection)} for the values.
+     *
+     * @param mongoClient     the mongo client
+     * @param mongoCollection the collection to use
+     */
+    public MongoDbAsyncReentrantLock(MongoClient mongoClient, MongoCollection<Document> mongoCollection) {
+        this(mongoClient, mongoCollection,
+                10 * 60000, // 10 minutes
+                30000, // 30 seconds
+                90000, // 1 minute 30 seconds
+                600000 // 10 minutes
+        );
+    }
+
+    /**
+     * Create a lock using the provided values.
+     *
+     * @param mongoClient                       the mongo client
+     * @param mongoCollection                   the collection to use
+     * @param stopChangeStreamAfterNoWaiterInMs the time to stop the change stream after nothing waited for a lock
+     * @param heartbeatIntervalInMs             the time between each heartbeat
+     * @param expireLockAfterNoHeartbeatInMs    the time to expire the lock if no heartbeat is sent (suggest 3 heartbeats)
+     * @param dropLockAfterHeldForTooLongInMs   the time to expire the lock if it is held for too long
+     */
+    public MongoDbAsyncReentrantLock(MongoClient mongoClient, MongoCollection<Document> mongoCollection,
+                                     long stopChangeStreamAfterNoWaiterInMs,
+                                     long heartbeatIntervalInMs,
+                                     long expireLockAfterNoHeartbeatInMs,
+                                     long dropLockAfterHeldForTooLongInMs
+    ) {
+        this.mongoCollection = mongoCollection;
+        this.stopChangeStreamAfterNoWaiterInMs = stopChangeStreamAfterNoWaiterInMs;
+        this.heartbeatIntervalInMs = heartbeatIntervalInMs;
+        if (expireLockAfterNoHeartbeatInMs <= heartbeatIntervalInMs) {
+            throw new IllegalArgumentException("expireLockAfterNoHeartbeatInMs must be at least heartbeatIntervalInMs (suggests 3 heartbeats)");
+        }
+        this.expireLockAfterNoHeartbeatInMs = expireLockAfterNoHeartbeatInMs;
+        this.dropLockAfterHeldForTooLongInMs = dropLockAfterHeldForTooLongInMs;
+
+        collectionCreate = () -> MongoDbReactiveManageCollectionTools.addCollectionIfMissing(mongoClient, mongoCollection.getNamespace())
+                .thenCompose(ignored -> MongoDbReactiveManageCollectionTools.manageIndexes(mongoCollection, Map.of(
+                        "expireAt", new Tuple2<>(
+                                new Document().append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, 1),
+                                new IndexOptions().expireAfter(0L, TimeUnit.MILLISECONDS)
+                        ),
+                        "ownerId_1", new Tuple2<>(
+                                new Document().append(MongoDbDistributedConstants.FIELD_OWNER_ID, 1),
+                                new IndexOptions()
+                        ),
+                        "operationType_1", new Tuple2<>(
+                                new Document().append("operationType", 1),
+                                new IndexOptions()
+                        )
+                )));
+        initialized = collectionCreate.get();
+    }
+
+    /**
+     * Get the future completed when the collection and its indexes are created. All the operations are waiting for it.
+     *
+     * @return the future
+     */
+    public CompletableFuture<Void> getInitialized() {
+        return initialized;
+    }
+
+    /**
+     * Check if the lock is currently held (by any holder, local or distributed).
+     *
+     * @param lockName the name of the lock
+     * @return the future with true if the lock is currently held
+     */
+    public CompletableFuture<Boolean> isLockHeld(String lockName) {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.countDocuments(new Document().append(MongoDbDistributedConstants.FIELD_ID, lockName))))
+                .thenApply(count -> count > 0);
+    }
+
+    /**
+     * Check if the lock is held by that holder in this instance.
+     *
+     * @param lockName the name of the lock
+     * @param holderId the id of the holder
+     * @return true if held by it
+     */
+    public boolean isHeldBy(String lockName, String holderId) {
+        var holdingDetails = holdingByLockName.get(lockName);
+        return holdingDetails != null && StringTools.safeEquals(holderId, holdingDetails.getThreadUniqueId());
+    }
+
+    /**
+     * Lock the lockName. If the lock is free, it will be locked. If the lock is already held, it will return false.
+     * <p>
+     * If the lock is already held by the same holder, it will increase its holding count and it will return true.
+     *
+     * @param lockName the name of the lock
+     * @param holderId the id of the holder
+     * @return the future with true if the lock was free and is now locked
+     */
+    public CompletableFuture<Boolean> tryLock(String lockName, String holderId) {
+
+        // Check if already holding
+        var holdingDetails = holdingByLockName.get(lockName);
+        if (holdingDetails != null) {
+            // By the same holder
+            if (StringTools.safeEquals(holderId, holdingDetails.getThreadUniqueId())) {
+                synchronized (holdingDetails) {
+                    holdingDetails.incrementReentrantCount();
+                }
+                return CompletableFuture.completedFuture(true);
+            }
+            return CompletableFuture.completedFuture(false);
+        }
+
+        // Try to lock from MongoDB
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.insertOne(new Document()
+                        .append(MongoDbDistributedConstants.FIELD_ID, lockName)
+                        .append(MongoDbDistributedConstants.FIELD_HOLDING_THREAD_ID, holderId)
+                        .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId)
+                        .append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, new Date(System.currentTimeMillis() + expireLockAfterNoHeartbeatInMs))
+                )))
+                .thenCompose(ignored -> setFencingToken(lockName, holderId)
+                        .exceptionally(e -> {
+                            logger.error("Unexpected exception", ReactiveStreamsTools.unwrap(e));
+                            return false;
+                        })
+                        .thenCompose(gotLock -> {
+                            if (gotLock) {
+                                return CompletableFuture.completedFuture(true);
+                            }
+                            // Do not keep a lock without heartbeat that would block the others until it expires
+                            return deleteLock(lockName, holderId).thenApply(ignored2 -> false);
+                        }))
+                .exceptionally(e -> {
+                    if (ReactiveStreamsTools.isDuplicateKey(e)) {
+                        getMetrics(lockName).incrementDuplicateKey();
+                    } else {
+                        logger.error("Unexpected exception", ReactiveStreamsTools.unwrap(e));
+                    }
+                    return false;
+                });
+    }
+
+    private CompletableFuture<Void> deleteLock(String lockName, String holderId) {
+        return ReactiveStreamsTools.completion(mongoCollection.deleteOne(lockFilter(lockName, holderId)))
+                .exceptionally(e -> {
+                    logger.error("Could not delete the lock {}. It will expire", lockName, ReactiveStreamsTools.unwrap(e));
+                    return null;
+                });
+    }
+
+    private Document lockFilter(String lockName, String holderId) {
+        return new Document()
+                .append(MongoDbDistributedConstants.FIELD_ID, lockName)
+                .append(MongoDbDistributedConstants.FIELD_HOLDING_THREAD_ID, holderId)
+                .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId);
+    }
+
+    /**
+     * Take the fencing token once holding the lock and keep it in the lock only if still holding it, so the tokens are in the same order as the holders.
+     *
+     * @param lockName the name of the lock
+     * @param holderId the id of the holder
+     * @return the future with true if still holding the lock
+     */
+    private CompletableFuture<Boolean> setFencingToken(String lockName, String holderId) {
+        return ReactiveStreamsTools.first(mongoCollection.findOneAndUpdate(
+                        new Document().append(MongoDbDistributedConstants.FIELD_ID, FENCING_TOKEN_SEQUENCE_ID),
+                        new Document().append("$inc", new Document().append(MongoDbDistributedConstants.FIELD_FENCING_TOKEN, 1L)),
+                        new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)
+                ))
+                .thenApply(sequence -> sequence.getLong(MongoDbDistributedConstants.FIELD_FENCING_TOKEN))
+                .thenCompose(fencingToken -> ReactiveStreamsTools.first(mongoCollection.updateOne(lockFilter(lockName, holderId),
+                                new Document().append("$set", new Document().append(MongoDbDistributedConstants.FIELD_FENCING_TOKEN, fencingToken))
+                        ))
+                        .thenApply(result -> {
+                            if (result.getMatchedCount() == 0) {
+                                logger.error("Lost the lock {} before getting its fencing token", lockName);
+                                return false;
+                            }
+                            holdingByLockName.put(lockName, new HoldingLockDetails(holderId, fencingToken, dropLockAfterHeldForTooLongInMs));
+                            scheduleHeartbeatIfNeeded();
+                            getMetrics(lockName).incrementAcquired();
+                            return true;
+                        }));
+    }
+
+    /**
+     * Get the fencing token of the lock held by the holder. See {@link MongoDbReentrantLock#getFencingToken(String)}.
+     *
+     * @param lockName the name of the lock
+     * @param holderId the id of the holder
+     * @return the fencing token
+     * @throws IllegalStateException if the holder is not holding the lock
+     */
+    public long getFencingToken(String lockName, String holderId) {
+        var holdingDetails = holdingByLockName.get(lockName);
+        if (holdingDetails == null || !StringTools.safeEquals(holderId, holdingDetails.getThreadUniqueId())) {
+            throw new IllegalStateException("The lock " + lockName + " is not held by " + holderId);
+        }
+        return holdingDetails.getFencingToken();
+    }
+
+    /**
+     * Lock the lockName. If the lock is free, it will be locked. If the lock is already held, it will wait for it to be released for the max wait time.
+     * <p>
+     * If the lock is already held by the same holder, it will increase its holding count and it will return true.
+     *
+     * @param lockName the name of the lock
+     * @param holderId the id of the holder
+     * @param timeInMs the max time to wait
+     * @return the future with true if the lock was free and is now locked
+     */
+    public CompletableFuture<Boolean> tryLock(String lockName, String holderId, long timeInMs) {
+
+        long startTime = System.currentTimeMillis();
+        long waitUntil = startTime + timeInMs;
+        if (waitUntil < 0) {
+            waitUntil = Long.MAX_VALUE;
+        }
+        long finalWaitUntil = waitUntil;
+
+        return tryLock(lockName, holderId).thenCompose(gotLock -> {
+            if (gotLock) {
+                return CompletableFuture.completedFuture(true);
+            }
+            return tryLockUntil(lockName, holderId, finalWaitUntil)
+                    .whenComplete((gotLockAfterWait, e) -> getMetrics(lockName).addWait(System.currentTimeMillis() - startTime, !Boolean.TRUE.equals(gotLockAfterWait)));
+        });
+    }
+
+    private CompletableFuture<Boolean> tryLockUntil(String lockName, String holderId, long waitUntil) {
+
+        // Get the waiter before trying to not miss a release
+        var changeStreamWaitAnyChange = getChangeStreamWaitAnyChange();
+        var waiter = changeStreamWaitAnyChange.nextChange(lockName);
+
+        return tryLock(lockName, holderId).thenCompose(gotLock -> {
+            if (gotLock) {
+                changeStreamWaitAnyChange.doneWithoutWaiting(lockName, waiter);
+                return CompletableFuture.completedFuture(true);
+            }
+
+            long waitTimeInMs = waitUntil - System.currentTimeMillis();
+            if (waitTimeInMs <= 0) {
+                waiter.cancel(false);
+                return CompletableFuture.completedFuture(false);
+            }
+            return waiter.completeOnTimeout(null, waitTimeInMs, TimeUnit.MILLISECONDS)
+                    .thenCompose(ignored -> tryLockUntil(lockName, holderId, waitUntil));
+        });
+    }
+
+    private synchronized MongoDbReactiveChangeStreamWaitAnyChange getChangeStreamWaitAnyChange() {
+        if (mongoDbReactiveChangeStreamWaitAnyChange == null) {
+            mongoDbReactiveChangeStreamWaitAnyChange = new MongoDbReactiveChangeStreamWaitAnyChange(collectionCreate, mongoCollection, stopChangeStreamAfterNoWaiterInMs, "delete");
+        }
+        return mongoDbReactiveChangeStreamWaitAnyChange;
+    }
+
+    private MongoDbReentrantLockMetricsRecorder getMetrics(String lockName) {
+        return metricsByLockName.computeIfAbsent(lockName, k -> new MongoDbReentrantLockMetricsRecorder());
+    }
+
+    /**
+     * Get the contention and wait time metrics of all the lock names used by this instance since the creation or the last {@link #clearMetrics()}.
+     *
+     * @return the metrics by lock name
+     */
+    public Map<String, MongoDbReentrantLockMetrics> getMetricsByLockName() {
+        return Collections.unmodifiableMap(metricsByLockName);
+    }
+
+    /**
+     * Remove all the metrics.
+     */
+    public void clearMetrics() {
+        metricsByLockName.clear();
+    }
+
+    /**
+     * Unlock the lockName.
+     * <p>
+     * Must be called the same amount of time as the lock was called and by the same holder.
+     *
+     * @param lockName the name of the lock
+     * @param holderId the id of the holder
+     * @return the future completed when the lock is released (or right away if it is still held because of the reentrancy)
+     */
+    public CompletableFuture<Void> unlock(String lockName, String holderId) {
+
+        // Check if holding
+        HoldingLockDetails holdingDetails = holdingByLockName.get(lockName);
+        if (holdingDetails == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // By the same holder
+        if (!StringTools.safeEquals(holderId, holdingDetails.getThreadUniqueId())) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Decrease the reentrant count
+        synchronized (holdingDetails) {
+            if (holdingDetails.decrementReentrantCount() > 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+
+        logger.debug("Unlocking {}", lockName);
+
+        // Remove from the map
+        holdingByLockName.remove(lockName, holdingDetails);
+
+        // Remove from MongoDB
+        return ReactiveStreamsTools.completion(mongoCollection.deleteOne(new Document()
+                .append(MongoDbDistributedConstants.FIELD_ID, lockName)
+                .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId)
+        )).thenRun(() -> {
+            // Wake up a local waiter without waiting for the change stream
+            MongoDbReactiveChangeStreamWaitAnyChange changeStreamWaitAnyChange;
+            synchronized (this) {
+                changeStreamWaitAnyChange = mongoDbReactiveChangeStreamWaitAnyChange;
+            }
+            if (changeStreamWaitAnyChange != null) {
+                changeStreamWaitAnyChange.wakeUpOne(lockName);
+            }
+        });
+
+    }
+
+    // ---== Methods reusing the others at the top  ==---
+
+    /**
+     * Lock the lockName. If the lock is already held, it will wait for it to be released.
+     *
+     * @param lockName the name of the lock
+     * @param holderId the id of the holder
+     * @return the future completed when the lock is held
+     */
+    public CompletableFuture<Void> lock(String lockName, String holderId) {
+        return tryLock(lockName, holderId, Long.MAX_VALUE).thenApply(gotLock -> null);
+    }
+
+    /**
+     * Wait to get the lock (for the maximum wait time), execute the code and then release the lock.
+     *
+     * @param lockName the name of the lock
+     * @param timeInMs the max time to wait
+     * @param action   the code to execute when the lock is held. The lock is released when the returned future is completed
+     * @param <T>      the type of the result
+     * @return the future with the result of the action or completed with a {@link TimeoutException} if it could not get the lock
+     */
+    public <T> CompletableFuture<T> waitLockAndExecute(String lockName, long timeInMs, Supplier<CompletableFuture<T>> action) {
+        String holderId = UUID.randomUUID().toString();
+        return tryLock(lockName, holderId, timeInMs).thenCompose(gotLock -> {
+            if (!gotLock) {
+                return CompletableFuture.failedFuture(new TimeoutException("Could not get the lock " + lockName + " in " + timeInMs + " ms"));
+            }
+            CompletableFuture<T> result;
+            try {
+                result = action.get();
+            } catch (Throwable e) {
+                result = CompletableFuture.failedFuture(e);
+            }
+            return result.handle((value, e) -> unlock(lockName, holderId).thenCompose(ignored ->
+                    e == null ? CompletableFuture.completedFuture(value) : CompletableFuture.<T>failedFuture(ReactiveStreamsTools.unwrap(e))
+            )).thenCompose(future -> future);
+        });
+    }
+
+    private synchronized void scheduleHeartbeatIfNeeded() {
+        if (heartbeatScheduled) {
+            return;
+        }
+        logger.info("Starting heartbeats");
+        heartbeatScheduled = true;
+        scheduleNextHeartbeat();
+    }
+
+    private void scheduleNextHeartbeat() {
+        CompletableFuture.delayedExecutor(heartbeatIntervalInMs, TimeUnit.MILLISECONDS).execute(() -> {
+
+            // Check if needs to stop
+            synchronized (this) {
+                if (holdingByLockName.isEmpty()) {
+                    heartbeatScheduled = false;
+                    logger.info("Stopping heartbeats");
+                    return;
+                }
+            }
+
+            // Send
+            sendHeartbeats().whenComplete((result, e) -> {
+                if (e != null) {
+                    logger.error("Problem sending heartbeats", ReactiveStreamsTools.unwrap(e));
+                }
+                scheduleNextHeartbeat();
+            });
+        });
+    }
+
+    private CompletableFuture<Void> sendHeartbeats() {
+
+        // The locks that are in the database before the update
+        Map<String, HoldingLockDetails> holdingDetailsByLockName = new HashMap<>(holdingByLockName);
+        logger.debug("Sending heartbeat for {} locks", holdingDetailsByLockName.size());
+
+        return ReactiveStreamsTools.first(mongoCollection.updateMany(new Document()
+                                .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId),
+                        new Document().append("$set", new Document()
+                                .append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, new Date(System.currentTimeMillis() + expireLockAfterNoHeartbeatInMs))
+                        )))
+                .thenCompose(result -> {
+                    if (result.getMatchedCount() >= holdingDetailsByLockName.size()) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+
+                    // Some are missing
+                    var stillHeldLockNames = new HashSet<String>();
+                    return ReactiveStreamsTools.forEach(mongoCollection.find(new Document().append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId))
+                                    .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1)),
+                            document -> stillHeldLockNames.add(document.getString(MongoDbDistributedConstants.FIELD_ID))
+                    ).thenRun(() -> holdingDetailsByLockName.forEach((lockName, holdingDetails) -> {
+                        if (!stillHeldLockNames.contains(lockName)) {
+                            logger.error("Lost the lock {}", lockName);
+                            holdingByLockName.remove(lockName, holdingDetails);
+                        }
+                    }));
+                });
+    }
+
+}
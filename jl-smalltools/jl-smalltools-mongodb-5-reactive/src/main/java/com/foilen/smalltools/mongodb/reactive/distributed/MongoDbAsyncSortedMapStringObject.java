@@ -0,0 +1,357 @@
+package com.foilen.smalltools.mongodb.reactive.distributed;
+
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.mongodb.distributed.AbstractMongoDbBatchedIterator;
+import com.foilen.smalltools.mongodb.distributed.MongoDbDistributedConstants;
+import com.foilen.smalltools.mongodb.distributed.MongoDbJsonValueTools;
+import com.foilen.smalltools.mongodb.distributed.MongoDbSortedMapStringObject;
+import com.foilen.smalltools.mongodb.reactive.MongoDbReactiveBulkWriteTools;
+import com.foilen.smalltools.mongodb.reactive.MongoDbReactiveJsonValueTools;
+import com.foilen.smalltools.mongodb.reactive.ReactiveStreamsTools;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.tuple.Tuple2;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndReplaceOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * A distributed Map using MongoDB with keys that are strings and value that will be any json serializable type where all the operations return a {@link CompletableFuture} instead of blocking.
+ * The documents are the same as {@link MongoDbSortedMapStringObject}, so both can be used on the same collection.
+ * <p>
+ * The futures are completed by the driver's threads, so the callbacks must not block.
+ *
+ * @param <V> the value type
+ */
+public class MongoDbAsyncSortedMapStringObject<V> extends AbstractBasics {
+
+    private final Class<V> valueType;
+    private final MongoCollection<Document> mongoCollection;
+    private final boolean valueHashIndex;
+    private final CompletableFuture<Void> initialized;
+
+    private int cursorBatchSize = AbstractMongoDbBatchedIterator.DEFAULT_BATCH_SIZE;
+    private int bulkWriteBatchSize = MongoDbSortedMapStringObject.DEFAULT_BULK_WRITE_BATCH_SIZE;
+    private Codec codec = JsonCodec.COMPACT;
+
+    /**
+     * Create a new instance of the map.
+     *
+     * @param valueType       the value type
+     * @param mongoClient     the mongo client
+     * @param mongoCollection the mongo collection
+     */
+    public MongoDbAsyncSortedMapStringObject(Class<V> valueType, MongoClient mongoClient, MongoCollection<Document> mongoCollection) {
+        this(valueType, mongoClient, mongoCollection, null);
+    }
+
+    /**
+     * Create a new instance of the map.
+     *
+     * @param valueType        the value type
+     * @param mongoClient      the mongo client
+     * @param mongoCollection  the mongo collection
+     * @param maxDurationInSec the maximum duration of an element in the cache (MongoDB can take up to 60 seconds to clean up after the expiration)
+     */
+    public MongoDbAsyncSortedMapStringObject(Class<V> valueType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, Long maxDurationInSec) {
+        this(valueType, mongoClient, mongoCollection, maxDurationInSec, false);
+    }
+
+    /**
+     * Create a new instance of the map.
+     *
+     * @param valueType        the value type
+     * @param mongoClient      the mongo client
+     * @param mongoCollection  the mongo collection
+     * @param maxDurationInSec the maximum duration of an element in the cache (MongoDB can take up to 60 seconds to clean up after the expiration)
+     * @param valueHashIndex   true to save a hash of the values with an index to speed up the lookups by value (see {@link MongoDbJsonValueTools}). The existing documents get their hash when it is enabled
+     */
+    public MongoDbAsyncSortedMapStringObject(Class<V> valueType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, Long maxDurationInSec, boolean valueHashIndex) {
+        this.valueType = valueType;
+        this.mongoCollection = mongoCollection;
+        this.valueHashIndex = valueHashIndex;
+
+        // Indexes
+        Map<String, Tuple2<Document, IndexOptions>> indexes = new HashMap<>();
+        if (maxDurationInSec != null) {
+            indexes.put("createdAt_" + maxDurationInSec, new Tuple2<>(
+                    new Document().append(MongoDbDistributedConstants.FIELD_CREATED_AT, 1),
+                    new IndexOptions().expireAfter(maxDurationInSec, TimeUnit.SECONDS)
+            ));
+        }
+
+        initialized = MongoDbReactiveJsonValueTools.manageCollection(mongoClient, mongoCollection, indexes, valueHashIndex);
+    }
+
+    /**
+     * Get the future completed when the collection and its indexes are created. All the operations are waiting for it.
+     *
+     * @return the future
+     */
+    public CompletableFuture<Void> getInitialized() {
+        return initialized;
+    }
+
+    private Document toDocument(String key, V value) {
+        Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, value);
+        return MongoDbJsonValueTools.appendJsonValue(new Document()
+                        .append(MongoDbDistributedConstants.FIELD_ID, key),
+                jsonValue, valueHashIndex
+        ).append(MongoDbDistributedConstants.FIELD_CREATED_AT, new Date());
+    }
+
+    private V toValue(Document document) {
+        if (document == null) {
+            return null;
+        }
+        return MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType);
+    }
+
+    /**
+     * Check if the key is present.
+     *
+     * @param key the key
+     * @return the future with true if present
+     */
+    public CompletableFuture<Boolean> containsKey(String key) {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first()
+        )).thenApply(document -> document != null);
+    }
+
+    /**
+     * Check if the value is present for any key.
+     *
+     * @param value the value
+     * @return the future with true if present
+     */
+    public CompletableFuture<Boolean> containsValue(Object value) {
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, value);
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.find(MongoDbJsonValueTools.filterEq(jsonValue, valueHashIndex))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first()
+        )).thenApply(document -> document != null);
+    }
+
+    /**
+     * Get the value.
+     *
+     * @param key the key
+     * @return the future with the value or null if not present
+     */
+    public CompletableFuture<V> get(String key) {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
+                .first()
+        )).thenApply(this::toValue);
+    }
+
+    /**
+     * Set the value.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the future with the previous value or null if there was none
+     */
+    public CompletableFuture<V> put(String key, V value) {
+        var document = toDocument(key, value);
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.findOneAndReplace(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key),
+                document,
+                new FindOneAndReplaceOptions().upsert(true)
+        ))).thenApply(this::toValue);
+    }
+
+    /**
+     * Set the value only if the key is not present.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the future with the current value if present (and not changed) or null if it was set
+     */
+    public CompletableFuture<V> putIfAbsent(String key, V value) {
+        var document = toDocument(key, value);
+        document.remove(MongoDbDistributedConstants.FIELD_ID);
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.findOneAndUpdate(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key),
+                new Document("$setOnInsert", document),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.BEFORE)
+        )).thenApply(this::toValue).exceptionallyCompose(e -> {
+            // Two concurrent upserts of the same new key. The other one won
+            if (ReactiveStreamsTools.isDuplicateKey(e)) {
+                return get(key);
+            }
+            return CompletableFuture.failedFuture(ReactiveStreamsTools.unwrap(e));
+        }));
+    }
+
+    /**
+     * Set all the values. They are upserted by unordered bulk writes.
+     *
+     * @param m the keys and values
+     * @return the future completed when all are saved
+     */
+    public CompletableFuture<Void> putAll(Map<? extends String, ? extends V> m) {
+        List<ReplaceOneModel<Document>> models = new ArrayList<>(m.size());
+        m.forEach((key, value) -> models.add(new ReplaceOneModel<>(
+                Filters.eq(MongoDbDistributedConstants.FIELD_ID, key),
+                toDocument(key, value),
+                new ReplaceOptions().upsert(true)
+        )));
+
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < models.size(); i += bulkWriteBatchSize) {
+            var batch = models.subList(i, Math.min(i + bulkWriteBatchSize, models.size()));
+            futures.add(initialized.thenCompose(ignored -> MongoDbReactiveBulkWriteTools.bulkUpsertUnorderedWithRetry(mongoCollection, batch)));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Remove the key.
+     *
+     * @param key the key
+     * @return the future with the previous value or null if there was none
+     */
+    public CompletableFuture<V> remove(String key) {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.findOneAndDelete(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key))))
+                .thenApply(this::toValue);
+    }
+
+    private CompletableFuture<String> endKey(boolean first) {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.find()
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .sort(first ? Sorts.ascending(MongoDbDistributedConstants.FIELD_ID) : Sorts.descending(MongoDbDistributedConstants.FIELD_ID))
+                .first()
+        )).thenApply(document -> document == null ? null : document.getString(MongoDbDistributedConstants.FIELD_ID));
+    }
+
+    /**
+     * Get the smallest key.
+     *
+     * @return the future with the key or null if empty
+     */
+    public CompletableFuture<String> firstKey() {
+        return endKey(true);
+    }
+
+    /**
+     * Get the biggest key.
+     *
+     * @return the future with the key or null if empty
+     */
+    public CompletableFuture<String> lastKey() {
+        return endKey(false);
+    }
+
+    /**
+     * Call the consumer for each entry in the order of the keys. The entries are retrieved by batches with a single cursor.
+     *
+     * @param consumer the consumer. It is called by the driver's threads, so it must not block
+     * @return the future completed when all the entries were consumed
+     */
+    public CompletableFuture<Void> forEach(BiConsumer<String, V> consumer) {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.forEach(mongoCollection.find()
+                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1).append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
+                        .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
+                        .batchSize(cursorBatchSize),
+                document -> consumer.accept(document.getString(MongoDbDistributedConstants.FIELD_ID), toValue(document))
+        ));
+    }
+
+    /**
+     * Get all the entries in the order of the keys.
+     *
+     * @return the future with the entries
+     */
+    public CompletableFuture<Map<String, V>> toMap() {
+        Map<String, V> entries = new LinkedHashMap<>();
+        return forEach(entries::put).thenApply(ignored -> entries);
+    }
+
+    /**
+     * Remove all the entries.
+     *
+     * @return the future completed when removed
+     */
+    public CompletableFuture<Void> clear() {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.completion(mongoCollection.deleteMany(Filters.empty())));
+    }
+
+    /**
+     * Get the amount of entries.
+     *
+     * @return the future with the size
+     */
+    public CompletableFuture<Integer> size() {
+        return initialized.thenCompose(ignored -> ReactiveStreamsTools.first(mongoCollection.countDocuments()))
+                .thenApply(count -> (int) Math.min(count, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Check if there are no entries.
+     *
+     * @return the future with true if empty
+     */
+    public CompletableFuture<Boolean> isEmpty() {
+        return firstKey().thenApply(key -> key == null);
+    }
+
+    /**
+     * Set the amount of documents retrieved per batch when iterating.
+     *
+     * @param cursorBatchSize the batch size
+     * @return this
+     */
+    public MongoDbAsyncSortedMapStringObject<V> setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize <= 0) {
+            throw new IllegalArgumentException("cursorBatchSize must be at least 1");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the maximum amount of documents sent per bulk write by {@link #putAll(Map)}.
+     *
+     * @param bulkWriteBatchSize the batch size
+     * @return this
+     */
+    public MongoDbAsyncSortedMapStringObject<V> setBulkWriteBatchSize(int bulkWriteBatchSize) {
+        if (bulkWriteBatchSize <= 0) {
+            throw new IllegalArgumentException("bulkWriteBatchSize must be at least 1");
+        }
+        this.bulkWriteBatchSize = bulkWriteBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the codec of the values. The default is {@link JsonCodec#COMPACT} that saves the json as a string. The other codecs save a binary that is usually smaller and faster to decode.
+     * The values saved as json strings are still readable after changing the codec, but the lookups by value only find the values saved with the same codec.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbAsyncSortedMapStringObject<V> setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+}
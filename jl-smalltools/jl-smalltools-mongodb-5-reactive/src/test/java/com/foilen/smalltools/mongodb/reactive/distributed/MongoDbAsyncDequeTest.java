@@ -0,0 +1,104 @@
+package com.foilen.smalltools.mongodb.reactive.distributed;
+
+import com.foilen.smalltools.mongodb.distributed.MongoDbDeque;
+import com.foilen.smalltools.mongodb.reactive.AbstractEmbeddedReactiveMongoDbTest;
+import com.foilen.smalltools.tools.SecureRandomTools;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class MongoDbAsyncDequeTest extends AbstractEmbeddedReactiveMongoDbTest {
+
+    @Test
+    public void testSingleFlowAllMethods() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var deque = new MongoDbAsyncDeque<>(String.class, reactiveMongoClient, reactiveMongoClient.getDatabase("test").getCollection(collectionName));
+
+        // Add in spiral
+        deque.offerFirst("c").join();
+        deque.offerLast("d").join();
+        deque.offerLast("e").join();
+        deque.offerFirst("b").join();
+        deque.push("a").join();
+        deque.offer("f").join();
+        Assertions.assertEquals(6, (int) deque.size().join());
+        Assertions.assertEquals(List.of("a", "b", "c", "d", "e", "f"), deque.toList().join());
+
+        // Peek and poll on both ends
+        Assertions.assertEquals("a", deque.peekFirst().join());
+        Assertions.assertEquals("f", deque.peekLast().join());
+        Assertions.assertEquals("a", deque.pollFirst().join());
+        Assertions.assertEquals("f", deque.pollLast().join());
+
+        // Contains and remove
+        Assertions.assertTrue(deque.contains("c").join());
+        Assertions.assertFalse(deque.contains("a").join());
+        Assertions.assertTrue(deque.remove("c").join());
+        Assertions.assertFalse(deque.remove("c").join());
+        Assertions.assertEquals(List.of("b", "d", "e"), deque.toList().join());
+
+        // Add all
+        deque.setInsertBatchSize(2);
+        deque.addAll(List.of("x", "y", "z")).join();
+        Assertions.assertEquals(List.of("b", "d", "e", "x", "y", "z"), deque.toList().join());
+
+        // Clear
+        Assertions.assertFalse(deque.isEmpty().join());
+        deque.clear().join();
+        Assertions.assertTrue(deque.isEmpty().join());
+        Assertions.assertNull(deque.pollFirst().join());
+        Assertions.assertNull(deque.pollLast().join());
+        Assertions.assertNull(deque.peekFirst().join());
+
+        Assertions.assertThrows(NullPointerException.class, () -> deque.offer(null));
+    }
+
+    @Test
+    @Timeout(value = 1, unit = TimeUnit.MINUTES)
+    public void testPollTimesOut() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var deque = new MongoDbAsyncDeque<>(String.class, reactiveMongoClient, reactiveMongoClient.getDatabase("test").getCollection(collectionName));
+
+        long start = System.currentTimeMillis();
+        Assertions.assertNull(deque.poll(500, TimeUnit.MILLISECONDS).join());
+        Assertions.assertTrue(System.currentTimeMillis() - start >= 500);
+    }
+
+    @Test
+    @Timeout(value = 2, unit = TimeUnit.MINUTES)
+    public void testManyOutstandingPolls() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var deque = new MongoDbAsyncDeque<>(Integer.class, reactiveMongoClient, reactiveMongoClient.getDatabase("test").getCollection(collectionName));
+        deque.getInitialized().join();
+
+        // Many polls waiting at the same time without any thread
+        int count = 2000;
+        List<CompletableFuture<Integer>> polls = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            polls.add(deque.poll(1, TimeUnit.MINUTES));
+        }
+        Assertions.assertTrue(polls.stream().noneMatch(CompletableFuture::isDone));
+
+        // Add all the items with the blocking deque on the same collection
+        var blockingDeque = new MongoDbDeque<>(Integer.class, mongoClient, mongoClient.getDatabase("test").getCollection(collectionName));
+        blockingDeque.addAll(IntStream.range(0, count).boxed().collect(Collectors.toList()));
+
+        // Each item was received once
+        CompletableFuture.allOf(polls.toArray(new CompletableFuture[0])).join();
+        var received = polls.stream().map(CompletableFuture::join).collect(Collectors.toSet());
+        Assertions.assertEquals(IntStream.range(0, count).boxed().collect(Collectors.toSet()), new HashSet<>(received));
+        Assertions.assertTrue(blockingDeque.isEmpty());
+    }
+
+}
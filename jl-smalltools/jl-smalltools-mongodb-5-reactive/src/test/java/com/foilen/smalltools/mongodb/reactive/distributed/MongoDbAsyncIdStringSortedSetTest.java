@@ -0,0 +1,64 @@
+package com.foilen.smalltools.mongodb.reactive.distributed;
+
+import com.foilen.smalltools.mongodb.distributed.MongoDbIdStringSortedSet;
+import com.foilen.smalltools.mongodb.reactive.AbstractEmbeddedReactiveMongoDbTest;
+import com.foilen.smalltools.tools.SecureRandomTools;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class MongoDbAsyncIdStringSortedSetTest extends AbstractEmbeddedReactiveMongoDbTest {
+
+    @Test
+    public void testAllMethods() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var set = new MongoDbAsyncIdStringSortedSet(reactiveMongoClient.getDatabase("test").getCollection(collectionName));
+
+        Assertions.assertTrue(set.isEmpty().join());
+        Assertions.assertTrue(set.add("b").join());
+        Assertions.assertFalse(set.add("b").join());
+        Assertions.assertTrue(set.add("a").join());
+        Assertions.assertTrue(set.addAll(List.of("c", "a", "d", "c")).join());
+        Assertions.assertFalse(set.addAll(List.of("a", "b")).join());
+
+        Assertions.assertEquals(4, (int) set.size().join());
+        Assertions.assertEquals(List.of("a", "b", "c", "d"), set.toList().join());
+        Assertions.assertEquals("a", set.first().join());
+        Assertions.assertEquals("d", set.last().join());
+        Assertions.assertTrue(set.contains("c").join());
+        Assertions.assertFalse(set.contains("z").join());
+
+        Assertions.assertTrue(set.remove("c").join());
+        Assertions.assertFalse(set.remove("c").join());
+        Assertions.assertEquals(List.of("a", "b", "d"), set.toList().join());
+
+        set.clear().join();
+        Assertions.assertTrue(set.isEmpty().join());
+        Assertions.assertNull(set.first().join());
+    }
+
+    @Test
+    public void testAddAllBatchesAndBlockingSetOnSameCollection() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var set = new MongoDbAsyncIdStringSortedSet(reactiveMongoClient.getDatabase("test").getCollection(collectionName))
+                .setBulkWriteBatchSize(7)
+                .setCursorBatchSize(5);
+
+        List<String> expected = IntStream.range(100, 150).mapToObj(i -> "id" + i).collect(Collectors.toList());
+        Assertions.assertTrue(set.addAll(expected).join());
+        Assertions.assertEquals(expected, set.toList().join());
+
+        // The blocking set sees the same values
+        var blockingSet = new MongoDbIdStringSortedSet(mongoClient.getDatabase("test").getCollection(collectionName));
+        Assertions.assertEquals(expected, new ArrayList<>(blockingSet));
+        blockingSet.add("id200");
+        Assertions.assertTrue(set.contains("id200").join());
+    }
+
+}
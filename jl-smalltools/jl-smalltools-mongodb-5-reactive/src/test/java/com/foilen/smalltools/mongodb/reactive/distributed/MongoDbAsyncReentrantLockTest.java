@@ -0,0 +1,111 @@
+package com.foilen.smalltools.mongodb.reactive.distributed;
+
+import com.foilen.smalltools.mongodb.distributed.MongoDbReentrantLock;
+import com.foilen.smalltools.mongodb.reactive.AbstractEmbeddedReactiveMongoDbTest;
+import com.foilen.smalltools.mongodb.reactive.ReactiveStreamsTools;
+import com.foilen.smalltools.tools.SecureRandomTools;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MongoDbAsyncReentrantLockTest extends AbstractEmbeddedReactiveMongoDbTest {
+
+    @Test
+    public void testReentrantAndFencingToken() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var lock = new MongoDbAsyncReentrantLock(reactiveMongoClient, reactiveMongoClient.getDatabase("test").getCollection(collectionName));
+
+        Assertions.assertFalse(lock.isLockHeld("lock1").join());
+        Assertions.assertTrue(lock.tryLock("lock1", "holderA").join());
+        long fencingToken = lock.getFencingToken("lock1", "holderA");
+        Assertions.assertTrue(lock.isLockHeld("lock1").join());
+        Assertions.assertTrue(lock.isHeldBy("lock1", "holderA"));
+
+        // Reentrant for the same holder, but not another one
+        Assertions.assertTrue(lock.tryLock("lock1", "holderA").join());
+        Assertions.assertFalse(lock.tryLock("lock1", "holderB").join());
+        Assertions.assertThrows(IllegalStateException.class, () -> lock.getFencingToken("lock1", "holderB"));
+
+        // Only the holder can unlock and it must be done the same amount of time
+        lock.unlock("lock1", "holderB").join();
+        lock.unlock("lock1", "holderA").join();
+        Assertions.assertTrue(lock.isLockHeld("lock1").join());
+        lock.unlock("lock1", "holderA").join();
+        Assertions.assertFalse(lock.isLockHeld("lock1").join());
+
+        // The next holder gets a bigger token
+        Assertions.assertTrue(lock.tryLock("lock1", "holderB").join());
+        long secondFencingToken = lock.getFencingToken("lock1", "holderB");
+        Assertions.assertTrue(secondFencingToken > fencingToken);
+        lock.unlock("lock1", "holderB").join();
+
+        // All the lock names share the same sequence document
+        Assertions.assertTrue(lock.tryLock("lock2", "holderA").join());
+        Assertions.assertEquals(secondFencingToken + 1, lock.getFencingToken("lock2", "holderA"));
+        lock.unlock("lock2", "holderA").join();
+        Assertions.assertEquals(1L, (long) ReactiveStreamsTools.first(reactiveMongoClient.getDatabase("test").getCollection(collectionName).countDocuments()).join());
+    }
+
+    @Test
+    @Timeout(value = 1, unit = TimeUnit.MINUTES)
+    public void testWaitTimesOut() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var lock = new MongoDbAsyncReentrantLock(reactiveMongoClient, reactiveMongoClient.getDatabase("test").getCollection(collectionName));
+
+        Assertions.assertTrue(lock.tryLock("lock1", "holderA").join());
+        long start = System.currentTimeMillis();
+        Assertions.assertFalse(lock.tryLock("lock1", "holderB", 500).join());
+        Assertions.assertTrue(System.currentTimeMillis() - start >= 500);
+
+        var metrics = lock.getMetricsByLockName().get("lock1");
+        Assertions.assertEquals(1, metrics.getAcquiredCount());
+        Assertions.assertEquals(1, metrics.getTimedOutCount());
+    }
+
+    @Test
+    @Timeout(value = 2, unit = TimeUnit.MINUTES)
+    public void testManyWaitersWithBlockingHolder() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var lock = new MongoDbAsyncReentrantLock(reactiveMongoClient, reactiveMongoClient.getDatabase("test").getCollection(collectionName));
+        lock.getInitialized().join();
+
+        // Held by the blocking lock on the same collection
+        var blockingLock = new MongoDbReentrantLock(mongoClient, mongoClient.getDatabase("test").getCollection(collectionName));
+        Assertions.assertTrue(blockingLock.tryLock("lock1"));
+
+        // Many waiting at the same time without any thread and each one executes alone
+        int count = 200;
+        AtomicInteger concurrentExecutions = new AtomicInteger();
+        AtomicInteger maxConcurrentExecutions = new AtomicInteger();
+        AtomicInteger executions = new AtomicInteger();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            int finalI = i;
+            futures.add(lock.waitLockAndExecute("lock1", 60000, () -> {
+                maxConcurrentExecutions.accumulateAndGet(concurrentExecutions.incrementAndGet(), Math::max);
+                executions.incrementAndGet();
+                concurrentExecutions.decrementAndGet();
+                return CompletableFuture.completedFuture(finalI);
+            }));
+        }
+        Assertions.assertEquals(0, executions.get());
+
+        // Release the blocking lock
+        blockingLock.unlock("lock1");
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        Assertions.assertEquals(count, executions.get());
+        Assertions.assertEquals(1, maxConcurrentExecutions.get());
+        Assertions.assertFalse(lock.isLockHeld("lock1").join());
+    }
+
+}
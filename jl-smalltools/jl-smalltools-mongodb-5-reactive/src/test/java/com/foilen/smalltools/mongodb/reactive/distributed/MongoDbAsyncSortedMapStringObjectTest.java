@@ -0,0 +1,101 @@
+package com.foilen.smalltools.mongodb.reactive.distributed;
+
+import com.foilen.smalltools.codec.SmileCodec;
+import com.foilen.smalltools.mongodb.distributed.MongoDbSortedMapStringObject;
+import com.foilen.smalltools.mongodb.reactive.AbstractEmbeddedReactiveMongoDbTest;
+import com.foilen.smalltools.tools.SecureRandomTools;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class MongoDbAsyncSortedMapStringObjectTest extends AbstractEmbeddedReactiveMongoDbTest {
+
+    @Test
+    public void testAllMethods() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var map = new MongoDbAsyncSortedMapStringObject<>(Integer.class, reactiveMongoClient, reactiveMongoClient.getDatabase("test").getCollection(collectionName));
+
+        Assertions.assertTrue(map.isEmpty().join());
+        Assertions.assertNull(map.put("b", 2).join());
+        Assertions.assertEquals(2, (int) map.put("b", 20).join());
+        Assertions.assertNull(map.put("a", 1).join());
+        Assertions.assertNull(map.putIfAbsent("c", 3).join());
+        Assertions.assertEquals(3, (int) map.putIfAbsent("c", 30).join());
+
+        Assertions.assertEquals(3, (int) map.size().join());
+        Assertions.assertEquals(20, (int) map.get("b").join());
+        Assertions.assertNull(map.get("z").join());
+        Assertions.assertTrue(map.containsKey("a").join());
+        Assertions.assertFalse(map.containsKey("z").join());
+        Assertions.assertTrue(map.containsValue(20).join());
+        Assertions.assertFalse(map.containsValue(2).join());
+        Assertions.assertEquals("a", map.firstKey().join());
+        Assertions.assertEquals("c", map.lastKey().join());
+
+        Assertions.assertEquals(1, (int) map.remove("a").join());
+        Assertions.assertNull(map.remove("a").join());
+
+        List<String> keys = new ArrayList<>();
+        map.forEach((key, value) -> keys.add(key)).join();
+        Assertions.assertEquals(List.of("b", "c"), keys);
+
+        map.clear().join();
+        Assertions.assertTrue(map.isEmpty().join());
+        Assertions.assertNull(map.firstKey().join());
+    }
+
+    @Test
+    public void testCodecAndBlockingMapOnSameCollection() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var map = new MongoDbAsyncSortedMapStringObject<>(Integer.class, reactiveMongoClient, reactiveMongoClient.getDatabase("test").getCollection(collectionName))
+                .setCodec(SmileCodec.SMILE);
+
+        Map<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 10; ++i) {
+            expected.put("key" + (100 + i), i);
+        }
+        map.putAll(expected).join();
+        Assertions.assertNull(map.put("key200", 200).join());
+        expected.put("key200", 200);
+        Assertions.assertEquals(new LinkedHashMap<>(expected), map.toMap().join());
+        Assertions.assertTrue(map.containsValue(200).join());
+        Assertions.assertEquals(200, (int) map.remove("key200").join());
+        expected.remove("key200");
+
+        // The blocking map with the same codec sees the same entries
+        var blockingMap = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoClient.getDatabase("test").getCollection(collectionName))
+                .setCodec(SmileCodec.SMILE);
+        Assertions.assertEquals(expected, new TreeMap<>(blockingMap));
+        Assertions.assertTrue(blockingMap.containsValue(5));
+    }
+
+    @Test
+    public void testPutAllAndBlockingMapOnSameCollection() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        var map = new MongoDbAsyncSortedMapStringObject<>(Integer.class, reactiveMongoClient, reactiveMongoClient.getDatabase("test").getCollection(collectionName))
+                .setBulkWriteBatchSize(7)
+                .setCursorBatchSize(5);
+
+        Map<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 50; ++i) {
+            expected.put("key" + (100 + i), i);
+        }
+        map.putAll(expected).join();
+        Assertions.assertEquals(new LinkedHashMap<>(expected), map.toMap().join());
+
+        // The blocking map sees the same entries
+        var blockingMap = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoClient.getDatabase("test").getCollection(collectionName));
+        Assertions.assertEquals(expected, new TreeMap<>(blockingMap));
+        blockingMap.put("key100", 1000);
+        Assertions.assertEquals(1000, (int) map.get("key100").join());
+    }
+
+}
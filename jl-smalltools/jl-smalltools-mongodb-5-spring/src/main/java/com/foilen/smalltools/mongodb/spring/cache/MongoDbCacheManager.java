@@ -1,5 +1,7 @@
 package com.foilen.smalltools.mongodb.spring.cache;
 
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
 import com.foilen.smalltools.mongodb.distributed.MongoDbReentrantLock;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
@@ -8,9 +10,13 @@ import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A distributed cache using MongoDB that creates {@link com.foilen.smalltools.mongodb.distributed.MongoDbSortedMapStringObject} using the prefix and the cache name.
+ * <p>
+ * The caches are created once and reused. Use {@link #setCacheNames(Collection)} at startup to create them before the first requests.
  */
 public class MongoDbCacheManager implements CacheManager {
 
@@ -20,6 +26,9 @@ public class MongoDbCacheManager implements CacheManager {
     private final MongoDbReentrantLock lock;
     private final long defaultMaxDurationInSec;
     private final Map<String, Long> maxDurationInSecByCacheName = new HashMap<>();
+    private final ConcurrentMap<String, MongoDbCache> cacheByName = new ConcurrentHashMap<>();
+
+    private Codec codec = JsonCodec.COMPACT;
 
     /**
      * Create a cache manager.
@@ -57,23 +66,45 @@ public class MongoDbCacheManager implements CacheManager {
         this.maxDurationInSecByCacheName.putAll(maxDurationInSecByCacheName);
     }
 
+    /**
+     * Set the codec of the caches (see {@link MongoDbCache#setCodec(Codec)}). Must be called before creating the caches.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbCacheManager setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Create the caches right away (the collections and their indexes) instead of on the first request.
+     *
+     * @param cacheNames the names of the caches
+     */
+    public void setCacheNames(Collection<String> cacheNames) {
+        cacheNames.forEach(this::getCache);
+    }
+
     @Override
     public Cache getCache(String cacheName) {
+        return cacheByName.computeIfAbsent(cacheName, this::createCache);
+    }
+
+    private MongoDbCache createCache(String cacheName) {
         Long durationInSec = maxDurationInSecByCacheName.getOrDefault(cacheName, defaultMaxDurationInSec);
         MongoCollection<Document> mongoCollection = mongoClient.getDatabase(databaseName).getCollection(collectionNamePrefix + cacheName);
-        return new MongoDbCache(cacheName, mongoClient, mongoCollection, lock, durationInSec);
+        return new MongoDbCache(cacheName, mongoClient, mongoCollection, lock, durationInSec).setCodec(codec);
     }
 
+    /**
+     * Get the names of the caches used by this manager (not the ones only created by other processes in the database).
+     *
+     * @return the sorted names
+     */
     @Override
     public Collection<String> getCacheNames() {
-        // Return all the collection names that start with the collectionNamePrefix
-        SortedSet<String> cacheNames = new TreeSet<>();
-        mongoClient.getDatabase(databaseName).listCollectionNames().forEach((String collectionName) -> {
-            if (collectionName.startsWith(collectionNamePrefix)) {
-                cacheNames.add(collectionName.substring(collectionNamePrefix.length()));
-            }
-        });
-        return cacheNames;
+        return Collections.unmodifiableSortedSet(new TreeSet<>(cacheByName.keySet()));
     }
 
 }
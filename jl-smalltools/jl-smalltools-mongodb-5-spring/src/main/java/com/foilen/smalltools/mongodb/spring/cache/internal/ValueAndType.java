@@ -1,5 +1,7 @@
 package com.foilen.smalltools.mongodb.spring.cache.internal;
 
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
 import com.foilen.smalltools.reflection.ReflectionTools;
 import com.foilen.smalltools.restapi.model.AbstractApiBase;
 import com.foilen.smalltools.tools.JsonTools;
@@ -7,9 +9,20 @@ import com.foilen.smalltools.tools.JsonTools;
 public class ValueAndType extends AbstractApiBase {
 
     private String jsonValue;
+    private byte[] encodedValue;
     private String type;
 
     public Object toValue() {
+        return toValue(JsonCodec.COMPACT);
+    }
+
+    /**
+     * Get the value from the json value or from the encoded value when it was saved with another codec.
+     *
+     * @param codec the codec that encoded the value
+     * @return the value
+     */
+    public Object toValue(Codec codec) {
         if (this.type == null) {
             return null;
         }
@@ -18,6 +31,21 @@ public class ValueAndType extends AbstractApiBase {
         if (type == null) {
             throw new IllegalArgumentException("The type is unknown " + this.type);
         }
+        return toValue(codec, type);
+    }
+
+    /**
+     * Get the value as the specified type from the json value or from the encoded value when it was saved with another codec.
+     *
+     * @param codec the codec that encoded the value
+     * @param type  the type
+     * @param <T>   the type
+     * @return the value
+     */
+    public <T> T toValue(Codec codec, Class<T> type) {
+        if (encodedValue != null) {
+            return codec.decode(encodedValue, type);
+        }
         return JsonTools.readFromString(jsonValue, type);
     }
 
@@ -30,6 +58,15 @@ public class ValueAndType extends AbstractApiBase {
         return this;
     }
 
+    public byte[] getEncodedValue() {
+        return encodedValue;
+    }
+
+    public ValueAndType setEncodedValue(byte[] encodedValue) {
+        this.encodedValue = encodedValue;
+        return this;
+    }
+
     public String getType() {
         return type;
     }
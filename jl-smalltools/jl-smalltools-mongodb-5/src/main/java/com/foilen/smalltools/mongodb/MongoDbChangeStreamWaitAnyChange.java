@@ -64,6 +64,18 @@ public class MongoDbChangeStreamWaitAnyChange extends AbstractBasics {
         stopAfter = System.currentTimeMillis() + stopAfterNoThreadWaitedInMs;
     }
 
+    /**
+     * Wake up the threads that are currently waiting for a change of that id. Useful when the change is done locally to not have to wait for the change stream to receive it.
+     *
+     * @param id the id
+     */
+    public void wakeUp(String id) {
+        var semaphoreForId = semaphoreById.get(id);
+        if (semaphoreForId != null) {
+            semaphoreForId.release(semaphoreForId.getQueueLength());
+        }
+    }
+
     private void startIfNeeded() {
         var poller = this;
         synchronized (poller) {
@@ -89,6 +101,7 @@ public class MongoDbChangeStreamWaitAnyChange extends AbstractBasics {
                             // Detect collection drop
                             if ("drop".equals(change.getOperationTypeString())) {
                                 logger.error("Collection {} was dropped. Calling the callback to recreate it", mongoCollection.getNamespace());
+                                MongoDbManageCollectionTools.forgetManagedNamespace(mongoCollection.getNamespace());
                                 collectionCreate.run();
                                 // Restart the change stream
                                 logger.info("Restarting change stream after recreation of collection {}", mongoCollection.getNamespace());
@@ -5,21 +5,132 @@ import com.foilen.smalltools.tuple.Tuple2;
 import com.mongodb.MongoNamespace;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.IndexOptions;
 import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 public class MongoDbManageCollectionTools {
 
     private final static Logger logger = LoggerFactory.getLogger(MongoDbManageCollectionTools.class);
 
+    /**
+     * The namespaces already managed by {@link #manageCollection(MongoClient, MongoCollection, Map)} per client with the index names and the future completed when they are ready.
+     */
+    private final static Map<MongoClient, ConcurrentMap<MongoNamespace, Tuple2<Set<String>, CompletableFuture<Void>>>> managedNamespacesByClient = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Create the collection if it does not exist and manage its indexes (like {@link #manageIndexes(MongoCollection, Map)}), but only once per client. The next calls for the same namespace and index
+     * names return right away without querying the database.
+     * <p>
+     * If the collection is dropped, call {@link #forgetManagedNamespace(MongoNamespace)} before calling it again (this is done by {@link MongoDbChangeStreamWaitAnyChange} when it sees the drop).
+     *
+     * @param mongoClient                    the mongo client
+     * @param mongoCollection                the collection
+     * @param indexKeysAndOptionsByIndexName the index name and the keys and options
+     */
+    public static void manageCollection(MongoClient mongoClient, MongoCollection<Document> mongoCollection, Map<String, Tuple2<Document, IndexOptions>> indexKeysAndOptionsByIndexName) {
+        var ready = manageCollection(mongoClient, mongoCollection, indexKeysAndOptionsByIndexName, null);
+        try {
+            ready.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Like {@link #manageCollection(MongoClient, MongoCollection, Map)}, but the collection and the indexes are created by the executor. Building indexes on a big collection can take a while, so the
+     * caller can continue and wait on the returned future only when it needs them.
+     *
+     * @param mongoClient                    the mongo client
+     * @param mongoCollection                the collection
+     * @param indexKeysAndOptionsByIndexName the index name and the keys and options
+     * @param executor                       the executor that will do the work
+     * @return the future completed when the collection and the indexes are ready (the same one for all the callers while it is in progress)
+     */
+    public static CompletableFuture<Void> manageCollectionInBackground(MongoClient mongoClient, MongoCollection<Document> mongoCollection, Map<String, Tuple2<Document, IndexOptions>> indexKeysAndOptionsByIndexName,
+                                                                       Executor executor) {
+        return manageCollection(mongoClient, mongoCollection, indexKeysAndOptionsByIndexName, executor);
+    }
+
+    private static CompletableFuture<Void> manageCollection(MongoClient mongoClient, MongoCollection<Document> mongoCollection, Map<String, Tuple2<Document, IndexOptions>> indexKeysAndOptionsByIndexName,
+                                                            Executor executor) {
+
+        var managedNamespaces = managedNamespacesByClient.computeIfAbsent(mongoClient, k -> new ConcurrentHashMap<>());
+        var namespace = mongoCollection.getNamespace();
+        var indexNames = Set.copyOf(indexKeysAndOptionsByIndexName.keySet());
+
+        // Reuse the one already done or in progress with the same indexes
+        var ready = new CompletableFuture<Void>();
+        var managed = managedNamespaces.compute(namespace, (key, current) -> {
+            if (current != null && current.getA().equals(indexNames) && !current.getB().isCompletedExceptionally()) {
+                return current;
+            }
+            return new Tuple2<>(indexNames, ready);
+        });
+        if (managed.getB() != ready) {
+            return managed.getB();
+        }
+
+        Runnable manage = () -> {
+            try {
+                addCollectionIfMissing(mongoClient, namespace);
+                manageIndexes(mongoCollection, indexKeysAndOptionsByIndexName);
+                ready.complete(null);
+            } catch (RuntimeException e) {
+                managedNamespaces.remove(namespace, managed);
+                ready.completeExceptionally(e);
+            }
+        };
+        if (executor == null) {
+            manage.run();
+        } else {
+            try {
+                executor.execute(manage);
+            } catch (RuntimeException e) {
+                managedNamespaces.remove(namespace, managed);
+                ready.completeExceptionally(e);
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Forget that the namespace was managed (for all the clients) so the next call to {@link #manageCollection(MongoClient, MongoCollection, Map)} checks the database again. Call it when the collection
+     * is dropped.
+     *
+     * @param namespace the namespace
+     */
+    public static void forgetManagedNamespace(MongoNamespace namespace) {
+        synchronized (managedNamespacesByClient) {
+            managedNamespacesByClient.values().forEach(managedNamespaces -> managedNamespaces.remove(namespace));
+        }
+    }
+
+    private static boolean collectionExists(MongoDatabase mongoDatabase, String collectionName) {
+        return mongoDatabase.listCollections()
+                .filter(Filters.eq("name", collectionName))
+                .first() != null;
+    }
+
     /**
      * Create the collection if it does not exist.
      *
@@ -29,39 +140,74 @@ public class MongoDbManageCollectionTools {
     public static void addCollectionIfMissing(MongoClient mongoClient, MongoNamespace namespace) {
         var mongoDatabase = mongoClient.getDatabase(namespace.getDatabaseName());
 
-        if (!mongoDatabase.listCollectionNames().into(new ArrayList<>()).contains(namespace.getCollectionName())) {
+        if (!collectionExists(mongoDatabase, namespace.getCollectionName())) {
             logger.info("Creating collection {}", namespace.getCollectionName());
             mongoDatabase.createCollection(namespace.getCollectionName());
         }
     }
 
     /**
-     * Create the collection if it does not exist or the capped size is incorrect.
+     * Create the collection if it does not exist or the capped size is incorrect. An existing collection that is not capped is kept as is.
      *
      * @param mongoClient              the mongo client
      * @param namespace                the namespace
      * @param maxCollectionSizeInBytes the max collection size in bytes
      */
     public static void addCollectionIfMissing(MongoClient mongoClient, MongoNamespace namespace, long maxCollectionSizeInBytes) {
+        addCollectionIfMissing(mongoClient, namespace, maxCollectionSizeInBytes, 0, false);
+    }
+
+    /**
+     * Create the collection if it does not exist or the capped size or max documents are incorrect. If the collection exists, but is not capped, it is dropped and recreated, so all its documents
+     * are lost.
+     * <p>
+     * Note: MongoDB rounds the size up to a multiple of 256, so use a multiple of 256 to prevent recreating the collection each time.
+     *
+     * @param mongoClient              the mongo client
+     * @param namespace                the namespace
+     * @param maxCollectionSizeInBytes the max collection size in bytes
+     * @param maxDocuments             the max amount of documents (0 for no limit other than the size)
+     */
+    public static void addCollectionIfMissing(MongoClient mongoClient, MongoNamespace namespace, long maxCollectionSizeInBytes, long maxDocuments) {
+        addCollectionIfMissing(mongoClient, namespace, maxCollectionSizeInBytes, maxDocuments, true);
+    }
+
+    private static void addCollectionIfMissing(MongoClient mongoClient, MongoNamespace namespace, long maxCollectionSizeInBytes, long maxDocuments, boolean recreateIfNotCapped) {
         var mongoDatabase = mongoClient.getDatabase(namespace.getDatabaseName());
 
         // Check the capped size
-        Document collectionInfo = mongoDatabase.runCommand(new Document("collStats", namespace.getCollectionName()));
-        if (collectionInfo.containsKey("maxSize")) {
-            long currentMaxCollectionSizeInBytes = collectionInfo.getLong("maxSize");
-            if (currentMaxCollectionSizeInBytes != maxCollectionSizeInBytes) {
+        if (collectionExists(mongoDatabase, namespace.getCollectionName())) {
+            Document collectionInfo = mongoDatabase.runCommand(new Document("collStats", namespace.getCollectionName()));
+            boolean capped = collectionInfo.getBoolean("capped", false);
+            long currentMaxCollectionSizeInBytes = collectionInfo.containsKey("maxSize") ? ((Number) collectionInfo.get("maxSize")).longValue() : 0;
+            long currentMaxDocuments = collectionInfo.containsKey("max") ? ((Number) collectionInfo.get("max")).longValue() : 0;
+            if (!capped) {
+                if (recreateIfNotCapped) {
+                    logger.info("Dropping collection {} to recreate it as capped", namespace.getCollectionName());
+                    mongoDatabase.getCollection(namespace.getCollectionName()).drop();
+                } else {
+                    logger.warn("Collection {} is not capped. Keeping it as is", namespace.getCollectionName());
+                }
+            } else if (currentMaxCollectionSizeInBytes != maxCollectionSizeInBytes) {
                 logger.info("Dropping collection {} to recreate it with a max size of {}", namespace.getCollectionName(), maxCollectionSizeInBytes);
                 mongoDatabase.getCollection(namespace.getCollectionName()).drop();
+            } else if (maxDocuments > 0 && currentMaxDocuments != maxDocuments) {
+                logger.info("Dropping collection {} to recreate it with max documents of {}", namespace.getCollectionName(), maxDocuments);
+                mongoDatabase.getCollection(namespace.getCollectionName()).drop();
             }
         }
 
         // Create collection if missing
-        if (!mongoDatabase.listCollectionNames().into(new ArrayList<>()).contains(namespace.getCollectionName())) {
-            logger.info("Creating collection {} with max size {} ({})", namespace.getCollectionName(), maxCollectionSizeInBytes, SpaceConverterTools.convertToBiggestBUnit(maxCollectionSizeInBytes));
-            mongoDatabase.createCollection(namespace.getCollectionName(), new CreateCollectionOptions()
+        if (!collectionExists(mongoDatabase, namespace.getCollectionName())) {
+            forgetManagedNamespace(namespace);
+            logger.info("Creating collection {} with max size {} ({}) and max documents {}", namespace.getCollectionName(), maxCollectionSizeInBytes, SpaceConverterTools.convertToBiggestBUnit(maxCollectionSizeInBytes), maxDocuments);
+            var createCollectionOptions = new CreateCollectionOptions()
                     .capped(true)
-                    .sizeInBytes(maxCollectionSizeInBytes)
-            );
+                    .sizeInBytes(maxCollectionSizeInBytes);
+            if (maxDocuments > 0) {
+                createCollectionOptions.maxDocuments(maxDocuments);
+            }
+            mongoDatabase.createCollection(namespace.getCollectionName(), createCollectionOptions);
         }
     }
 
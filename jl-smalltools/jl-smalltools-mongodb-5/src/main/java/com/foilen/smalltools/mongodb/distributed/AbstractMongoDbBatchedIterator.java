@@ -0,0 +1,176 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over the documents sorted by "_id" that uses a single server cursor retrieving the documents by batches instead of one query per element.
+ * <p>
+ * If the cursor is lost (e.g. it timed out on the server because the iteration was paused for too long), a new cursor is opened after the last retrieved "_id".
+ * <p>
+ * The cursor is closed when the iteration is completed. If the iteration is stopped before the end, call {@link #close()} to release it on the server right away.
+ *
+ * @param <E> the type of elements
+ */
+public abstract class AbstractMongoDbBatchedIterator<E> implements Iterator<E>, Closeable {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    protected final MongoCollection<Document> mongoCollection;
+    private final Object fromId;
+    private final Object toId;
+    private final boolean ascending;
+    private final int batchSize;
+
+    private MongoCursor<Document> cursor;
+    private Object lastId;
+    private Object lastReturnedId;
+    private E next;
+    private boolean nextLoaded;
+    private boolean completed;
+
+    /**
+     * Create the iterator.
+     *
+     * @param mongoCollection the collection
+     * @param fromId          the first id (inclusive) or null to start at the beginning. Only used when ascending
+     * @param toId            the last id (exclusive) or null to go until the end. Only used when ascending
+     * @param ascending       true to iterate in ascending order of "_id"
+     * @param batchSize       the amount of documents to retrieve per batch
+     */
+    protected AbstractMongoDbBatchedIterator(MongoCollection<Document> mongoCollection, Object fromId, Object toId, boolean ascending, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.mongoCollection = mongoCollection;
+        this.fromId = fromId;
+        this.toId = toId;
+        this.ascending = ascending;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Get the projection to use.
+     *
+     * @return the projection or null to retrieve the full documents
+     */
+    protected Document getProjection() {
+        return null;
+    }
+
+    /**
+     * Convert the retrieved document to the element to return.
+     *
+     * @param document the document
+     * @return the element
+     */
+    protected abstract E toElement(Document document);
+
+    @Override
+    public boolean hasNext() {
+        if (!nextLoaded) {
+            loadNext();
+        }
+        return nextLoaded;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        var toReturn = next;
+        next = null;
+        nextLoaded = false;
+        lastReturnedId = lastId;
+        return toReturn;
+    }
+
+    private void loadNext() {
+
+        if (completed) {
+            return;
+        }
+
+        Document document;
+        try {
+            document = nextDocument();
+        } catch (MongoCursorNotFoundException e) {
+            // Continue after the last id with a new cursor
+            cursor = null;
+            document = nextDocument();
+        }
+
+        if (document == null) {
+            close();
+            return;
+        }
+
+        lastId = document.get(MongoDbDistributedConstants.FIELD_ID);
+        next = toElement(document);
+        nextLoaded = true;
+    }
+
+    private Document nextDocument() {
+        if (cursor == null) {
+            var idFilter = new Document();
+            if (lastId != null) {
+                idFilter.append(ascending ? "$gt" : "$lt", lastId);
+            } else if (ascending && fromId != null) {
+                idFilter.append("$gte", fromId);
+            }
+            if (ascending && toId != null) {
+                idFilter.append("$lt", toId);
+            }
+
+            var filter = new Document();
+            if (!idFilter.isEmpty()) {
+                filter.append(MongoDbDistributedConstants.FIELD_ID, idFilter);
+            }
+
+            var findIterable = mongoCollection.find(filter)
+                    .sort(new Document().append(MongoDbDistributedConstants.FIELD_ID, ascending ? 1 : -1))
+                    .batchSize(batchSize);
+            var projection = getProjection();
+            if (projection != null) {
+                findIterable.projection(projection);
+            }
+            cursor = findIterable.cursor();
+        }
+
+        if (cursor.hasNext()) {
+            return cursor.next();
+        }
+        return null;
+    }
+
+    @Override
+    public void remove() {
+        if (lastReturnedId == null) {
+            throw new IllegalStateException();
+        }
+        mongoCollection.deleteOne(new Document().append(MongoDbDistributedConstants.FIELD_ID, lastReturnedId));
+        lastReturnedId = null;
+    }
+
+    /**
+     * Close the server cursor. The iterator will not return any more elements.
+     */
+    @Override
+    public void close() {
+        completed = true;
+        next = null;
+        nextLoaded = false;
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+}
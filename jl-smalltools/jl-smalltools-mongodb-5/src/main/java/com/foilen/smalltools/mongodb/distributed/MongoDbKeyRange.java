@@ -0,0 +1,78 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+
+/**
+ * A range of keys to scan in a {@link MongoDbSortedMapStringObject}. It keeps the last processed key to be able to resume the scan after a failure.
+ */
+public class MongoDbKeyRange extends AbstractBasics {
+
+    private String fromKey;
+    private String toKey;
+    private String lastProcessedKey;
+    private boolean completed;
+
+    public MongoDbKeyRange() {
+    }
+
+    /**
+     * Create a range.
+     *
+     * @param fromKey the first key (inclusive) or null to start at the beginning
+     * @param toKey   the last key (exclusive) or null to go until the end
+     */
+    public MongoDbKeyRange(String fromKey, String toKey) {
+        this.fromKey = fromKey;
+        this.toKey = toKey;
+    }
+
+    /**
+     * Get the key where to start (or continue) the scan.
+     *
+     * @return the first key (inclusive) or null to start at the beginning
+     */
+    public String getResumeFromKey() {
+        if (lastProcessedKey == null) {
+            return fromKey;
+        }
+        // The smallest string greater than the last processed key
+        return lastProcessedKey + '\u0000';
+    }
+
+    public String getFromKey() {
+        return fromKey;
+    }
+
+    public MongoDbKeyRange setFromKey(String fromKey) {
+        this.fromKey = fromKey;
+        return this;
+    }
+
+    public String getToKey() {
+        return toKey;
+    }
+
+    public MongoDbKeyRange setToKey(String toKey) {
+        this.toKey = toKey;
+        return this;
+    }
+
+    public String getLastProcessedKey() {
+        return lastProcessedKey;
+    }
+
+    public MongoDbKeyRange setLastProcessedKey(String lastProcessedKey) {
+        this.lastProcessedKey = lastProcessedKey;
+        return this;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public MongoDbKeyRange setCompleted(boolean completed) {
+        this.completed = completed;
+        return this;
+    }
+
+}
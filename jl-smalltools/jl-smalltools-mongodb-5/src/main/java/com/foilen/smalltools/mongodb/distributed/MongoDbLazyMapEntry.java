@@ -0,0 +1,84 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An immutable entry that keeps the encoded value and only decodes it on the first call to {@link #getValue()}. Useful when scanning the entries and only some values are needed.
+ *
+ * @param <V> the value type
+ */
+public class MongoDbLazyMapEntry<V> implements Map.Entry<String, V>, Comparable<Map.Entry<String, V>> {
+
+    private final String key;
+    private final Object jsonValue;
+    private final Class<V> valueType;
+    private final Codec codec;
+
+    private V value;
+    private boolean decoded;
+
+    public MongoDbLazyMapEntry(String key, String jsonValue, Class<V> valueType) {
+        this(key, jsonValue, valueType, JsonCodec.COMPACT);
+    }
+
+    /**
+     * Create the entry.
+     *
+     * @param key       the key
+     * @param jsonValue the encoded value (see {@link MongoDbJsonValueTools#encodeValue(Codec, Object)})
+     * @param valueType the value type
+     * @param codec     the codec that encoded the value
+     */
+    public MongoDbLazyMapEntry(String key, Object jsonValue, Class<V> valueType, Codec codec) {
+        this.key = key;
+        this.jsonValue = jsonValue;
+        this.valueType = valueType;
+        this.codec = codec;
+    }
+
+    @Override
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public V getValue() {
+        if (!decoded) {
+            value = MongoDbJsonValueTools.decodeValue(codec, jsonValue, valueType);
+            decoded = true;
+        }
+        return value;
+    }
+
+    @Override
+    public V setValue(V value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Map.Entry<?, ?> that)) return false;
+        return Objects.equals(key, that.getKey()) && Objects.equals(getValue(), that.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(key) ^ Objects.hashCode(getValue());
+    }
+
+    @Override
+    public int compareTo(Map.Entry<String, V> o) {
+        return key.compareTo(o.getKey());
+    }
+
+    @Override
+    public String toString() {
+        return key + "=" + jsonValue;
+    }
+
+}
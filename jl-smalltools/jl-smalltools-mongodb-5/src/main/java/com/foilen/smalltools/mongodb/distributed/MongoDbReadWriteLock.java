@@ -0,0 +1,274 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+
+import java.util.UUID;
+
+/**
+ * A distributed read/write lock that is using the same collection, heartbeats and change stream as a {@link MongoDbReentrantLock}. Many threads (local or distributed) can hold the read lock at the
+ * same time, but the write lock is exclusive.
+ * <p>
+ * The locks are stored as:
+ * <ul>
+ * <li>"lockName/write" for the writer</li>
+ * <li>"lockName/read/{thread id}" for each reader</li>
+ * </ul>
+ * <p>
+ * A writer first takes the write lock (which blocks the new readers) and then waits for the current readers to finish. The locks are reentrant and a thread holding the write lock can also get the
+ * read lock (downgrade). Upgrading a read lock to a write lock is not supported: the writer would wait for itself until the timeout.
+ */
+public class MongoDbReadWriteLock extends AbstractBasics {
+
+    private static final ThreadLocal<String> threadUniqueId = ThreadLocal.withInitial(() -> UUID.randomUUID().toString());
+
+    private final MongoDbReentrantLock reentrantLock;
+
+    /**
+     * Create a read/write lock.
+     *
+     * @param reentrantLock the lock to use to store the locks. Do not use the same lock names directly on it
+     */
+    public MongoDbReadWriteLock(MongoDbReentrantLock reentrantLock) {
+        this.reentrantLock = reentrantLock;
+    }
+
+    private String getWriteLockName(String lockName) {
+        return lockName + "/write";
+    }
+
+    private String getReadLockNamePrefix(String lockName) {
+        return lockName + "/read/";
+    }
+
+    private String getReadLockName(String lockName) {
+        return getReadLockNamePrefix(lockName) + threadUniqueId.get();
+    }
+
+    private boolean isWriteLockHeldByAnotherThread(String lockName) {
+        String writeLockName = getWriteLockName(lockName);
+        return !reentrantLock.isHeldByCurrentThread(writeLockName) && reentrantLock.isLockHeld(writeLockName);
+    }
+
+    /**
+     * Check if the write lock is currently held (by any thread, local or distributed).
+     *
+     * @param lockName the name of the lock
+     * @return true if the write lock is currently held
+     */
+    public boolean isWriteLockHeld(String lockName) {
+        return reentrantLock.isLockHeld(getWriteLockName(lockName));
+    }
+
+    /**
+     * Get the amount of threads (local or distributed) that are currently holding the read lock.
+     *
+     * @param lockName the name of the lock
+     * @return the amount of readers
+     */
+    public int getReadLockCount(String lockName) {
+        return reentrantLock.findHeldLockNamesStartingWith(getReadLockNamePrefix(lockName)).size();
+    }
+
+    /**
+     * Get the read lock if no other thread is holding the write lock. It will not wait.
+     *
+     * @param lockName the name of the lock
+     * @return true if the read lock is now held
+     */
+    public boolean tryReadLock(String lockName) {
+
+        String readLockName = getReadLockName(lockName);
+        if (reentrantLock.isHeldByCurrentThread(readLockName)) {
+            return reentrantLock.tryLock(readLockName);
+        }
+
+        if (isWriteLockHeldByAnotherThread(lockName)) {
+            return false;
+        }
+        if (!reentrantLock.tryLock(readLockName)) {
+            return false;
+        }
+
+        // A writer could have started between the check and the insert. It might not have seen this reader, so give it the priority
+        if (isWriteLockHeldByAnotherThread(lockName)) {
+            reentrantLock.unlock(readLockName);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the read lock. If another thread is holding the write lock, it will wait for it to be released for the max wait time.
+     *
+     * @param lockName the name of the lock
+     * @param timeInMs the max time to wait
+     * @return true if the read lock is now held
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean tryReadLock(String lockName, long timeInMs) throws InterruptedException {
+
+        if (tryReadLock(lockName)) {
+            return true;
+        }
+
+        long waitUntil = System.currentTimeMillis() + timeInMs;
+        if (waitUntil < 0) {
+            waitUntil = Long.MAX_VALUE;
+        }
+
+        boolean gotLock = false;
+        while (!gotLock && System.currentTimeMillis() < waitUntil) {
+            reentrantLock.waitForChange(getWriteLockName(lockName), waitUntil - System.currentTimeMillis());
+            gotLock = tryReadLock(lockName);
+        }
+
+        return gotLock;
+    }
+
+    /**
+     * Release the read lock.
+     * <p>
+     * Must be called the same amount of time as the read lock was taken and by the same thread.
+     *
+     * @param lockName the name of the lock
+     */
+    public void readUnlock(String lockName) {
+        reentrantLock.unlock(getReadLockName(lockName));
+    }
+
+    /**
+     * Get the write lock if no other thread is holding the read or the write lock. It will not wait.
+     *
+     * @param lockName the name of the lock
+     * @return true if the write lock is now held
+     */
+    public boolean tryWriteLock(String lockName) {
+
+        String writeLockName = getWriteLockName(lockName);
+        boolean alreadyHolding = reentrantLock.isHeldByCurrentThread(writeLockName);
+        if (!reentrantLock.tryLock(writeLockName)) {
+            return false;
+        }
+        if (alreadyHolding) {
+            return true;
+        }
+
+        if (!reentrantLock.findHeldLockNamesStartingWith(getReadLockNamePrefix(lockName)).isEmpty()) {
+            reentrantLock.unlock(writeLockName);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the write lock. It will wait for the other writer to release the lock and then, for all the current readers to release it for the max wait time.
+     *
+     * @param lockName the name of the lock
+     * @param timeInMs the max time to wait
+     * @return true if the write lock is now held
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean tryWriteLock(String lockName, long timeInMs) throws InterruptedException {
+
+        long waitUntil = System.currentTimeMillis() + timeInMs;
+        if (waitUntil < 0) {
+            waitUntil = Long.MAX_VALUE;
+        }
+
+        // Block the new readers
+        String writeLockName = getWriteLockName(lockName);
+        boolean alreadyHolding = reentrantLock.isHeldByCurrentThread(writeLockName);
+        if (!reentrantLock.tryLock(writeLockName, timeInMs)) {
+            return false;
+        }
+        if (alreadyHolding) {
+            return true;
+        }
+
+        // Wait for the current readers to finish
+        String readLockNamePrefix = getReadLockNamePrefix(lockName);
+        while (!reentrantLock.findHeldLockNamesStartingWith(readLockNamePrefix).isEmpty()) {
+            long waitTimeInMs = waitUntil - System.currentTimeMillis();
+            if (waitTimeInMs <= 0) {
+                reentrantLock.unlock(writeLockName);
+                return false;
+            }
+            try {
+                reentrantLock.waitForAnyChange(waitTimeInMs);
+            } catch (InterruptedException e) {
+                reentrantLock.unlock(writeLockName);
+                throw e;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Release the write lock.
+     * <p>
+     * Must be called the same amount of time as the write lock was taken and by the same thread.
+     *
+     * @param lockName the name of the lock
+     */
+    public void writeUnlock(String lockName) {
+        reentrantLock.unlock(getWriteLockName(lockName));
+    }
+
+    // ---== Methods reusing the others at the top  ==---
+
+    /**
+     * Get the read lock. If another thread is holding the write lock, it will wait for it to be released.
+     *
+     * @param lockName the name of the lock
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void readLock(String lockName) throws InterruptedException {
+        tryReadLock(lockName, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get the write lock. It will wait for the other writer and the readers to release it.
+     *
+     * @param lockName the name of the lock
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void writeLock(String lockName) throws InterruptedException {
+        tryWriteLock(lockName, Long.MAX_VALUE);
+    }
+
+    /**
+     * Wait to get the read lock, execute the code and then release the lock.
+     *
+     * @param lockName the name of the lock
+     * @param runnable the code to execute when the lock is held
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void waitReadLockAndExecute(String lockName, Runnable runnable) throws InterruptedException {
+        readLock(lockName);
+        try {
+            runnable.run();
+        } finally {
+            readUnlock(lockName);
+        }
+    }
+
+    /**
+     * Wait to get the write lock, execute the code and then release the lock.
+     *
+     * @param lockName the name of the lock
+     * @param runnable the code to execute when the lock is held
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void waitWriteLockAndExecute(String lockName, Runnable runnable) throws InterruptedException {
+        writeLock(lockName);
+        try {
+            runnable.run();
+        } finally {
+            writeUnlock(lockName);
+        }
+    }
+
+}
@@ -1,13 +1,18 @@
 package com.foilen.smalltools.mongodb.distributed;
 
-import com.foilen.smalltools.hash.HashSha1;
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
 import com.foilen.smalltools.mongodb.MongoDbChangeStreamWaitAnyChange;
 import com.foilen.smalltools.mongodb.MongoDbManageCollectionTools;
 import com.foilen.smalltools.tools.AbstractBasics;
 import com.foilen.smalltools.tools.BufferBatchesTools;
-import com.foilen.smalltools.tools.JsonTools;
 import com.foilen.smalltools.tools.RetryTools;
 import com.foilen.smalltools.tuple.Tuple2;
+import com.mongodb.CursorType;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.IndexOptions;
@@ -22,21 +27,33 @@ import java.util.stream.StreamSupport;
 /**
  * A distributed queue using MongoDB. When processing or removing an element, it is not removed from MongoDB, but only marked as processed for this specific instance. If you create a new instance, it will replay all the elements (unless you {@link #movePointerToEnd()}).
  * This is perfect for having multiple processes processing global actions that each node must process once. In other words: to broadcast actions to all nodes.
+ * <p>
+ * To share the progress between multiple instances or nodes (like an event log), use a {@link MongoDbReplayableQueueConsumerGroup} that persists its offset.
+ * <p>
+ * By default, the old elements are removed by a TTL index. To have a bounded storage without the deletion churn of the TTL monitor, use {@link #capped(Class, MongoClient, MongoCollection, long, long)} to store the elements in a capped collection.
+ * In that mode, the oldest elements are overwritten when the collection is full and waiting for new elements is done with a tailable cursor.
+ * <p>
+ * The values are saved as json, unless another codec is set with {@link #setCodec(Codec)}.
  *
  * @param <E> the type of elements in this queue
  */
 public class MongoDbReplayableQueue<E> extends AbstractBasics implements BlockingQueue<E> {
 
+    private static final int CAPPED_INSERT_MAX_ATTEMPTS_WITHOUT_PROGRESS = 10;
+    private static final long TAILABLE_CURSOR_MAX_AWAIT_TIME_MS = 10000;
+
     private final Class<E> entityType;
     private final MongoClient mongoClient;
     private final MongoCollection<Document> mongoCollection;
     private final long stopChangeStreamAfterNoThreadWaitedInMs;
+    private final boolean capped;
 
     private final Runnable collectionCreate;
 
     private MongoDbChangeStreamWaitAnyChange mongoDbChangeStreamWaitAnyChange;
 
     private long pointer = -1;
+    private Codec codec = JsonCodec.COMPACT;
 
     /**
      * Create a new instance of the queue.
@@ -64,14 +81,10 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
         this.mongoClient = mongoClient;
         this.mongoCollection = mongoCollection;
         this.stopChangeStreamAfterNoThreadWaitedInMs = stopChangeStreamAfterNoThreadWaitedInMs;
+        this.capped = false;
 
         collectionCreate = () -> {
-            MongoDbManageCollectionTools.addCollectionIfMissing(mongoClient, mongoCollection.getNamespace());
-            MongoDbManageCollectionTools.manageIndexes(mongoCollection, Map.of(
-                    "hashJsonValue_id", new Tuple2<>(
-                            new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, 1).append(MongoDbDistributedConstants.FIELD_ID, 1),
-                            new IndexOptions()
-                    ),
+            MongoDbManageCollectionTools.manageCollection(mongoClient, mongoCollection, Map.of(
                     "createdAt_" + maxDurationInSec, new Tuple2<>(
                             new Document().append(MongoDbDistributedConstants.FIELD_CREATED_AT, 1),
                             new IndexOptions().expireAfter(maxDurationInSec, TimeUnit.SECONDS)
@@ -86,13 +99,79 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
         collectionCreate.run();
     }
 
+    private MongoDbReplayableQueue(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, long stopChangeStreamAfterNoThreadWaitedInMs,
+                                   long maxCollectionSizeInBytes, long maxDocuments, boolean capped) {
+        this.entityType = entityType;
+        this.mongoClient = mongoClient;
+        this.mongoCollection = mongoCollection;
+        this.stopChangeStreamAfterNoThreadWaitedInMs = stopChangeStreamAfterNoThreadWaitedInMs;
+        this.capped = capped;
+
+        collectionCreate = () -> {
+            MongoDbManageCollectionTools.addCollectionIfMissing(mongoClient, mongoCollection.getNamespace(), maxCollectionSizeInBytes, maxDocuments);
+            MongoDbManageCollectionTools.manageIndexes(mongoCollection, Map.of(
+                    "operationType_1", new Tuple2<>(
+                            new Document().append("operationType", 1),
+                            new IndexOptions()
+                    )
+            ));
+            movePointerToEnd();
+        };
+        collectionCreate.run();
+    }
+
+    /**
+     * Create a new instance of the queue stored in a capped collection. The oldest elements are overwritten when the size or the amount of documents is reached.
+     * Default is to stop the change stream after 10 minutes of no thread waiting.
+     * <p>
+     * If the collection already exists, but is not capped or has different limits, it is dropped and recreated.
+     *
+     * @param entityType               the type of elements in this queue
+     * @param mongoClient              the mongo client
+     * @param mongoCollection          the mongo collection
+     * @param maxCollectionSizeInBytes the maximum size of the collection in bytes (use a multiple of 256)
+     * @param maxDocuments             the maximum amount of elements in the collection (0 for only using the size)
+     * @param <E>                      the type of elements in this queue
+     * @return the queue
+     */
+    public static <E> MongoDbReplayableQueue<E> capped(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, long maxCollectionSizeInBytes, long maxDocuments) {
+        return capped(entityType, mongoClient, mongoCollection, 10 * 60000, maxCollectionSizeInBytes, maxDocuments);
+    }
+
+    /**
+     * Create a new instance of the queue stored in a capped collection. The oldest elements are overwritten when the size or the amount of documents is reached.
+     * <p>
+     * If the collection already exists, but is not capped or has different limits, it is dropped and recreated.
+     *
+     * @param entityType                              the type of elements in this queue
+     * @param mongoClient                             the mongo client
+     * @param mongoCollection                         the mongo collection
+     * @param stopChangeStreamAfterNoThreadWaitedInMs the maximum time to wait for a change in the change stream (used when the tailable cursor cannot be used like when the collection is empty)
+     * @param maxCollectionSizeInBytes                the maximum size of the collection in bytes (use a multiple of 256)
+     * @param maxDocuments                            the maximum amount of elements in the collection (0 for only using the size)
+     * @param <E>                                     the type of elements in this queue
+     * @return the queue
+     */
+    public static <E> MongoDbReplayableQueue<E> capped(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, long stopChangeStreamAfterNoThreadWaitedInMs,
+                                                       long maxCollectionSizeInBytes, long maxDocuments) {
+        return new MongoDbReplayableQueue<>(entityType, mongoClient, mongoCollection, stopChangeStreamAfterNoThreadWaitedInMs, maxCollectionSizeInBytes, maxDocuments, true);
+    }
+
     public MongoDbReplayableQueue<E> movePointerToEnd() {
-        var lastEntry = mongoCollection.find()
-                .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
-                .sort(Sorts.descending(MongoDbDistributedConstants.FIELD_ID))
-                .first();
-        pointer = lastEntry == null ? -1 : lastEntry.getLong(MongoDbDistributedConstants.FIELD_ID);
+        pointer = findLastId();
+        return this;
+    }
 
+    /**
+     * Set the codec of the values. The default is {@link JsonCodec#COMPACT} that saves the json as a string. The other codecs save a binary that is usually smaller and faster to decode.
+     * All the instances using the same collection must use the same codec. The values saved as json strings are still readable after changing the codec, but {@link #contains(Object)} and
+     * {@link #containsAll(Collection)} only find the values saved with the same codec.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbReplayableQueue<E> setCodec(Codec codec) {
+        this.codec = codec;
         return this;
     }
 
@@ -103,6 +182,11 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
             throw new NullPointerException();
         }
 
+        if (capped) {
+            insertInCapped(List.of(e));
+            return true;
+        }
+
         // Insert a new document with the order as the maximum + 1
         RetryTools.retryBetween(3, 200, () -> {
             mongoClient.startSession().withTransaction(() -> {
@@ -112,11 +196,10 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
                         .first();
                 long order = nextEntry == null ? 0 : nextEntry.getLong(MongoDbDistributedConstants.FIELD_ID) + 1;
 
-                String jsonValue = JsonTools.compactPrintWithoutNulls(e);
+                Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, e);
                 mongoCollection.insertOne(new Document()
                         .append(MongoDbDistributedConstants.FIELD_ID, order)
                         .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
-                        .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, HashSha1.hashString(jsonValue))
                         .append(MongoDbDistributedConstants.FIELD_CREATED_AT, new Date())
                 );
                 return null;
@@ -131,6 +214,16 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
 
         BufferBatchesTools.<E>autoClose(10, items -> {
 
+            if (capped) {
+                items.forEach(e -> {
+                    if (e == null) {
+                        throw new NullPointerException();
+                    }
+                });
+                insertInCapped(items);
+                return;
+            }
+
             // Insert a new document with the order as the maximum + 1
             RetryTools.retryBetween(3, 200, () ->
                     mongoClient.startSession().withTransaction(() -> {
@@ -145,11 +238,10 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
                             if (e == null) {
                                 throw new NullPointerException();
                             }
-                            String jsonValue = JsonTools.compactPrintWithoutNulls(e);
+                            Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, e);
                             documents.add(new Document()
                                     .append(MongoDbDistributedConstants.FIELD_ID, order++)
                                     .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
-                                    .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, HashSha1.hashString(jsonValue))
                                     .append(MongoDbDistributedConstants.FIELD_CREATED_AT, new Date())
                             );
                         }
@@ -166,6 +258,50 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
         return true;
     }
 
+    /**
+     * Insert the elements in the capped collection with the order as the maximum + 1. Transactions cannot write in capped collections, so if another process took an order, it will retry with the
+     * remaining elements.
+     *
+     * @param items the elements to insert in order
+     */
+    private void insertInCapped(List<? extends E> items) {
+        int nextItemIndex = 0;
+        int attemptsWithoutProgress = 0;
+        while (nextItemIndex < items.size()) {
+            long order = findLastId() + 1;
+
+            List<Document> documents = new ArrayList<>();
+            for (var e : items.subList(nextItemIndex, items.size())) {
+                Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, e);
+                documents.add(new Document()
+                        .append(MongoDbDistributedConstants.FIELD_ID, order++)
+                        .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
+                        .append(MongoDbDistributedConstants.FIELD_CREATED_AT, new Date())
+                );
+            }
+
+            try {
+                mongoCollection.insertMany(documents);
+                return;
+            } catch (MongoBulkWriteException e) {
+                // The insert is ordered, so it stopped at the first duplicate
+                var writeError = e.getWriteErrors().get(0);
+                if (writeError.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+                if (writeError.getIndex() == 0) {
+                    if (++attemptsWithoutProgress >= CAPPED_INSERT_MAX_ATTEMPTS_WITHOUT_PROGRESS) {
+                        throw e;
+                    }
+                } else {
+                    attemptsWithoutProgress = 0;
+                }
+                logger.debug("Order already taken. Retrying the {} remaining elements", documents.size() - writeError.getIndex());
+                nextItemIndex += writeError.getIndex();
+            }
+        }
+    }
+
     @Override
     public E peek() {
         var result = mongoCollection.find(
@@ -177,7 +313,7 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
         if (result == null) {
             return null;
         } else {
-            return JsonTools.readFromString(result.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+            return MongoDbJsonValueTools.decodeValue(codec, result.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
         }
     }
 
@@ -187,11 +323,13 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
             return false;
         }
 
-        var hashJsonValue = HashSha1.hashString(JsonTools.compactPrintWithoutNulls(o));
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, o);
         return mongoCollection.find(new Document()
-                .append(MongoDbDistributedConstants.FIELD_ID, new Document().append("$gt", pointer))
-                .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValue)
-        ).first() != null;
+                        .append(MongoDbDistributedConstants.FIELD_ID, new Document().append("$gt", pointer))
+                        .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
+                )
+                .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first() != null;
     }
 
     @Override
@@ -200,27 +338,27 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
             throw new NullPointerException();
         }
 
-        // Get all the hashJsonValues
-        Set<String> allHashJsonValues = new HashSet<>();
+        // Get all the jsonValues
+        Set<Object> allJsonValues = new HashSet<>();
         c.forEach(item -> {
             if (item == null) {
                 throw new NullPointerException();
             }
-            allHashJsonValues.add(HashSha1.hashString(JsonTools.compactPrintWithoutNulls(item)));
+            allJsonValues.add(MongoDbJsonValueTools.encodeValue(codec, item));
         });
 
-        // Get the count of unique hashJsonValues in that list
+        // Get the count of unique jsonValues in that list
         long count = StreamSupport.stream(mongoCollection.find(new Document()
                                 .append(MongoDbDistributedConstants.FIELD_ID, new Document().append("$gt", pointer))
-                                .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, new Document().append("$in", allHashJsonValues))
+                                .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, new Document().append("$in", allJsonValues))
                         )
-                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, 1))
+                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
                         .spliterator(), false)
-                .map(document -> document.getString(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE))
-                .sorted().distinct()
+                .map(document -> document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE))
+                .distinct()
                 .count();
 
-        return count == allHashJsonValues.size();
+        return count == allJsonValues.size();
     }
 
     @Override
@@ -237,7 +375,7 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
                         .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
                         .projection(new Document().append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
                         .spliterator(), false)
-                .map(document -> JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType))
+                .map(document -> MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType))
                 .toArray();
     }
 
@@ -253,7 +391,86 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
         }
         pointer = entry.getLong(MongoDbDistributedConstants.FIELD_ID);
 
-        return JsonTools.readFromString(entry.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+        return MongoDbJsonValueTools.decodeValue(codec, entry.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+    }
+
+    /**
+     * Retrieve and mark as processed up to maxElements elements using a single query. If none are available, it will wait up to the timeout for some to be added.
+     *
+     * @param maxElements the maximum amount of elements to retrieve
+     * @param timeout     how long to wait before giving up, in units of unit
+     * @param unit        the unit of the timeout
+     * @return the elements in order (empty if none were available before the timeout)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<E> pollBatch(int maxElements, long timeout, TimeUnit unit) throws InterruptedException {
+
+        if (maxElements <= 0) {
+            throw new IllegalArgumentException("maxElements must be at least 1");
+        }
+
+        List<E> values = pollBatch(maxElements);
+        if (!values.isEmpty()) {
+            return values;
+        }
+
+        long waitUntil = System.currentTimeMillis() + unit.toMillis(timeout);
+        if (waitUntil < 0) {
+            waitUntil = Long.MAX_VALUE;
+        }
+        while (values.isEmpty() && System.currentTimeMillis() < waitUntil) {
+            waitForChange(pointer, waitUntil - System.currentTimeMillis());
+            values = pollBatch(maxElements);
+        }
+        return values;
+    }
+
+    private synchronized List<E> pollBatch(int maxElements) {
+        List<E> values = new ArrayList<>();
+        findAfter(pointer, maxElements).forEach(document -> {
+            pointer = document.getLong(MongoDbDistributedConstants.FIELD_ID);
+            values.add(toEntity(document));
+        });
+        return values;
+    }
+
+    /**
+     * Get the elements after the specified id, in order, with a single cursor.
+     *
+     * @param afterId     the id of the last processed element
+     * @param maxElements the maximum amount of elements to retrieve
+     * @return the documents
+     */
+    FindIterable<Document> findAfter(long afterId, int maxElements) {
+        return mongoCollection.find(
+                        new Document()
+                                .append(MongoDbDistributedConstants.FIELD_ID, new Document().append("$gt", afterId))
+                )
+                .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
+                .projection(new Document().append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
+                .batchSize(maxElements)
+                .limit(maxElements);
+    }
+
+    /**
+     * Get the id of the last element in the queue.
+     *
+     * @return the id or -1 if the queue is empty
+     */
+    long findLastId() {
+        var lastEntry = mongoCollection.find()
+                .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
+                .sort(Sorts.descending(MongoDbDistributedConstants.FIELD_ID))
+                .first();
+        return lastEntry == null ? -1 : lastEntry.getLong(MongoDbDistributedConstants.FIELD_ID);
+    }
+
+    E toEntity(Document document) {
+        return MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+    }
+
+    MongoClient getMongoClient() {
+        return mongoClient;
     }
 
     @Override
@@ -269,13 +486,32 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
             waitUntil = Long.MAX_VALUE;
         }
         while (value == null && System.currentTimeMillis() < waitUntil) {
-            waitForChange(waitUntil - System.currentTimeMillis());
+            waitForChange(pointer, waitUntil - System.currentTimeMillis());
             value = poll();
         }
         return value;
     }
 
-    private void waitForChange(long timeInMs) throws InterruptedException {
+    /**
+     * Wait for an element to be added after the specified id or until the time is elapsed.
+     *
+     * @param afterId  the id of the last processed element
+     * @param timeInMs the maximum time to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void waitForChange(long afterId, long timeInMs) throws InterruptedException {
+
+        if (capped) {
+            long waitUntil = System.currentTimeMillis() + timeInMs;
+            if (waitWithTailableCursor(afterId, timeInMs)) {
+                return;
+            }
+            timeInMs = waitUntil - System.currentTimeMillis();
+            if (timeInMs <= 0) {
+                return;
+            }
+        }
+
         synchronized (this) {
             if (mongoDbChangeStreamWaitAnyChange == null) {
                 mongoDbChangeStreamWaitAnyChange = new MongoDbChangeStreamWaitAnyChange(collectionCreate, mongoCollection, stopChangeStreamAfterNoThreadWaitedInMs, "insert");
@@ -284,6 +520,42 @@ public class MongoDbReplayableQueue<E> extends AbstractBasics implements Blockin
         mongoDbChangeStreamWaitAnyChange.waitForChange(timeInMs);
     }
 
+    /**
+     * Wait for an element after the specified id with a tailable cursor that follows the natural order of the capped collection.
+     *
+     * @param afterId  the id of the last processed element
+     * @param timeInMs the maximum time to wait
+     * @return true if an element is available ; false if the time is elapsed or if the cursor got closed (e.g. when the collection is empty)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private boolean waitWithTailableCursor(long afterId, long timeInMs) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + timeInMs;
+        try (var cursor = mongoCollection.find(
+                        new Document()
+                                .append(MongoDbDistributedConstants.FIELD_ID, new Document().append("$gt", afterId))
+                )
+                .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
+                .cursorType(CursorType.TailableAwait)
+                .maxAwaitTime(Math.max(1, Math.min(timeInMs, TAILABLE_CURSOR_MAX_AWAIT_TIME_MS)), TimeUnit.MILLISECONDS)
+                .cursor()) {
+            while (System.currentTimeMillis() < waitUntil) {
+                if (cursor.tryNext() != null) {
+                    return true;
+                }
+                if (cursor.getServerCursor() == null) {
+                    logger.debug("The tailable cursor is closed");
+                    return false;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } catch (MongoException e) {
+            logger.warn("Problem while waiting with the tailable cursor. Will use the change stream", e);
+        }
+        return false;
+    }
+
     @Override
     public int drainTo(Collection<? super E> c, int maxElements) {
         throw new UnsupportedOperationException("Cannot delete elements");
@@ -1,31 +1,57 @@
 package com.foilen.smalltools.mongodb.distributed;
 
-import com.foilen.smalltools.hash.HashSha1;
-import com.foilen.smalltools.mongodb.MongoDbManageCollectionTools;
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.exception.SmallToolsException;
+import com.foilen.smalltools.mongodb.MongoDbBulkWriteTools;
 import com.foilen.smalltools.tools.AbstractBasics;
 import com.foilen.smalltools.tools.BufferBatchesTools;
-import com.foilen.smalltools.tools.JsonTools;
+import com.foilen.smalltools.tools.ExecutorsTools;
 import com.foilen.smalltools.tuple.Tuple2;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.FindOneAndReplaceOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
 import org.bson.Document;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A distributed Map using MongoDB with keys that are strings and value that will be any json serializable type.
  * You can also use it as a cache by providing a maxDurationInSec.
+ * <p>
+ * The values are saved as json, unless another codec is set with {@link #setCodec(Codec)}.
+ * <p>
+ * The lookups by value ({@link #containsValue(Object)}, {@link #values()}) compare the json values without an index, unless the value hash index is enabled in the constructor (see {@link MongoDbJsonValueTools}).
+ * <p>
+ * The write-behind mode can be enabled with {@link #setWriteBehind(long, int)} (see there for the details). Then, {@link #flush()} or {@link #close()} must be called to be sure everything is saved.
  *
  * @param <V> the value type
  */
-public class MongoDbSortedMapStringObject<V> extends AbstractBasics implements SortedMap<String, V> {
+public class MongoDbSortedMapStringObject<V> extends AbstractBasics implements SortedMap<String, V>, AutoCloseable {
+
+    public static final int DEFAULT_BULK_WRITE_BATCH_SIZE = 1000;
 
     private final Class<V> valueType;
     private final MongoCollection<Document> mongoCollection;
+    private final String fromKey;
+    private final String toKey;
+    private final boolean valueHashIndex;
+
+    private int cursorBatchSize = AbstractMongoDbBatchedIterator.DEFAULT_BATCH_SIZE;
+    private int bulkWriteBatchSize = DEFAULT_BULK_WRITE_BATCH_SIZE;
+    private Codec codec = JsonCodec.COMPACT;
+    private MongoDbWriteBehindBuffer<V> writeBehindBuffer;
+    private boolean writeBehindOwner;
 
     /**
      * Create a new instance of the map.
@@ -47,31 +73,101 @@ public class MongoDbSortedMapStringObject<V> extends AbstractBasics implements S
      * @param maxDurationInSec the maximum duration of an element in the cache (MongoDB can take up to 60 seconds to clean up after the expiration)
      */
     public MongoDbSortedMapStringObject(Class<V> valueType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, Long maxDurationInSec) {
+        this(valueType, mongoClient, mongoCollection, maxDurationInSec, false);
+    }
+
+    /**
+     * Create a new instance of the map.
+     *
+     * @param valueType        the value type
+     * @param mongoClient      the mongo client
+     * @param mongoCollection  the mongo collection
+     * @param maxDurationInSec the maximum duration of an element in the cache (MongoDB can take up to 60 seconds to clean up after the expiration)
+     * @param valueHashIndex   true to save a hash of the values with an index to speed up the lookups by value. The existing documents get their hash when it is enabled (see {@link MongoDbJsonValueTools})
+     */
+    public MongoDbSortedMapStringObject(Class<V> valueType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, Long maxDurationInSec, boolean valueHashIndex) {
         this.valueType = valueType;
         this.mongoCollection = mongoCollection;
+        this.fromKey = null;
+        this.toKey = null;
+        this.valueHashIndex = valueHashIndex;
 
-        // Collection
-        MongoDbManageCollectionTools.addCollectionIfMissing(mongoClient, mongoCollection.getNamespace());
-
-        // Indexes
+        // Collection and indexes
         Map<String, Tuple2<Document, IndexOptions>> indexes = new HashMap<>();
-        indexes.put("hashJsonValue_id", new Tuple2<>(
-                new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, 1).append(MongoDbDistributedConstants.FIELD_ID, 1),
-                new IndexOptions()
-        ));
         if (maxDurationInSec != null) {
             indexes.put("createdAt_" + maxDurationInSec, new Tuple2<>(
                     new Document().append(MongoDbDistributedConstants.FIELD_CREATED_AT, 1),
                     new IndexOptions().expireAfter(maxDurationInSec, TimeUnit.SECONDS)
             ));
         }
-        MongoDbManageCollectionTools.manageIndexes(mongoCollection, indexes);
+        MongoDbJsonValueTools.manageCollection(mongoClient, mongoCollection, indexes, valueHashIndex);
+
+    }
 
+    private MongoDbSortedMapStringObject(Class<V> valueType, MongoCollection<Document> mongoCollection, String fromKey, String toKey, boolean valueHashIndex, int cursorBatchSize, int bulkWriteBatchSize,
+                                         Codec codec, MongoDbWriteBehindBuffer<V> writeBehindBuffer) {
+        this.valueType = valueType;
+        this.mongoCollection = mongoCollection;
+        this.fromKey = fromKey;
+        this.toKey = toKey;
+        this.valueHashIndex = valueHashIndex;
+        this.cursorBatchSize = cursorBatchSize;
+        this.bulkWriteBatchSize = bulkWriteBatchSize;
+        this.codec = codec;
+        this.writeBehindBuffer = writeBehindBuffer;
+    }
+
+    private void flushWriteBehind() {
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.flush();
+        }
+    }
+
+    private boolean isInRange(Object key) {
+        if (key instanceof String value) {
+            if (fromKey != null && value.compareTo(fromKey) < 0)
+                return false;
+            if (toKey != null && value.compareTo(toKey) >= 0)
+                return false;
+            return true;
+        }
+        return false;
+    }
+
+    private void checkInRange(String key) {
+        if (fromKey != null && key.compareTo(fromKey) < 0)
+            throw new IllegalArgumentException("Key is smaller than the fromKey");
+
+        if (toKey != null && key.compareTo(toKey) >= 0)
+            throw new IllegalArgumentException("Key is greater or equal to the toKey");
+    }
+
+    private Document getFilter() {
+        var idFilter = new Document();
+        if (fromKey != null) {
+            idFilter.append("$gte", fromKey);
+        }
+        if (toKey != null) {
+            idFilter.append("$lt", toKey);
+        }
+        if (idFilter.isEmpty()) {
+            // All
+            return new Document();
+        }
+        return new Document(MongoDbDistributedConstants.FIELD_ID, idFilter);
     }
 
     @Override
     public boolean containsKey(Object key) {
-        return mongoCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key)).first() != null;
+        if (!isInRange(key)) {
+            return false;
+        }
+        if (writeBehindBuffer != null && writeBehindBuffer.get((String) key) != null) {
+            return true;
+        }
+        return mongoCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first() != null;
     }
 
     @Override
@@ -80,31 +176,51 @@ public class MongoDbSortedMapStringObject<V> extends AbstractBasics implements S
             return false;
         }
 
-        var hashJsonValue = HashSha1.hashString(JsonTools.compactPrintWithoutNulls(value));
-        return mongoCollection.find(new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValue)).first() != null;
+        flushWriteBehind();
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, value);
+        return mongoCollection.find(Filters.and(getFilter(), MongoDbJsonValueTools.filterEq(jsonValue, valueHashIndex)))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first() != null;
     }
 
     @Override
     public V get(Object key) {
-        Document document = mongoCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key)).first();
+        if (!isInRange(key)) {
+            return null;
+        }
+        if (writeBehindBuffer != null) {
+            var pendingValue = writeBehindBuffer.get((String) key);
+            if (pendingValue != null) {
+                return pendingValue.getValue();
+            }
+        }
+        Document document = mongoCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
+                .first();
         if (document == null) {
             return null;
         }
-        return JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType);
+        return MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType);
     }
 
+    /**
+     * Save the value. In write-behind mode, it is only added in the buffer and the previous value is returned only if it was still in the buffer.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the previous value
+     */
     @Override
     public V put(String key, V value) {
-        // Prepare the document
-        String jsonValue = JsonTools.compactPrintWithoutNulls(value);
-        var hashJsonValue = HashSha1.hashString(jsonValue);
-        var document = new Document()
-                .append(MongoDbDistributedConstants.FIELD_ID, key)
-                .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
-                .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValue)
-                .append(MongoDbDistributedConstants.FIELD_CREATED_AT, new Date());
+        checkInRange(key);
+
+        if (writeBehindBuffer != null) {
+            var previousPendingValue = writeBehindBuffer.put(key, value);
+            return previousPendingValue == null ? null : previousPendingValue.getValue();
+        }
 
         // Save the document
+        var document = toDocument(key, value);
         var previousDocument = mongoCollection.findOneAndReplace(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key),
                 document,
                 new FindOneAndReplaceOptions().upsert(true)
@@ -114,44 +230,65 @@ public class MongoDbSortedMapStringObject<V> extends AbstractBasics implements S
         if (previousDocument == null) {
             return null;
         }
-        return JsonTools.readFromString(previousDocument.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType);
+        return MongoDbJsonValueTools.decodeValue(codec, previousDocument.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType);
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends V> m) {
 
-        BufferBatchesTools.<Entry<String, V>>autoClose(10, items -> {
-            mongoCollection.insertMany(items.stream()
-                    .map(entry -> {
-                        String jsonValue = JsonTools.compactPrintWithoutNulls(entry.getValue());
-                        var hashJsonValue = HashSha1.hashString(jsonValue);
-                        return new Document()
-                                .append(MongoDbDistributedConstants.FIELD_ID, entry.getKey())
-                                .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
-                                .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValue)
-                                .append(MongoDbDistributedConstants.FIELD_CREATED_AT, new Date());
-                    })
+        m.keySet().forEach(this::checkInRange);
+
+        if (writeBehindBuffer != null) {
+            m.forEach(writeBehindBuffer::put);
+            return;
+        }
+
+        upsertAll(m.entrySet());
+
+    }
+
+    private void upsertAll(Collection<? extends Entry<? extends String, ? extends V>> entries) {
+        BufferBatchesTools.<Entry<String, V>>autoClose(bulkWriteBatchSize, items -> {
+            MongoDbBulkWriteTools.bulkUpsertUnorderedWithRetry(mongoCollection, items.stream()
+                    .map(entry -> new ReplaceOneModel<>(
+                            Filters.eq(MongoDbDistributedConstants.FIELD_ID, entry.getKey()),
+                            toDocument(entry.getKey(), entry.getValue()),
+                            new ReplaceOptions().upsert(true)
+                    ))
                     .toList());
         }, bufferBatchesTools -> {
-            m.entrySet().forEach(entry -> {
-                bufferBatchesTools.add((Entry<String, V>) entry);
+            entries.forEach(entry -> {
+                bufferBatchesTools.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
             });
         });
 
     }
 
+    private Document toDocument(String key, V value) {
+        Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, value);
+        return MongoDbJsonValueTools.appendJsonValue(new Document()
+                        .append(MongoDbDistributedConstants.FIELD_ID, key),
+                jsonValue, valueHashIndex
+        ).append(MongoDbDistributedConstants.FIELD_CREATED_AT, new Date());
+    }
+
     @Override
     public V remove(Object key) {
+        if (!isInRange(key)) {
+            return null;
+        }
+        flushWriteBehind();
         Document document = mongoCollection.findOneAndDelete(Filters.eq(MongoDbDistributedConstants.FIELD_ID, key));
         if (document == null) {
             return null;
         }
-        return JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType);
+        return MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType);
     }
 
     @Override
     public void clear() {
-        mongoCollection.deleteMany(Filters.empty());
+        flushWriteBehind();
+        mongoCollection.deleteMany(getFilter());
     }
 
     /**
@@ -160,13 +297,22 @@ public class MongoDbSortedMapStringObject<V> extends AbstractBasics implements S
      * @return true if the map was already empty
      */
     public boolean clearAndTellIfWasEmpty() {
-        var result = mongoCollection.deleteMany(Filters.empty());
+        flushWriteBehind();
+        var result = mongoCollection.deleteMany(getFilter());
         return result.getDeletedCount() != 0;
     }
 
     @Override
     public int size() {
-        long count = mongoCollection.estimatedDocumentCount();
+        flushWriteBehind();
+        long count;
+        if (fromKey != null || toKey != null) {
+            // Subset
+            count = mongoCollection.countDocuments(getFilter());
+        } else {
+            // All
+            count = mongoCollection.estimatedDocumentCount();
+        }
         if (count > Integer.MAX_VALUE) {
             return Integer.MAX_VALUE;
         }
@@ -184,24 +330,40 @@ public class MongoDbSortedMapStringObject<V> extends AbstractBasics implements S
     }
 
     @Override
-    public SortedMap<String, V> subMap(String fromKey, String toKey) {
-        throw new UnsupportedOperationException();
+    public MongoDbSortedMapStringObject<V> subMap(String fromKey, String toKey) {
+        String from = this.fromKey;
+        String to = this.toKey;
+        if (fromKey != null) {
+            // If from is null or fromKey is greater
+            if (from == null || fromKey.compareTo(from) > 0) {
+                from = fromKey;
+            }
+        }
+        if (toKey != null) {
+            // If to is null or toKey is smaller
+            if (to == null || toKey.compareTo(to) < 0) {
+                to = toKey;
+            }
+        }
+        return new MongoDbSortedMapStringObject<>(valueType, mongoCollection, from, to, valueHashIndex, cursorBatchSize, bulkWriteBatchSize, codec, writeBehindBuffer);
     }
 
     @Override
-    public SortedMap<String, V> headMap(String toKey) {
-        throw new UnsupportedOperationException();
+    public MongoDbSortedMapStringObject<V> headMap(String toKey) {
+        return subMap(null, toKey);
     }
 
     @Override
-    public SortedMap<String, V> tailMap(String fromKey) {
-        throw new UnsupportedOperationException();
+    public MongoDbSortedMapStringObject<V> tailMap(String fromKey) {
+        return subMap(fromKey, null);
     }
 
     @Override
     public String firstKey() {
-        Document first = mongoCollection.find()
+        flushWriteBehind();
+        Document first = mongoCollection.find(getFilter())
                 .sort(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
                 .first();
         if (first == null) {
             return null;
@@ -211,8 +373,10 @@ public class MongoDbSortedMapStringObject<V> extends AbstractBasics implements S
 
     @Override
     public String lastKey() {
-        Document last = mongoCollection.find()
+        flushWriteBehind();
+        Document last = mongoCollection.find(getFilter())
                 .sort(new Document().append(MongoDbDistributedConstants.FIELD_ID, -1))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
                 .first();
         if (last == null) {
             return null;
@@ -222,17 +386,242 @@ public class MongoDbSortedMapStringObject<V> extends AbstractBasics implements S
 
     @Override
     public SortedSet<String> keySet() {
-        return new MongoDbIdStringSortedSet(mongoCollection);
+        flushWriteBehind();
+        return new MongoDbIdStringSortedSet(mongoCollection, fromKey, toKey)
+                .setCursorBatchSize(cursorBatchSize)
+                .setBulkWriteBatchSize(bulkWriteBatchSize);
     }
 
     @Override
     public Collection<V> values() {
-        return new MongoDbValueCollection(valueType, mongoCollection);
+        flushWriteBehind();
+        return new MongoDbValueCollection<>(valueType, mongoCollection, fromKey, toKey)
+                .setValueHashIndex(valueHashIndex)
+                .setCursorBatchSize(cursorBatchSize)
+                .setCodec(codec);
     }
 
     @Override
     public SortedSet<Entry<String, V>> entrySet() {
-        return new MongoDbEntryStringObjectSortedSet<>(valueType, mongoCollection);
+        flushWriteBehind();
+        return new MongoDbEntryStringObjectSortedSet<>(valueType, mongoCollection, fromKey, toKey)
+                .setCursorBatchSize(cursorBatchSize)
+                .setCodec(codec);
+    }
+
+    /**
+     * Split the keys of this map in ranges having about the same amount of entries. It uses the "$bucketAuto" aggregation on the "_id".
+     *
+     * @param maxRangeCount the maximum amount of ranges (there could be less if there are not enough entries)
+     * @return the ranges in order. Together, they cover all the keys of this map
+     */
+    public List<MongoDbKeyRange> splitInRanges(int maxRangeCount) {
+        if (maxRangeCount <= 0) {
+            throw new IllegalArgumentException("maxRangeCount must be at least 1");
+        }
+
+        flushWriteBehind();
+
+        // Get the boundaries
+        List<String> splitKeys = new ArrayList<>();
+        if (maxRangeCount > 1) {
+            mongoCollection.aggregate(List.of(
+                            new Document("$match", getFilter()),
+                            new Document("$bucketAuto", new Document()
+                                    .append("groupBy", "$" + MongoDbDistributedConstants.FIELD_ID)
+                                    .append("buckets", maxRangeCount)
+                            )
+                    ))
+                    .allowDiskUse(true)
+                    .forEach(bucket -> {
+                        Document bucketId = bucket.get(MongoDbDistributedConstants.FIELD_ID, Document.class);
+                        splitKeys.add(bucketId.getString("min"));
+                    });
+        }
+
+        // Create the ranges (the first bucket starts at the beginning of this map)
+        List<MongoDbKeyRange> ranges = new ArrayList<>();
+        String rangeFromKey = fromKey;
+        for (int i = 1; i < splitKeys.size(); ++i) {
+            String splitKey = splitKeys.get(i);
+            ranges.add(new MongoDbKeyRange(rangeFromKey, splitKey));
+            rangeFromKey = splitKey;
+        }
+        ranges.add(new MongoDbKeyRange(rangeFromKey, toKey));
+        return ranges;
+    }
+
+    private MongoDbEntryStringObjectSortedSetIterator<V> rangeIterator(MongoDbKeyRange range) {
+        return new MongoDbEntryStringObjectSortedSetIterator<>(valueType, mongoCollection, range.getResumeFromKey(), range.getToKey(), cursorBatchSize, codec);
+    }
+
+    private void scanRange(MongoDbKeyRange range, BiConsumer<String, V> consumer) {
+        var iterator = rangeIterator(range);
+        try {
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                consumer.accept(entry.getKey(), entry.getValue());
+                range.setLastProcessedKey(entry.getKey());
+            }
+            range.setCompleted(true);
+        } finally {
+            iterator.close();
+        }
+    }
+
+    /**
+     * Split the keys in ranges and scan them in parallel.
+     *
+     * @param maxRangeCount the maximum amount of ranges to scan in parallel
+     * @param consumer      the consumer of the entries. Must be thread-safe
+     * @return the ranges that failed. They can be passed to {@link #parallelScan(List, BiConsumer)} to resume the scan where it stopped
+     */
+    public List<MongoDbKeyRange> parallelScan(int maxRangeCount, BiConsumer<String, V> consumer) {
+        return parallelScan(splitInRanges(maxRangeCount), consumer);
+    }
+
+    /**
+     * Scan the ranges in parallel. The ranges that are already completed are skipped and the others are continued after their last processed key.
+     *
+     * @param ranges   the ranges to scan
+     * @param consumer the consumer of the entries. Must be thread-safe
+     * @return the ranges that failed. They can be passed again to this method to resume the scan where it stopped
+     */
+    public List<MongoDbKeyRange> parallelScan(List<MongoDbKeyRange> ranges, BiConsumer<String, V> consumer) {
+
+        flushWriteBehind();
+
+        var executorService = ExecutorsTools.getCachedDaemonThreadPool();
+        Map<MongoDbKeyRange, Future<?>> futureByRange = new LinkedHashMap<>();
+        ranges.stream()
+                .filter(range -> !range.isCompleted())
+                .forEach(range -> futureByRange.put(range, executorService.submit(() -> scanRange(range, consumer))));
+
+        List<MongoDbKeyRange> failedRanges = new ArrayList<>();
+        futureByRange.forEach((range, future) -> {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SmallToolsException("Interrupted while waiting for the scan to complete", e);
+            } catch (ExecutionException e) {
+                logger.error("Failed to scan the range {}", range, e.getCause());
+                failedRanges.add(range);
+            }
+        });
+        return failedRanges;
+    }
+
+    /**
+     * Split the keys in ranges and get a parallel stream of the entries that is scanning the ranges concurrently.
+     *
+     * @param maxRangeCount the maximum amount of ranges
+     * @return the parallel stream
+     */
+    public Stream<Entry<String, V>> parallelStream(int maxRangeCount) {
+        return splitInRanges(maxRangeCount).parallelStream()
+                .flatMap(range -> {
+                    var iterator = rangeIterator(range);
+                    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+                            .onClose(iterator::close);
+                });
+    }
+
+    /**
+     * Set the amount of documents retrieved per batch when iterating over the keys, values or entries.
+     *
+     * @param cursorBatchSize the batch size
+     * @return this
+     */
+    public MongoDbSortedMapStringObject<V> setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize <= 0) {
+            throw new IllegalArgumentException("cursorBatchSize must be at least 1");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the amount of entries sent per bulk write in {@link #putAll(Map)}.
+     *
+     * @param bulkWriteBatchSize the batch size
+     * @return this
+     */
+    public MongoDbSortedMapStringObject<V> setBulkWriteBatchSize(int bulkWriteBatchSize) {
+        if (bulkWriteBatchSize <= 0) {
+            throw new IllegalArgumentException("bulkWriteBatchSize must be at least 1");
+        }
+        this.bulkWriteBatchSize = bulkWriteBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the codec of the values. The default is {@link JsonCodec#COMPACT} that saves the json as a string. The other codecs save a binary that is usually smaller and faster to decode.
+     * <ul>
+     * <li>The values saved as json strings are still readable after changing the codec.</li>
+     * <li>The lookups by value ({@link #containsValue(Object)}, {@link #values()}, {@link #entrySet()}) only find the values saved with the same codec.</li>
+     * </ul>
+     * Must be called on the map returned by the constructor before creating any sub map.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbSortedMapStringObject<V> setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Enable the write-behind mode. The puts are kept in a local buffer where the last value per key wins and they are saved later with unordered bulk upserts. That is useful when the same keys are
+     * updated often.
+     * <ul>
+     * <li>The buffer is saved at most flushDelayInMs after the first put or right away by the put that makes it reach flushAtSize keys.</li>
+     * <li>{@link #get(Object)} and {@link #containsKey(Object)} check the buffer first.</li>
+     * <li>All the other methods that read or remove from the collection save the buffer first.</li>
+     * <li>The other instances on the same collection only see the values once they are saved.</li>
+     * </ul>
+     * Must be called on the map returned by the constructor before creating any sub map (they share the same buffer).
+     *
+     * @param flushDelayInMs the maximum time a put stays in the buffer
+     * @param flushAtSize    the amount of keys in the buffer that makes it save right away
+     * @return this
+     */
+    public MongoDbSortedMapStringObject<V> setWriteBehind(long flushDelayInMs, int flushAtSize) {
+        if (flushDelayInMs <= 0) {
+            throw new IllegalArgumentException("flushDelayInMs must be at least 1");
+        }
+        if (flushAtSize <= 0) {
+            throw new IllegalArgumentException("flushAtSize must be at least 1");
+        }
+        if (fromKey != null || toKey != null) {
+            throw new IllegalStateException("The write-behind mode can only be enabled on the full map");
+        }
+        if (writeBehindBuffer != null) {
+            throw new IllegalStateException("The write-behind mode is already enabled");
+        }
+        this.writeBehindBuffer = new MongoDbWriteBehindBuffer<>(flushDelayInMs, flushAtSize, this::upsertAll);
+        this.writeBehindOwner = true;
+        return this;
+    }
+
+    /**
+     * Save what is in the write-behind buffer. Does nothing when the write-behind mode is not enabled.
+     */
+    public void flush() {
+        flushWriteBehind();
+    }
+
+    /**
+     * Stop the write-behind flusher and save what is in the buffer. Does nothing when the write-behind mode is not enabled.
+     * On a sub map, it only saves what is in the buffer since the flusher is shared with the map that enabled the write-behind mode.
+     */
+    @Override
+    public void close() {
+        if (writeBehindOwner) {
+            writeBehindBuffer.close();
+        } else {
+            flushWriteBehind();
+        }
     }
 
 }
@@ -0,0 +1,143 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Spliterator} over a range of documents that have a string "_id". It can be split in 2 ranges of about the same amount of documents to scan them in parallel.
+ * <p>
+ * A split is only possible before starting to iterate and when the range contains at least 2 batches of documents.
+ *
+ * @param <E> the type of elements
+ */
+public class MongoDbStringRangeSpliterator<E> implements Spliterator<E> {
+
+    private final MongoCollection<Document> mongoCollection;
+    private final BiFunction<String, String, Iterator<E>> iteratorFactory;
+    private final int characteristics;
+    private final int batchSize;
+
+    private String fromId;
+    private final String toId;
+
+    private long count = -1;
+    private Iterator<E> iterator;
+
+    /**
+     * Create the spliterator.
+     *
+     * @param mongoCollection the collection
+     * @param fromId          the first id (inclusive) or null to start at the beginning
+     * @param toId            the last id (exclusive) or null to go until the end
+     * @param batchSize       the amount of documents per batch (ranges smaller than 2 batches are not split)
+     * @param characteristics the characteristics of the elements (e.g. {@link Spliterator#ORDERED})
+     * @param iteratorFactory the function that creates the iterator of a range (fromId, toId)
+     */
+    public MongoDbStringRangeSpliterator(MongoCollection<Document> mongoCollection, String fromId, String toId, int batchSize, int characteristics,
+                                         BiFunction<String, String, Iterator<E>> iteratorFactory) {
+        this.mongoCollection = mongoCollection;
+        this.fromId = fromId;
+        this.toId = toId;
+        this.batchSize = batchSize;
+        this.characteristics = characteristics;
+        this.iteratorFactory = iteratorFactory;
+    }
+
+    private Document getFilter() {
+        var idFilter = new Document();
+        if (fromId != null) {
+            idFilter.append("$gte", fromId);
+        }
+        if (toId != null) {
+            idFilter.append("$lt", toId);
+        }
+        if (idFilter.isEmpty()) {
+            return new Document();
+        }
+        return new Document(MongoDbDistributedConstants.FIELD_ID, idFilter);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super E> action) {
+        if (iterator == null) {
+            iterator = iteratorFactory.apply(fromId, toId);
+        }
+        if (!iterator.hasNext()) {
+            return false;
+        }
+        action.accept(iterator.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super E> action) {
+        if (iterator == null) {
+            iterator = iteratorFactory.apply(fromId, toId);
+        }
+        iterator.forEachRemaining(action);
+    }
+
+    @Override
+    public Spliterator<E> trySplit() {
+
+        // Already iterating
+        if (iterator != null) {
+            return null;
+        }
+
+        long currentCount = estimateSize();
+        if (currentCount < 2L * batchSize) {
+            return null;
+        }
+
+        // Find the middle id
+        long prefixCount = currentCount / 2;
+        var middleDocument = mongoCollection.find(getFilter())
+                .sort(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .skip((int) Math.min(prefixCount, Integer.MAX_VALUE))
+                .limit(1)
+                .first();
+        if (middleDocument == null) {
+            // The documents were removed since the count
+            count = -1;
+            return null;
+        }
+        String middleId = middleDocument.getString(MongoDbDistributedConstants.FIELD_ID);
+
+        var prefix = new MongoDbStringRangeSpliterator<>(mongoCollection, fromId, middleId, batchSize, characteristics, iteratorFactory);
+        prefix.count = prefixCount;
+        fromId = middleId;
+        count = currentCount - prefixCount;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        if (count < 0) {
+            count = mongoCollection.countDocuments(getFilter());
+        }
+        return count;
+    }
+
+    @Override
+    public int characteristics() {
+        return characteristics;
+    }
+
+    @Override
+    public Comparator<? super E> getComparator() {
+        if (hasCharacteristics(SORTED)) {
+            // Natural order
+            return null;
+        }
+        throw new IllegalStateException();
+    }
+
+}
@@ -1,14 +1,15 @@
 package com.foilen.smalltools.mongodb.distributed;
 
-import com.foilen.smalltools.hash.HashSha1;
-import com.foilen.smalltools.tools.JsonTools;
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
-import com.mongodb.client.model.Sorts;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Spliterator;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -16,15 +17,42 @@ public class MongoDbValueCollection<V> implements Collection<V> {
 
     private final Class<V> valueType;
     private final MongoCollection<Document> mongoCollection;
+    private final String fromId;
+    private final String toId;
+
+    private boolean valueHashIndex;
+    private int cursorBatchSize = AbstractMongoDbBatchedIterator.DEFAULT_BATCH_SIZE;
+    private Codec codec = JsonCodec.COMPACT;
 
     public MongoDbValueCollection(Class<V> valueType, MongoCollection<Document> mongoCollection) {
+        this(valueType, mongoCollection, null, null);
+    }
+
+    /**
+     * Create the collection of the values for a range of keys.
+     *
+     * @param valueType       the value type
+     * @param mongoCollection the mongo collection
+     * @param fromId          the first key (inclusive) or null to start at the beginning
+     * @param toId            the last key (exclusive) or null to go until the end
+     */
+    public MongoDbValueCollection(Class<V> valueType, MongoCollection<Document> mongoCollection, String fromId, String toId) {
         this.valueType = valueType;
         this.mongoCollection = mongoCollection;
+        this.fromId = fromId;
+        this.toId = toId;
     }
 
     @Override
     public int size() {
-        long count = mongoCollection.estimatedDocumentCount();
+        long count;
+        if (fromId != null || toId != null) {
+            // Subset
+            count = mongoCollection.countDocuments(getFilter());
+        } else {
+            // All
+            count = mongoCollection.estimatedDocumentCount();
+        }
         if (count > Integer.MAX_VALUE) {
             return Integer.MAX_VALUE;
         }
@@ -42,22 +70,34 @@ public class MongoDbValueCollection<V> implements Collection<V> {
             return false;
         }
 
-        var hashJsonValue = HashSha1.hashString(JsonTools.compactPrintWithoutNulls(value));
-        return mongoCollection.find(new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValue)).first() != null;
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, value);
+        return mongoCollection.find(Filters.and(
+                getFilter(),
+                MongoDbJsonValueTools.filterEq(jsonValue, valueHashIndex)
+        )).projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1)).first() != null;
     }
 
     @Override
     public Iterator<V> iterator() {
-        return new MongoDbValueCollectionIterator<>(valueType, mongoCollection);
+        return new MongoDbValueCollectionIterator<>(valueType, mongoCollection, fromId, toId, cursorBatchSize, codec);
+    }
+
+    /**
+     * Get a spliterator that can split the keys range in 2 to scan it in parallel (e.g. with {@link #parallelStream()}).
+     *
+     * @return the spliterator
+     */
+    @Override
+    public Spliterator<V> spliterator() {
+        return new MongoDbStringRangeSpliterator<>(mongoCollection, fromId, toId, cursorBatchSize,
+                Spliterator.ORDERED,
+                (from, to) -> new MongoDbValueCollectionIterator<>(valueType, mongoCollection, from, to, cursorBatchSize, codec)
+        );
     }
 
     @Override
     public Object[] toArray() {
-        return StreamSupport.stream(mongoCollection.find()
-                        .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
-                        .spliterator(), false)
-                .map(document -> JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType))
-                .toArray();
+        return StreamSupport.stream(spliterator(), false).toArray();
     }
 
     @Override
@@ -76,8 +116,11 @@ public class MongoDbValueCollection<V> implements Collection<V> {
             return false;
         }
 
-        var hashJsonValue = HashSha1.hashString(JsonTools.compactPrintWithoutNulls(value));
-        return mongoCollection.deleteOne(new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValue)).getDeletedCount() > 0;
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, value);
+        return mongoCollection.deleteOne(Filters.and(
+                getFilter(),
+                MongoDbJsonValueTools.filterEq(jsonValue, valueHashIndex)
+        )).getDeletedCount() > 0;
     }
 
     @Override
@@ -86,13 +129,15 @@ public class MongoDbValueCollection<V> implements Collection<V> {
             return true;
         }
 
-        var hashJsonValues = c.stream()
-                .map(JsonTools::compactPrintWithoutNulls)
-                .map(HashSha1::hashString)
+        var jsonValues = c.stream()
+                .map(value -> MongoDbJsonValueTools.encodeValue(codec, value))
                 .collect(Collectors.toSet());
         return mongoCollection.countDocuments(
-                Filters.in(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValues)
-        ) == hashJsonValues.size();
+                Filters.and(
+                        getFilter(),
+                        MongoDbJsonValueTools.filterIn(jsonValues, valueHashIndex)
+                )
+        ) == jsonValues.size();
     }
 
     @Override
@@ -106,34 +151,93 @@ public class MongoDbValueCollection<V> implements Collection<V> {
             return false;
         }
 
-        var hashJsonValues = c.stream()
-                .map(JsonTools::compactPrintWithoutNulls)
-                .map(HashSha1::hashString)
-                .sorted().distinct()
+        var jsonValues = c.stream()
+                .map(value -> MongoDbJsonValueTools.encodeValue(codec, value))
+                .distinct()
                 .toList();
         return mongoCollection.deleteMany(
-                Filters.in(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValues)
+                Filters.and(
+                        getFilter(),
+                        MongoDbJsonValueTools.filterIn(jsonValues, valueHashIndex)
+                )
         ).getDeletedCount() > 0;
     }
 
     @Override
     public boolean retainAll(Collection<?> c) {
         if (c.isEmpty()) {
-            return mongoCollection.deleteMany(Filters.empty()).getDeletedCount() > 0;
+            return mongoCollection.deleteMany(getFilter()).getDeletedCount() > 0;
         }
 
-        var hashJsonValues = c.stream()
-                .map(JsonTools::compactPrintWithoutNulls)
-                .map(HashSha1::hashString)
-                .sorted().distinct()
+        var jsonValues = c.stream()
+                .map(value -> MongoDbJsonValueTools.encodeValue(codec, value))
+                .distinct()
                 .toList();
         return mongoCollection.deleteMany(
-                Filters.nin(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValues)
+                Filters.and(
+                        getFilter(),
+                        MongoDbJsonValueTools.filterNin(jsonValues)
+                )
         ).getDeletedCount() > 0;
     }
 
     @Override
     public void clear() {
-        mongoCollection.deleteMany(Filters.empty());
+        mongoCollection.deleteMany(getFilter());
+    }
+
+    private Bson getFilter() {
+        if (fromId != null && toId != null) {
+            // Subset
+            return Filters.and(
+                    Filters.gte(MongoDbDistributedConstants.FIELD_ID, fromId),
+                    Filters.lt(MongoDbDistributedConstants.FIELD_ID, toId)
+            );
+        } else if (fromId != null) {
+            // From
+            return Filters.gte(MongoDbDistributedConstants.FIELD_ID, fromId);
+        } else if (toId != null) {
+            // To
+            return Filters.lt(MongoDbDistributedConstants.FIELD_ID, toId);
+        } else {
+            // All
+            return new Document();
+        }
+    }
+
+    /**
+     * Set the amount of documents retrieved per batch when iterating.
+     *
+     * @param cursorBatchSize the batch size
+     * @return this
+     */
+    public MongoDbValueCollection<V> setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize <= 0) {
+            throw new IllegalArgumentException("cursorBatchSize must be at least 1");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the codec of the values. Must be the same as the map using that collection.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbValueCollection<V> setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Set if the hash of the values is saved with an index in that collection (see {@link MongoDbJsonValueTools}). Must be the same as the map using that collection.
+     *
+     * @param valueHashIndex true to use the index
+     * @return this
+     */
+    public MongoDbValueCollection<V> setValueHashIndex(boolean valueHashIndex) {
+        this.valueHashIndex = valueHashIndex;
+        return this;
     }
 }
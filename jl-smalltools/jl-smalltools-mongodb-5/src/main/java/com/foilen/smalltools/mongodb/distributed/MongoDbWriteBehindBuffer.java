@@ -0,0 +1,140 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.foilen.smalltools.trigger.SmoothTrigger;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * The puts of a {@link MongoDbSortedMapStringObject} in write-behind mode that are not saved yet. The last put per key wins and they are saved with bulk upserts by a {@link SmoothTrigger} after a delay
+ * or right away when the buffer reaches its size.
+ *
+ * @param <V> the value type
+ */
+class MongoDbWriteBehindBuffer<V> extends AbstractBasics {
+
+    /**
+     * A pending value. Compared by identity to only remove it from the buffer if it was not replaced while it was saved.
+     *
+     * @param <V> the value type
+     */
+    static final class PendingValue<V> {
+
+        private final V value;
+
+        private PendingValue(V value) {
+            this.value = value;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+    }
+
+    private final ConcurrentMap<String, PendingValue<V>> pendingValueByKey = new ConcurrentHashMap<>();
+    private final int flushAtSize;
+    private final Consumer<List<Map.Entry<String, V>>> batchWriter;
+    private final SmoothTrigger smoothTrigger;
+
+    private final Object flushLock = new Object();
+    private boolean closed;
+
+    /**
+     * Create and start the buffer.
+     *
+     * @param flushDelayInMs the maximum time a put stays in the buffer
+     * @param flushAtSize    the amount of keys in the buffer that makes the put flush right away
+     * @param batchWriter    the writer that upserts the entries
+     */
+    MongoDbWriteBehindBuffer(long flushDelayInMs, int flushAtSize, Consumer<List<Map.Entry<String, V>>> batchWriter) {
+        this.flushAtSize = flushAtSize;
+        this.batchWriter = batchWriter;
+        this.smoothTrigger = new SmoothTrigger(flushDelayInMs, flushDelayInMs, false, () -> {
+            try {
+                flush();
+            } catch (Exception e) {
+                logger.error("Could not flush the write-behind buffer. Will retry on the next flush", e);
+            }
+        }).start();
+    }
+
+    /**
+     * Add the value in the buffer. Once closed, the value is saved right away.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the previous value that was still in the buffer or null if none
+     */
+    PendingValue<V> put(String key, V value) {
+        var previous = pendingValueByKey.put(key, new PendingValue<>(value));
+        if (pendingValueByKey.size() >= flushAtSize || !requestFlush()) {
+            flush();
+        }
+        return previous;
+    }
+
+    /**
+     * Get the value that is still in the buffer.
+     *
+     * @param key the key
+     * @return the pending value or null if none
+     */
+    PendingValue<V> get(String key) {
+        return pendingValueByKey.get(key);
+    }
+
+    /**
+     * Request the flusher to save the buffer later.
+     *
+     * @return false if closed
+     */
+    private synchronized boolean requestFlush() {
+        if (closed) {
+            return false;
+        }
+        smoothTrigger.request();
+        return true;
+    }
+
+    /**
+     * Save all the values that are currently in the buffer. The ones added while saving are kept for the next flush.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            if (pendingValueByKey.isEmpty()) {
+                return;
+            }
+
+            List<Map.Entry<String, PendingValue<V>>> pendingEntries = new ArrayList<>(pendingValueByKey.size());
+            pendingValueByKey.forEach((key, pendingValue) -> pendingEntries.add(Map.entry(key, pendingValue)));
+
+            List<Map.Entry<String, V>> entries = new ArrayList<>(pendingEntries.size());
+            pendingEntries.forEach(entry -> entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().getValue())));
+            batchWriter.accept(entries);
+
+            // Remove the saved ones that were not replaced while saving
+            pendingEntries.forEach(entry -> pendingValueByKey.remove(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Stop the flusher and save what is in the buffer. Calling it again only saves what is in the buffer.
+     */
+    void close() {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                smoothTrigger.stop(false);
+            }
+        }
+        flush();
+    }
+
+}
@@ -7,11 +7,13 @@ public class HoldingLockDetails extends AbstractBasics {
     private String threadUniqueId;
     private int reentrantCount;
 
+    private final long fencingToken;
     private final long dropLockAfter;
 
-    public HoldingLockDetails(String threadUniqueId, long dropLockAfterHeldForTooLongInMs) {
+    public HoldingLockDetails(String threadUniqueId, long fencingToken, long dropLockAfterHeldForTooLongInMs) {
         this.threadUniqueId = threadUniqueId;
         this.reentrantCount = 1;
+        this.fencingToken = fencingToken;
         this.dropLockAfter = System.currentTimeMillis() + dropLockAfterHeldForTooLongInMs;
     }
 
@@ -41,6 +43,10 @@ public class HoldingLockDetails extends AbstractBasics {
         this.reentrantCount = reentrantCount;
     }
 
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
     public long getDropLockAfter() {
         return dropLockAfter;
     }
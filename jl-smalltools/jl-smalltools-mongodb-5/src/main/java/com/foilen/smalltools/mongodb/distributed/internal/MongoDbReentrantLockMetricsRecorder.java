@@ -0,0 +1,25 @@
+package com.foilen.smalltools.mongodb.distributed.internal;
+
+import com.foilen.smalltools.mongodb.distributed.MongoDbReentrantLockMetrics;
+
+/**
+ * The metrics with their update methods for the locks. The users of the locks only see them as {@link MongoDbReentrantLockMetrics}.
+ */
+public class MongoDbReentrantLockMetricsRecorder extends MongoDbReentrantLockMetrics {
+
+    @Override
+    public void addWait(long waitTimeInMs, boolean timedOut) {
+        super.addWait(waitTimeInMs, timedOut);
+    }
+
+    @Override
+    public void incrementAcquired() {
+        super.incrementAcquired();
+    }
+
+    @Override
+    public void incrementDuplicateKey() {
+        super.incrementDuplicateKey();
+    }
+
+}
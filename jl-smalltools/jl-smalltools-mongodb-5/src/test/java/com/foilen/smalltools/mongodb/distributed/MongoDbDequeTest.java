@@ -1,12 +1,15 @@
 package com.foilen.smalltools.mongodb.distributed;
 
+import com.foilen.smalltools.codec.SmileCodec;
 import com.foilen.smalltools.mongodb.AbstractEmbeddedMongoDbTest;
 import com.foilen.smalltools.tools.ExecutorsTools;
 import com.foilen.smalltools.tools.SecureRandomTools;
 import com.foilen.smalltools.tools.ThreadTools;
 import com.foilen.smalltools.tools.TimeExecutionTools;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
 import org.bson.Document;
+import org.bson.types.Binary;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
@@ -15,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
@@ -171,6 +175,131 @@ public class MongoDbDequeTest extends AbstractEmbeddedMongoDbTest {
         Assertions.assertTrue(deque.containsAll(List.of("a", "a", "a", "a")));
     }
 
+    @Test
+    public void testStream() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var deque = new MongoDbDeque<>(Integer.class, mongoClient, mongoCollection)
+                .setCursorBatchSize(10);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 55; ++i) {
+            deque.addLast(i);
+            expected.add(i);
+        }
+
+        // In order over multiple batches
+        var spliterator = deque.spliterator();
+        Assertions.assertTrue(spliterator.hasCharacteristics(Spliterator.ORDERED));
+        Assertions.assertTrue(spliterator.hasCharacteristics(Spliterator.NONNULL));
+        Assertions.assertEquals(expected, deque.stream().toList());
+        Assertions.assertEquals(List.of(0, 2, 4), deque.stream().filter(it -> it % 2 == 0).limit(3).toList());
+        Assertions.assertArrayEquals(expected.toArray(), deque.toArray());
+        Assertions.assertEquals(0, new MongoDbDeque<>(Integer.class, mongoClient, mongoClient.getDatabase("test").getCollection(collectionName + "_empty")).stream().count());
+    }
+
+    @Test
+    public void testCodec() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var deque = new MongoDbDeque<>(String.class, mongoClient, mongoCollection, 10 * 60000, true)
+                .setCodec(SmileCodec.SMILE);
+
+        deque.addAll(List.of("a", "b", "c", "d", "e", "f"));
+        Assertions.assertTrue(mongoCollection.find().first().get(MongoDbDistributedConstants.FIELD_JSON_VALUE) instanceof Binary);
+
+        // Lookups by value
+        Assertions.assertTrue(deque.contains("c"));
+        Assertions.assertFalse(deque.contains("1"));
+        Assertions.assertTrue(deque.containsAll(List.of("b", "f")));
+        Assertions.assertTrue(deque.remove("c"));
+        Assertions.assertTrue(deque.removeAll(List.of("d", "1")));
+        Assertions.assertTrue(deque.retainAll(List.of("a", "b", "f")));
+        assertList(deque, "a", "b", "f");
+
+        // Polling
+        Assertions.assertEquals("a", deque.pollFirst());
+        Assertions.assertEquals("f", deque.pollLast());
+        assertList(deque, "b");
+    }
+
+    @Test
+    public void testValueHashIndex() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var deque = new MongoDbDeque<>(String.class, mongoClient, mongoCollection, 10 * 60000, true);
+
+        deque.addAll(List.of("e", "a", "d", "Z", "b", "c", "d", "Y", "e", "a", "f"));
+        Assertions.assertTrue(hasIndex(mongoCollection, MongoDbJsonValueTools.INDEX_NAME));
+        Assertions.assertEquals(MongoDbJsonValueTools.hashJsonValue("\"e\""), (long) mongoCollection.find(new Document(MongoDbDistributedConstants.FIELD_JSON_VALUE, "\"e\"")).first().getLong(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH));
+
+        // Lookups by value
+        Assertions.assertTrue(deque.removeFirstOccurrence("d"));
+        Assertions.assertTrue(deque.remove("e"));
+        Assertions.assertTrue(deque.removeLastOccurrence("a"));
+        Assertions.assertTrue(deque.removeAll(List.of("Y", "Z")));
+        Assertions.assertFalse(deque.remove("1"));
+        Assertions.assertFalse(deque.removeAll(List.of("1", "2")));
+        assertList(deque, "a", "b", "c", "d", "e", "f");
+        Assertions.assertTrue(deque.contains("a"));
+        Assertions.assertFalse(deque.contains("1"));
+        Assertions.assertTrue(deque.containsAll(List.of("b", "c", "f")));
+        Assertions.assertFalse(deque.containsAll(List.of("1", "a")));
+        Assertions.assertTrue(deque.retainAll(List.of("c", "b", "f", "d")));
+        assertList(deque, "b", "c", "d", "f");
+
+        // Without the index, there is no hash and the lookups still work
+        deque = new MongoDbDeque<>(String.class, mongoClient, mongoCollection);
+        Assertions.assertFalse(hasIndex(mongoCollection, MongoDbJsonValueTools.INDEX_NAME));
+        deque.offerLast("g");
+        Assertions.assertFalse(mongoCollection.find(new Document(MongoDbDistributedConstants.FIELD_JSON_VALUE, "\"g\"")).first().containsKey(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH));
+        Assertions.assertTrue(deque.contains("b"));
+        Assertions.assertTrue(deque.contains("g"));
+        Assertions.assertTrue(deque.remove("g"));
+        assertList(deque, "b", "c", "d", "f");
+    }
+
+    @Test
+    public void testValueHashIndex_enabledOnExistingCollection() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var dequeWithoutIndex = new MongoDbDeque<>(String.class, mongoClient, mongoCollection);
+        dequeWithoutIndex.addAll(List.of("a", "b", "c"));
+
+        // Like saved by the previous versions
+        mongoCollection.updateMany(new Document(), new Document("$set", new Document(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, "sha1")));
+        mongoCollection.createIndex(new Document(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, 1).append(MongoDbDistributedConstants.FIELD_ID, 1),
+                new IndexOptions().name(MongoDbJsonValueTools.LEGACY_INDEX_NAME));
+
+        // The existing documents get the hash and lose the legacy one
+        var deque = new MongoDbDeque<>(String.class, mongoClient, mongoCollection, 10 * 60000, true);
+        Assertions.assertFalse(hasIndex(mongoCollection, MongoDbJsonValueTools.LEGACY_INDEX_NAME));
+        Assertions.assertEquals(0, mongoCollection.countDocuments(new Document(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, new Document("$exists", true))));
+        Assertions.assertEquals(MongoDbJsonValueTools.hashJsonValue("\"b\""), (long) mongoCollection.find(new Document(MongoDbDistributedConstants.FIELD_JSON_VALUE, "\"b\"")).first().getLong(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH));
+        Assertions.assertTrue(deque.contains("a"));
+        Assertions.assertTrue(deque.remove("b"));
+
+        // The documents saved without the hash are still found
+        dequeWithoutIndex.offerLast("d");
+        Assertions.assertTrue(deque.contains("d"));
+        Assertions.assertTrue(deque.containsAll(List.of("a", "d")));
+        Assertions.assertTrue(deque.remove("d"));
+        assertList(deque, "a", "c");
+    }
+
+    private boolean hasIndex(MongoCollection<Document> mongoCollection, String indexName) {
+        for (var index : mongoCollection.listIndexes()) {
+            if (indexName.equals(index.getString("name"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Test
     public void testMultipleThreads_onlyProduce() throws InterruptedException {
         String collectionName = SecureRandomTools.randomHexString(10);
@@ -1,17 +1,59 @@
 package com.foilen.smalltools.mongodb.distributed;
 
 import com.foilen.smalltools.mongodb.AbstractEmbeddedMongoDbTest;
+import com.foilen.smalltools.mongodb.MongoDbBulkWriteTools;
 import com.foilen.smalltools.tools.SecureRandomTools;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.WriteConcernError;
 import com.mongodb.client.MongoCollection;
+import org.bson.BsonDocument;
 import org.bson.Document;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MongoDbIdStringSortedSetTest extends AbstractEmbeddedMongoDbTest {
 
+    @Test
+    public void testAddAll_retriedAfterAnAppliedAttempt() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+
+        // The first bulk write is applied, but fails on the write concern
+        AtomicBoolean failed = new AtomicBoolean();
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> failingOnceCollection = (MongoCollection<Document>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MongoCollection.class}, (proxy, method, args) -> {
+            Object result;
+            try {
+                result = method.invoke(mongoCollection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if ("bulkWrite".equals(method.getName()) && failed.compareAndSet(false, true)) {
+                throw new MongoBulkWriteException((BulkWriteResult) result, List.of(), new WriteConcernError(64, "WriteConcernFailed", "waiting for replication timed out", new BsonDocument()),
+                        new ServerAddress(), Set.of(MongoDbBulkWriteTools.RETRYABLE_WRITE_ERROR_LABEL));
+            }
+            return result;
+        });
+        var set = new MongoDbIdStringSortedSet(failingOnceCollection);
+
+        // The values added by the failed attempt are counted
+        Assertions.assertTrue(set.addAll(List.of("a", "b")));
+        Assertions.assertTrue(failed.get());
+        Assertions.assertEquals(List.of("a", "b"), set.stream().toList());
+        Assertions.assertFalse(set.addAll(List.of("a", "b")));
+    }
+
     @Test
     public void testSingleThreadAllMethods() {
 
@@ -110,4 +152,36 @@ public class MongoDbIdStringSortedSetTest extends AbstractEmbeddedMongoDbTest {
 
     }
 
+    @Test
+    public void testAddAllBatches() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var set = new MongoDbIdStringSortedSet(mongoCollection)
+                .setBulkWriteBatchSize(7);
+
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            values.add(String.format("v%03d", i));
+        }
+
+        // Some existing and duplicates
+        Assertions.assertTrue(set.addAll(values.subList(0, 10)));
+        List<String> toAdd = new ArrayList<>(values);
+        toAdd.addAll(values.subList(20, 30));
+        Assertions.assertTrue(set.addAll(toAdd));
+        Assertions.assertEquals(50, set.size());
+        Assertions.assertEquals(values, set.stream().toList());
+
+        // All existing
+        Assertions.assertFalse(set.addAll(values));
+        Assertions.assertEquals(50, set.size());
+
+        // Out of range adds nothing
+        var subSet = set.subSet("v010", "v020");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> subSet.addAll(List.of("v015a", "v030a")));
+        Assertions.assertFalse(set.contains("v015a"));
+
+    }
+
 }
@@ -89,6 +89,111 @@ public class MongoDbReplayableQueueTest extends AbstractEmbeddedMongoDbTest {
 
     }
 
+    @Test
+    @Timeout(30)
+    public void testPollBatch() throws InterruptedException {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var queue = new MongoDbReplayableQueue<>(String.class, mongoClient, mongoCollection);
+
+        queue.addAll(List.of("A", "B", "C", "D", "E"));
+
+        Assertions.assertEquals(List.of("A", "B"), queue.pollBatch(2, 1, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("C", "D", "E"), queue.pollBatch(10, 1, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of(), queue.pollBatch(10, 500, TimeUnit.MILLISECONDS));
+
+        // Wait for new elements
+        ExecutorsTools.getCachedDaemonThreadPool().submit(() -> {
+            ThreadTools.sleep(1000);
+            queue.add("F");
+        });
+        Assertions.assertEquals(List.of("F"), queue.pollBatch(10, 10, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, queue.size());
+
+    }
+
+    @Test
+    @Timeout(30)
+    public void testCapped() throws InterruptedException {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+
+        // Start with a non-capped queue
+        var queue = new MongoDbReplayableQueue<>(String.class, mongoClient, mongoCollection);
+        queue.add("A");
+
+        // Change to a capped queue
+        queue = MongoDbReplayableQueue.capped(String.class, mongoClient, mongoCollection, 1024 * 1024, 3);
+        Assertions.assertEquals(0, mongoCollection.countDocuments());
+        queue.addAll(List.of("A", "B", "C", "D", "E"));
+        Assertions.assertEquals(3, mongoCollection.countDocuments());
+
+        // Only the last ones are kept
+        Assertions.assertEquals(List.of("C", "D", "E"), queue.pollBatch(10, 1, TimeUnit.SECONDS));
+
+        // Wait for new elements
+        var finalQueue = queue;
+        ExecutorsTools.getCachedDaemonThreadPool().submit(() -> {
+            ThreadTools.sleep(1000);
+            finalQueue.add("F");
+            finalQueue.add("G");
+        });
+        Assertions.assertEquals("F", queue.poll(10, TimeUnit.SECONDS));
+        Assertions.assertEquals("G", queue.poll(10, TimeUnit.SECONDS));
+        Assertions.assertNull(queue.poll(500, TimeUnit.MILLISECONDS));
+
+        // Another instance replays what is kept
+        var otherQueue = MongoDbReplayableQueue.capped(String.class, mongoClient, mongoCollection, 1024 * 1024, 3);
+        Assertions.assertEquals(0, otherQueue.size());
+        var consumerGroup = new MongoDbReplayableQueueConsumerGroup<>(otherQueue, mongoClient.getDatabase("test").getCollection(collectionName + "-offsets"), "group1");
+        Assertions.assertEquals(List.of("E", "F", "G"), consumerGroup.pollBatch(10, 1, TimeUnit.SECONDS));
+
+    }
+
+    @Test
+    @Timeout(30)
+    public void testConsumerGroup() throws InterruptedException {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        MongoCollection<Document> offsetsCollection = mongoClient.getDatabase("test").getCollection(collectionName + "-offsets");
+        var queue = new MongoDbReplayableQueue<>(String.class, mongoClient, mongoCollection);
+
+        queue.addAll(List.of("A", "B", "C", "D", "E"));
+
+        // Read without committing and rollback
+        var node1 = new MongoDbReplayableQueueConsumerGroup<>(queue, offsetsCollection, "group1");
+        Assertions.assertEquals(-1, node1.getCommittedOffset());
+        Assertions.assertEquals(List.of("A", "B"), node1.pollBatch(2, 1, TimeUnit.SECONDS));
+        node1.rollback();
+        Assertions.assertEquals(List.of("A", "B"), node1.pollBatch(2, 1, TimeUnit.SECONDS));
+        node1.commit();
+
+        // Another node of the same group continues after the committed offset
+        var node2 = new MongoDbReplayableQueueConsumerGroup<>(queue, offsetsCollection, "group1");
+        Assertions.assertEquals(node1.getCommittedOffset(), node2.getCommittedOffset());
+        Assertions.assertEquals(List.of("C", "D", "E"), node2.pollBatch(10, 1, TimeUnit.SECONDS));
+        node2.commit();
+
+        // The first node catches up when committing
+        node1.commit();
+        Assertions.assertEquals(node2.getCommittedOffset(), node1.getCommittedOffset());
+        Assertions.assertEquals(List.of(), node1.pollBatch(10, 500, TimeUnit.MILLISECONDS));
+
+        // Another group has its own offset
+        var otherGroup = new MongoDbReplayableQueueConsumerGroup<>(queue, offsetsCollection, "group2");
+        Assertions.assertEquals(List.of("A", "B", "C", "D", "E"), otherGroup.pollBatch(10, 1, TimeUnit.SECONDS));
+
+        // Skipping the history
+        var lateGroup = new MongoDbReplayableQueueConsumerGroup<>(queue, offsetsCollection, "group3").movePositionToEnd();
+        queue.add("F");
+        Assertions.assertEquals(List.of("F"), lateGroup.pollBatch(10, 10, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("F"), otherGroup.pollBatch(10, 10, TimeUnit.SECONDS));
+
+    }
+
     @Test
     @Timeout(30)
     public void testMultipleProcessingThreads() {
@@ -0,0 +1,91 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.mongodb.AbstractEmbeddedMongoDbTest;
+import com.foilen.smalltools.tools.ExecutorsTools;
+import com.foilen.smalltools.tools.SecureRandomTools;
+import com.foilen.smalltools.tools.ThreadTools;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MongoDbSemaphoreTest extends AbstractEmbeddedMongoDbTest {
+
+    @Test
+    @Timeout(30)
+    public void testAcquireAndRelease() throws InterruptedException {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var semaphore1 = new MongoDbSemaphore(new MongoDbReentrantLock(mongoClient, mongoCollection), "sem1", 3);
+        var semaphore2 = new MongoDbSemaphore(new MongoDbReentrantLock(mongoClient, mongoCollection), "sem1", 3);
+
+        Assertions.assertEquals(3, semaphore1.availablePermits());
+        Assertions.assertTrue(semaphore1.tryAcquire());
+        Assertions.assertTrue(semaphore1.tryAcquire());
+        Assertions.assertTrue(semaphore2.tryAcquire());
+        Assertions.assertEquals(0, semaphore2.availablePermits());
+        Assertions.assertFalse(semaphore2.tryAcquire());
+        Assertions.assertFalse(semaphore1.tryAcquire(200));
+
+        // Release while waiting
+        ExecutorsTools.getCachedDaemonThreadPool().submit(() -> {
+            ThreadTools.sleep(1000);
+            semaphore1.release();
+        });
+        Assertions.assertTrue(semaphore2.tryAcquire(10000));
+        Assertions.assertEquals(0, semaphore2.availablePermits());
+
+        semaphore1.release();
+        semaphore1.release(); // Nothing more to release
+        semaphore2.release();
+        semaphore2.release();
+        Assertions.assertEquals(3, semaphore1.availablePermits());
+
+    }
+
+    @Test
+    @Timeout(60)
+    public void testMaxConcurrency() throws InterruptedException {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var semaphore1 = new MongoDbSemaphore(new MongoDbReentrantLock(mongoClient, mongoCollection), "sem1", 2);
+        var semaphore2 = new MongoDbSemaphore(new MongoDbReentrantLock(mongoClient, mongoCollection), "sem1", 2);
+
+        final int amountOfThreads = 10;
+        CountDownLatch done = new CountDownLatch(amountOfThreads);
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        AtomicInteger executed = new AtomicInteger();
+        for (int i = 0; i < amountOfThreads; ++i) {
+            var semaphore = i % 2 == 0 ? semaphore1 : semaphore2;
+            ExecutorsTools.getCachedDaemonThreadPool().submit(() -> {
+                try {
+                    semaphore.waitAcquireAndExecute(() -> {
+                        maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                        ThreadTools.sleep(200);
+                        concurrent.decrementAndGet();
+                        executed.incrementAndGet();
+                    });
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        Assertions.assertTrue(done.await(50, TimeUnit.SECONDS));
+        Assertions.assertEquals(amountOfThreads, executed.get());
+        Assertions.assertTrue(maxConcurrent.get() <= 2);
+        Assertions.assertEquals(2, semaphore1.availablePermits());
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.foilen.smalltools.mongodb.distributed;
 
+import com.foilen.smalltools.codec.SmileCodec;
 import com.foilen.smalltools.collection.ImmutableMapEntry;
 import com.foilen.smalltools.mongodb.AbstractEmbeddedMongoDbTest;
 import com.foilen.smalltools.test.asserts.AssertTools;
@@ -7,12 +8,14 @@ import com.foilen.smalltools.tools.ExecutorsTools;
 import com.foilen.smalltools.tools.SecureRandomTools;
 import com.mongodb.client.MongoCollection;
 import org.bson.Document;
+import org.bson.types.Binary;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MongoDbSortedMapStringObjectTest extends AbstractEmbeddedMongoDbTest {
 
@@ -325,6 +328,355 @@ public class MongoDbSortedMapStringObjectTest extends AbstractEmbeddedMongoDbTes
 
     }
 
+    @Test
+    public void testBatchedIterationAndParallelStream() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var map = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection)
+                .setCursorBatchSize(7);
+
+        SortedMap<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 100; ++i) {
+            String key = String.format("key%03d", i);
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        // Iterate over more than a batch
+        AssertTools.assertJsonComparison(new ArrayList<>(expected.keySet()), new ArrayList<>(map.keySet()));
+        AssertTools.assertJsonComparison(new ArrayList<>(expected.values()), new ArrayList<>(map.values()));
+        AssertTools.assertJsonComparison(new ArrayList<>(expected.keySet()), Arrays.asList(map.keySet().toArray()));
+        AssertTools.assertJsonComparison(List.of("key010", "key011", "key012"), Arrays.asList(map.keySet().subSet("key010", "key013").toArray()));
+
+        // Split
+        var spliterator = map.keySet().spliterator();
+        Assertions.assertEquals(100, spliterator.estimateSize());
+        var prefix = spliterator.trySplit();
+        Assertions.assertNotNull(prefix);
+        Assertions.assertEquals(50, prefix.estimateSize());
+        Assertions.assertEquals(50, spliterator.estimateSize());
+        List<String> keys = new ArrayList<>();
+        prefix.forEachRemaining(keys::add);
+        spliterator.forEachRemaining(keys::add);
+        AssertTools.assertJsonComparison(new ArrayList<>(expected.keySet()), keys);
+
+        // Parallel streams
+        Assertions.assertEquals(4950, map.values().parallelStream().mapToInt(Integer::intValue).sum());
+        Assertions.assertEquals(100, map.entrySet().parallelStream().count());
+        AssertTools.assertJsonComparison(new ArrayList<>(expected.keySet()), map.keySet().parallelStream().toList());
+
+        // Remove with the iterator
+        var it = map.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (expected.get(key) % 2 == 0) {
+                it.remove();
+            }
+        }
+        Assertions.assertEquals(50, map.size());
+        Assertions.assertFalse(map.containsKey("key000"));
+        Assertions.assertTrue(map.containsKey("key001"));
+
+    }
+
+    @Test
+    public void testSubMap() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var map = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection);
+
+        SortedMap<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 30; ++i) {
+            String key = String.format("key%03d", i);
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        var subMap = map.subMap("key010", "key020");
+        var expectedSubMap = expected.subMap("key010", "key020");
+        AssertTools.assertJsonComparison(expectedSubMap, subMap);
+        Assertions.assertEquals(10, subMap.size());
+        Assertions.assertEquals("key010", subMap.firstKey());
+        Assertions.assertEquals("key019", subMap.lastKey());
+        Assertions.assertTrue(subMap.containsKey("key015"));
+        Assertions.assertFalse(subMap.containsKey("key020"));
+        Assertions.assertNull(subMap.get("key005"));
+        Assertions.assertTrue(subMap.containsValue(15));
+        Assertions.assertFalse(subMap.containsValue(25));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> subMap.put("key025", 25));
+
+        AssertTools.assertJsonComparison(expected.headMap("key005"), map.headMap("key005"));
+        AssertTools.assertJsonComparison(expected.tailMap("key025"), map.tailMap("key025"));
+        AssertTools.assertJsonComparison(expected.subMap("key012", "key015"), subMap.headMap("key015").tailMap("key012"));
+
+        // Clear only the range
+        subMap.clear();
+        expectedSubMap.clear();
+        AssertTools.assertJsonComparison(expected, map);
+        Assertions.assertEquals(20, map.size());
+
+    }
+
+    @Test
+    public void testValueHashIndex() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var map = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection, null, true);
+
+        for (int i = 0; i < 30; ++i) {
+            map.put(String.format("key%03d", i), i % 20);
+        }
+        Assertions.assertTrue(map.containsValue(15));
+        Assertions.assertFalse(map.containsValue(25));
+
+        // Values of a sub map
+        var subMap = map.subMap("key010", "key020");
+        Assertions.assertTrue(subMap.containsValue(15));
+        Assertions.assertFalse(subMap.containsValue(5));
+        Assertions.assertTrue(subMap.values().containsAll(List.of(10, 19)));
+        Assertions.assertFalse(subMap.values().containsAll(List.of(10, 0)));
+        Assertions.assertTrue(subMap.values().remove(12));
+        Assertions.assertTrue(subMap.values().removeAll(List.of(13, 14)));
+        Assertions.assertEquals(7, subMap.size());
+        Assertions.assertNull(map.get("key012"));
+        Assertions.assertEquals(27, map.size());
+
+        // The hash is in the documents
+        Assertions.assertEquals(MongoDbJsonValueTools.hashJsonValue("15"), (long) mongoCollection.find(new Document(MongoDbDistributedConstants.FIELD_ID, "key015")).first().getLong(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH));
+    }
+
+    @Test
+    public void testCodec() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+
+        // A value saved as json before changing the codec
+        new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection).put("key000", 0);
+
+        var map = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection, null, true).setCodec(SmileCodec.SMILE);
+        for (int i = 1; i < 30; ++i) {
+            map.put(String.format("key%03d", i), i % 20);
+        }
+
+        // Saved as binary
+        Assertions.assertTrue(mongoCollection.find(new Document(MongoDbDistributedConstants.FIELD_ID, "key015")).first().get(MongoDbDistributedConstants.FIELD_JSON_VALUE) instanceof Binary);
+        Assertions.assertTrue(mongoCollection.find(new Document(MongoDbDistributedConstants.FIELD_ID, "key000")).first().get(MongoDbDistributedConstants.FIELD_JSON_VALUE) instanceof String);
+
+        // Read both
+        Assertions.assertEquals(0, (int) map.get("key000"));
+        Assertions.assertEquals(15, (int) map.get("key015"));
+        Assertions.assertEquals(30, map.values().stream().count());
+        Assertions.assertEquals(19, (int) map.subMap("key010", "key020").entrySet().last().getValue());
+
+        // Lookups by value
+        Assertions.assertTrue(map.containsValue(15));
+        Assertions.assertFalse(map.containsValue(25));
+        Assertions.assertTrue(map.entrySet().contains(new ImmutableMapEntry<>("key015", 15)));
+        Assertions.assertTrue(map.values().removeAll(List.of(13, 14)));
+        Assertions.assertEquals(28, map.size());
+
+        // Update and remove
+        Assertions.assertEquals(15, (int) map.put("key015", 150));
+        Assertions.assertEquals(150, (int) map.remove("key015"));
+        Assertions.assertEquals(27, map.size());
+    }
+
+    @Test
+    public void testWriteBehind() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var map = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection)
+                .setWriteBehind(60000, 10);
+
+        // Only in the buffer, but visible by this map
+        Assertions.assertNull(map.put("key001", 1));
+        Assertions.assertEquals(1, (int) map.put("key001", 2));
+        Assertions.assertNull(map.put("key002", 3));
+        Assertions.assertEquals(2, (int) map.get("key001"));
+        Assertions.assertTrue(map.containsKey("key002"));
+        Assertions.assertEquals(0, mongoCollection.countDocuments());
+
+        // Flush
+        map.flush();
+        Assertions.assertEquals(2, mongoCollection.countDocuments());
+        Assertions.assertEquals(2, (int) new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection).get("key001"));
+
+        // Flush when reaching the size
+        for (int i = 0; i < 9; ++i) {
+            map.put(String.format("key1%02d", i), i);
+        }
+        Assertions.assertEquals(2, mongoCollection.countDocuments());
+        map.put("key001", 4);
+        Assertions.assertEquals(11, mongoCollection.countDocuments());
+
+        // The other methods flush first
+        map.put("key200", 200);
+        Assertions.assertEquals(12, map.size());
+        map.put("key300", 300);
+        Assertions.assertEquals("key300", map.lastKey());
+        map.put("key002", 5);
+        Assertions.assertEquals(5, (int) map.remove("key002"));
+        Assertions.assertNull(map.get("key002"));
+
+        // Close
+        map.put("key400", 400);
+        map.close();
+        Assertions.assertEquals(400, (int) new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection).get("key400"));
+    }
+
+    @Test
+    public void testWriteBehind_closeSubMapAndTwice() throws Exception {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var map = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection)
+                .setWriteBehind(100, 1000);
+
+        // Closing a sub map only saves the buffer
+        try (var subMap = map.subMap("key000", "key100")) {
+            subMap.put("key001", 1);
+        }
+        Assertions.assertEquals(1, mongoCollection.countDocuments());
+        map.put("key002", 2);
+        for (int i = 0; i < 50 && mongoCollection.countDocuments() == 1; ++i) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(2, mongoCollection.countDocuments());
+
+        // Closing twice and putting after closing
+        map.close();
+        map.close();
+        map.put("key003", 3);
+        Assertions.assertEquals(3, mongoCollection.countDocuments());
+    }
+
+    @Test
+    public void testWriteBehind_flushAfterDelay() throws Exception {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var map = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection)
+                .setWriteBehind(100, 1000);
+
+        map.put("key001", 1);
+        for (int i = 0; i < 50 && mongoCollection.countDocuments() == 0; ++i) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(1, mongoCollection.countDocuments());
+        map.close();
+    }
+
+    @Test
+    public void testParallelScan() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var map = new MongoDbSortedMapStringObject<>(Integer.class, mongoClient, mongoCollection)
+                .setCursorBatchSize(10);
+
+        SortedMap<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 200; ++i) {
+            String key = String.format("key%03d", i);
+            map.put(key, i);
+            expected.put(key, i);
+        }
+
+        // Ranges
+        var ranges = map.splitInRanges(4);
+        Assertions.assertEquals(4, ranges.size());
+        Assertions.assertNull(ranges.get(0).getFromKey());
+        Assertions.assertNull(ranges.get(3).getToKey());
+        for (int i = 1; i < ranges.size(); ++i) {
+            Assertions.assertEquals(ranges.get(i - 1).getToKey(), ranges.get(i).getFromKey());
+        }
+        Assertions.assertEquals(1, map.subMap("key100", "key101").splitInRanges(4).size());
+
+        // Scan all
+        SortedMap<String, Integer> actual = Collections.synchronizedSortedMap(new TreeMap<>());
+        var failedRanges = map.parallelScan(4, actual::put);
+        Assertions.assertTrue(failedRanges.isEmpty());
+        AssertTools.assertJsonComparison(expected, actual);
+
+        // Fail in one range and resume
+        actual.clear();
+        AtomicBoolean failed = new AtomicBoolean();
+        failedRanges = map.parallelScan(ranges, (key, value) -> {
+            if (key.equals("key160") && failed.compareAndSet(false, true)) {
+                throw new RuntimeException("Failing");
+            }
+            actual.put(key, value);
+        });
+        Assertions.assertEquals(1, failedRanges.size());
+        Assertions.assertFalse(failedRanges.get(0).isCompleted());
+        Assertions.assertEquals("key159", failedRanges.get(0).getLastProcessedKey());
+        failedRanges = map.parallelScan(ranges, actual::put);
+        Assertions.assertTrue(failedRanges.isEmpty());
+        AssertTools.assertJsonComparison(expected, actual);
+
+        // Parallel stream
+        Assertions.assertEquals(19900, map.parallelStream(4).mapToInt(Map.Entry::getValue).sum());
+        AssertTools.assertJsonComparison(new ArrayList<>(expected.keySet()), map.parallelStream(4).map(Map.Entry::getKey).toList());
+
+    }
+
+    @Test
+    public void testPutAllOverwrites() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var map = new MongoDbSortedMapStringObject<>(String.class, mongoClient, mongoCollection)
+                .setBulkWriteBatchSize(7);
+
+        SortedMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 20; ++i) {
+            expected.put("key" + i, "value" + i);
+        }
+        map.putAll(expected);
+        AssertTools.assertJsonComparison(expected, map);
+
+        // Update existing and add new ones
+        SortedMap<String, String> updates = new TreeMap<>();
+        for (int i = 10; i < 40; ++i) {
+            updates.put("key" + i, "value" + i + "updated");
+        }
+        map.putAll(updates);
+        expected.putAll(updates);
+        AssertTools.assertJsonComparison(expected, map);
+        Assertions.assertEquals(40, map.size());
+        Assertions.assertTrue(map.containsValue("value15updated"));
+        Assertions.assertFalse(map.containsValue("value15"));
+
+    }
+
+    @Test
+    public void testLazyEntries() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var map = new MongoDbSortedMapStringObject<>(String.class, mongoClient, mongoCollection);
+        map.put("A", "Z1");
+        map.put("B", "Y2");
+
+        var entries = map.entrySet().stream().toList();
+        Assertions.assertEquals(2, entries.size());
+        Assertions.assertTrue(entries.get(0) instanceof MongoDbLazyMapEntry);
+        Assertions.assertEquals("A", entries.get(0).getKey());
+        Assertions.assertEquals("Z1", entries.get(0).getValue());
+        Assertions.assertEquals(entries.get(1), new ImmutableMapEntry<>("B", "Y2"));
+        Assertions.assertEquals(Map.entry("B", "Y2").hashCode(), entries.get(1).hashCode());
+
+        Assertions.assertEquals("A", map.firstKey());
+        Assertions.assertEquals("B", map.lastKey());
+        Assertions.assertTrue(map.containsKey("A"));
+        Assertions.assertFalse(map.containsKey("C"));
+
+    }
+
     @Test
     public void testMultiThreads() {
 
@@ -1,5 +1,7 @@
 package com.foilen.smalltools.mongodb.spring.cache;
 
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
 import com.foilen.smalltools.mongodb.distributed.MongoDbReentrantLock;
 import com.foilen.smalltools.mongodb.distributed.MongoDbSortedMapStringObject;
 import com.foilen.smalltools.mongodb.spring.cache.internal.ValueAndType;
@@ -21,6 +23,8 @@ public class MongoDbCache implements Cache {
     private final MongoDbSortedMapStringObject<ValueAndType> sortedMap;
     private final MongoDbReentrantLock lock;
 
+    private Codec codec = JsonCodec.COMPACT;
+
     /**
      * Create a cache.
      *
@@ -38,6 +42,31 @@ public class MongoDbCache implements Cache {
         this.sortedMap = new MongoDbSortedMapStringObject<>(ValueAndType.class, mongoClient, mongoCollection, maxDurationInSec);
     }
 
+    /**
+     * Set the codec of the cached values and of the documents (see {@link MongoDbSortedMapStringObject#setCodec(Codec)}). The default is {@link JsonCodec#COMPACT}.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbCache setCodec(Codec codec) {
+        this.codec = codec;
+        sortedMap.setCodec(codec);
+        return this;
+    }
+
+    private ValueAndType toValueAndType(Object value) {
+        ValueAndType valueAndType = new ValueAndType();
+        if (value == null || codec instanceof JsonCodec) {
+            valueAndType.setJsonValue(JsonTools.compactPrint(value));
+        } else {
+            valueAndType.setEncodedValue(codec.encode(value));
+        }
+        if (value != null) {
+            valueAndType.setType(value.getClass().getName());
+        }
+        return valueAndType;
+    }
+
     @Override
     public String getName() {
         return cacheName;
@@ -54,7 +83,7 @@ public class MongoDbCache implements Cache {
         if (valueAndType == null) {
             return null;
         }
-        return new SimpleValueWrapper(valueAndType.toValue());
+        return new SimpleValueWrapper(valueAndType.toValue(codec));
     }
 
     @Override
@@ -63,7 +92,7 @@ public class MongoDbCache implements Cache {
         if (valueAndType == null) {
             return null;
         }
-        return JsonTools.readFromString(valueAndType.getJsonValue(), type);
+        return valueAndType.toValue(codec, type);
     }
 
     @Override
@@ -105,7 +134,7 @@ public class MongoDbCache implements Cache {
                         // Return it
                         return value;
                     } else {
-                        return (T) valueAndType.toValue();
+                        return (T) valueAndType.toValue(codec);
                     }
                 } catch (Exception e) {
                     throw new RuntimeException(e);
@@ -114,21 +143,12 @@ public class MongoDbCache implements Cache {
                 }
             }
         }
-        return (T) valueAndType.toValue();
+        return (T) valueAndType.toValue(codec);
     }
 
     @Override
     public void put(Object key, Object value) {
-        if (value == null) {
-            sortedMap.put(key.toString(), new ValueAndType()
-                    .setJsonValue(JsonTools.compactPrint(value))
-            );
-        } else {
-            sortedMap.put(key.toString(), new ValueAndType()
-                    .setJsonValue(JsonTools.compactPrint(value))
-                    .setType(value.getClass().getName())
-            );
-        }
+        sortedMap.put(key.toString(), toValueAndType(value));
     }
 
     @Override
@@ -163,14 +183,11 @@ public class MongoDbCache implements Cache {
 
     @Override
     public ValueWrapper putIfAbsent(Object key, Object value) {
-        ValueAndType previous = sortedMap.putIfAbsent(key.toString(), new ValueAndType()
-                .setJsonValue(JsonTools.compactPrint(value))
-                .setType(value.getClass().getName())
-        );
+        ValueAndType previous = sortedMap.putIfAbsent(key.toString(), toValueAndType(value));
         if (previous == null) {
             return new SimpleValueWrapper(value);
         }
-        return new SimpleValueWrapper(previous.toValue());
+        return new SimpleValueWrapper(previous.toValue(codec));
     }
 
     @Override
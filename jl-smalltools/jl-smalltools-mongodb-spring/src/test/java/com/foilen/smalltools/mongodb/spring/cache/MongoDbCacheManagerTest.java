@@ -1,16 +1,20 @@
 package com.foilen.smalltools.mongodb.spring.cache;
 
+import com.foilen.smalltools.codec.SmileCodec;
 import com.foilen.smalltools.mongodb.AbstractEmbeddedMongoDbTest;
+import com.foilen.smalltools.mongodb.distributed.MongoDbDistributedConstants;
 import com.foilen.smalltools.mongodb.distributed.MongoDbReentrantLock;
 import com.foilen.smalltools.test.asserts.AssertTools;
 import com.foilen.smalltools.tools.SecureRandomTools;
 import com.mongodb.client.MongoCollection;
 import org.bson.Document;
+import org.bson.types.Binary;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.cache.Cache;
 import org.springframework.cache.support.SimpleValueWrapper;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
@@ -39,6 +43,45 @@ public class MongoDbCacheManagerTest extends AbstractEmbeddedMongoDbTest {
         testSingleThreadAllMethods(cacheManager);
     }
 
+    @Test
+    public void testSingleThreadAllMethods_smileCodec() throws Exception {
+        String databaseName = SecureRandomTools.randomHexString(10);
+        String collectionNamePrefix = "cache_";
+
+        MongoDbCacheManager cacheManager = new MongoDbCacheManager(mongoClient, databaseName, collectionNamePrefix,
+                null, 60)
+                .setCodec(SmileCodec.SMILE);
+        testSingleThreadAllMethods(cacheManager);
+
+        // Saved as binary
+        cacheManager.getCache("int").put("a", 1);
+        Document document = mongoClient.getDatabase(databaseName).getCollection("cache_int").find(new Document(MongoDbDistributedConstants.FIELD_ID, "a")).first();
+        Assertions.assertTrue(document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE) instanceof Binary);
+        Assertions.assertEquals(1, cacheManager.getCache("int").get("a", Integer.class));
+    }
+
+    @Test
+    public void testCachesAreReused() {
+        String databaseName = SecureRandomTools.randomHexString(10);
+        String collectionNamePrefix = "cache_";
+
+        MongoDbCacheManager cacheManager = new MongoDbCacheManager(mongoClient, databaseName, collectionNamePrefix,
+                null, 60);
+
+        // Declared at startup
+        cacheManager.setCacheNames(List.of("b", "a"));
+        AssertTools.assertJsonComparison(List.of("a", "b"), cacheManager.getCacheNames());
+        Assertions.assertTrue(mongoClient.getDatabase(databaseName).listCollectionNames().into(new ArrayList<>()).containsAll(List.of("cache_a", "cache_b")));
+
+        // Same instances
+        Cache cacheA = cacheManager.getCache("a");
+        Assertions.assertSame(cacheA, cacheManager.getCache("a"));
+        Cache cacheC = cacheManager.getCache("c");
+        Assertions.assertSame(cacheC, cacheManager.getCache("c"));
+        Assertions.assertNotSame(cacheA, cacheC);
+        AssertTools.assertJsonComparison(List.of("a", "b", "c"), cacheManager.getCacheNames());
+    }
+
 
     private void testSingleThreadAllMethods(MongoDbCacheManager cacheManager) throws Exception {
         // No current caches
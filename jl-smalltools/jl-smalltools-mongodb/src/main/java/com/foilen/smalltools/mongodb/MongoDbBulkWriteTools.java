@@ -0,0 +1,133 @@
+package com.foilen.smalltools.mongodb;
+
+import com.foilen.smalltools.tools.ThreadTools;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * Some common methods to execute bulk writes with retries.
+ */
+public class MongoDbBulkWriteTools {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    public static final String RETRYABLE_WRITE_ERROR_LABEL = "RetryableWriteError";
+
+    private final static Logger logger = LoggerFactory.getLogger(MongoDbBulkWriteTools.class);
+
+    /**
+     * Execute an unordered bulk of upserts and retry the whole batch on transient errors (network, timeout, retryable labels). The duplicate keys are the result of concurrent upserts of the same new
+     * ids, so they are considered done and are not retried.
+     *
+     * @param mongoCollection the collection
+     * @param models          the upserts to execute
+     * @return the indexes of the models that inserted a new document in any of the attempts
+     */
+    public static Set<Integer> bulkUpsertUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models) {
+        return bulkUpsertUnorderedWithRetry(mongoCollection, models, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Execute an unordered bulk of upserts and retry the whole batch on transient errors (network, timeout, retryable labels). The duplicate keys are the result of concurrent upserts of the same new
+     * ids, so they are considered done and are not retried.
+     *
+     * @param mongoCollection the collection
+     * @param models          the upserts to execute
+     * @param maxAttempts     the maximum amount of attempts
+     * @return the indexes of the models that inserted a new document in any of the attempts
+     */
+    public static Set<Integer> bulkUpsertUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models, int maxAttempts) {
+        Set<Integer> upsertedIndexes = new TreeSet<>();
+        bulkWriteUnorderedWithRetry(mongoCollection, models, maxAttempts, true, result -> result.getUpserts().forEach(upsert -> upsertedIndexes.add(upsert.getIndex())));
+        return upsertedIndexes;
+    }
+
+    /**
+     * Execute an unordered bulk write and retry the whole batch on transient errors (network, timeout, retryable labels). The models must be idempotent.
+     *
+     * @param mongoCollection the collection
+     * @param models          the models to execute
+     * @return the result of the last attempt
+     */
+    public static BulkWriteResult bulkWriteUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models) {
+        return bulkWriteUnorderedWithRetry(mongoCollection, models, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Execute an unordered bulk write and retry the whole batch on transient errors (network, timeout, retryable labels). The models must be idempotent.
+     *
+     * @param mongoCollection the collection
+     * @param models          the models to execute
+     * @param maxAttempts     the maximum amount of attempts
+     * @return the result of the last attempt
+     */
+    public static BulkWriteResult bulkWriteUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models, int maxAttempts) {
+        return bulkWriteUnorderedWithRetry(mongoCollection, models, maxAttempts, false, result -> {
+        });
+    }
+
+    private static BulkWriteResult bulkWriteUnorderedWithRetry(MongoCollection<Document> mongoCollection, List<? extends WriteModel<Document>> models, int maxAttempts,
+                                                               boolean duplicateKeyIsDone, Consumer<BulkWriteResult> attemptResultConsumer) {
+        int attempt = 0;
+        while (true) {
+            ++attempt;
+            try {
+                var result = mongoCollection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+                attemptResultConsumer.accept(result);
+                return result;
+            } catch (MongoException e) {
+                if (e instanceof MongoBulkWriteException bulkWriteException) {
+                    attemptResultConsumer.accept(bulkWriteException.getWriteResult());
+                    if (duplicateKeyIsDone && isDuplicateKeyOnly(bulkWriteException)) {
+                        return bulkWriteException.getWriteResult();
+                    }
+                }
+                if (attempt >= maxAttempts || !isTransient(e)) {
+                    throw e;
+                }
+                logger.warn("Transient error while bulk writing {} items in {}. Attempt {}/{}", models.size(), mongoCollection.getNamespace(), attempt, maxAttempts, e);
+                ThreadTools.sleep(100L * attempt);
+            }
+        }
+    }
+
+    /**
+     * Tell if all the errors of the bulk write are duplicate keys (e.g. two concurrent upserts of the same new id).
+     *
+     * @param e the exception
+     * @return true if there are only duplicate keys errors
+     */
+    public static boolean isDuplicateKeyOnly(MongoBulkWriteException e) {
+        return e.getWriteConcernError() == null
+                && !e.getWriteErrors().isEmpty()
+                && e.getWriteErrors().stream().allMatch(error -> error.getCode() == 11000);
+    }
+
+    /**
+     * Tell if the exception is a transient error that could succeed if retried.
+     *
+     * @param e the exception
+     * @return true if it is transient
+     */
+    public static boolean isTransient(MongoException e) {
+        return e instanceof MongoSocketException
+                || e instanceof MongoTimeoutException
+                || e.hasErrorLabel(RETRYABLE_WRITE_ERROR_LABEL)
+                || e.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+    }
+
+}
@@ -1,11 +1,10 @@
 package com.foilen.smalltools.mongodb.distributed;
 
-import com.foilen.smalltools.hash.HashSha1;
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
 import com.foilen.smalltools.mongodb.MongoDbChangeStreamWaitAnyChange;
-import com.foilen.smalltools.mongodb.MongoDbManageCollectionTools;
 import com.foilen.smalltools.tools.AbstractBasics;
 import com.foilen.smalltools.tools.BufferBatchesTools;
-import com.foilen.smalltools.tools.JsonTools;
 import com.foilen.smalltools.tools.RetryTools;
 import com.foilen.smalltools.tuple.Tuple2;
 import com.mongodb.client.MongoClient;
@@ -25,6 +24,10 @@ import java.util.stream.StreamSupport;
 
 /**
  * A distributed deque/queue using MongoDB.
+ * <p>
+ * The lookups by value (contains, remove(Object), ...) compare the json values without an index, unless the value hash index is enabled in the constructor (see {@link MongoDbJsonValueTools}).
+ * <p>
+ * The values are saved as json, unless another codec is set with {@link #setCodec(Codec)}.
  *
  * @param <E> the type of elements in this queue
  */
@@ -34,33 +37,45 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
     private final MongoClient mongoClient;
     private final MongoCollection<Document> mongoCollection;
     private final long stopChangeStreamAfterNoThreadWaitedInMs;
+    private final boolean valueHashIndex;
 
     private final Runnable collectionCreate;
 
     private MongoDbChangeStreamWaitAnyChange mongoDbChangeStreamWaitAnyChange;
+    private int cursorBatchSize = AbstractMongoDbBatchedIterator.DEFAULT_BATCH_SIZE;
+    private Codec codec = JsonCodec.COMPACT;
 
     public MongoDbDeque(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection) {
         this(entityType, mongoClient, mongoCollection, 10 * 60000);
     }
 
     public MongoDbDeque(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, long stopChangeStreamAfterNoThreadWaitedInMs) {
+        this(entityType, mongoClient, mongoCollection, stopChangeStreamAfterNoThreadWaitedInMs, false);
+    }
+
+    /**
+     * Create a new instance of the deque.
+     *
+     * @param entityType                              the type of elements in this deque
+     * @param mongoClient                             the mongo client
+     * @param mongoCollection                         the mongo collection
+     * @param stopChangeStreamAfterNoThreadWaitedInMs the maximum time to wait for a change in the change stream
+     * @param valueHashIndex                          true to save a hash of the values with an index to speed up the lookups by value. The existing documents get their hash when it is enabled (see {@link MongoDbJsonValueTools})
+     */
+    public MongoDbDeque(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, long stopChangeStreamAfterNoThreadWaitedInMs, boolean valueHashIndex) {
         this.entityType = entityType;
         this.mongoClient = mongoClient;
         this.mongoCollection = mongoCollection;
         this.stopChangeStreamAfterNoThreadWaitedInMs = stopChangeStreamAfterNoThreadWaitedInMs;
+        this.valueHashIndex = valueHashIndex;
 
         collectionCreate = () -> {
-            MongoDbManageCollectionTools.addCollectionIfMissing(mongoClient, mongoCollection.getNamespace());
-            MongoDbManageCollectionTools.manageIndexes(mongoCollection, Map.of(
-                    "hashJsonValue_id", new Tuple2<>(
-                            new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, 1).append(MongoDbDistributedConstants.FIELD_ID, 1),
-                            new IndexOptions()
-                    ),
-                    "operationType_1", new Tuple2<>(
-                            new Document().append("operationType", 1),
-                            new IndexOptions()
-                    )
+            Map<String, Tuple2<Document, IndexOptions>> indexes = new HashMap<>();
+            indexes.put("operationType_1", new Tuple2<>(
+                    new Document().append("operationType", 1),
+                    new IndexOptions()
             ));
+            MongoDbJsonValueTools.manageCollection(mongoClient, mongoCollection, indexes, valueHashIndex);
         };
         collectionCreate.run();
     }
@@ -81,12 +96,11 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
                             .first();
                     long order = nextEntry == null ? 0 : nextEntry.getLong(MongoDbDistributedConstants.FIELD_ID) - 1;
 
-                    String jsonValue = JsonTools.compactPrintWithoutNulls(e);
-                    mongoCollection.insertOne(new Document()
-                            .append(MongoDbDistributedConstants.FIELD_ID, order)
-                            .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
-                            .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, HashSha1.hashString(jsonValue))
-                    );
+                    Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, e);
+                    mongoCollection.insertOne(MongoDbJsonValueTools.appendJsonValue(new Document()
+                                    .append(MongoDbDistributedConstants.FIELD_ID, order),
+                            jsonValue, valueHashIndex
+                    ));
                     return null;
                 })
         );
@@ -110,12 +124,11 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
                         .first();
                 long order = nextEntry == null ? 0 : nextEntry.getLong(MongoDbDistributedConstants.FIELD_ID) + 1;
 
-                String jsonValue = JsonTools.compactPrintWithoutNulls(e);
-                mongoCollection.insertOne(new Document()
-                        .append(MongoDbDistributedConstants.FIELD_ID, order)
-                        .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
-                        .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, HashSha1.hashString(jsonValue))
-                );
+                Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, e);
+                mongoCollection.insertOne(MongoDbJsonValueTools.appendJsonValue(new Document()
+                                .append(MongoDbDistributedConstants.FIELD_ID, order),
+                        jsonValue, valueHashIndex
+                ));
                 return null;
             });
         });
@@ -142,12 +155,11 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
                             if (e == null) {
                                 throw new NullPointerException();
                             }
-                            String jsonValue = JsonTools.compactPrintWithoutNulls(e);
-                            documents.add(new Document()
-                                    .append(MongoDbDistributedConstants.FIELD_ID, order++)
-                                    .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
-                                    .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, HashSha1.hashString(jsonValue))
-                            );
+                            Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, e);
+                            documents.add(MongoDbJsonValueTools.appendJsonValue(new Document()
+                                            .append(MongoDbDistributedConstants.FIELD_ID, order++),
+                                    jsonValue, valueHashIndex
+                            ));
                         }
 
                         mongoCollection.insertMany(documents);
@@ -170,7 +182,7 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
         if (result == null) {
             return null;
         } else {
-            return JsonTools.readFromString(result.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+            return MongoDbJsonValueTools.decodeValue(codec, result.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
         }
     }
 
@@ -182,7 +194,7 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
         if (result == null) {
             return null;
         } else {
-            return JsonTools.readFromString(result.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+            return MongoDbJsonValueTools.decodeValue(codec, result.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
         }
     }
 
@@ -192,8 +204,10 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
             return false;
         }
 
-        var hashJsonValue = HashSha1.hashString(JsonTools.compactPrintWithoutNulls(o));
-        return mongoCollection.find(new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValue)).first() != null;
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, o);
+        return mongoCollection.find(MongoDbJsonValueTools.filterEq(jsonValue, valueHashIndex))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first() != null;
     }
 
     @Override
@@ -202,45 +216,49 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
             throw new NullPointerException();
         }
 
-        // Get all the hashJsonValues
-        Set<String> allHashJsonValues = new HashSet<>();
+        // Get all the jsonValues
+        Set<Object> allJsonValues = new HashSet<>();
         c.forEach(item -> {
             if (item == null) {
                 throw new NullPointerException();
             }
-            allHashJsonValues.add(HashSha1.hashString(JsonTools.compactPrintWithoutNulls(item)));
+            allJsonValues.add(MongoDbJsonValueTools.encodeValue(codec, item));
         });
 
-        // Get the count of unique hashJsonValues in that list
-        long count = StreamSupport.stream(mongoCollection.find(new Document()
-                                .append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, new Document().append("$in", allHashJsonValues)))
-                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, 1))
+        // Get the count of unique jsonValues in that list
+        long count = StreamSupport.stream(mongoCollection.find(MongoDbJsonValueTools.filterIn(allJsonValues, valueHashIndex))
+                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
                         .spliterator(), false)
-                .map(document -> document.getString(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE))
-                .sorted().distinct()
+                .map(document -> document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE))
+                .distinct()
                 .count();
 
-        return count == allHashJsonValues.size();
+        return count == allJsonValues.size();
     }
 
     @Override
     public Iterator<E> iterator() {
-        return new MongoDbDequeIterator<>(entityType, mongoCollection, true);
+        return new MongoDbDequeIterator<>(entityType, mongoCollection, true, cursorBatchSize, codec);
     }
 
     @Override
     public Iterator<E> descendingIterator() {
-        return new MongoDbDequeIterator<>(entityType, mongoCollection, false);
+        return new MongoDbDequeIterator<>(entityType, mongoCollection, false, cursorBatchSize, codec);
+    }
+
+    /**
+     * Get a spliterator in the order of the deque that is reading by batches (see {@link #setCursorBatchSize(int)}). The size is unknown since the deque can change while iterating.
+     *
+     * @return the spliterator
+     */
+    @Override
+    public Spliterator<E> spliterator() {
+        return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL);
     }
 
     @Override
     public Object[] toArray() {
-        return StreamSupport.stream(mongoCollection.find()
-                        .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
-                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
-                        .spliterator(), false)
-                .map(document -> JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType))
-                .toArray();
+        return StreamSupport.stream(spliterator(), false).toArray();
     }
 
     @Override
@@ -253,7 +271,7 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
             return null;
         }
 
-        return JsonTools.readFromString(entry.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+        return MongoDbJsonValueTools.decodeValue(codec, entry.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
     }
 
     @Override
@@ -294,7 +312,7 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
             return null;
         }
 
-        return JsonTools.readFromString(entry.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+        return MongoDbJsonValueTools.decodeValue(codec, entry.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
     }
 
     @Override
@@ -335,7 +353,7 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
                         .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
                         .limit(toGet)
                         .forEach(document -> {
-                            c.add(JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType));
+                            c.add(MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType));
                             idsToDelete.add(document.getLong(MongoDbDistributedConstants.FIELD_ID));
                         });
                 if (idsToDelete.isEmpty()) {
@@ -360,10 +378,10 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
             return false;
         }
 
-        var hashJsonValue = HashSha1.hashString(JsonTools.compactPrintWithoutNulls(o));
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, o);
         return mongoClient.startSession().withTransaction(() -> {
             var entry = mongoCollection.findOneAndDelete(
-                    new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValue),
+                    MongoDbJsonValueTools.filterEq(jsonValue, valueHashIndex),
                     new FindOneAndDeleteOptions().sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
             );
             return entry != null;
@@ -376,10 +394,10 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
             return false;
         }
 
-        var hashJsonValue = HashSha1.hashString(JsonTools.compactPrintWithoutNulls(o));
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, o);
         return mongoClient.startSession().withTransaction(() -> {
             var entry = mongoCollection.findOneAndDelete(
-                    new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, hashJsonValue),
+                    MongoDbJsonValueTools.filterEq(jsonValue, valueHashIndex),
                     new FindOneAndDeleteOptions().sort(Sorts.descending(MongoDbDistributedConstants.FIELD_ID))
             );
             return entry != null;
@@ -393,9 +411,10 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
         }
 
         AtomicBoolean found = new AtomicBoolean(false);
-        BufferBatchesTools.<String>autoClose(10, hashJsonValues -> {
-            // Find all the entries with the hashJsonValue
-            var entries = mongoCollection.find(new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, new Document().append("$in", hashJsonValues)));
+        BufferBatchesTools.<Object>autoClose(10, jsonValues -> {
+            // Find all the entries with the jsonValue
+            var entries = mongoCollection.find(MongoDbJsonValueTools.filterIn(jsonValues, valueHashIndex))
+                    .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1));
 
             // List their ids
             var idsToDelete = new ArrayList<Long>();
@@ -411,8 +430,7 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
             }
         }, bufferBatchesTools -> {
             c.forEach(item -> {
-                var hashJsonValue = HashSha1.hashString(JsonTools.compactPrintWithoutNulls(item));
-                bufferBatchesTools.add(hashJsonValue);
+                bufferBatchesTools.add(MongoDbJsonValueTools.encodeValue(codec, item));
             });
         });
 
@@ -425,17 +443,17 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
             throw new NullPointerException();
         }
 
-        // Get all the hashJsonValues
-        Set<String> allHashJsonValues = new HashSet<>();
+        // Get all the jsonValues
+        Set<Object> allJsonValues = new HashSet<>();
         c.forEach(item -> {
             if (item == null) {
                 throw new NullPointerException();
             }
-            allHashJsonValues.add(HashSha1.hashString(JsonTools.compactPrintWithoutNulls(item)));
+            allJsonValues.add(MongoDbJsonValueTools.encodeValue(codec, item));
         });
 
         // Delete all the entries that are not in the list
-        var result = mongoCollection.deleteMany(new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, new Document().append("$nin", allHashJsonValues)));
+        var result = mongoCollection.deleteMany(MongoDbJsonValueTools.filterNin(allJsonValues));
 
         // Return true if there were deleted entries
         return result.getDeletedCount() > 0;
@@ -623,4 +641,30 @@ public class MongoDbDeque<E> extends AbstractBasics implements BlockingDeque<E>
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Set the amount of documents retrieved per batch when iterating.
+     *
+     * @param cursorBatchSize the batch size
+     * @return this
+     */
+    public MongoDbDeque<E> setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize <= 0) {
+            throw new IllegalArgumentException("cursorBatchSize must be at least 1");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the codec of the values. The default is {@link JsonCodec#COMPACT} that saves the json as a string. The other codecs save a binary that is usually smaller and faster to decode.
+     * The values saved as json strings are still readable after changing the codec, but the lookups by value only find the values saved with the same codec.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbDeque<E> setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
 }
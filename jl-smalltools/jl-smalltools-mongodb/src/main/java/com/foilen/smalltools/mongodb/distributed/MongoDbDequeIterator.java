@@ -1,82 +1,37 @@
 package com.foilen.smalltools.mongodb.distributed;
 
-import com.foilen.smalltools.tools.JsonTools;
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
 import com.mongodb.client.MongoCollection;
 import org.bson.Document;
 
-import java.util.Iterator;
-import java.util.NoSuchElementException;
-
-public class MongoDbDequeIterator<E> implements Iterator<E> {
+public class MongoDbDequeIterator<E> extends AbstractMongoDbBatchedIterator<E> {
 
     private final Class<E> entityType;
-    private final MongoCollection<Document> mongoCollection;
-    private final boolean ascending;
-
-    private Long lastId = null;
-    private E next;
-    private boolean completed;
+    private final Codec codec;
 
     public MongoDbDequeIterator(Class<E> entityType, MongoCollection<Document> mongoCollection, boolean ascending) {
-        this.entityType = entityType;
-        this.mongoCollection = mongoCollection;
-        this.ascending = ascending;
+        this(entityType, mongoCollection, ascending, DEFAULT_BATCH_SIZE);
     }
 
-    @Override
-    public boolean hasNext() {
-        loadNext();
-        return !completed;
+    public MongoDbDequeIterator(Class<E> entityType, MongoCollection<Document> mongoCollection, boolean ascending, int batchSize) {
+        this(entityType, mongoCollection, ascending, batchSize, JsonCodec.COMPACT);
     }
 
-    @Override
-    public E next() {
-
-        if (next != null) {
-            var toReturn = next;
-            next = null;
-            return toReturn;
-        }
-
-        loadNext();
-        if (completed) {
-            throw new NoSuchElementException();
-        }
-        var toReturn = next;
-        next = null;
-        return toReturn;
+    public MongoDbDequeIterator(Class<E> entityType, MongoCollection<Document> mongoCollection, boolean ascending, int batchSize, Codec codec) {
+        super(mongoCollection, null, null, ascending, batchSize);
+        this.entityType = entityType;
+        this.codec = codec;
     }
 
-    private void loadNext() {
-        next = null;
-
-        if (completed) {
-            return;
-        }
-
-        var query = new Document();
-        if (lastId != null) {
-            query.append(MongoDbDistributedConstants.FIELD_ID, new Document().append(ascending ? "$gt" : "$lt", lastId));
-        }
-
-        var sort = new Document().append(MongoDbDistributedConstants.FIELD_ID, ascending ? 1 : -1);
-        var result = mongoCollection.find(query)
-                .sort(sort)
-                .first();
-        if (result == null) {
-            completed = true;
-            return;
-        }
-
-        lastId = result.getLong(MongoDbDistributedConstants.FIELD_ID);
-        next = JsonTools.readFromString(result.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+    @Override
+    protected Document getProjection() {
+        return new Document(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1);
     }
 
     @Override
-    public void remove() {
-        if (lastId == null) {
-            throw new IllegalStateException();
-        }
-        mongoCollection.deleteOne(new Document().append(MongoDbDistributedConstants.FIELD_ID, lastId));
+    protected E toElement(Document document) {
+        return MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
     }
+
 }
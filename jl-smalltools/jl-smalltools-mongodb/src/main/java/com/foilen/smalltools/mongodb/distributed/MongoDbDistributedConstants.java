@@ -4,9 +4,23 @@ public class MongoDbDistributedConstants {
 
     public static final String FIELD_ID = "_id";
     public static final String FIELD_JSON_VALUE = "jsonValue";
+    /**
+     * The SHA-1 of the json value that was always saved by the previous versions. Use {@link #FIELD_JSON_VALUE_HASH} with {@link MongoDbJsonValueTools}.
+     */
+    @Deprecated
     public static final String FIELD_HASH_JSON_VALUE = "hashJsonValue";
+    public static final String FIELD_JSON_VALUE_HASH = "jsonValueHash";
     public static final String FIELD_HOLDING_THREAD_ID = "holdingThreadId";
+    public static final String FIELD_OWNER_ID = "ownerId";
+    public static final String FIELD_FENCING_TOKEN = "fencingToken";
+    public static final String FIELD_SEQUENCE = "sequence";
+    public static final String FIELD_LOCK_NAME = "lockName";
+    public static final String FIELD_TICKET = "ticket";
     public static final String FIELD_EXPIRE_AT = "expireAt";
     public static final String FIELD_CREATED_AT = "createdAt";
+    public static final String FIELD_OFFSET = "offset";
+    public static final String FIELD_UPDATED_AT = "updatedAt";
+    public static final String FIELD_PRIORITY = "priority";
+    public static final String FIELD_VISIBLE_AT = "visibleAt";
 
 }
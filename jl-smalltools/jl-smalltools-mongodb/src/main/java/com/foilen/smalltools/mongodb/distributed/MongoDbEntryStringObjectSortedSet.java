@@ -1,12 +1,11 @@
 package com.foilen.smalltools.mongodb.distributed;
 
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
 import com.foilen.smalltools.collection.ImmutableMapEntry;
-import com.foilen.smalltools.hash.HashSha1;
-import com.foilen.smalltools.tools.JsonTools;
 import com.foilen.smalltools.tools.StringTools;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
-import com.mongodb.client.model.Sorts;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
@@ -16,7 +15,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.StreamSupport;
 
 /**
- * A distributed Set using MongoDB of Map Entries with keys that are strings and value that will be any json serializable type.
+ * A distributed Set using MongoDB of Map Entries with keys that are strings and value that will be any type serializable by the codec (json by default).
  */
 public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry<String, V>> {
 
@@ -25,6 +24,9 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
     private final String fromId;
     private final String toId;
 
+    private int cursorBatchSize = AbstractMongoDbBatchedIterator.DEFAULT_BATCH_SIZE;
+    private Codec codec = JsonCodec.COMPACT;
+
     public MongoDbEntryStringObjectSortedSet(Class<V> valueType, MongoCollection<Document> mongoCollection) {
         this(valueType, mongoCollection, null, null);
     }
@@ -46,6 +48,9 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
 
         var document = mongoCollection.find(getFilter())
                 .sort(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .projection(new Document()
+                        .append(MongoDbDistributedConstants.FIELD_ID, 1)
+                        .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
                 .limit(1)
                 .first();
         if (document == null) {
@@ -54,7 +59,7 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
 
         return new ImmutableMapEntry<>(
                 document.getString(MongoDbDistributedConstants.FIELD_ID),
-                JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType)
+                MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType)
         );
 
     }
@@ -64,6 +69,9 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
 
         var document = mongoCollection.find(getFilter())
                 .sort(new Document(MongoDbDistributedConstants.FIELD_ID, -1))
+                .projection(new Document()
+                        .append(MongoDbDistributedConstants.FIELD_ID, 1)
+                        .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
                 .limit(1)
                 .first();
         if (document == null) {
@@ -72,7 +80,7 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
 
         return new ImmutableMapEntry<>(
                 document.getString(MongoDbDistributedConstants.FIELD_ID),
-                JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType)
+                MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType)
         );
 
     }
@@ -114,8 +122,8 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
 
             return mongoCollection.find(Filters.and(
                     Filters.eq(MongoDbDistributedConstants.FIELD_ID, key),
-                    Filters.eq(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, HashSha1.hashString(JsonTools.compactPrintWithoutNulls(value.getValue())))
-            )).first() != null;
+                    Filters.eq(MongoDbDistributedConstants.FIELD_JSON_VALUE, MongoDbJsonValueTools.encodeValue(codec, value.getValue()))
+            )).projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1)).first() != null;
         }
         return false;
     }
@@ -143,7 +151,7 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
 
             return mongoCollection.deleteOne(Filters.and(
                     Filters.eq(MongoDbDistributedConstants.FIELD_ID, key),
-                    Filters.eq(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, HashSha1.hashString(JsonTools.compactPrintWithoutNulls(value.getValue())))
+                    Filters.eq(MongoDbDistributedConstants.FIELD_JSON_VALUE, MongoDbJsonValueTools.encodeValue(codec, value.getValue()))
             )).getDeletedCount() > 0;
         }
         return false;
@@ -181,7 +189,7 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
 
     @Override
     public void clear() {
-        mongoCollection.deleteMany(Filters.empty());
+        mongoCollection.deleteMany(getFilter());
     }
 
     @Override
@@ -209,7 +217,7 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
                 .sort(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
                 .map(document -> new ImmutableMapEntry<>(
                         document.getString(MongoDbDistributedConstants.FIELD_ID),
-                        JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType)
+                        MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType)
                 ))
                 .forEach(entry -> sum.addAndGet(entry.hashCode()));
         return sum.get();
@@ -231,7 +239,7 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
                 to = toElement.getKey();
             }
         }
-        return new MongoDbEntryStringObjectSortedSet(valueType, mongoCollection, from, to);
+        return new MongoDbEntryStringObjectSortedSet<>(valueType, mongoCollection, from, to).setCursorBatchSize(cursorBatchSize).setCodec(codec);
     }
 
     @Override
@@ -246,19 +254,25 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
 
     @Override
     public Iterator<Map.Entry<String, V>> iterator() {
-        return new MongoDbEntryStringObjectSortedSetIterator(valueType, mongoCollection, fromId, toId);
+        return new MongoDbEntryStringObjectSortedSetIterator<>(valueType, mongoCollection, fromId, toId, cursorBatchSize, codec);
+    }
+
+    /**
+     * Get a spliterator that can split the range in 2 to scan it in parallel (e.g. with {@link #parallelStream()}).
+     *
+     * @return the spliterator
+     */
+    @Override
+    public Spliterator<Map.Entry<String, V>> spliterator() {
+        return new MongoDbStringRangeSpliterator<>(mongoCollection, fromId, toId, cursorBatchSize,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL,
+                (from, to) -> new MongoDbEntryStringObjectSortedSetIterator<>(valueType, mongoCollection, from, to, cursorBatchSize, codec)
+        );
     }
 
     @Override
     public Object[] toArray() {
-        return StreamSupport.stream(mongoCollection.find()
-                        .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
-                        .spliterator(), false)
-                .map(document -> new ImmutableMapEntry<>(
-                        document.getString(MongoDbDistributedConstants.FIELD_ID),
-                        JsonTools.readFromString(document.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType)
-                ))
-                .toArray();
+        return StreamSupport.stream(spliterator(), false).toArray();
     }
 
     @Override
@@ -285,6 +299,31 @@ public class MongoDbEntryStringObjectSortedSet<V> implements SortedSet<Map.Entry
         }
     }
 
+    /**
+     * Set the amount of documents retrieved per batch when iterating.
+     *
+     * @param cursorBatchSize the batch size
+     * @return this
+     */
+    public MongoDbEntryStringObjectSortedSet<V> setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize <= 0) {
+            throw new IllegalArgumentException("cursorBatchSize must be at least 1");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the codec of the values. Must be the same as the map using that set.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbEntryStringObjectSortedSet<V> setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
     @Override
     public String toString() {
         return "MongoDbEntryStringObjectSortedSet{" +
@@ -1,9 +1,11 @@
 package com.foilen.smalltools.mongodb.distributed;
 
+import com.foilen.smalltools.mongodb.MongoDbBulkWriteTools;
+import com.foilen.smalltools.tools.BufferBatchesTools;
 import com.foilen.smalltools.tools.StringTools;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
-import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
 import org.bson.Document;
 import org.bson.conversions.Bson;
@@ -17,10 +19,15 @@ import java.util.stream.StreamSupport;
  */
 public class MongoDbIdStringSortedSet implements SortedSet<String> {
 
+    public static final int DEFAULT_BULK_WRITE_BATCH_SIZE = 1000;
+
     private final MongoCollection<Document> mongoCollection;
     private final String fromId;
     private final String toId;
 
+    private int cursorBatchSize = AbstractMongoDbBatchedIterator.DEFAULT_BATCH_SIZE;
+    private int bulkWriteBatchSize = DEFAULT_BULK_WRITE_BATCH_SIZE;
+
     public MongoDbIdStringSortedSet(MongoCollection<Document> mongoCollection) {
         this(mongoCollection, null, null);
     }
@@ -100,18 +107,24 @@ public class MongoDbIdStringSortedSet implements SortedSet<String> {
             if (toId != null && value.compareTo(toId) >= 0)
                 return false;
 
-            return mongoCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, o)).first() != null;
+            return mongoCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, o))
+                    .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                    .first() != null;
         }
         return false;
     }
 
-    @Override
-    public boolean add(String value) {
+    private void checkInRange(String value) {
         if (fromId != null && value.compareTo(fromId) < 0)
             throw new IllegalArgumentException("Value is smaller than the fromId");
 
         if (toId != null && value.compareTo(toId) >= 0)
             throw new IllegalArgumentException("Value is greater or equal to the toId");
+    }
+
+    @Override
+    public boolean add(String value) {
+        checkInRange(value);
 
         var result = mongoCollection.updateOne(
                 Filters.eq(MongoDbDistributedConstants.FIELD_ID, value),
@@ -123,14 +136,23 @@ public class MongoDbIdStringSortedSet implements SortedSet<String> {
 
     @Override
     public boolean addAll(Collection<? extends String> value) {
-        boolean anyAdded = false;
 
-        for (String v : value) {
-            if (add(v)) {
-                anyAdded = true;
-            }
-        }
-        return anyAdded;
+        // Get as unique
+        Set<String> uniqueIds = new LinkedHashSet<>(value);
+        uniqueIds.forEach(this::checkInRange);
+
+        AtomicInteger addedCount = new AtomicInteger();
+        BufferBatchesTools.<String>autoClose(bulkWriteBatchSize, items -> {
+            var upsertedIndexes = MongoDbBulkWriteTools.bulkUpsertUnorderedWithRetry(mongoCollection, items.stream()
+                    .map(v -> new UpdateOneModel<Document>(
+                            Filters.eq(MongoDbDistributedConstants.FIELD_ID, v),
+                            new Document("$setOnInsert", new Document(MongoDbDistributedConstants.FIELD_ID, v)),
+                            new UpdateOptions().upsert(true)
+                    ))
+                    .toList());
+            addedCount.addAndGet(upsertedIndexes.size());
+        }, bufferBatchesTools -> bufferBatchesTools.add(new ArrayList<>(uniqueIds)));
+        return addedCount.get() > 0;
     }
 
     @Override
@@ -185,7 +207,7 @@ public class MongoDbIdStringSortedSet implements SortedSet<String> {
 
     @Override
     public void clear() {
-        mongoCollection.deleteMany(Filters.empty());
+        mongoCollection.deleteMany(getFilter());
     }
 
     @Override
@@ -232,7 +254,9 @@ public class MongoDbIdStringSortedSet implements SortedSet<String> {
                 to = toElement;
             }
         }
-        return new MongoDbIdStringSortedSet(mongoCollection, from, to);
+        return new MongoDbIdStringSortedSet(mongoCollection, from, to)
+                .setCursorBatchSize(cursorBatchSize)
+                .setBulkWriteBatchSize(bulkWriteBatchSize);
     }
 
     @Override
@@ -247,17 +271,25 @@ public class MongoDbIdStringSortedSet implements SortedSet<String> {
 
     @Override
     public Iterator<String> iterator() {
-        return new MongoDbIdStringSortedSetIterator(mongoCollection, fromId, toId);
+        return new MongoDbIdStringSortedSetIterator(mongoCollection, fromId, toId, cursorBatchSize);
+    }
+
+    /**
+     * Get a spliterator that can split the range in 2 to scan it in parallel (e.g. with {@link #parallelStream()}).
+     *
+     * @return the spliterator
+     */
+    @Override
+    public Spliterator<String> spliterator() {
+        return new MongoDbStringRangeSpliterator<>(mongoCollection, fromId, toId, cursorBatchSize,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.SORTED | Spliterator.NONNULL,
+                (from, to) -> new MongoDbIdStringSortedSetIterator(mongoCollection, from, to, cursorBatchSize)
+        );
     }
 
     @Override
     public Object[] toArray() {
-        return StreamSupport.stream(mongoCollection.find()
-                        .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_ID))
-                        .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
-                        .spliterator(), false)
-                .map(document -> document.getString(MongoDbDistributedConstants.FIELD_ID))
-                .toArray();
+        return StreamSupport.stream(spliterator(), false).toArray();
     }
 
     @Override
@@ -284,6 +316,34 @@ public class MongoDbIdStringSortedSet implements SortedSet<String> {
         }
     }
 
+    /**
+     * Set the amount of documents retrieved per batch when iterating.
+     *
+     * @param cursorBatchSize the batch size
+     * @return this
+     */
+    public MongoDbIdStringSortedSet setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize <= 0) {
+            throw new IllegalArgumentException("cursorBatchSize must be at least 1");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the amount of values sent per bulk write in {@link #addAll(Collection)}.
+     *
+     * @param bulkWriteBatchSize the batch size
+     * @return this
+     */
+    public MongoDbIdStringSortedSet setBulkWriteBatchSize(int bulkWriteBatchSize) {
+        if (bulkWriteBatchSize <= 0) {
+            throw new IllegalArgumentException("bulkWriteBatchSize must be at least 1");
+        }
+        this.bulkWriteBatchSize = bulkWriteBatchSize;
+        return this;
+    }
+
     @Override
     public String toString() {
         return "MongoDbIdStringSortedSet{" +
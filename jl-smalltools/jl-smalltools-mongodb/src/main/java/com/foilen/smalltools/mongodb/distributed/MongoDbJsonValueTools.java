@@ -0,0 +1,316 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.mongodb.MongoDbBulkWriteTools;
+import com.foilen.smalltools.mongodb.MongoDbManageCollectionTools;
+import com.foilen.smalltools.tools.JsonTools;
+import com.foilen.smalltools.tuple.Tuple2;
+import com.google.common.hash.Hashing;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * To find the documents by their json value (e.g. for contains(), remove(Object), containsValue()).
+ * <p>
+ * The value is a compact json string when using a {@link JsonCodec} (the default) or a binary with the other codecs (see {@link #encodeValue(Codec, Object)}). The lookups compare the encoded values,
+ * so they only find the documents saved with the same codec.
+ * <p>
+ * By default, the json value is compared as is without any index. When the value hash index is enabled, a 64 bits FarmHash fingerprint of the json value is saved in
+ * {@link MongoDbDistributedConstants#FIELD_JSON_VALUE_HASH} with an index on it and the queries use both the hash (for the index) and the json value (to be exact on collisions).
+ * <p>
+ * When enabling the index on an existing collection, {@link #manageCollection(MongoClient, MongoCollection, Map, boolean)} adds the hash to the documents that do not have it. The documents saved
+ * without the hash afterward (e.g. by an instance that does not use the index) are still found since the queries also match the documents without any hash.
+ */
+public class MongoDbJsonValueTools {
+
+    public static final String INDEX_NAME = "jsonValueHash_id";
+    /**
+     * The index on the SHA-1 of the json value that was always created by the previous versions.
+     */
+    public static final String LEGACY_INDEX_NAME = "hashJsonValue_id";
+
+    /**
+     * The amount of documents updated at a time when adding the missing hashes.
+     */
+    public static final int BACKFILL_BATCH_SIZE = 1000;
+
+    private final static Logger logger = LoggerFactory.getLogger(MongoDbJsonValueTools.class);
+
+    /**
+     * The namespaces already updated by {@link #manageCollection(MongoClient, MongoCollection, Map, boolean)} per client with the setting of the index.
+     */
+    private final static Map<MongoClient, Set<Tuple2<MongoNamespace, Boolean>>> updatedNamespacesByClient = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Add the index on the hash if it is enabled. When it is not, the index is not in the list and will be removed by {@link com.foilen.smalltools.mongodb.MongoDbManageCollectionTools#manageIndexes}.
+     *
+     * @param indexes        the indexes to update
+     * @param valueHashIndex true to use the index
+     */
+    public static void addIndex(Map<String, Tuple2<Document, IndexOptions>> indexes, boolean valueHashIndex) {
+        if (valueHashIndex) {
+            indexes.put(INDEX_NAME, new Tuple2<>(
+                    new Document().append(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH, 1).append(MongoDbDistributedConstants.FIELD_ID, 1),
+                    new IndexOptions()
+            ));
+        }
+    }
+
+    /**
+     * Append the json value and its hash if the index is enabled.
+     *
+     * @param document       the document to update
+     * @param jsonValue      the encoded value (see {@link #encodeValue(Codec, Object)})
+     * @param valueHashIndex true to save the hash
+     * @return the document
+     */
+    public static Document appendJsonValue(Document document, Object jsonValue, boolean valueHashIndex) {
+        document.append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue);
+        if (valueHashIndex) {
+            document.append(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH, hashValue(jsonValue));
+        }
+        return document;
+    }
+
+    /**
+     * Decode a value saved in {@link MongoDbDistributedConstants#FIELD_JSON_VALUE}. A json string is always read as json, so the documents saved before choosing another codec are still readable.
+     *
+     * @param codec     the codec that encoded the binary values
+     * @param jsonValue the encoded value
+     * @param type      the type of the value
+     * @param <T>       the type of the value
+     * @return the value
+     */
+    public static <T> T decodeValue(Codec codec, Object jsonValue, Class<T> type) {
+        if (jsonValue instanceof Binary binary) {
+            return codec.decode(binary.getData(), type);
+        }
+        return JsonTools.readFromString((String) jsonValue, type);
+    }
+
+    /**
+     * Encode a value to save in {@link MongoDbDistributedConstants#FIELD_JSON_VALUE}. With a {@link JsonCodec}, it is the compact json string without the nulls, as always saved. With the other
+     * codecs, it is a binary.
+     *
+     * @param codec the codec
+     * @param value the value
+     * @return the encoded value
+     */
+    public static Object encodeValue(Codec codec, Object value) {
+        if (codec instanceof JsonCodec) {
+            return JsonTools.compactPrintWithoutNulls(value);
+        }
+        return new Binary(codec.encode(value));
+    }
+
+    /**
+     * Get the filter to find the documents with that json value.
+     *
+     * @param jsonValue      the encoded value
+     * @param valueHashIndex true to use the index
+     * @return the filter
+     */
+    public static Bson filterEq(Object jsonValue, boolean valueHashIndex) {
+        if (valueHashIndex) {
+            return Filters.and(
+                    Filters.in(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH, Arrays.asList(hashValue(jsonValue), null)),
+                    Filters.eq(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
+            );
+        }
+        return Filters.eq(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue);
+    }
+
+    /**
+     * Get the filter to find the documents with any of these json values.
+     *
+     * @param jsonValues     the encoded values
+     * @param valueHashIndex true to use the index
+     * @return the filter
+     */
+    public static Bson filterIn(Collection<?> jsonValues, boolean valueHashIndex) {
+        if (valueHashIndex) {
+            List<Long> hashes = jsonValues.stream().map(MongoDbJsonValueTools::hashValue).distinct().collect(Collectors.toCollection(ArrayList::new));
+            hashes.add(null);
+            return Filters.and(
+                    Filters.in(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH, hashes),
+                    Filters.in(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValues)
+            );
+        }
+        return Filters.in(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValues);
+    }
+
+    /**
+     * Get the filter to find the documents with the SHA-1 saved by the previous versions.
+     *
+     * @return the filter
+     */
+    @SuppressWarnings("deprecation")
+    public static Bson filterLegacyHash() {
+        return Filters.exists(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE);
+    }
+
+    /**
+     * Get the filter to find the documents with a json value, but without its hash. It uses the index on the hash.
+     *
+     * @return the filter
+     */
+    public static Bson filterMissingHash() {
+        return Filters.and(
+                Filters.eq(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH, null),
+                Filters.exists(MongoDbDistributedConstants.FIELD_JSON_VALUE)
+        );
+    }
+
+    /**
+     * Get the filter to find the documents with none of these json values. The index cannot help for that one, so only the json value is used.
+     *
+     * @param jsonValues the encoded values
+     * @return the filter
+     */
+    public static Bson filterNin(Collection<?> jsonValues) {
+        return Filters.nin(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValues);
+    }
+
+    /**
+     * Compute the non-cryptographic hash of the json value.
+     *
+     * @param jsonValue the json value
+     * @return the hash
+     */
+    public static long hashJsonValue(String jsonValue) {
+        return Hashing.farmHashFingerprint64().hashString(jsonValue, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Compute the non-cryptographic hash of an encoded value. It is the same as {@link #hashJsonValue(String)} for the json strings.
+     *
+     * @param jsonValue the encoded value
+     * @return the hash
+     */
+    public static long hashValue(Object jsonValue) {
+        if (jsonValue instanceof Binary binary) {
+            return Hashing.farmHashFingerprint64().hashBytes(binary.getData()).asLong();
+        }
+        return hashJsonValue((String) jsonValue);
+    }
+
+    /**
+     * Create the collection and its indexes (like {@link MongoDbManageCollectionTools#manageCollection(MongoClient, MongoCollection, Map)}) with the index on the hash if it is enabled (see
+     * {@link #addIndex(Map, boolean)}) and update the existing documents. When enabling the index, the documents saved before get their hash. The SHA-1 saved by the previous versions is removed.
+     *
+     * @param mongoClient                    the mongo client
+     * @param mongoCollection                the collection
+     * @param indexKeysAndOptionsByIndexName the other indexes
+     * @param valueHashIndex                 true to use the index
+     */
+    public static void manageCollection(MongoClient mongoClient, MongoCollection<Document> mongoCollection, Map<String, Tuple2<Document, IndexOptions>> indexKeysAndOptionsByIndexName,
+                                        boolean valueHashIndex) {
+
+        Map<String, Tuple2<Document, IndexOptions>> indexes = new HashMap<>(indexKeysAndOptionsByIndexName);
+        addIndex(indexes, valueHashIndex);
+
+        var updatedNamespaces = updatedNamespacesByClient.get(mongoClient);
+        boolean updated = updatedNamespaces != null && updatedNamespaces.contains(new Tuple2<>(mongoCollection.getNamespace(), valueHashIndex));
+
+        // Check for the legacy index before it is removed
+        boolean legacyIndex = !updated && mongoCollection.listIndexes()
+                .map(index -> index.getString("name"))
+                .into(new ArrayList<>())
+                .contains(LEGACY_INDEX_NAME);
+
+        MongoDbManageCollectionTools.manageCollection(mongoClient, mongoCollection, indexes);
+
+        if (!updated) {
+            updateDocuments(mongoClient, mongoCollection, valueHashIndex, legacyIndex);
+        }
+    }
+
+    /**
+     * Get the update to add the hash to a document found with {@link #filterMissingHash()}. It only updates the document if its json value did not change.
+     *
+     * @param document the document with its id and json value
+     * @return the update
+     */
+    public static UpdateOneModel<Document> toAddHash(Document document) {
+        Object jsonValue = document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE);
+        return new UpdateOneModel<>(
+                Filters.and(
+                        Filters.eq(MongoDbDistributedConstants.FIELD_ID, document.get(MongoDbDistributedConstants.FIELD_ID)),
+                        Filters.eq(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
+                ),
+                new Document().append("$set", new Document().append(MongoDbDistributedConstants.FIELD_JSON_VALUE_HASH, hashValue(jsonValue)))
+        );
+    }
+
+    /**
+     * Get the update to remove the SHA-1 saved by the previous versions.
+     *
+     * @return the update
+     */
+    @SuppressWarnings("deprecation")
+    public static Bson unsetLegacyHash() {
+        return new Document().append("$unset", new Document().append(MongoDbDistributedConstants.FIELD_HASH_JSON_VALUE, ""));
+    }
+
+    /**
+     * Add the hash to the documents that do not have it (when the index is enabled) and remove the SHA-1 saved by the previous versions. It is done once per namespace and setting.
+     *
+     * @param mongoClient     the mongo client
+     * @param mongoCollection the collection
+     * @param valueHashIndex  true if the index is used
+     * @param legacyIndex     true if the collection had the index on the SHA-1 (before it got removed by {@link MongoDbManageCollectionTools#manageIndexes})
+     */
+    private static void updateDocuments(MongoClient mongoClient, MongoCollection<Document> mongoCollection, boolean valueHashIndex, boolean legacyIndex) {
+
+        // Remove the SHA-1 of the previous versions
+        if (legacyIndex) {
+            var result = mongoCollection.updateMany(filterLegacyHash(), unsetLegacyHash());
+            logger.info("Removed the legacy hash of {} documents in {}", result.getModifiedCount(), mongoCollection.getNamespace());
+        }
+
+        // Add the missing hashes
+        if (valueHashIndex) {
+            long count = 0;
+            List<Document> documents;
+            do {
+                documents = mongoCollection.find(filterMissingHash())
+                        .projection(new Document().append(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
+                        .limit(BACKFILL_BATCH_SIZE)
+                        .into(new ArrayList<>());
+                if (!documents.isEmpty()) {
+                    MongoDbBulkWriteTools.bulkWriteUnorderedWithRetry(mongoCollection, documents.stream().map(MongoDbJsonValueTools::toAddHash).collect(Collectors.toList()));
+                    count += documents.size();
+                }
+            } while (documents.size() == BACKFILL_BATCH_SIZE);
+            if (count > 0) {
+                logger.info("Added the missing hash to {} documents in {}", count, mongoCollection.getNamespace());
+            }
+        }
+
+        updatedNamespacesByClient.computeIfAbsent(mongoClient, k -> Collections.synchronizedSet(new HashSet<>())).add(new Tuple2<>(mongoCollection.getNamespace(), valueHashIndex));
+    }
+
+}
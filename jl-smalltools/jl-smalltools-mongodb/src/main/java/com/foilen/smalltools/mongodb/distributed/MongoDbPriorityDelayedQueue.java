@@ -0,0 +1,354 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
+import com.foilen.smalltools.mongodb.MongoDbChangeStreamWaitAnyChange;
+import com.foilen.smalltools.mongodb.MongoDbManageCollectionTools;
+import com.foilen.smalltools.tuple.Tuple2;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distributed queue using MongoDB where the elements have a priority and a time when they become visible. That can be used as a job queue with delayed jobs.
+ * <p>
+ * The consumers atomically claim the best visible element: the lowest priority number first (like {@link java.util.PriorityQueue}), then the oldest visibleAt and then the insertion order. The
+ * insertion order is the "_id" which is an {@link ObjectId} (ordered by second between the clients and by a counter within the same client). The compound index on (priority, visibleAt, _id) serves
+ * that query.
+ * <p>
+ * The threads waiting for an element are woken up by the change stream when there is a new element or at the next visibleAt of the delayed elements, so there is no polling. The visibleAt is
+ * computed with the local clock, so the clients should have their clock synchronized.
+ * <p>
+ * {@link #size()} and {@link #iterator()} include the elements that are not visible yet. The iterator returns them in insertion order.
+ * <p>
+ * The values are saved as json, unless another codec is set with {@link #setCodec(Codec)}.
+ *
+ * @param <E> the type of elements in this queue
+ */
+public class MongoDbPriorityDelayedQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private static final Bson SORT_BEST = Sorts.ascending(MongoDbDistributedConstants.FIELD_PRIORITY, MongoDbDistributedConstants.FIELD_VISIBLE_AT, MongoDbDistributedConstants.FIELD_ID);
+
+    private final Class<E> entityType;
+    private final MongoCollection<Document> mongoCollection;
+    private final long stopChangeStreamAfterNoThreadWaitedInMs;
+
+    private final Runnable collectionCreate;
+
+    private MongoDbChangeStreamWaitAnyChange mongoDbChangeStreamWaitAnyChange;
+    private int cursorBatchSize = AbstractMongoDbBatchedIterator.DEFAULT_BATCH_SIZE;
+    private Codec codec = JsonCodec.COMPACT;
+
+    public MongoDbPriorityDelayedQueue(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection) {
+        this(entityType, mongoClient, mongoCollection, 10 * 60000);
+    }
+
+    /**
+     * Create a new instance of the queue.
+     *
+     * @param entityType                              the type of elements in this queue
+     * @param mongoClient                             the mongo client
+     * @param mongoCollection                         the mongo collection
+     * @param stopChangeStreamAfterNoThreadWaitedInMs the maximum time to wait for a change in the change stream
+     */
+    public MongoDbPriorityDelayedQueue(Class<E> entityType, MongoClient mongoClient, MongoCollection<Document> mongoCollection, long stopChangeStreamAfterNoThreadWaitedInMs) {
+        this.entityType = entityType;
+        this.mongoCollection = mongoCollection;
+        this.stopChangeStreamAfterNoThreadWaitedInMs = stopChangeStreamAfterNoThreadWaitedInMs;
+
+        collectionCreate = () -> {
+            Map<String, Tuple2<Document, IndexOptions>> indexes = new HashMap<>();
+            indexes.put("priority_visibleAt_id", new Tuple2<>(
+                    new Document()
+                            .append(MongoDbDistributedConstants.FIELD_PRIORITY, 1)
+                            .append(MongoDbDistributedConstants.FIELD_VISIBLE_AT, 1)
+                            .append(MongoDbDistributedConstants.FIELD_ID, 1),
+                    new IndexOptions()
+            ));
+            indexes.put("visibleAt_1", new Tuple2<>(
+                    new Document().append(MongoDbDistributedConstants.FIELD_VISIBLE_AT, 1),
+                    new IndexOptions()
+            ));
+            MongoDbManageCollectionTools.manageCollection(mongoClient, mongoCollection, indexes);
+        };
+        collectionCreate.run();
+    }
+
+    /**
+     * Add an element that is visible right away.
+     *
+     * @param e        the element
+     * @param priority the priority (the lowest is taken first)
+     * @return true
+     */
+    public boolean offer(E e, int priority) {
+        return offer(e, priority, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add an element that will be visible after a delay.
+     *
+     * @param e        the element
+     * @param priority the priority (the lowest is taken first)
+     * @param delay    the delay before it is visible
+     * @param unit     the unit of the delay
+     * @return true
+     */
+    public boolean offer(E e, int priority, long delay, TimeUnit unit) {
+        return offerVisibleAt(e, priority, new Date(System.currentTimeMillis() + unit.toMillis(delay)));
+    }
+
+    /**
+     * Add an element that will be visible at a specific time.
+     *
+     * @param e         the element
+     * @param priority  the priority (the lowest is taken first)
+     * @param visibleAt when it will be visible
+     * @return true
+     */
+    public boolean offerVisibleAt(E e, int priority, Date visibleAt) {
+
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        Object jsonValue = MongoDbJsonValueTools.encodeValue(codec, e);
+        mongoCollection.insertOne(new Document()
+                .append(MongoDbDistributedConstants.FIELD_ID, new ObjectId())
+                .append(MongoDbDistributedConstants.FIELD_PRIORITY, priority)
+                .append(MongoDbDistributedConstants.FIELD_VISIBLE_AT, visibleAt)
+                .append(MongoDbDistributedConstants.FIELD_JSON_VALUE, jsonValue)
+        );
+
+        return true;
+    }
+
+    private Bson filterVisible() {
+        return Filters.lte(MongoDbDistributedConstants.FIELD_VISIBLE_AT, new Date());
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return offer(e, DEFAULT_PRIORITY);
+    }
+
+    @Override
+    public E poll() {
+        var entry = mongoCollection.findOneAndDelete(
+                filterVisible(),
+                new FindOneAndDeleteOptions().sort(SORT_BEST)
+        );
+        if (entry == null) {
+            return null;
+        }
+
+        return MongoDbJsonValueTools.decodeValue(codec, entry.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+        E value = poll();
+        if (value != null) {
+            return value;
+        }
+
+        long waitUntil = System.currentTimeMillis() + unit.toMillis(timeout);
+        if (waitUntil < 0) {
+            waitUntil = Long.MAX_VALUE;
+        }
+        while (value == null && System.currentTimeMillis() < waitUntil) {
+            long now = System.currentTimeMillis();
+            long waitTimeInMs = waitUntil - now;
+
+            // Wake up at the next visibleAt
+            Date nextVisibleAt = getNextVisibleAt();
+            if (nextVisibleAt != null) {
+                waitTimeInMs = Math.min(waitTimeInMs, Math.max(1, nextVisibleAt.getTime() - now));
+            }
+
+            waitForChange(waitTimeInMs);
+            value = poll();
+        }
+        return value;
+    }
+
+    /**
+     * Get the time when the next element that is not visible yet will be visible.
+     *
+     * @return the next visibleAt or null if all the elements are already visible
+     */
+    public Date getNextVisibleAt() {
+        var next = mongoCollection.find(Filters.gt(MongoDbDistributedConstants.FIELD_VISIBLE_AT, new Date()))
+                .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_VISIBLE_AT))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_VISIBLE_AT, 1))
+                .first();
+        if (next == null) {
+            return null;
+        }
+        return next.getDate(MongoDbDistributedConstants.FIELD_VISIBLE_AT);
+    }
+
+    private void waitForChange(long timeInMs) throws InterruptedException {
+        synchronized (this) {
+            if (mongoDbChangeStreamWaitAnyChange == null) {
+                mongoDbChangeStreamWaitAnyChange = new MongoDbChangeStreamWaitAnyChange(collectionCreate, mongoCollection, stopChangeStreamAfterNoThreadWaitedInMs, "insert");
+            }
+        }
+        mongoDbChangeStreamWaitAnyChange.waitForChange(timeInMs);
+    }
+
+    @Override
+    public E peek() {
+        var result = mongoCollection.find(filterVisible())
+                .sort(SORT_BEST)
+                .projection(new Document(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1))
+                .first();
+        if (result == null) {
+            return null;
+        }
+        return MongoDbJsonValueTools.decodeValue(codec, result.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), entityType);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, o);
+        return mongoCollection.find(MongoDbJsonValueTools.filterEq(jsonValue, false))
+                .projection(new Document(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first() != null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+
+        var jsonValue = MongoDbJsonValueTools.encodeValue(codec, o);
+        var entry = mongoCollection.findOneAndDelete(
+                MongoDbJsonValueTools.filterEq(jsonValue, false),
+                new FindOneAndDeleteOptions().sort(SORT_BEST)
+        );
+        return entry != null;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException("Cannot drain to itself");
+        if (maxElements < 0)
+            throw new IllegalArgumentException("maxElements should be >= 0");
+
+        int count = 0;
+        while (count < maxElements) {
+            E value = poll();
+            if (value == null) {
+                break;
+            }
+            c.add(value);
+            ++count;
+        }
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        mongoCollection.deleteMany(Filters.empty());
+    }
+
+    @Override
+    public int size() {
+        long count = mongoCollection.estimatedDocumentCount();
+        if (count > Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) count;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new MongoDbDequeIterator<>(entityType, mongoCollection, true, cursorBatchSize, codec);
+    }
+
+    // ---== Methods reusing the others at the top  ==---
+
+    @Override
+    public void put(E e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Set the amount of documents retrieved per batch when iterating.
+     *
+     * @param cursorBatchSize the batch size
+     * @return this
+     */
+    public MongoDbPriorityDelayedQueue<E> setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize <= 0) {
+            throw new IllegalArgumentException("cursorBatchSize must be at least 1");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Set the codec of the values. The default is {@link JsonCodec#COMPACT} that saves the json as a string. The other codecs save a binary that is usually smaller and faster to decode.
+     * The values saved as json strings are still readable after changing the codec, but the lookups by value only find the values saved with the same codec.
+     *
+     * @param codec the codec
+     * @return this
+     */
+    public MongoDbPriorityDelayedQueue<E> setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+}
@@ -3,6 +3,7 @@ package com.foilen.smalltools.mongodb.distributed;
 import com.foilen.smalltools.mongodb.MongoDbChangeStreamWaitAnyChange;
 import com.foilen.smalltools.mongodb.MongoDbManageCollectionTools;
 import com.foilen.smalltools.mongodb.distributed.internal.HoldingLockDetails;
+import com.foilen.smalltools.mongodb.distributed.internal.MongoDbReentrantLockMetricsRecorder;
 import com.foilen.smalltools.tools.AbstractBasics;
 import com.foilen.smalltools.tools.SecureRandomTools;
 import com.foilen.smalltools.tools.StringTools;
@@ -11,26 +12,53 @@ import com.foilen.smalltools.tuple.Tuple2;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
 import org.bson.Document;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A distributed Locking mechanism that is using MongoDB.
  * <p>
  * When a lock is held, it will send a heartbeat to the database to keep the lock. If the heartbeat is not sent, the lock will be released when the time expire.
+ * The heartbeats of all the locks held by this instance are sent with a single update.
+ * <p>
+ * Each acquisition gets a fencing token (see {@link #getFencingToken(String)}) that is always bigger than the ones of the previous acquisitions of the same lock name. Pass it to the downstream
+ * systems to let them reject the writes of a holder that lost its lock (e.g. after a long pause) and is not aware of it yet. The tokens come from a single sequence shared by all the lock names and
+ * kept in one document of the collection.
+ * <p>
+ * When multiple threads of the same instance wait for the same lock, they are queued locally (in order) and only the first one is trying to get the lock in MongoDB.
+ * By default, there is no ordering between the instances. To get the lock in the order the instances started to wait for it, provide a waiters collection where the waiting instances will take a
+ * ticket. Note that {@link #tryLock(String)} does not wait and will always try to get the lock even if there are other waiters.
+ * <p>
+ * Contention and wait time metrics are kept by lock name. See {@link #getMetricsByLockName()}.
  */
 public class MongoDbReentrantLock extends AbstractBasics {
 
     private static final ThreadLocal<String> threadUniqueId = ThreadLocal.withInitial(() -> UUID.randomUUID().toString());
 
+    private static final Document FENCING_TOKEN_SEQUENCE_ID = new Document().append(MongoDbDistributedConstants.FIELD_SEQUENCE, MongoDbDistributedConstants.FIELD_FENCING_TOKEN);
+    private static final Document TICKET_SEQUENCE_ID = new Document().append(MongoDbDistributedConstants.FIELD_SEQUENCE, MongoDbDistributedConstants.FIELD_TICKET);
+
+    private final String ownerId = UUID.randomUUID().toString();
+
     private final MongoCollection<Document> mongoCollection;
+    private final MongoCollection<Document> waitersCollection;
     private final long stopChangeStreamAfterNoThreadWaitedInMs;
     private final long heartbeatIntervalInMs;
     private final long expireLockAfterNoHeartbeatInMs;
@@ -39,6 +67,9 @@ public class MongoDbReentrantLock extends AbstractBasics {
     private final Runnable collectionCreate;
 
     private final ConcurrentMap<String, HoldingLockDetails> holdingByLockName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ReentrantLock> localQueueByLockName = new ConcurrentHashMap<>();
+    private final Set<String> waitingTicketIds = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, MongoDbReentrantLockMetricsRecorder> metricsByLockName = new ConcurrentHashMap<>();
     private MongoDbChangeStreamWaitAnyChange mongoDbChangeStreamWaitAnyChange;
 
     private Thread heartbeatThread;
@@ -57,7 +88,18 @@ public class MongoDbReentrantLock extends AbstractBasics {
      * @param mongoCollection the collection to use
      */
     public MongoDbReentrantLock(MongoClient mongoClient, MongoCollection<Document> mongoCollection) {
-        this(mongoClient, mongoCollection,
+        this(mongoClient, mongoCollection, null);
+    }
+
+    /**
+     * Create a fair lock using the default values. See {@link #MongoDbReentrantLock(MongoClient, MongoCollection)} for the values.
+     *
+     * @param mongoClient       the mongo client
+     * @param mongoCollection   the collection to use
+     * @param waitersCollection the collection where the waiting instances take a ticket (null to not be fair between the instances)
+     */
+    public MongoDbReentrantLock(MongoClient mongoClient, MongoCollection<Document> mongoCollection, MongoCollection<Document> waitersCollection) {
+        this(mongoClient, mongoCollection, waitersCollection,
                 10 * 60000, // 10 minutes
                 30000, // 30 seconds
                 90000, // 1 minute 30 seconds
@@ -80,8 +122,29 @@ public class MongoDbReentrantLock extends AbstractBasics {
                                 long heartbeatIntervalInMs,
                                 long expireLockAfterNoHeartbeatInMs,
                                 long dropLockAfterHeldForTooLongInMs
+    ) {
+        this(mongoClient, mongoCollection, null, stopChangeStreamAfterNoThreadWaitedInMs, heartbeatIntervalInMs, expireLockAfterNoHeartbeatInMs, dropLockAfterHeldForTooLongInMs);
+    }
+
+    /**
+     * Create a lock using the provided values.
+     *
+     * @param mongoClient                             the mongo client
+     * @param mongoCollection                         the collection to use
+     * @param waitersCollection                       the collection where the waiting instances take a ticket (null to not be fair between the instances)
+     * @param stopChangeStreamAfterNoThreadWaitedInMs the time to stop the change stream after no thread waited for a lock
+     * @param heartbeatIntervalInMs                   the time between each heartbeat
+     * @param expireLockAfterNoHeartbeatInMs          the time to expire the lock if no heartbeat is sent (suggest 3 heartbeats)
+     * @param dropLockAfterHeldForTooLongInMs         the time to expire the lock if it is held for too long
+     */
+    public MongoDbReentrantLock(MongoClient mongoClient, MongoCollection<Document> mongoCollection, MongoCollection<Document> waitersCollection,
+                                long stopChangeStreamAfterNoThreadWaitedInMs,
+                                long heartbeatIntervalInMs,
+                                long expireLockAfterNoHeartbeatInMs,
+                                long dropLockAfterHeldForTooLongInMs
     ) {
         this.mongoCollection = mongoCollection;
+        this.waitersCollection = waitersCollection;
         this.stopChangeStreamAfterNoThreadWaitedInMs = stopChangeStreamAfterNoThreadWaitedInMs;
         this.heartbeatIntervalInMs = heartbeatIntervalInMs;
         if (expireLockAfterNoHeartbeatInMs <= heartbeatIntervalInMs) {
@@ -91,12 +154,15 @@ public class MongoDbReentrantLock extends AbstractBasics {
         this.dropLockAfterHeldForTooLongInMs = dropLockAfterHeldForTooLongInMs;
 
         collectionCreate = () -> {
-            MongoDbManageCollectionTools.addCollectionIfMissing(mongoClient, mongoCollection.getNamespace());
-            MongoDbManageCollectionTools.manageIndexes(mongoCollection, Map.of(
+            MongoDbManageCollectionTools.manageCollection(mongoClient, mongoCollection, Map.of(
                     "expireAt", new Tuple2<>(
                             new Document().append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, 1),
                             new IndexOptions().expireAfter(0L, TimeUnit.MILLISECONDS)
                     ),
+                    "ownerId_1", new Tuple2<>(
+                            new Document().append(MongoDbDistributedConstants.FIELD_OWNER_ID, 1),
+                            new IndexOptions()
+                    ),
                     "operationType_1", new Tuple2<>(
                             new Document().append("operationType", 1),
                             new IndexOptions()
@@ -104,6 +170,23 @@ public class MongoDbReentrantLock extends AbstractBasics {
             ));
         };
         collectionCreate.run();
+
+        if (waitersCollection != null) {
+            MongoDbManageCollectionTools.manageCollection(mongoClient, waitersCollection, Map.of(
+                    "lockName_ticket", new Tuple2<>(
+                            new Document().append(MongoDbDistributedConstants.FIELD_LOCK_NAME, 1).append(MongoDbDistributedConstants.FIELD_TICKET, 1),
+                            new IndexOptions()
+                    ),
+                    "expireAt", new Tuple2<>(
+                            new Document().append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, 1),
+                            new IndexOptions().expireAfter(0L, TimeUnit.MILLISECONDS)
+                    ),
+                    "ownerId_1", new Tuple2<>(
+                            new Document().append(MongoDbDistributedConstants.FIELD_OWNER_ID, 1),
+                            new IndexOptions()
+                    )
+            ));
+        }
     }
 
     /**
@@ -116,6 +199,23 @@ public class MongoDbReentrantLock extends AbstractBasics {
         return mongoCollection.countDocuments(new Document().append(MongoDbDistributedConstants.FIELD_ID, lockName)) > 0;
     }
 
+    /**
+     * Get the names of the locks that are currently held (by any thread, local or distributed) and that start with the prefix.
+     *
+     * @param prefix the prefix of the lock names
+     * @return the lock names
+     */
+    List<String> findHeldLockNamesStartingWith(String prefix) {
+        return mongoCollection.find(new Document()
+                        .append(MongoDbDistributedConstants.FIELD_ID, new Document()
+                                .append("$gte", prefix)
+                                .append("$lt", prefix + Character.MAX_VALUE)
+                        ))
+                .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
+                .map(document -> document.getString(MongoDbDistributedConstants.FIELD_ID))
+                .into(new ArrayList<>());
+    }
+
     /**
      * Lock the lockName. If the lock is free, it will be locked. If the lock is already held, it will return false.
      * <p>
@@ -139,17 +239,34 @@ public class MongoDbReentrantLock extends AbstractBasics {
         }
 
         // Try to lock from MongoDB
+        boolean inserted = false;
         try {
             mongoCollection.insertOne(new Document()
                     .append(MongoDbDistributedConstants.FIELD_ID, lockName)
                     .append(MongoDbDistributedConstants.FIELD_HOLDING_THREAD_ID, currentThreadUniqueId)
+                    .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId)
                     .append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, new Date(System.currentTimeMillis() + expireLockAfterNoHeartbeatInMs))
             );
-            holdingByLockName.put(lockName, new HoldingLockDetails(currentThreadUniqueId, dropLockAfterHeldForTooLongInMs));
+            inserted = true;
+
+            // The token is taken once holding the lock and is kept in the lock only if still holding it, so the tokens are in the same order as the holders
+            long fencingToken = nextSequence(mongoCollection, FENCING_TOKEN_SEQUENCE_ID, MongoDbDistributedConstants.FIELD_FENCING_TOKEN);
+            var result = mongoCollection.updateOne(lockFilter(lockName, currentThreadUniqueId),
+                    new Document().append("$set", new Document().append(MongoDbDistributedConstants.FIELD_FENCING_TOKEN, fencingToken))
+            );
+            if (result.getMatchedCount() == 0) {
+                logger.error("Lost the lock {} before getting its fencing token", lockName);
+                deleteLock(lockName, currentThreadUniqueId);
+                return false;
+            }
+
+            holdingByLockName.put(lockName, new HoldingLockDetails(currentThreadUniqueId, fencingToken, dropLockAfterHeldForTooLongInMs));
             startHeartbeatThread();
+            getMetrics(lockName).incrementAcquired();
             return true;
         } catch (MongoWriteException e) {
             if (e.getError().getCode() == 11000) {
+                getMetrics(lockName).incrementDuplicateKey();
                 return false;
             } else {
                 logger.error("Unexpected MongoDB error", e);
@@ -158,9 +275,54 @@ public class MongoDbReentrantLock extends AbstractBasics {
             logger.error("Unexpected exception", e);
         }
 
+        // Do not keep a lock without heartbeat that would block the others until it expires
+        if (inserted) {
+            deleteLock(lockName, currentThreadUniqueId);
+        }
+
         return false;
     }
 
+    private void deleteLock(String lockName, String holdingThreadId) {
+        try {
+            mongoCollection.deleteOne(lockFilter(lockName, holdingThreadId));
+        } catch (Exception e) {
+            logger.error("Could not delete the lock {}. It will expire", lockName, e);
+        }
+    }
+
+    private Document lockFilter(String lockName, String holdingThreadId) {
+        return new Document()
+                .append(MongoDbDistributedConstants.FIELD_ID, lockName)
+                .append(MongoDbDistributedConstants.FIELD_HOLDING_THREAD_ID, holdingThreadId)
+                .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId);
+    }
+
+    private static long nextSequence(MongoCollection<Document> collection, Document sequenceId, String fieldName) {
+        var sequence = collection.findOneAndUpdate(
+                new Document().append(MongoDbDistributedConstants.FIELD_ID, sequenceId),
+                new Document().append("$inc", new Document().append(fieldName, 1L)),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)
+        );
+        return sequence.getLong(fieldName);
+    }
+
+    /**
+     * Get the fencing token of the lock held by the current thread. It is the same for all the reentrant locks and it is bigger than the tokens of all the previous acquisitions of the same lock
+     * name.
+     *
+     * @param lockName the name of the lock
+     * @return the fencing token
+     * @throws IllegalStateException if the current thread is not holding the lock
+     */
+    public long getFencingToken(String lockName) {
+        var holdingThreadDetails = holdingByLockName.get(lockName);
+        if (holdingThreadDetails == null || !StringTools.safeEquals(threadUniqueId.get(), holdingThreadDetails.getThreadUniqueId())) {
+            throw new IllegalStateException("The lock " + lockName + " is not held by the current thread");
+        }
+        return holdingThreadDetails.getFencingToken();
+    }
+
     /**
      * Lock the lockName. If the lock is free, it will be locked. If the lock is already held, it will wait for it to be released for the max wait time.
      * <p>
@@ -173,31 +335,146 @@ public class MongoDbReentrantLock extends AbstractBasics {
      */
     public boolean tryLock(String lockName, long timeInMs) throws InterruptedException {
 
-        if (tryLock(lockName)) {
-            return true;
+        // When fair, only try directly if already holding or if no one is waiting
+        if (waitersCollection == null || isHeldByCurrentThread(lockName) || !hasWaiters(lockName)) {
+            if (tryLock(lockName)) {
+                return true;
+            }
         }
 
-        long waitUntil = System.currentTimeMillis() + timeInMs;
+        long startTime = System.currentTimeMillis();
+        long waitUntil = startTime + timeInMs;
         if (waitUntil < 0) {
             waitUntil = Long.MAX_VALUE;
         }
 
+        // Wait in the local queue to be the only thread of this instance to try in MongoDB
         boolean gotLock = false;
-        while (!gotLock && System.currentTimeMillis() < waitUntil) {
-            waitForChange(lockName, waitUntil - System.currentTimeMillis());
-            gotLock = tryLock(lockName);
+        var localQueue = localQueueByLockName.computeIfAbsent(lockName, k -> new ReentrantLock(true));
+        if (localQueue.tryLock(waitUntil - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+            String ticketId = null;
+            try {
+                if (waitersCollection != null) {
+                    ticketId = addWaiterTicket(lockName);
+                }
+
+                gotLock = isNextWaiter(lockName, ticketId) && tryLock(lockName);
+                while (!gotLock && System.currentTimeMillis() < waitUntil) {
+                    long waitTimeInMs = waitUntil - System.currentTimeMillis();
+                    if (ticketId != null) {
+                        // The waiter in front could time out or stop without any change to the lock
+                        waitTimeInMs = Math.min(waitTimeInMs, heartbeatIntervalInMs);
+                    }
+                    waitForChange(lockName, waitTimeInMs);
+                    gotLock = isNextWaiter(lockName, ticketId) && tryLock(lockName);
+                }
+            } finally {
+                if (ticketId != null) {
+                    removeWaiterTicket(ticketId);
+                }
+                localQueue.unlock();
+                // If another thread just got this queue, it might try at the same time as a thread with a new queue, but it is only less efficient
+                if (!localQueue.isLocked() && !localQueue.hasQueuedThreads()) {
+                    localQueueByLockName.remove(lockName, localQueue);
+                }
+            }
         }
 
+        getMetrics(lockName).addWait(System.currentTimeMillis() - startTime, !gotLock);
         return gotLock;
     }
 
-    private void waitForChange(String lockName, long timeInMs) throws InterruptedException {
-        synchronized (this) {
-            if (mongoDbChangeStreamWaitAnyChange == null) {
-                mongoDbChangeStreamWaitAnyChange = new MongoDbChangeStreamWaitAnyChange(collectionCreate, mongoCollection, stopChangeStreamAfterNoThreadWaitedInMs, "delete");
-            }
+    boolean isHeldByCurrentThread(String lockName) {
+        var holdingThreadDetails = holdingByLockName.get(lockName);
+        return holdingThreadDetails != null && StringTools.safeEquals(threadUniqueId.get(), holdingThreadDetails.getThreadUniqueId());
+    }
+
+    private boolean hasWaiters(String lockName) {
+        return waitersCollection.find(new Document().append(MongoDbDistributedConstants.FIELD_LOCK_NAME, lockName))
+                .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
+                .first() != null;
+    }
+
+    private String addWaiterTicket(String lockName) {
+        String ticketId = UUID.randomUUID().toString();
+        waitersCollection.insertOne(new Document()
+                .append(MongoDbDistributedConstants.FIELD_ID, ticketId)
+                .append(MongoDbDistributedConstants.FIELD_LOCK_NAME, lockName)
+                .append(MongoDbDistributedConstants.FIELD_TICKET, nextSequence(waitersCollection, TICKET_SEQUENCE_ID, MongoDbDistributedConstants.FIELD_TICKET))
+                .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId)
+                .append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, new Date(System.currentTimeMillis() + expireLockAfterNoHeartbeatInMs))
+        );
+        waitingTicketIds.add(ticketId);
+        startHeartbeatThread();
+        return ticketId;
+    }
+
+    private boolean isNextWaiter(String lockName, String ticketId) {
+        if (ticketId == null) {
+            return true;
+        }
+        var firstTicket = waitersCollection.find(new Document().append(MongoDbDistributedConstants.FIELD_LOCK_NAME, lockName))
+                .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
+                .sort(Sorts.ascending(MongoDbDistributedConstants.FIELD_TICKET))
+                .first();
+        return firstTicket == null || ticketId.equals(firstTicket.getString(MongoDbDistributedConstants.FIELD_ID));
+    }
+
+    private void removeWaiterTicket(String ticketId) {
+        waitingTicketIds.remove(ticketId);
+        try {
+            waitersCollection.deleteOne(new Document().append(MongoDbDistributedConstants.FIELD_ID, ticketId));
+        } catch (Exception e) {
+            logger.error("Could not remove the waiter ticket {}. It will expire", ticketId, e);
+        }
+    }
+
+    private MongoDbReentrantLockMetricsRecorder getMetrics(String lockName) {
+        return metricsByLockName.computeIfAbsent(lockName, k -> new MongoDbReentrantLockMetricsRecorder());
+    }
+
+    /**
+     * Get the contention and wait time metrics of all the lock names used by this instance since the creation or the last {@link #clearMetrics()}.
+     *
+     * @return the metrics by lock name
+     */
+    public Map<String, MongoDbReentrantLockMetrics> getMetricsByLockName() {
+        return Collections.unmodifiableMap(metricsByLockName);
+    }
+
+    /**
+     * Remove all the metrics.
+     */
+    public void clearMetrics() {
+        metricsByLockName.clear();
+    }
+
+    /**
+     * Wait for the lock to be released or until the time is elapsed.
+     *
+     * @param lockName the name of the lock
+     * @param timeInMs the maximum time to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void waitForChange(String lockName, long timeInMs) throws InterruptedException {
+        getMongoDbChangeStreamWaitAnyChange().waitForChange(lockName, timeInMs);
+    }
+
+    /**
+     * Wait for any lock of the collection to be released or until the time is elapsed.
+     *
+     * @param timeInMs the maximum time to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void waitForAnyChange(long timeInMs) throws InterruptedException {
+        getMongoDbChangeStreamWaitAnyChange().waitForChange(timeInMs);
+    }
+
+    private synchronized MongoDbChangeStreamWaitAnyChange getMongoDbChangeStreamWaitAnyChange() {
+        if (mongoDbChangeStreamWaitAnyChange == null) {
+            mongoDbChangeStreamWaitAnyChange = new MongoDbChangeStreamWaitAnyChange(collectionCreate, mongoCollection, stopChangeStreamAfterNoThreadWaitedInMs, "delete");
         }
-        mongoDbChangeStreamWaitAnyChange.waitForChange(lockName, timeInMs);
+        return mongoDbChangeStreamWaitAnyChange;
     }
 
     /**
@@ -232,7 +509,19 @@ public class MongoDbReentrantLock extends AbstractBasics {
         holdingByLockName.remove(lockName);
 
         // Remove from MongoDB
-        mongoCollection.deleteOne(new Document().append(MongoDbDistributedConstants.FIELD_ID, lockName));
+        mongoCollection.deleteOne(new Document()
+                .append(MongoDbDistributedConstants.FIELD_ID, lockName)
+                .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId)
+        );
+
+        // Wake up the local waiting thread without waiting for the change stream
+        MongoDbChangeStreamWaitAnyChange changeStreamWaitAnyChange;
+        synchronized (this) {
+            changeStreamWaitAnyChange = mongoDbChangeStreamWaitAnyChange;
+        }
+        if (changeStreamWaitAnyChange != null) {
+            changeStreamWaitAnyChange.wakeUp(lockName);
+        }
 
     }
 
@@ -314,7 +603,7 @@ public class MongoDbReentrantLock extends AbstractBasics {
                         ThreadTools.sleep(heartbeatIntervalInMs);
 
                         // Check if needs to stop
-                        if (holdingByLockName.isEmpty()) {
+                        if (holdingByLockName.isEmpty() && waitingTicketIds.isEmpty()) {
                             synchronized (reentrantLock) {
                                 heartbeatThread = null;
                             }
@@ -338,22 +627,39 @@ public class MongoDbReentrantLock extends AbstractBasics {
     }
 
     private void sendHeartbeats() {
-        holdingByLockName.keySet().forEach(lockName -> {
-            logger.debug("Sending heartbeat for {}", lockName);
-            try {
-                var holdingThreadDetails = holdingByLockName.get(lockName);
-                var result = mongoCollection.updateOne(new Document()
-                                .append(MongoDbDistributedConstants.FIELD_ID, lockName)
-                                .append(MongoDbDistributedConstants.FIELD_HOLDING_THREAD_ID, holdingThreadDetails.getThreadUniqueId()),
-                        new Document().append("$set", new Document()
-                                .append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, new Date(System.currentTimeMillis() + expireLockAfterNoHeartbeatInMs))
-                        ));
-                if (result.getModifiedCount() == 0) {
-                    logger.error("Lost the lock {}", lockName);
-                    holdingByLockName.remove(lockName);
-                }
-            } catch (Exception e) {
-                logger.error("Problem sending heartbeat for " + lockName, e);
+
+        // Keep the waiting tickets
+        if (!waitingTicketIds.isEmpty()) {
+            logger.debug("Sending heartbeat for {} waiting tickets", waitingTicketIds.size());
+            waitersCollection.updateMany(new Document()
+                            .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId),
+                    new Document().append("$set", new Document()
+                            .append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, new Date(System.currentTimeMillis() + expireLockAfterNoHeartbeatInMs))
+                    ));
+        }
+
+        // The locks that are in the database before the update
+        Map<String, HoldingLockDetails> holdingDetailsByLockName = new HashMap<>(holdingByLockName);
+        logger.debug("Sending heartbeat for {} locks", holdingDetailsByLockName.size());
+
+        var result = mongoCollection.updateMany(new Document()
+                        .append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId),
+                new Document().append("$set", new Document()
+                        .append(MongoDbDistributedConstants.FIELD_EXPIRE_AT, new Date(System.currentTimeMillis() + expireLockAfterNoHeartbeatInMs))
+                ));
+        if (result.getMatchedCount() >= holdingDetailsByLockName.size()) {
+            return;
+        }
+
+        // Some are missing
+        var stillHeldLockNames = mongoCollection.find(new Document().append(MongoDbDistributedConstants.FIELD_OWNER_ID, ownerId))
+                .projection(new Document().append(MongoDbDistributedConstants.FIELD_ID, 1))
+                .map(document -> document.getString(MongoDbDistributedConstants.FIELD_ID))
+                .into(new HashSet<>());
+        holdingDetailsByLockName.forEach((lockName, holdingThreadDetails) -> {
+            if (!stillHeldLockNames.contains(lockName)) {
+                logger.error("Lost the lock {}", lockName);
+                holdingByLockName.remove(lockName, holdingThreadDetails);
             }
         });
     }
@@ -0,0 +1,93 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The contention metrics of one lock name in a {@link MongoDbReentrantLock} instance. They are only updated by the lock.
+ */
+public class MongoDbReentrantLockMetrics extends AbstractBasics {
+
+    private final AtomicLong acquiredCount = new AtomicLong();
+    private final AtomicLong duplicateKeyCount = new AtomicLong();
+    private final AtomicLong waitedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong totalWaitTimeInMs = new AtomicLong();
+    private final AtomicLong maxWaitTimeInMs = new AtomicLong();
+
+    protected void incrementAcquired() {
+        acquiredCount.incrementAndGet();
+    }
+
+    protected void incrementDuplicateKey() {
+        duplicateKeyCount.incrementAndGet();
+    }
+
+    protected void addWait(long waitTimeInMs, boolean timedOut) {
+        waitedCount.incrementAndGet();
+        if (timedOut) {
+            timedOutCount.incrementAndGet();
+        }
+        totalWaitTimeInMs.addAndGet(waitTimeInMs);
+        maxWaitTimeInMs.accumulateAndGet(waitTimeInMs, Math::max);
+    }
+
+    /**
+     * Get the amount of times the lock was acquired in the database (the reentrant acquisitions are not counted).
+     *
+     * @return the count
+     */
+    public long getAcquiredCount() {
+        return acquiredCount.get();
+    }
+
+    /**
+     * Get the amount of times the lock could not be inserted in the database because another instance held it.
+     *
+     * @return the count
+     */
+    public long getDuplicateKeyCount() {
+        return duplicateKeyCount.get();
+    }
+
+    /**
+     * Get the amount of times a thread had to wait for the lock.
+     *
+     * @return the count
+     */
+    public long getWaitedCount() {
+        return waitedCount.get();
+    }
+
+    /**
+     * Get the amount of times a thread waited for the lock, but did not get it before the timeout.
+     *
+     * @return the count
+     */
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    public long getTotalWaitTimeInMs() {
+        return totalWaitTimeInMs.get();
+    }
+
+    public long getMaxWaitTimeInMs() {
+        return maxWaitTimeInMs.get();
+    }
+
+    /**
+     * Get the average time a thread waited when it had to wait.
+     *
+     * @return the average time or 0 if never waited
+     */
+    public long getAverageWaitTimeInMs() {
+        long count = waitedCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalWaitTimeInMs.get() / count;
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.mongodb.MongoDbManageCollectionTools;
+import com.foilen.smalltools.tools.AbstractBasics;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A consumer of a {@link MongoDbReplayableQueue} that persists its offset by group id. All the instances (local or on other nodes) using the same group id share the same committed offset.
+ * <p>
+ * The delivery is at-least-once: the elements retrieved with {@link #pollBatch(int, long, TimeUnit)} are only considered processed once {@link #commit()} is called. If the processing fails,
+ * call {@link #rollback()} to get them again. If the process crashes before committing, the next consumer of the group will get them again.
+ * <p>
+ * A new group starts at the beginning of what is still retained in the queue (use {@link #movePositionToEnd()} to skip the history).
+ *
+ * @param <E> the type of elements in the queue
+ */
+public class MongoDbReplayableQueueConsumerGroup<E> extends AbstractBasics {
+
+    private final MongoDbReplayableQueue<E> queue;
+    private final MongoCollection<Document> offsetsCollection;
+    private final String groupId;
+
+    private long committedOffset;
+    private long position;
+
+    /**
+     * Create a consumer for the group.
+     *
+     * @param queue             the queue to consume
+     * @param offsetsCollection the collection where the offsets of all the groups are saved (must not be the same collection as the queue)
+     * @param groupId           the id of the group
+     */
+    public MongoDbReplayableQueueConsumerGroup(MongoDbReplayableQueue<E> queue, MongoCollection<Document> offsetsCollection, String groupId) {
+        this.queue = queue;
+        this.offsetsCollection = offsetsCollection;
+        this.groupId = groupId;
+
+        MongoDbManageCollectionTools.addCollectionIfMissing(queue.getMongoClient(), offsetsCollection.getNamespace());
+
+        committedOffset = loadCommittedOffset();
+        position = committedOffset;
+    }
+
+    private long loadCommittedOffset() {
+        var document = offsetsCollection.find(Filters.eq(MongoDbDistributedConstants.FIELD_ID, groupId)).first();
+        if (document == null) {
+            return -1;
+        }
+        return document.getLong(MongoDbDistributedConstants.FIELD_OFFSET);
+    }
+
+    /**
+     * Retrieve up to maxElements elements after the current position using a single query. If none are available, it will wait up to the timeout for some to be added.
+     * <p>
+     * The position is moved after the returned elements, but the offset is not committed.
+     *
+     * @param maxElements the maximum amount of elements to retrieve
+     * @param timeout     how long to wait before giving up, in units of unit
+     * @param unit        the unit of the timeout
+     * @return the elements in order (empty if none were available before the timeout)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<E> pollBatch(int maxElements, long timeout, TimeUnit unit) throws InterruptedException {
+
+        if (maxElements <= 0) {
+            throw new IllegalArgumentException("maxElements must be at least 1");
+        }
+
+        List<E> values = pollBatch(maxElements);
+        if (!values.isEmpty()) {
+            return values;
+        }
+
+        long waitUntil = System.currentTimeMillis() + unit.toMillis(timeout);
+        if (waitUntil < 0) {
+            waitUntil = Long.MAX_VALUE;
+        }
+        while (values.isEmpty() && System.currentTimeMillis() < waitUntil) {
+            queue.waitForChange(position, waitUntil - System.currentTimeMillis());
+            values = pollBatch(maxElements);
+        }
+        return values;
+    }
+
+    private synchronized List<E> pollBatch(int maxElements) {
+        List<E> values = new ArrayList<>();
+        queue.findAfter(position, maxElements).forEach(document -> {
+            position = document.getLong(MongoDbDistributedConstants.FIELD_ID);
+            values.add(queue.toEntity(document));
+        });
+        return values;
+    }
+
+    /**
+     * Persist the current position as the offset of the group. The offset never goes backward; if another consumer of the group committed further, the position is moved to that offset.
+     */
+    public synchronized void commit() {
+        Document document;
+        try {
+            document = saveOffset();
+        } catch (MongoWriteException e) {
+            if (e.getError().getCode() != 11000) {
+                throw e;
+            }
+            // Another consumer created the group at the same time
+            document = saveOffset();
+        }
+
+        committedOffset = document.getLong(MongoDbDistributedConstants.FIELD_OFFSET);
+        if (committedOffset > position) {
+            position = committedOffset;
+        }
+    }
+
+    private Document saveOffset() {
+        return offsetsCollection.findOneAndUpdate(
+                Filters.eq(MongoDbDistributedConstants.FIELD_ID, groupId),
+                new Document()
+                        .append("$max", new Document(MongoDbDistributedConstants.FIELD_OFFSET, position))
+                        .append("$set", new Document(MongoDbDistributedConstants.FIELD_UPDATED_AT, new Date())),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)
+        );
+    }
+
+    /**
+     * Move the position back to the committed offset of the group to get the uncommitted elements again.
+     */
+    public synchronized void rollback() {
+        committedOffset = loadCommittedOffset();
+        position = committedOffset;
+    }
+
+    /**
+     * Move the position to the last element of the queue. Call {@link #commit()} to persist it.
+     *
+     * @return this
+     */
+    public synchronized MongoDbReplayableQueueConsumerGroup<E> movePositionToEnd() {
+        position = queue.findLastId();
+        return this;
+    }
+
+    /**
+     * Get the last committed offset known by this consumer.
+     *
+     * @return the offset (the id of the last processed element) or -1 if nothing was committed
+     */
+    public synchronized long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    /**
+     * Get the current position (the id of the last element returned by this consumer).
+     *
+     * @return the position or -1 if nothing was returned
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.tools.AbstractBasics;
+
+import java.util.HashSet;
+
+/**
+ * A distributed counting semaphore that is using the same collection, heartbeats and change stream as a {@link MongoDbReentrantLock}. Up to the amount of permits threads (local or distributed) can
+ * hold a permit at the same time.
+ * <p>
+ * Each permit is stored as the lock "semaphoreName/permit/{index}". All the instances must use the same amount of permits for the same semaphore name.
+ * <p>
+ * Unlike {@link java.util.concurrent.Semaphore}, a permit must be released by the thread that acquired it. A thread can acquire multiple permits.
+ */
+public class MongoDbSemaphore extends AbstractBasics {
+
+    private final MongoDbReentrantLock reentrantLock;
+    private final String semaphoreName;
+    private final int permits;
+
+    /**
+     * Create a semaphore.
+     *
+     * @param reentrantLock the lock to use to store the permits. Do not use the same lock names directly on it
+     * @param semaphoreName the name of the semaphore
+     * @param permits       the amount of permits
+     */
+    public MongoDbSemaphore(MongoDbReentrantLock reentrantLock, String semaphoreName, int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be at least 1");
+        }
+        this.reentrantLock = reentrantLock;
+        this.semaphoreName = semaphoreName;
+        this.permits = permits;
+    }
+
+    private String getPermitLockNamePrefix() {
+        return semaphoreName + "/permit/";
+    }
+
+    private String getPermitLockName(int index) {
+        return getPermitLockNamePrefix() + index;
+    }
+
+    /**
+     * Get the amount of permits that are not held by any thread (local or distributed).
+     *
+     * @return the available permits
+     */
+    public int availablePermits() {
+        return Math.max(0, permits - reentrantLock.findHeldLockNamesStartingWith(getPermitLockNamePrefix()).size());
+    }
+
+    /**
+     * Acquire a permit if one is available. It will not wait.
+     *
+     * @return true if a permit is now held by the current thread
+     */
+    public boolean tryAcquire() {
+
+        var heldPermitLockNames = new HashSet<>(reentrantLock.findHeldLockNamesStartingWith(getPermitLockNamePrefix()));
+        if (heldPermitLockNames.size() >= permits) {
+            return false;
+        }
+
+        for (int i = 0; i < permits; ++i) {
+            String permitLockName = getPermitLockName(i);
+            if (heldPermitLockNames.contains(permitLockName)) {
+                continue;
+            }
+            // Was lost, but not noticed yet by the heartbeat ; do not count it as a reentrant lock
+            if (reentrantLock.isHeldByCurrentThread(permitLockName)) {
+                continue;
+            }
+            if (reentrantLock.tryLock(permitLockName)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Acquire a permit. If none is available, it will wait for one to be released for the max wait time.
+     *
+     * @param timeInMs the max time to wait
+     * @return true if a permit is now held by the current thread
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean tryAcquire(long timeInMs) throws InterruptedException {
+
+        if (tryAcquire()) {
+            return true;
+        }
+
+        long waitUntil = System.currentTimeMillis() + timeInMs;
+        if (waitUntil < 0) {
+            waitUntil = Long.MAX_VALUE;
+        }
+
+        boolean gotPermit = false;
+        while (!gotPermit && System.currentTimeMillis() < waitUntil) {
+            reentrantLock.waitForAnyChange(waitUntil - System.currentTimeMillis());
+            gotPermit = tryAcquire();
+        }
+
+        return gotPermit;
+    }
+
+    /**
+     * Release one permit held by the current thread. If the current thread does not hold any permit, it does nothing.
+     */
+    public void release() {
+        for (int i = permits - 1; i >= 0; --i) {
+            String permitLockName = getPermitLockName(i);
+            if (reentrantLock.isHeldByCurrentThread(permitLockName)) {
+                reentrantLock.unlock(permitLockName);
+                return;
+            }
+        }
+    }
+
+    // ---== Methods reusing the others at the top  ==---
+
+    /**
+     * Acquire a permit. If none is available, it will wait for one to be released.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        tryAcquire(Long.MAX_VALUE);
+    }
+
+    /**
+     * Wait to get a permit, execute the code and then release the permit.
+     *
+     * @param runnable the code to execute when the permit is held
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void waitAcquireAndExecute(Runnable runnable) throws InterruptedException {
+        acquire();
+        try {
+            runnable.run();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Wait to get a permit (for the maximum wait time), execute the code and then release the permit.
+     *
+     * @param timeInMs the max time to wait
+     * @param runnable the code to execute when the permit is held
+     * @return true if it could get a permit and execute the code
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean waitAcquireAndExecute(long timeInMs, Runnable runnable) throws InterruptedException {
+        boolean gotPermit = tryAcquire(timeInMs);
+        if (gotPermit) {
+            try {
+                runnable.run();
+            } finally {
+                release();
+            }
+        }
+        return gotPermit;
+    }
+
+    public String getSemaphoreName() {
+        return semaphoreName;
+    }
+
+    public int getPermits() {
+        return permits;
+    }
+
+}
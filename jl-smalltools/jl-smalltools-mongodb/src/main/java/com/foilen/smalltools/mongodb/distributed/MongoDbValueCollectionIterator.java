@@ -1,84 +1,37 @@
 package com.foilen.smalltools.mongodb.distributed;
 
-import com.foilen.smalltools.tools.JsonTools;
+import com.foilen.smalltools.codec.Codec;
+import com.foilen.smalltools.codec.JsonCodec;
 import com.mongodb.client.MongoCollection;
 import org.bson.Document;
 
-import java.util.Iterator;
-import java.util.NoSuchElementException;
-
-public class MongoDbValueCollectionIterator<V> implements Iterator<V> {
+public class MongoDbValueCollectionIterator<V> extends AbstractMongoDbBatchedIterator<V> {
 
     private final Class<V> valueType;
-    private final MongoCollection<Document> mongoCollection;
-
-    private String lastId = null;
-    private V next;
-    private boolean completed;
+    private final Codec codec;
 
     public MongoDbValueCollectionIterator(Class<V> valueType, MongoCollection<Document> mongoCollection) {
-        this.valueType = valueType;
-        this.mongoCollection = mongoCollection;
+        this(valueType, mongoCollection, null, null, DEFAULT_BATCH_SIZE);
     }
 
-    @Override
-    public boolean hasNext() {
-        if (next != null) {
-            return true;
-        }
-        loadNext();
-        return !completed;
+    public MongoDbValueCollectionIterator(Class<V> valueType, MongoCollection<Document> mongoCollection, String fromId, String toId, int batchSize) {
+        this(valueType, mongoCollection, fromId, toId, batchSize, JsonCodec.COMPACT);
     }
 
-    @Override
-    public V next() {
-
-        if (next != null) {
-            var toReturn = next;
-            next = null;
-            return toReturn;
-        }
-
-        loadNext();
-        if (completed) {
-            throw new NoSuchElementException();
-        }
-        var toReturn = next;
-        next = null;
-        return toReturn;
+    public MongoDbValueCollectionIterator(Class<V> valueType, MongoCollection<Document> mongoCollection, String fromId, String toId, int batchSize, Codec codec) {
+        super(mongoCollection, fromId, toId, true, batchSize);
+        this.valueType = valueType;
+        this.codec = codec;
     }
 
-    private void loadNext() {
-        next = null;
-
-        if (completed) {
-            return;
-        }
-
-        var query = new Document();
-        if (lastId != null) {
-            query.append(MongoDbDistributedConstants.FIELD_ID, new Document().append("$gt", lastId));
-        }
-
-        var sort = new Document().append(MongoDbDistributedConstants.FIELD_ID, 1);
-        var result = mongoCollection.find(query)
-                .sort(sort)
-                .first();
-        if (result == null) {
-            completed = true;
-            return;
-        }
-
-        lastId = result.getString(MongoDbDistributedConstants.FIELD_ID);
-        next = JsonTools.readFromString(result.getString(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType);
+    @Override
+    protected Document getProjection() {
+        return new Document(MongoDbDistributedConstants.FIELD_JSON_VALUE, 1);
     }
 
     @Override
-    public void remove() {
-        if (lastId == null || completed) {
-            throw new IllegalStateException();
-        }
-        mongoCollection.deleteOne(new Document().append(MongoDbDistributedConstants.FIELD_ID, lastId));
+    protected V toElement(Document document) {
+        return MongoDbJsonValueTools.decodeValue(codec, document.get(MongoDbDistributedConstants.FIELD_JSON_VALUE), valueType);
     }
 
 }
@@ -0,0 +1,68 @@
+package com.foilen.smalltools.mongodb;
+
+import com.foilen.smalltools.tools.ExecutorsTools;
+import com.foilen.smalltools.tools.SecureRandomTools;
+import com.foilen.smalltools.tuple.Tuple2;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import org.bson.Document;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class MongoDbManageCollectionToolsTest extends AbstractEmbeddedMongoDbTest {
+
+    private static final Map<String, Tuple2<Document, IndexOptions>> INDEXES = Map.of(
+            "name_1", new Tuple2<>(new Document("name", 1), new IndexOptions())
+    );
+
+    @Test
+    public void testManageCollection_onlyOncePerNamespace() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+
+        MongoDbManageCollectionTools.manageCollection(mongoClient, mongoCollection, INDEXES);
+        Assertions.assertTrue(mongoClient.getDatabase("test").listCollectionNames().into(new ArrayList<>()).contains(collectionName));
+        Assertions.assertEquals(Set.of("_id_", "name_1"), getIndexNames(mongoCollection));
+
+        // Already managed, so not checked again
+        mongoCollection.dropIndex("name_1");
+        MongoDbManageCollectionTools.manageCollection(mongoClient, mongoCollection, INDEXES);
+        Assertions.assertEquals(Set.of("_id_"), getIndexNames(mongoCollection));
+
+        // Forgotten, so checked again
+        MongoDbManageCollectionTools.forgetManagedNamespace(mongoCollection.getNamespace());
+        MongoDbManageCollectionTools.manageCollection(mongoClient, mongoCollection, INDEXES);
+        Assertions.assertEquals(Set.of("_id_", "name_1"), getIndexNames(mongoCollection));
+
+        // Other indexes, so checked again
+        MongoDbManageCollectionTools.manageCollection(mongoClient, mongoCollection, Map.of());
+        Assertions.assertEquals(Set.of("_id_"), getIndexNames(mongoCollection));
+    }
+
+    @Test
+    public void testManageCollectionInBackground() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+
+        var ready = MongoDbManageCollectionTools.manageCollectionInBackground(mongoClient, mongoCollection, INDEXES, ExecutorsTools.getCachedDaemonThreadPool());
+        ready.join();
+        Assertions.assertEquals(Set.of("_id_", "name_1"), getIndexNames(mongoCollection));
+
+        // The next ones are the same
+        Assertions.assertSame(ready, MongoDbManageCollectionTools.manageCollectionInBackground(mongoClient, mongoCollection, INDEXES, ExecutorsTools.getCachedDaemonThreadPool()));
+    }
+
+    private Set<String> getIndexNames(MongoCollection<Document> mongoCollection) {
+        Set<String> indexNames = new TreeSet<>();
+        mongoCollection.listIndexes().forEach(index -> indexNames.add(index.getString("name")));
+        return indexNames;
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.mongodb.AbstractEmbeddedMongoDbTest;
+import com.foilen.smalltools.tools.ExecutorsTools;
+import com.foilen.smalltools.tools.SecureRandomTools;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class MongoDbPriorityDelayedQueueTest extends AbstractEmbeddedMongoDbTest {
+
+    @Test
+    public void testPriorities() {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var queue = new MongoDbPriorityDelayedQueue<>(String.class, mongoClient, mongoCollection);
+
+        Assertions.assertTrue(queue.isEmpty());
+        Assertions.assertNull(queue.poll());
+        Assertions.assertNull(queue.peek());
+
+        queue.offer("b1", 5);
+        queue.offer("a1");
+        queue.offer("c1", 10);
+        queue.offer("b2", 5);
+        queue.add("a2");
+        queue.offer("z1", -1);
+        Assertions.assertEquals(6, queue.size());
+
+        // The iterator is in insertion order
+        List<String> inserted = new ArrayList<>();
+        queue.iterator().forEachRemaining(inserted::add);
+        Assertions.assertEquals(List.of("b1", "a1", "c1", "b2", "a2", "z1"), inserted);
+
+        // Contains and remove
+        Assertions.assertTrue(queue.contains("b2"));
+        Assertions.assertTrue(queue.remove("b2"));
+        Assertions.assertFalse(queue.contains("b2"));
+        Assertions.assertFalse(queue.remove("b2"));
+
+        // By priority
+        Assertions.assertEquals("z1", queue.peek());
+        Assertions.assertEquals("z1", queue.poll());
+        Assertions.assertEquals("a1", queue.poll());
+        Assertions.assertEquals("a2", queue.remove());
+
+        List<String> drained = new ArrayList<>();
+        Assertions.assertEquals(2, queue.drainTo(drained));
+        Assertions.assertEquals(List.of("b1", "c1"), drained);
+        Assertions.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testDelayed() throws InterruptedException {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var queue = new MongoDbPriorityDelayedQueue<>(String.class, mongoClient, mongoCollection);
+
+        // Not visible yet even if it has a better priority
+        queue.offer("delayed", -10, 1, TimeUnit.SECONDS);
+        queue.offer("now", 10);
+        Assertions.assertEquals(2, queue.size());
+        Assertions.assertNotNull(queue.getNextVisibleAt());
+        Assertions.assertEquals("now", queue.poll());
+        Assertions.assertNull(queue.poll());
+
+        // Wait for it
+        Assertions.assertNull(queue.poll(100, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals("delayed", queue.poll(5, TimeUnit.SECONDS));
+        Assertions.assertNull(queue.getNextVisibleAt());
+    }
+
+    @Test
+    @Timeout(value = 30)
+    public void testTake_wakesUpAtVisibleAtAndOnInsert() throws Exception {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var queue = new MongoDbPriorityDelayedQueue<>(String.class, mongoClient, mongoCollection);
+
+        // Delayed
+        queue.offer("delayed", MongoDbPriorityDelayedQueue.DEFAULT_PRIORITY, 500, TimeUnit.MILLISECONDS);
+        long start = System.currentTimeMillis();
+        Assertions.assertEquals("delayed", queue.take());
+        Assertions.assertTrue(System.currentTimeMillis() - start >= 400);
+
+        // Inserted by another thread
+        var future = ExecutorsTools.getCachedDaemonThreadPool().submit(queue::take);
+        Thread.sleep(500);
+        new MongoDbPriorityDelayedQueue<>(String.class, mongoClient, mongoCollection).offer("inserted");
+        Assertions.assertEquals("inserted", future.get(10, TimeUnit.SECONDS));
+    }
+
+}
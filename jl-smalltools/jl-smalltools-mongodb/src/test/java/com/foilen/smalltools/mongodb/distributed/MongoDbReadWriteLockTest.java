@@ -0,0 +1,131 @@
+package com.foilen.smalltools.mongodb.distributed;
+
+import com.foilen.smalltools.mongodb.AbstractEmbeddedMongoDbTest;
+import com.foilen.smalltools.tools.ExecutorsTools;
+import com.foilen.smalltools.tools.SecureRandomTools;
+import com.foilen.smalltools.tools.ThreadTools;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MongoDbReadWriteLockTest extends AbstractEmbeddedMongoDbTest {
+
+    @Test
+    @Timeout(30)
+    public void testReadersInParallel() throws Exception {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var lock1 = new MongoDbReadWriteLock(new MongoDbReentrantLock(mongoClient, mongoCollection));
+        var lock2 = new MongoDbReadWriteLock(new MongoDbReentrantLock(mongoClient, mongoCollection));
+
+        final int amountOfReaders = 6;
+        CountDownLatch allReading = new CountDownLatch(amountOfReaders);
+        CountDownLatch done = new CountDownLatch(amountOfReaders);
+        AtomicInteger maxConcurrentReaders = new AtomicInteger();
+        for (int i = 0; i < amountOfReaders; ++i) {
+            var lock = i % 2 == 0 ? lock1 : lock2;
+            ExecutorsTools.getCachedDaemonThreadPool().submit(() -> {
+                try {
+                    lock.waitReadLockAndExecute("rw1", () -> {
+                        allReading.countDown();
+                        try {
+                            allReading.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        maxConcurrentReaders.accumulateAndGet(lock.getReadLockCount("rw1"), Math::max);
+                    });
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        Assertions.assertTrue(done.await(20, TimeUnit.SECONDS));
+        Assertions.assertEquals(amountOfReaders, maxConcurrentReaders.get());
+        Assertions.assertEquals(0, lock1.getReadLockCount("rw1"));
+
+    }
+
+    @Test
+    @Timeout(30)
+    public void testWriterExclusive() throws Exception {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var lock1 = new MongoDbReadWriteLock(new MongoDbReentrantLock(mongoClient, mongoCollection));
+        var lock2 = new MongoDbReadWriteLock(new MongoDbReentrantLock(mongoClient, mongoCollection));
+
+        // Readers block the writer
+        lock1.readLock("rw1");
+        lock1.readLock("rw1");
+        Assertions.assertTrue(lock2.tryReadLock("rw1"));
+        Assertions.assertEquals(2, lock1.getReadLockCount("rw1"));
+        Assertions.assertFalse(lock2.tryWriteLock("rw1"));
+        Assertions.assertFalse(lock2.isWriteLockHeld("rw1"));
+
+        // The waiting writer blocks the new readers
+        List<String> actual = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch writerDone = new CountDownLatch(1);
+        ExecutorsTools.getCachedDaemonThreadPool().submit(() -> {
+            try {
+                actual.add("Writer waiting");
+                Assertions.assertTrue(lock2.tryWriteLock("rw1", 10000));
+                actual.add("Writer got lock");
+                ThreadTools.sleep(500);
+                actual.add("Writer releasing lock");
+                lock2.writeUnlock("rw1");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                writerDone.countDown();
+            }
+        });
+        ThreadTools.sleep(1000);
+        Assertions.assertTrue(lock1.isWriteLockHeld("rw1"));
+        AtomicBoolean otherThreadGotReadLock = new AtomicBoolean(true);
+        var otherThread = ExecutorsTools.getCachedDaemonThreadPool().submit(() -> otherThreadGotReadLock.set(lock1.tryReadLock("rw1")));
+        otherThread.get();
+        Assertions.assertFalse(otherThreadGotReadLock.get());
+
+        // Release the readers
+        lock1.readUnlock("rw1");
+        lock1.readUnlock("rw1");
+        lock2.readUnlock("rw1");
+        ThreadTools.sleep(100);
+        lock1.readLock("rw1");
+        actual.add("Reader got lock");
+        lock1.readUnlock("rw1");
+
+        Assertions.assertTrue(writerDone.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("Writer waiting", "Writer got lock", "Writer releasing lock", "Reader got lock"), actual);
+
+        // Write then downgrade
+        Assertions.assertTrue(lock1.tryWriteLock("rw1"));
+        Assertions.assertTrue(lock1.tryWriteLock("rw1"));
+        Assertions.assertTrue(lock1.tryReadLock("rw1"));
+        lock1.writeUnlock("rw1");
+        lock1.writeUnlock("rw1");
+        Assertions.assertFalse(lock1.isWriteLockHeld("rw1"));
+        Assertions.assertEquals(1, lock2.getReadLockCount("rw1"));
+        Assertions.assertFalse(lock2.tryWriteLock("rw1", 200));
+        lock1.readUnlock("rw1");
+        Assertions.assertTrue(lock2.tryWriteLock("rw1", 1000));
+        lock2.writeUnlock("rw1");
+
+    }
+
+}
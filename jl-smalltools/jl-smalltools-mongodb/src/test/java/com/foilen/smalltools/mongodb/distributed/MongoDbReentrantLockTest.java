@@ -4,6 +4,7 @@ import com.foilen.smalltools.mongodb.AbstractEmbeddedMongoDbTest;
 import com.foilen.smalltools.tools.ExecutorsTools;
 import com.foilen.smalltools.tools.SecureRandomTools;
 import com.foilen.smalltools.tools.ThreadTools;
+import com.foilen.smalltools.tuple.Tuple2;
 import com.mongodb.client.MongoCollection;
 import org.bson.Document;
 import org.junit.jupiter.api.Assertions;
@@ -18,6 +19,7 @@ import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MongoDbReentrantLockTest extends AbstractEmbeddedMongoDbTest {
 
@@ -226,4 +228,194 @@ public class MongoDbReentrantLockTest extends AbstractEmbeddedMongoDbTest {
 
     }
 
+    @Test
+    @Timeout(30)
+    public void testFencingToken() throws InterruptedException {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var lock1 = new MongoDbReentrantLock(mongoClient, mongoCollection);
+        var lock2 = new MongoDbReentrantLock(mongoClient, mongoCollection);
+
+        Assertions.assertThrows(IllegalStateException.class, () -> lock1.getFencingToken("lock1"));
+
+        // Same token when reentrant
+        lock1.lock("lock1");
+        long firstToken = lock1.getFencingToken("lock1");
+        lock1.lock("lock1");
+        Assertions.assertEquals(firstToken, lock1.getFencingToken("lock1"));
+        lock1.unlock("lock1");
+        lock1.unlock("lock1");
+        Assertions.assertThrows(IllegalStateException.class, () -> lock1.getFencingToken("lock1"));
+
+        // Always bigger for the next holders
+        lock2.lock("lock1");
+        long secondToken = lock2.getFencingToken("lock1");
+        Assertions.assertTrue(secondToken > firstToken);
+        lock2.unlock("lock1");
+
+        lock1.lock("lock1");
+        long thirdToken = lock1.getFencingToken("lock1");
+        Assertions.assertTrue(thirdToken > secondToken);
+
+        // A failed attempt does not take a token
+        Assertions.assertFalse(lock2.tryLock("lock1"));
+        lock1.unlock("lock1");
+        lock2.lock("lock1");
+        Assertions.assertEquals(thirdToken + 1, lock2.getFencingToken("lock1"));
+        lock2.unlock("lock1");
+
+        // All the lock names share the same sequence document
+        lock1.lock("lock2");
+        Assertions.assertEquals(thirdToken + 2, lock1.getFencingToken("lock2"));
+        lock1.unlock("lock2");
+        Assertions.assertEquals(1, mongoCollection.countDocuments());
+
+        // The sequence is not a lock
+        Assertions.assertFalse(lock1.isLockHeld("lock1"));
+
+    }
+
+    @Test
+    @Timeout(30)
+    public void testHeartbeats() throws InterruptedException {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var lock = new MongoDbReentrantLock(mongoClient, mongoCollection, 60000, 500, 3000, 60000);
+        var otherLock = new MongoDbReentrantLock(mongoClient, mongoCollection, 60000, 500, 3000, 60000);
+
+        for (int i = 0; i < 20; ++i) {
+            lock.lock("lock" + i);
+        }
+
+        // Still held after the expiration thanks to the heartbeats
+        ThreadTools.sleep(5000);
+        for (int i = 0; i < 20; ++i) {
+            Assertions.assertTrue(lock.isLockHeld("lock" + i));
+            Assertions.assertFalse(otherLock.tryLock("lock" + i));
+        }
+
+        // Lose one lock
+        mongoCollection.deleteOne(new Document().append(MongoDbDistributedConstants.FIELD_ID, "lock5"));
+        Assertions.assertTrue(otherLock.tryLock("lock5"));
+        ThreadTools.sleep(1500);
+        Assertions.assertThrows(IllegalStateException.class, () -> lock.getFencingToken("lock5"));
+        Assertions.assertTrue(lock.getFencingToken("lock4") > 0);
+
+        // Unlocking the lost lock does not release the new holder
+        lock.unlock("lock5");
+        Assertions.assertTrue(otherLock.isLockHeld("lock5"));
+        otherLock.unlock("lock5");
+        Assertions.assertFalse(otherLock.isLockHeld("lock5"));
+
+        for (int i = 0; i < 20; ++i) {
+            lock.unlock("lock" + i);
+        }
+        for (int i = 0; i < 20; ++i) {
+            Assertions.assertFalse(lock.isLockHeld("lock" + i));
+        }
+
+    }
+
+    @Test
+    @Timeout(60)
+    public void testLocalQueueAndMetrics() throws Exception {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        var lock = new MongoDbReentrantLock(mongoClient, mongoCollection);
+
+        final int amountOfThreads = 10;
+        CountDownLatch countDownLatch = new CountDownLatch(amountOfThreads);
+        AtomicInteger concurrentHolders = new AtomicInteger();
+        AtomicBoolean hadConcurrentHolders = new AtomicBoolean(false);
+        for (int i = 0; i < amountOfThreads; ++i) {
+            ExecutorsTools.getCachedDaemonThreadPool().submit(() -> {
+                try {
+                    lock.waitLockAndExecute("lock1", () -> {
+                        if (concurrentHolders.incrementAndGet() > 1) {
+                            hadConcurrentHolders.set(true);
+                        }
+                        ThreadTools.sleep(100);
+                        concurrentHolders.decrementAndGet();
+                    });
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+        }
+
+        Assertions.assertTrue(countDownLatch.await(30, TimeUnit.SECONDS));
+        Assertions.assertFalse(hadConcurrentHolders.get());
+
+        var metrics = lock.getMetricsByLockName().get("lock1");
+        Assertions.assertNotNull(metrics);
+        Assertions.assertEquals(amountOfThreads, metrics.getAcquiredCount());
+        Assertions.assertTrue(metrics.getWaitedCount() > 0);
+        Assertions.assertEquals(0, metrics.getTimedOutCount());
+        Assertions.assertTrue(metrics.getMaxWaitTimeInMs() >= metrics.getAverageWaitTimeInMs());
+
+        // Time out
+        var otherLock = new MongoDbReentrantLock(mongoClient, mongoCollection);
+        lock.lock("lock2");
+        Assertions.assertFalse(otherLock.tryLock("lock2", 200));
+        var otherMetrics = otherLock.getMetricsByLockName().get("lock2");
+        Assertions.assertEquals(0, otherMetrics.getAcquiredCount());
+        Assertions.assertEquals(1, otherMetrics.getTimedOutCount());
+        Assertions.assertTrue(otherMetrics.getDuplicateKeyCount() > 0);
+        lock.unlock("lock2");
+
+        lock.clearMetrics();
+        Assertions.assertTrue(lock.getMetricsByLockName().isEmpty());
+
+    }
+
+    @Test
+    @Timeout(60)
+    public void testFair() throws Exception {
+
+        String collectionName = SecureRandomTools.randomHexString(10);
+        MongoCollection<Document> mongoCollection = mongoClient.getDatabase("test").getCollection(collectionName);
+        MongoCollection<Document> waitersCollection = mongoClient.getDatabase("test").getCollection(collectionName + "-waiters");
+        var lockA = new MongoDbReentrantLock(mongoClient, mongoCollection, waitersCollection);
+        var lockB = new MongoDbReentrantLock(mongoClient, mongoCollection, waitersCollection);
+        var lockC = new MongoDbReentrantLock(mongoClient, mongoCollection, waitersCollection);
+
+        List<String> actual = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch countDownLatch = new CountDownLatch(2);
+
+        lockA.lock("lock1");
+
+        // B then C are waiting
+        for (var lockAndName : List.of(new Tuple2<>(lockB, "B"), new Tuple2<>(lockC, "C"))) {
+            ExecutorsTools.getCachedDaemonThreadPool().submit(() -> {
+                try {
+                    lockAndName.getA().waitLockAndExecute("lock1", () -> {
+                        actual.add(lockAndName.getB());
+                        ThreadTools.sleep(500);
+                    });
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            ThreadTools.sleep(1000);
+        }
+        Assertions.assertEquals(2, waitersCollection.countDocuments(new Document().append(MongoDbDistributedConstants.FIELD_LOCK_NAME, "lock1")));
+
+        // A gives the lock and wants it back
+        lockA.unlock("lock1");
+        ThreadTools.sleep(100);
+        lockA.waitLockAndExecute("lock1", () -> actual.add("A"));
+
+        Assertions.assertTrue(countDownLatch.await(30, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("B", "C", "A"), actual);
+        Assertions.assertEquals(0, waitersCollection.countDocuments(new Document().append(MongoDbDistributedConstants.FIELD_LOCK_NAME, "lock1")));
+
+    }
+
 }
\ No newline at end of file